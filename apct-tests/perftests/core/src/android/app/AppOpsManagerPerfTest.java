@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Performance tests for noting app ops, alone and while other threads note ops at the same time.
+ * The op is allowed and has been noted before, i.e. the common case of an app using an op it
+ * holds.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppOpsManagerPerfTest {
+    // Together with the benchmark thread, as many threads as the binder thread pool of the system
+    // server has.
+    private static final int CONTENDING_THREADS = 15;
+    private static final int OP = AppOpsManager.OP_WAKE_LOCK;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AppOpsManager mAppOpsManager;
+    private String mPackageName;
+    private int mUid;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOpsManager = context.getSystemService(AppOpsManager.class);
+        mPackageName = context.getOpPackageName();
+        mUid = Process.myUid();
+        // Create the state of the op, so that the benchmarks don't measure the first note.
+        mAppOpsManager.noteOpNoThrow(OP, mUid, mPackageName);
+    }
+
+    @Test
+    public void timeNoteOp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOpsManager.noteOpNoThrow(OP, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeNoteOpContended() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(CONTENDING_THREADS);
+        final Thread[] threads = new Thread[CONTENDING_THREADS];
+        for (int t = 0; t < CONTENDING_THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                started.countDown();
+                while (!done.get()) {
+                    mAppOpsManager.noteOpNoThrow(OP, mUid, mPackageName);
+                }
+            });
+            threads[t].start();
+        }
+        started.await();
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOpsManager.noteOpNoThrow(OP, mUid, mPackageName);
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.content.Context;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures scanning a synthetic system app directory the way the package manager
+ * does at boot: cold, with an empty parser cache and certificate collection as on
+ * first boot or after an OTA, and warm, with every package served from the cache.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PackageParserPerfTest {
+    /** Number of copies of the test APK in the synthetic app directory. */
+    private static final int PACKAGE_COUNT = 32;
+    /** Same sizing as the package manager's parallel package parser. */
+    private static final int THREAD_COUNT =
+            Math.max(4, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mRootDir;
+    private File mAppDir;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mRootDir = new File(context.getCacheDir(), "PackageParserPerfTest");
+        FileUtils.deleteContentsAndDir(mRootDir);
+        mAppDir = new File(mRootDir, "app");
+        mCacheDir = new File(mRootDir, "package_cache");
+        mCacheDir.mkdirs();
+        final File apk = new File(context.getPackageCodePath());
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final File packageDir = new File(mAppDir, "PerfApp" + i);
+            packageDir.mkdirs();
+            if (!FileUtils.copyFile(apk, new File(packageDir, "base.apk"))) {
+                throw new IllegalStateException("Failed to copy " + apk);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mRootDir);
+    }
+
+    private void scan(ExecutorService executor, boolean collectCertificates) throws Exception {
+        final File[] files = mAppDir.listFiles();
+        final ArrayList<Future<?>> results = new ArrayList<>(files.length);
+        for (File file : files) {
+            results.add(executor.submit(() -> {
+                final PackageParser pp = new PackageParser();
+                pp.setCacheDir(mCacheDir);
+                final PackageParser.Package pkg = pp.parsePackage(file,
+                        PackageParser.PARSE_IS_SYSTEM_DIR, true /* useCaches */);
+                if (collectCertificates) {
+                    PackageParser.collectCertificates(pkg, true /* skipVerify */);
+                }
+                return pkg;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+    }
+
+    private void scanCold(int threadCount) throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            while (state.keepRunning()) {
+                state.pauseTiming();
+                FileUtils.deleteContents(mCacheDir);
+                state.resumeTiming();
+                scan(executor, true /* collectCertificates */);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testScanCold() throws Exception {
+        scanCold(THREAD_COUNT);
+    }
+
+    @Test
+    public void testScanColdSingleThread() throws Exception {
+        scanCold(1);
+    }
+
+    @Test
+    public void testScanWarm() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            scan(executor, false /* collectCertificates */);
+            while (state.keepRunning()) {
+                scan(executor, false /* collectCertificates */);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.os;
+
+import android.app.Activity;
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.KernelCpuProcReader;
+import com.android.internal.os.KernelUidCpuActiveTimeReader;
+import com.android.internal.os.KernelUidCpuClusterTimeReader;
+import com.android.internal.os.KernelUidCpuFreqTimeReader;
+import com.android.internal.os.PowerProfile;
+import com.android.internal.os.ProcessCpuTracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Performance tests for the readers of the per-uid cpu time proc files and
+ * {@link ProcessCpuTracker}: the time and the number of allocations of an update. The uid readers
+ * read synthetic proc files with {@link #NUM_UIDS} uids, whose times grow on every update.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class KernelCpuReadersPerfTest {
+    private static final int NUM_UIDS = 500;
+    private static final int NUM_CORES = 8;
+    private static final int[] CORES_ON_CLUSTER = {4, 4};
+    private static final int NUM_FREQS = 16;
+    private static final int ALLOCATION_ITERATIONS = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mProcFile;
+    private byte[] mProcBytes;
+    private int mHeaderInts;
+    private int mTimesPerUid;
+
+    @Before
+    public void setUp() {
+        mProcFile = new File(getContext().getCacheDir(), "uid_cpu_times");
+    }
+
+    @After
+    public void tearDown() {
+        mProcFile.delete();
+    }
+
+    private static Context getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+
+    /**
+     * Writes a proc file of the given header followed by {@link #NUM_UIDS} uids with
+     * timesPerUid times each.
+     */
+    private void writeProcFile(int[] header, int timesPerUid) throws IOException {
+        mHeaderInts = header.length;
+        mTimesPerUid = timesPerUid;
+        final ByteBuffer buf = ByteBuffer.allocate(
+                (header.length + NUM_UIDS * (timesPerUid + 1)) * 4).order(ByteOrder.nativeOrder());
+        for (int value : header) {
+            buf.putInt(value);
+        }
+        for (int i = 0; i < NUM_UIDS; i++) {
+            buf.putInt(Process.FIRST_APPLICATION_UID + i);
+            for (int j = 0; j < timesPerUid; j++) {
+                buf.putInt(j + 1);
+            }
+        }
+        mProcBytes = buf.array();
+        writeProcBytes();
+    }
+
+    /**
+     * Advances every time in the proc file.
+     */
+    private void advanceProcFile() throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(mProcBytes).order(ByteOrder.nativeOrder());
+        int pos = mHeaderInts * 4;
+        for (int i = 0; i < NUM_UIDS; i++) {
+            pos += 4;
+            for (int j = 0; j < mTimesPerUid; j++, pos += 4) {
+                buf.putInt(pos, buf.getInt(pos) + 100);
+            }
+        }
+        writeProcBytes();
+    }
+
+    private void writeProcBytes() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mProcFile)) {
+            out.write(mProcBytes);
+        }
+    }
+
+    private KernelCpuProcReader newProcReader() {
+        final KernelCpuProcReader procReader = new KernelCpuProcReader(mProcFile.getPath());
+        procReader.setThrottleInterval(0);
+        return procReader;
+    }
+
+    private void timeReadDelta(Runnable readDelta) throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            advanceProcFile();
+            state.resumeTiming();
+            readDelta.run();
+        }
+    }
+
+    /**
+     * Reports the number of objects the given update allocates, as the average over
+     * {@link #ALLOCATION_ITERATIONS} updates after warming up.
+     */
+    private void reportAllocations(String key, boolean advance, Runnable update)
+            throws IOException {
+        for (int i = 0; i < 3; i++) {
+            update.run();
+        }
+        long allocations = 0;
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+                if (advance) {
+                    advanceProcFile();
+                }
+                Debug.resetThreadAllocCount();
+                update.run();
+                allocations += Debug.getThreadAllocCount();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        final Bundle status = new Bundle();
+        status.putLong(key + "_allocs_per_update", allocations / ALLOCATION_ITERATIONS);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private KernelUidCpuActiveTimeReader newActiveTimeReader() throws IOException {
+        writeProcFile(new int[] {NUM_CORES}, NUM_CORES);
+        final KernelUidCpuActiveTimeReader reader =
+                new KernelUidCpuActiveTimeReader(newProcReader());
+        reader.setThrottleInterval(0);
+        return reader;
+    }
+
+    private KernelUidCpuClusterTimeReader newClusterTimeReader() throws IOException {
+        final int[] header = new int[CORES_ON_CLUSTER.length + 1];
+        header[0] = CORES_ON_CLUSTER.length;
+        System.arraycopy(CORES_ON_CLUSTER, 0, header, 1, CORES_ON_CLUSTER.length);
+        writeProcFile(header, NUM_CORES);
+        final KernelUidCpuClusterTimeReader reader =
+                new KernelUidCpuClusterTimeReader(newProcReader());
+        reader.setThrottleInterval(0);
+        return reader;
+    }
+
+    private KernelUidCpuFreqTimeReader newFreqTimeReader() throws IOException {
+        writeProcFile(new int[] {NUM_FREQS}, NUM_FREQS);
+        final KernelUidCpuFreqTimeReader reader = new KernelUidCpuFreqTimeReader(newProcReader());
+        reader.setThrottleInterval(0);
+        final StringBuilder freqs = new StringBuilder("uid:");
+        for (int i = 0; i < NUM_FREQS; i++) {
+            freqs.append(' ').append(300000 + i * 100000);
+        }
+        reader.readFreqs(new BufferedReader(new StringReader(freqs.toString())),
+                new PowerProfile(getContext()));
+        return reader;
+    }
+
+    @Test
+    public void timeActiveTimeReadDelta() throws IOException {
+        final KernelUidCpuActiveTimeReader reader = newActiveTimeReader();
+        timeReadDelta(() -> reader.readDelta((uid, time) -> {}));
+    }
+
+    @Test
+    public void testActiveTimeReadDeltaAllocations() throws IOException {
+        final KernelUidCpuActiveTimeReader reader = newActiveTimeReader();
+        reportAllocations("ActiveTimeReadDelta", true, () -> reader.readDelta(null));
+    }
+
+    @Test
+    public void timeClusterTimeReadDelta() throws IOException {
+        final KernelUidCpuClusterTimeReader reader = newClusterTimeReader();
+        timeReadDelta(() -> reader.readDelta((uid, times) -> {}));
+    }
+
+    @Test
+    public void testClusterTimeReadDeltaAllocations() throws IOException {
+        final KernelUidCpuClusterTimeReader reader = newClusterTimeReader();
+        reportAllocations("ClusterTimeReadDelta", true, () -> reader.readDelta(null));
+    }
+
+    @Test
+    public void timeFreqTimeReadDelta() throws IOException {
+        final KernelUidCpuFreqTimeReader reader = newFreqTimeReader();
+        timeReadDelta(() -> reader.readDelta((uid, times) -> {}));
+    }
+
+    @Test
+    public void testFreqTimeReadDeltaAllocations() throws IOException {
+        final KernelUidCpuFreqTimeReader reader = newFreqTimeReader();
+        reportAllocations("FreqTimeReadDelta", true, () -> reader.readDelta(null));
+    }
+
+    @Test
+    public void timeProcessCpuTrackerUpdate() {
+        final ProcessCpuTracker tracker = new ProcessCpuTracker(false);
+        tracker.init();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            tracker.update();
+        }
+    }
+
+    @Test
+    public void testProcessCpuTrackerUpdateAllocations() throws IOException {
+        final ProcessCpuTracker tracker = new ProcessCpuTracker(false);
+        tracker.init();
+        reportAllocations("ProcessCpuTrackerUpdate", false, tracker::update);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures permission checks while other threads of the same process keep the
+ * package manager busy with permission checks of their own.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PackageManagerMultithreadPerfTest {
+    private static final String PERMISSION_NAME_EXISTS =
+            "com.android.perftests.core.TestPermission";
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private CountDownLatch mStartLatch;
+    private AtomicBoolean mThreadState;  // True for running, False for stopped.
+
+    private Thread[] startBackgroundThreads(int numOfThreads, Runnable check) {
+        mStartLatch = new CountDownLatch(numOfThreads);
+        mThreadState = new AtomicBoolean(true);
+
+        final Thread[] threads = new Thread[numOfThreads];
+        for (int i = 0; i < numOfThreads; ++i) {
+            threads[i] = new Thread(() -> {
+                mStartLatch.countDown();
+                while (mThreadState.get()) {
+                    check.run();
+                }
+            });
+            threads[i].start();
+        }
+
+        try {
+            mStartLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return threads;
+    }
+
+    private void finishThreads(Thread[] threads) {
+        mThreadState.set(false);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        mStartLatch = null;
+        mThreadState = null;
+    }
+
+    private void runTest(int numOfTotalThreads, Runnable check) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Thread[] threads = startBackgroundThreads(numOfTotalThreads - 1, check);
+        while (state.keepRunning()) {
+            check.run();
+        }
+        finishThreads(threads);
+    }
+
+    private void runCheckPermission(int numOfTotalThreads) {
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final String packageName = InstrumentationRegistry.getTargetContext().getPackageName();
+        runTest(numOfTotalThreads, () -> pm.checkPermission(PERMISSION_NAME_EXISTS, packageName));
+    }
+
+    private void runCheckUidPermission(int numOfTotalThreads) {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final int pid = Process.myPid();
+        final int uid = Process.myUid();
+        runTest(numOfTotalThreads,
+                () -> context.checkPermission(PERMISSION_NAME_EXISTS, pid, uid));
+    }
+
+    @Test
+    public void testCheckPermission_Thread_1() {
+        runCheckPermission(1);
+    }
+
+    @Test
+    public void testCheckPermission_Thread_4() {
+        runCheckPermission(4);
+    }
+
+    @Test
+    public void testCheckPermission_Thread_8() {
+        runCheckPermission(8);
+    }
+
+    @Test
+    public void testCheckUidPermission_Thread_1() {
+        runCheckUidPermission(1);
+    }
+
+    @Test
+    public void testCheckUidPermission_Thread_4() {
+        runCheckUidPermission(4);
+    }
+
+    @Test
+    public void testCheckUidPermission_Thread_8() {
+        runCheckUidPermission(8);
+    }
+}
@@ -33,6 +33,7 @@ public class BroadcastOptions {
     private int mMinManifestReceiverApiLevel = 0;
     private int mMaxManifestReceiverApiLevel = Build.VERSION_CODES.CUR_DEVELOPMENT;
     private boolean mDontSendToRestrictedApps = false;
+    private String mCoalescingExtraKey;
 
     /**
      * How long to temporarily put an app on the power whitelist when executing this broadcast
@@ -59,6 +60,11 @@ public class BroadcastOptions {
     static final String KEY_DONT_SEND_TO_RESTRICTED_APPS =
             "android:broadcast.dontSendToRestrictedApps";
 
+    /**
+     * Corresponds to {@link #setCoalescingExtraKey}.
+     */
+    static final String KEY_COALESCING_EXTRA_KEY = "android:broadcast.coalescingExtraKey";
+
     public static BroadcastOptions makeBasic() {
         BroadcastOptions opts = new BroadcastOptions();
         return opts;
@@ -74,6 +80,7 @@ public class BroadcastOptions {
         mMaxManifestReceiverApiLevel = opts.getInt(KEY_MAX_MANIFEST_RECEIVER_API_LEVEL,
                 Build.VERSION_CODES.CUR_DEVELOPMENT);
         mDontSendToRestrictedApps = opts.getBoolean(KEY_DONT_SEND_TO_RESTRICTED_APPS, false);
+        mCoalescingExtraKey = opts.getString(KEY_COALESCING_EXTRA_KEY);
     }
 
     /**
@@ -147,6 +154,27 @@ public class BroadcastOptions {
         return mDontSendToRestrictedApps;
     }
 
+    /**
+     * Lets this broadcast replace one that is still waiting to be dispatched, if both were
+     * sent by the same app with the same action and the same value for the given extra,
+     * e.g. the network type of a connectivity change. Only the latest state is delivered
+     * during a storm of such broadcasts.
+     * @param extraKey the extra identifying what the broadcast is about, or null to not
+     * coalesce this broadcast.
+     * @hide
+     */
+    public void setCoalescingExtraKey(String extraKey) {
+        mCoalescingExtraKey = extraKey;
+    }
+
+    /**
+     * Return {@link #setCoalescingExtraKey}.
+     * @hide
+     */
+    public String getCoalescingExtraKey() {
+        return mCoalescingExtraKey;
+    }
+
     /**
      * Returns the created options as a Bundle, which can be passed to
      * {@link android.content.Context#sendBroadcast(android.content.Intent)
@@ -169,6 +197,9 @@ public class BroadcastOptions {
         if (mDontSendToRestrictedApps) {
             b.putBoolean(KEY_DONT_SEND_TO_RESTRICTED_APPS, true);
         }
+        if (mCoalescingExtraKey != null) {
+            b.putString(KEY_COALESCING_EXTRA_KEY, mCoalescingExtraKey);
+        }
         return b.isEmpty() ? null : b;
     }
 }
@@ -5315,6 +5315,7 @@ public class Intent implements Parcelable, Cloneable {
             FLAG_RECEIVER_EXCLUDE_BACKGROUND,
             FLAG_RECEIVER_FROM_SHELL,
             FLAG_RECEIVER_VISIBLE_TO_INSTANT_APPS,
+            FLAG_RECEIVER_OFFLOAD,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface Flags {}
@@ -5359,6 +5360,7 @@ public class Intent implements Parcelable, Cloneable {
             FLAG_RECEIVER_EXCLUDE_BACKGROUND,
             FLAG_RECEIVER_FROM_SHELL,
             FLAG_RECEIVER_VISIBLE_TO_INSTANT_APPS,
+            FLAG_RECEIVER_OFFLOAD,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface MutableFlags {}
@@ -5841,6 +5843,14 @@ public class Intent implements Parcelable, Cloneable {
      */
     public static final int FLAG_RECEIVER_VISIBLE_TO_INSTANT_APPS = 0x00200000;
 
+    /**
+     * If set, the broadcast is delivered on a separate queue for heavy, long running
+     * broadcasts such as {@link #ACTION_BOOT_COMPLETED}, so that it doesn't hold up other
+     * background broadcasts.
+     * @hide
+     */
+    public static final int FLAG_RECEIVER_OFFLOAD = 0x80000000;
+
     /**
      * @hide Flags that can't be changed with PendingIntent.
      */
@@ -104,6 +104,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -1053,16 +1054,43 @@ public class PackageParser {
         return sb.toString();
     }
 
+    /**
+     * Reads a package from a cache file written with {@link #toCacheEntry}. The file is
+     * mapped rather than read into a byte array, so decoding it does not allocate a copy
+     * of the whole entry on the heap. Meta-data bundles stay parcelled until first used.
+     */
     @VisibleForTesting
-    protected Package fromCacheEntry(byte[] bytes) {
-        return fromCacheEntryStatic(bytes);
+    protected Package fromCacheFile(File cacheFile) throws IOException {
+        return fromCacheFileStatic(cacheFile);
     }
 
-    /** static version of {@link #fromCacheEntry} for unit tests. */
+    /** static version of {@link #fromCacheFile} for unit tests. */
+    @VisibleForTesting
+    public static Package fromCacheFileStatic(File cacheFile) throws IOException {
+        final Parcel p = Parcel.obtain();
+        try (FileInputStream in = new FileInputStream(cacheFile)) {
+            p.unmarshallMapped(in.getFD());
+            return fromCacheParcel(p);
+        } finally {
+            // Unmaps the file
+            p.recycle();
+        }
+    }
+
+    /** Reads a package from the bytes of a cache entry, for unit tests. */
     @VisibleForTesting
     public static Package fromCacheEntryStatic(byte[] bytes) {
         final Parcel p = Parcel.obtain();
         p.unmarshall(bytes, 0, bytes.length);
+
+        PackageParser.Package pkg = fromCacheParcel(p);
+
+        p.recycle();
+
+        return pkg;
+    }
+
+    private static Package fromCacheParcel(Parcel p) {
         p.setDataPosition(0);
 
         final ReadHelper helper = new ReadHelper(p);
@@ -1070,8 +1098,6 @@ public class PackageParser {
 
         PackageParser.Package pkg = new PackageParser.Package(p);
 
-        p.recycle();
-
         sCachedPackageReadCount.incrementAndGet();
 
         return pkg;
@@ -1148,8 +1174,7 @@ public class PackageParser {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            Package p = fromCacheFile(cacheFile);
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
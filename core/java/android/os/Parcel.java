@@ -325,6 +325,8 @@ public final class Parcel {
     private static native byte[] nativeMarshall(long nativePtr);
     private static native long nativeUnmarshall(
             long nativePtr, byte[] data, int offset, int length);
+    private static native long nativeUnmarshallMapped(long nativePtr, FileDescriptor fd)
+            throws IOException;
     private static native int nativeCompareData(long thisNativePtr, long otherNativePtr);
     private static native long nativeAppendFrom(
             long thisNativePtr, long otherNativePtr, int offset, int length);
@@ -547,6 +549,17 @@ public final class Parcel {
         updateNativeSize(nativeUnmarshall(mNativePtr, data, offset, length));
     }
 
+    /**
+     * Set the contents of the given file to be the raw bytes of this Parcel. The file
+     * is mapped into memory and read in place, without copying it, until the Parcel is
+     * recycled or its data is replaced; the file must not be truncated until then.
+     *
+     * @hide
+     */
+    public final void unmarshallMapped(FileDescriptor fd) throws IOException {
+        updateNativeSize(nativeUnmarshallMapped(mNativePtr, fd));
+    }
+
     public final void appendFrom(Parcel parcel, int offset, int length) {
         updateNativeSize(nativeAppendFrom(mNativePtr, parcel.mNativePtr, offset, length));
     }
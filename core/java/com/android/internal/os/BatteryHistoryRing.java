@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size ring of records in a memory mapped file, which holds the battery history that
+ * no longer fits the in-heap history buffer of {@link BatteryStatsImpl}. Appending a record
+ * drops the oldest records as needed to make room for it. Records are tagged with the
+ * generation of the history they belong to, so that the history before a reset can still be
+ * dumped while it has not been overwritten.
+ *
+ * <p>Records are written through the mapping and reach the file through the page cache, i.e.
+ * they survive a crash of the system server without being written out explicitly. When records
+ * are dropped to make room, the header is updated before their space is overwritten, so it never
+ * points at a record that is being written. Nothing is synced on the way; after a crash of the
+ * kernel, the checksums catch records whose pages didn't make it to the file.
+ *
+ * <p>File format:
+ * <pre>
+ * magic, version, capacity, head, tail, count, last_generation, reserved
+ * length, generation, crc32, payload (padded to 4 bytes)
+ * ...
+ * -1 (the rest of the ring is unused, continue at its start)
+ * </pre>
+ * A record that fails its checksum ends the ring; it and everything after it is dropped.
+ *
+ * <p>Not thread safe; guarded by the {@link BatteryStatsImpl} lock.
+ */
+public class BatteryHistoryRing {
+    private static final String TAG = "BatteryHistoryRing";
+
+    private static final int MAGIC = 0x42485247;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_HEAD = 12;
+    private static final int OFFSET_TAIL = 16;
+    private static final int OFFSET_COUNT = 20;
+    private static final int OFFSET_LAST_GENERATION = 24;
+
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int WRAP = -1;
+
+    private final File mFile;
+    private final int mCapacity;
+    private final MappedByteBuffer mBuffer;
+    private final CRC32 mCrc = new CRC32();
+
+    // Offset of the oldest record in the data area.
+    private int mHead;
+    // Offset in the data area at which the next record is written.
+    private int mTail;
+    private int mCount;
+    private int mLastGeneration = -1;
+
+    /**
+     * Opens the ring in the given file, creating it if needed. A ring of a different capacity
+     * or version is discarded.
+     *
+     * @param capacity size of the data area in bytes, rounded down to a multiple of 4.
+     */
+    public BatteryHistoryRing(File file, int capacity) throws IOException {
+        mFile = file;
+        mCapacity = capacity & ~3;
+        if (mCapacity <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() != HEADER_SIZE + mCapacity) {
+                raf.setLength(HEADER_SIZE + mCapacity);
+            }
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + mCapacity);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            IoUtils.closeQuietly(raf);
+        }
+        if (!readHeader()) {
+            clear();
+        } else if (!validate()) {
+            writeHeader();
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of records in the ring.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the generation of the most recently appended record, or -1 if the ring is empty.
+     */
+    public int getLastGeneration() {
+        return mCount > 0 ? mLastGeneration : -1;
+    }
+
+    /**
+     * Returns the largest payload a single record can hold.
+     */
+    public int getMaxRecordSize() {
+        return mCapacity - RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Drops all records.
+     */
+    public void clear() {
+        mHead = mTail = mCount = 0;
+        mLastGeneration = -1;
+        writeHeader();
+    }
+
+    /**
+     * Appends a record, dropping the oldest records to make room for it.
+     */
+    public void append(int generation, byte[] data, int offset, int length) {
+        if (length < 0 || length > getMaxRecordSize()) {
+            throw new IllegalArgumentException("Invalid record length " + length);
+        }
+        final int size = getRecordSize(length);
+        final int count = mCount;
+        if (mTail + size > mCapacity) {
+            // The record doesn't fit before the end of the ring; drop the records there and
+            // continue at its start.
+            while (mCount > 0 && mHead >= mTail) {
+                if (isWrap(mHead)) {
+                    mHead = 0;
+                } else {
+                    dropHead();
+                }
+            }
+            if (mTail < mCapacity) {
+                mBuffer.putInt(HEADER_SIZE + mTail, WRAP);
+            }
+            mTail = 0;
+        }
+        while (mCount > 0 && mHead >= mTail && mHead < mTail + size) {
+            if (isWrap(mHead)) {
+                mHead = 0;
+            } else {
+                dropHead();
+            }
+        }
+        if (mCount == 0) {
+            mHead = mTail;
+        }
+        if (mCount != count) {
+            // Otherwise the header would still point at the dropped records while the new one
+            // is written over them.
+            writeHeader();
+        }
+
+        mCrc.reset();
+        mCrc.update(data, offset, length);
+        final int pos = HEADER_SIZE + mTail;
+        mBuffer.putInt(pos, length);
+        mBuffer.putInt(pos + 4, generation);
+        mBuffer.putInt(pos + 8, (int) mCrc.getValue());
+        mBuffer.position(pos + RECORD_HEADER_SIZE);
+        mBuffer.put(data, offset, length);
+
+        mTail += size;
+        if (mTail == mCapacity) {
+            mTail = 0;
+        }
+        mCount++;
+        mLastGeneration = generation;
+        writeHeader();
+    }
+
+    /**
+     * Returns the offsets of the records, oldest first. The offsets stay valid until the next
+     * {@link #append} or {@link #clear}.
+     */
+    public int[] getRecordOffsets() {
+        final int[] offsets = new int[mCount];
+        int pos = mHead;
+        for (int i = 0; i < mCount; i++) {
+            if (isWrap(pos)) {
+                pos = 0;
+            }
+            offsets[i] = pos;
+            pos = nextRecord(pos);
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the generation of the record at the given offset.
+     */
+    public int getGeneration(int offset) {
+        return mBuffer.getInt(HEADER_SIZE + offset + 4);
+    }
+
+    /**
+     * Returns the payload length of the record at the given offset.
+     */
+    public int getRecordLength(int offset) {
+        return mBuffer.getInt(HEADER_SIZE + offset);
+    }
+
+    /**
+     * Returns the payload of the record at the given offset.
+     */
+    public byte[] readRecord(int offset) {
+        final byte[] data = new byte[getRecordLength(offset)];
+        mBuffer.position(HEADER_SIZE + offset + RECORD_HEADER_SIZE);
+        mBuffer.get(data);
+        return data;
+    }
+
+    /**
+     * Writes the ring out to its file, e.g. before shutting down.
+     */
+    public void sync() {
+        mBuffer.force();
+    }
+
+    private void dropHead() {
+        mHead = nextRecord(mHead);
+        mCount--;
+    }
+
+    private boolean isWrap(int pos) {
+        return mBuffer.getInt(HEADER_SIZE + pos) == WRAP;
+    }
+
+    private int nextRecord(int pos) {
+        pos += getRecordSize(mBuffer.getInt(HEADER_SIZE + pos));
+        return pos == mCapacity ? 0 : pos;
+    }
+
+    private static int getRecordSize(int length) {
+        return (RECORD_HEADER_SIZE + length + 3) & ~3;
+    }
+
+    private boolean readHeader() {
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION
+                || mBuffer.getInt(OFFSET_CAPACITY) != mCapacity) {
+            return false;
+        }
+        mHead = mBuffer.getInt(OFFSET_HEAD);
+        mTail = mBuffer.getInt(OFFSET_TAIL);
+        mCount = mBuffer.getInt(OFFSET_COUNT);
+        mLastGeneration = mBuffer.getInt(OFFSET_LAST_GENERATION);
+        return mHead >= 0 && mHead < mCapacity && (mHead & 3) == 0
+                && mTail >= 0 && mTail < mCapacity && (mTail & 3) == 0 && mCount >= 0;
+    }
+
+    /**
+     * Walks the records from the head, and drops the first one that is corrupt, e.g. because
+     * the system went down while it was being written, and everything after it.
+     *
+     * @return whether all records were intact.
+     */
+    private boolean validate() {
+        int pos = mHead;
+        int lastGeneration = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (isWrap(pos)) {
+                pos = 0;
+            }
+            final int length = mBuffer.getInt(HEADER_SIZE + pos);
+            // Check the length before computing the size of the record, which could overflow.
+            final boolean validLength = length >= 0 && length <= getMaxRecordSize()
+                    && pos + getRecordSize(length) <= mCapacity;
+            if (!validLength || !checksumMatches(pos)) {
+                Slog.w(TAG, "Dropping " + (mCount - i) + " corrupt records from " + mFile);
+                mCount = i;
+                mTail = pos;
+                if (mCount == 0) {
+                    mHead = mTail;
+                }
+                mLastGeneration = lastGeneration;
+                return false;
+            }
+            lastGeneration = getGeneration(pos);
+            final int end = pos + getRecordSize(length);
+            pos = end == mCapacity ? 0 : end;
+        }
+        if (mTail != pos) {
+            mTail = pos;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean checksumMatches(int pos) {
+        mCrc.reset();
+        mCrc.update(readRecord(pos));
+        return mBuffer.getInt(HEADER_SIZE + pos + 8) == (int) mCrc.getValue();
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(OFFSET_CAPACITY, mCapacity);
+        mBuffer.putInt(OFFSET_HEAD, mHead);
+        mBuffer.putInt(OFFSET_TAIL, mTail);
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+        mBuffer.putInt(OFFSET_LAST_GENERATION, mLastGeneration);
+    }
+}
@@ -140,7 +140,7 @@ public class BatteryStatsImpl extends BatteryStats {
     private static final int MAGIC = 0xBA757475; // 'BATSTATS'
 
     // Current on-disk Parcel version
-    private static final int VERSION = 177 + (USE_OLD_HISTORY ? 1000 : 0);
+    private static final int VERSION = 178 + (USE_OLD_HISTORY ? 1000 : 0);
 
     // Maximum number of items we will record in the history.
     private static final int MAX_HISTORY_ITEMS;
@@ -155,6 +155,8 @@ public class BatteryStatsImpl extends BatteryStats {
 
     static final int MAX_HISTORY_BUFFER; // 256KB
     static final int MAX_MAX_HISTORY_BUFFER; // 320KB
+    // Size of the history file ring that holds the history which no longer fits the buffer.
+    static final int MAX_HISTORY_RING;
 
     static {
         if (ActivityManager.isLowRamDeviceStatic()) {
@@ -163,15 +165,20 @@ public class BatteryStatsImpl extends BatteryStats {
             MAX_WAKELOCKS_PER_UID = 40;
             MAX_HISTORY_BUFFER = 96*1024;  // 96KB
             MAX_MAX_HISTORY_BUFFER = 128*1024; // 128KB
+            MAX_HISTORY_RING = 1024*1024; // 1MB
         } else {
             MAX_HISTORY_ITEMS = 4000;
             MAX_MAX_HISTORY_ITEMS = 6000;
             MAX_WAKELOCKS_PER_UID = 200;
             MAX_HISTORY_BUFFER = 512*1024;  // 512KB
             MAX_MAX_HISTORY_BUFFER = 640*1024;  // 640KB
+            MAX_HISTORY_RING = 4*1024*1024; // 4MB
         }
     }
 
+    // Once the history buffer holds this much, it is moved to the history ring as one chunk.
+    static final int HISTORY_CHUNK_SIZE = MAX_HISTORY_BUFFER / 4;
+
     // Number of transmit power states the Wifi controller can be in.
     private static final int NUM_WIFI_TX_LEVELS = 1;
 
@@ -679,6 +686,23 @@ public class BatteryStatsImpl extends BatteryStats {
     long mTrackRunningHistoryElapsedRealtime = 0;
     long mTrackRunningHistoryUptime = 0;
 
+    // The history that no longer fits mHistoryBuffer, as chunks of about HISTORY_CHUNK_SIZE
+    // bytes, or null if the history is only kept in mHistoryBuffer.
+    BatteryHistoryRing mHistoryRing;
+    // The generation of the history being recorded; a new one starts whenever the history is
+    // cleared. Chunks of older generations are only shown by dumpHistoryArchiveLocked().
+    int mHistoryGeneration;
+    // Number of chunks of the current generation that were moved to mHistoryRing.
+    int mHistoryGenerationChunks;
+    // Ring offsets of the chunks being iterated, before the history in mHistoryBuffer.
+    int[] mReadHistoryChunks;
+    int mReadHistoryChunkIndex;
+    Parcel mReadHistoryChunk;
+    // The parcel being iterated and the range of history data in it.
+    Parcel mReadHistoryParcel;
+    int mReadHistoryStart;
+    int mReadHistoryEnd;
+
     final HistoryItem mHistoryCur = new HistoryItem();
 
     HistoryItem mHistory;
@@ -3747,6 +3771,13 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         boolean recordResetDueToOverflow = false;
+        if (mHistoryRing != null && !mIteratingHistory
+                && mHistoryBuffer.dataSize() >= HISTORY_CHUNK_SIZE) {
+            spillHistoryBufferLocked();
+            // Start the next chunk with an absolute record, so that it can be read on its own.
+            cur.currentTime = System.currentTimeMillis();
+            addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_CURRENT_TIME, cur);
+        }
         final int dataSize = mHistoryBuffer.dataSize();
         if (dataSize >= MAX_MAX_HISTORY_BUFFER*3) {
             // Clients can't deal with history buffers this large. This only
@@ -3838,6 +3869,68 @@ public class BatteryStatsImpl extends BatteryStats {
                 + " size is now " + mHistoryBuffer.dataSize());
     }
 
+    /**
+     * Moves the history buffer to the history ring as the next chunk of the current generation,
+     * along with the tag pool it refers to.
+     */
+    private void spillHistoryBufferLocked() {
+        final Parcel chunk = Parcel.obtain();
+        try {
+            chunk.writeInt(mHistoryGenerationChunks);
+            chunk.writeInt(mHistoryBuffer.dataSize());
+            chunk.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+            writeHistoryTagPool(chunk);
+            final byte[] data = chunk.marshall();
+            if (data.length <= mHistoryRing.getMaxRecordSize()) {
+                mHistoryRing.append(mHistoryGeneration, data, 0, data.length);
+            } else {
+                Slog.w(TAG, "Dropping history chunk of " + data.length + " bytes");
+            }
+        } finally {
+            chunk.recycle();
+        }
+        if (DEBUG_HISTORY) Slog.i(TAG, "Spilled history chunk " + mHistoryGenerationChunks
+                + " of generation " + mHistoryGeneration + ": " + mHistoryBuffer.dataSize()
+                + " bytes");
+        mHistoryGenerationChunks++;
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferLastPos = -1;
+    }
+
+    /**
+     * Returns the ring offsets of the chunks of the current history generation, oldest first.
+     */
+    private int[] getHistoryChunksLocked() {
+        if (mHistoryRing == null || mHistoryGenerationChunks == 0) {
+            return EmptyArray.INT;
+        }
+        final int[] offsets = mHistoryRing.getRecordOffsets();
+        int start = offsets.length;
+        while (start > 0 && mHistoryRing.getGeneration(offsets[start - 1]) == mHistoryGeneration) {
+            start--;
+        }
+        return Arrays.copyOfRange(offsets, start, offsets.length);
+    }
+
+    /**
+     * Loads the chunk at the given ring offset into {@code chunk}, positioned at its history
+     * data.
+     *
+     * @return the size of the history data.
+     */
+    private int readHistoryChunkLocked(int offset, Parcel chunk) {
+        final byte[] data = mHistoryRing.readRecord(offset);
+        chunk.unmarshall(data, 0, data.length);
+        chunk.setDataPosition(0);
+        chunk.readInt(); // sequence number
+        final int size = chunk.readInt();
+        if (size < 0 || size > chunk.dataAvail()) {
+            throw new ParcelFormatException("History chunk corrupt: " + size + " bytes");
+        }
+        return size;
+    }
+
     int mChangedStates = 0;
     int mChangedStates2 = 0;
 
@@ -3984,6 +4077,9 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryOverflow = false;
         mActiveHistoryStates = 0xffffffff;
         mActiveHistoryStates2 = 0xffffffff;
+        // Chunks of the previous generation stay in the ring until they are overwritten.
+        mHistoryGeneration++;
+        mHistoryGenerationChunks = 0;
     }
 
     @GuardedBy("this")
@@ -10128,6 +10224,14 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            try {
+                mHistoryRing = new BatteryHistoryRing(
+                        new File(systemDir, "batterystats-history.ring"), MAX_HISTORY_RING);
+                // clearHistoryLocked() below moves on to the next generation.
+                mHistoryGeneration = mHistoryRing.getLastGeneration();
+            } catch (IOException e) {
+                Slog.w(TAG, "Unable to open history ring, keeping history in memory only", e);
+            }
         } else {
             mFile = null;
         }
@@ -10658,11 +10762,18 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public int getHistoryTotalSize() {
+        if (mHistoryRing != null) {
+            return mHistoryRing.getCapacity() + HISTORY_CHUNK_SIZE;
+        }
         return MAX_HISTORY_BUFFER;
     }
 
     public int getHistoryUsedSize() {
-        return mHistoryBuffer.dataSize();
+        int size = mHistoryBuffer.dataSize();
+        for (int offset : getHistoryChunksLocked()) {
+            size += mHistoryRing.getRecordLength(offset);
+        }
+        return size;
     }
 
     @Override
@@ -10672,7 +10783,9 @@ public class BatteryStatsImpl extends BatteryStats {
         if (mHistoryBuffer.dataSize() <= 0) {
             return false;
         }
-        mHistoryBuffer.setDataPosition(0);
+        mReadHistoryChunks = getHistoryChunksLocked();
+        mReadHistoryChunkIndex = -1;
+        readNextHistoryChunkLocked();
         mReadOverflow = false;
         mIteratingHistory = true;
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
@@ -10710,20 +10823,49 @@ public class BatteryStatsImpl extends BatteryStats {
         return mReadHistoryUids[index];
     }
 
+    /**
+     * Moves the iteration on to the next chunk of history, or to mHistoryBuffer after the last
+     * chunk.
+     *
+     * @return false if mHistoryBuffer has already been iterated.
+     */
+    private boolean readNextHistoryChunkLocked() {
+        mReadHistoryChunkIndex++;
+        if (mReadHistoryChunkIndex < mReadHistoryChunks.length) {
+            if (mReadHistoryChunk == null) {
+                mReadHistoryChunk = Parcel.obtain();
+            }
+            final int size = readHistoryChunkLocked(mReadHistoryChunks[mReadHistoryChunkIndex],
+                    mReadHistoryChunk);
+            mReadHistoryParcel = mReadHistoryChunk;
+            mReadHistoryStart = mReadHistoryChunk.dataPosition();
+            mReadHistoryEnd = mReadHistoryStart + size;
+            return true;
+        } else if (mReadHistoryChunkIndex == mReadHistoryChunks.length) {
+            mHistoryBuffer.setDataPosition(0);
+            mReadHistoryParcel = mHistoryBuffer;
+            mReadHistoryStart = 0;
+            mReadHistoryEnd = mHistoryBuffer.dataSize();
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public boolean getNextHistoryLocked(HistoryItem out) {
-        final int pos = mHistoryBuffer.dataPosition();
-        if (pos == 0) {
-            out.clear();
+        while (mReadHistoryParcel.dataPosition() >= mReadHistoryEnd) {
+            if (!readNextHistoryChunkLocked()) {
+                return false;
+            }
         }
-        boolean end = pos >= mHistoryBuffer.dataSize();
-        if (end) {
-            return false;
+        // Each chunk starts with an absolute record.
+        if (mReadHistoryParcel.dataPosition() == mReadHistoryStart) {
+            out.clear();
         }
 
         final long lastRealtime = out.time;
         final long lastWalltime = out.currentTime;
-        readHistoryDelta(mHistoryBuffer, out);
+        readHistoryDelta(mReadHistoryParcel, out);
         if (out.cmd != HistoryItem.CMD_CURRENT_TIME
                 && out.cmd != HistoryItem.CMD_RESET && lastWalltime != 0) {
             out.currentTime = lastWalltime + (out.time - lastRealtime);
@@ -10736,6 +10878,101 @@ public class BatteryStatsImpl extends BatteryStats {
         mIteratingHistory = false;
         mHistoryBuffer.setDataPosition(mHistoryBuffer.dataSize());
         mReadHistoryStrings = null;
+        mReadHistoryChunks = null;
+        mReadHistoryParcel = null;
+        if (mReadHistoryChunk != null) {
+            mReadHistoryChunk.recycle();
+            mReadHistoryChunk = null;
+        }
+    }
+
+    /**
+     * Dumps every chunk in the history ring, including the chunks of history generations before
+     * the last reset, each with its own tag pool.
+     */
+    public void dumpHistoryArchiveLocked(PrintWriter pw, boolean verbose) {
+        if (mHistoryRing == null) {
+            pw.println("No history archive.");
+            return;
+        }
+        if (mIteratingHistory) {
+            pw.println("History is being iterated.");
+            return;
+        }
+        final HistoryPrinter hprinter = new HistoryPrinter();
+        final HistoryItem rec = new HistoryItem();
+        final Parcel chunk = Parcel.obtain();
+        try {
+            int lastGeneration = -1;
+            long baseTime = -1;
+            for (int offset : mHistoryRing.getRecordOffsets()) {
+                final int generation = mHistoryRing.getGeneration(offset);
+                final int size = readHistoryChunkLocked(offset, chunk);
+                final int start = chunk.dataPosition();
+                chunk.setDataPosition(0);
+                final int seq = chunk.readInt();
+                if (generation != lastGeneration) {
+                    if (lastGeneration >= 0) {
+                        pw.println();
+                    }
+                    pw.print("History generation ");
+                    pw.print(generation);
+                    if (generation == mHistoryGeneration) {
+                        pw.print(" (current)");
+                    }
+                    pw.println(":");
+                    lastGeneration = generation;
+                    baseTime = -1;
+                }
+                pw.print("  Chunk ");
+                pw.print(seq);
+                pw.print(": ");
+                pw.print(size);
+                pw.println(" bytes");
+
+                // Records refer to the tag pool as it was when the chunk was written.
+                chunk.setDataPosition(start + size);
+                readHistoryTagPool(chunk);
+                chunk.setDataPosition(start);
+                rec.clear();
+                while (chunk.dataPosition() < start + size) {
+                    readHistoryDelta(chunk, rec);
+                    if (baseTime < 0) {
+                        baseTime = rec.time;
+                    }
+                    hprinter.printNextItem(pw, rec, baseTime, false, verbose);
+                }
+            }
+        } catch (ParcelFormatException e) {
+            pw.println("History archive corrupt: " + e.getMessage());
+        } finally {
+            chunk.recycle();
+            mReadHistoryStrings = null;
+            mReadHistoryUids = null;
+        }
+    }
+
+    /**
+     * Reads a tag pool written by {@link #writeHistoryTagPool} for decoding history data with
+     * {@link #readHistoryDelta}.
+     */
+    private void readHistoryTagPool(Parcel in) {
+        final int numTags = in.readInt();
+        int maxIdx = -1;
+        final int start = in.dataPosition();
+        for (int i = 0; i < numTags; i++) {
+            maxIdx = Math.max(maxIdx, in.readInt());
+            in.readString();
+            in.readInt();
+        }
+        mReadHistoryStrings = new String[maxIdx + 1];
+        mReadHistoryUids = new int[maxIdx + 1];
+        in.setDataPosition(start);
+        for (int i = 0; i < numTags; i++) {
+            final int idx = in.readInt();
+            mReadHistoryStrings[idx] = in.readString();
+            mReadHistoryUids[idx] = in.readInt();
+        }
     }
 
     @Override
@@ -13260,6 +13497,9 @@ public class BatteryStatsImpl extends BatteryStats {
     public void shutdownLocked() {
         recordShutdownLocked(mClocks.elapsedRealtime(), mClocks.uptimeMillis());
         writeSyncLocked();
+        if (mHistoryRing != null) {
+            mHistoryRing.sync();
+        }
         mShuttingDown = true;
     }
 
@@ -13658,6 +13898,45 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    /**
+     * Continues the history generation the summary was written in, if the chunks that were
+     * moved to the history ring since match the summary. Otherwise, e.g. if the system went
+     * down after a chunk was moved but before the summary was written again, the history
+     * restored from the summary would overlap the ring; it then starts a new generation and
+     * the older chunks are only kept for the archive.
+     */
+    private void restoreHistoryGenerationLocked(int generation, int chunks) {
+        if (mHistoryRing == null) {
+            return;
+        }
+        final int lastGeneration = mHistoryRing.getLastGeneration();
+        boolean matches;
+        if (chunks == 0) {
+            matches = lastGeneration < generation;
+        } else if (lastGeneration != generation) {
+            matches = false;
+        } else {
+            final int[] offsets = mHistoryRing.getRecordOffsets();
+            final Parcel chunk = Parcel.obtain();
+            try {
+                readHistoryChunkLocked(offsets[offsets.length - 1], chunk);
+                chunk.setDataPosition(0);
+                matches = chunk.readInt() == chunks - 1;
+            } catch (ParcelFormatException e) {
+                matches = false;
+            } finally {
+                chunk.recycle();
+            }
+        }
+        if (matches) {
+            mHistoryGeneration = generation;
+            mHistoryGenerationChunks = chunks;
+        } else {
+            Slog.w(TAG, "History ring doesn't match generation " + generation + " with "
+                    + chunks + " chunks, starting generation " + mHistoryGeneration);
+        }
+    }
+
     void readOldHistory(Parcel in) {
         if (!USE_OLD_HISTORY) {
             return;
@@ -13685,6 +13964,20 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeInt(0);
             return;
         }
+        writeHistoryTagPool(out);
+        if (andOldHistory) {
+            // The summary only holds the history that is not in the history ring yet.
+            out.writeInt(mHistoryBuffer.dataSize());
+            if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
+                    + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
+            out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+            writeOldHistory(out);
+        } else {
+            writeRecentHistoryData(out);
+        }
+    }
+
+    private void writeHistoryTagPool(Parcel out) {
         out.writeInt(mHistoryTagPool.size());
         for (HashMap.Entry<HistoryTag, Integer> ent : mHistoryTagPool.entrySet()) {
             HistoryTag tag = ent.getKey();
@@ -13692,14 +13985,48 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
-        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
-                + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
-        out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+    }
 
-        if (andOldHistory) {
-            writeOldHistory(out);
+    /**
+     * Writes the history data for clients: the most recent chunks of the history ring that,
+     * along with mHistoryBuffer, fit in MAX_HISTORY_BUFFER, followed by mHistoryBuffer. Each
+     * chunk starts with an absolute record, so their data can simply be concatenated.
+     */
+    private void writeRecentHistoryData(Parcel out) {
+        final int[] chunks = getHistoryChunksLocked();
+        int first = chunks.length;
+        int size = mHistoryBuffer.dataSize();
+        while (first > 0) {
+            final int chunkSize = mHistoryRing.getRecordLength(chunks[first - 1]);
+            if (size + chunkSize > MAX_HISTORY_BUFFER) {
+                break;
+            }
+            size += chunkSize;
+            first--;
+        }
+
+        final int sizePos = out.dataPosition();
+        out.writeInt(0);
+        final int dataPos = out.dataPosition();
+        if (first < chunks.length) {
+            final Parcel chunk = Parcel.obtain();
+            try {
+                for (int i = first; i < chunks.length; i++) {
+                    final int chunkDataSize = readHistoryChunkLocked(chunks[i], chunk);
+                    out.appendFrom(chunk, chunk.dataPosition(), chunkDataSize);
+                }
+            } finally {
+                chunk.recycle();
+            }
         }
+        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
+                + (chunks.length - first) + " chunks and " + mHistoryBuffer.dataSize()
+                + " bytes at " + dataPos);
+        out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        final int endPos = out.dataPosition();
+        out.setDataPosition(sizePos);
+        out.writeInt(endPos - dataPos);
+        out.setDataPosition(endPos);
     }
 
     void writeOldHistory(Parcel out) {
@@ -13723,6 +14050,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         readHistory(in, true);
+        restoreHistoryGenerationLocked(in.readInt(), in.readInt());
 
         mStartCount = in.readInt();
         mUptime = in.readLong();
@@ -14191,6 +14519,8 @@ public class BatteryStatsImpl extends BatteryStats {
         out.writeInt(VERSION);
 
         writeHistory(out, inclHistory, true);
+        out.writeInt(mHistoryGeneration);
+        out.writeInt(mHistoryGenerationChunks);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
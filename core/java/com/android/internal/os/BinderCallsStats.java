@@ -16,6 +16,7 @@
 
 package com.android.internal.os;
 
+import android.annotation.Nullable;
 import android.os.Binder;
 import android.os.SystemClock;
 import android.text.format.DateFormat;
@@ -24,6 +25,7 @@ import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
 import com.android.internal.util.Preconditions;
 
 import java.io.PrintWriter;
@@ -31,21 +33,28 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
  * per thread, uid or call description.
+ *
+ * <p>Each thread records its calls into its own {@link Shard}, so that binder threads never wait
+ * on each other; the shards are merged when the stats are dumped. A shard's lock is only ever
+ * contended by {@link #dump} and {@link #reset}. Optionally, only one in every
+ * {@link #setSamplingInterval sampling interval} calls of a thread is recorded.
  */
 public class BinderCallsStats {
-    private static final int CALL_SESSIONS_POOL_SIZE = 100;
+    // Sessions kept per thread; more than one is only needed for nested calls.
+    private static final int CALL_SESSIONS_POOL_SIZE = 4;
+    // The last bucket holds latencies of 2^20us, about a second, and more.
+    private static final int LATENCY_HISTOGRAM_BUCKETS = 22;
     private static final BinderCallsStats sInstance = new BinderCallsStats();
 
     private volatile boolean mDetailedTracking = false;
+    private volatile int mSamplingInterval = 1;
     @GuardedBy("mLock")
-    private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
-    private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Shard> mShards = new ArrayList<>();
+    private final ThreadLocal<Shard> mShard = ThreadLocal.withInitial(this::newShard);
     private final Object mLock = new Object();
     private long mStartTime = System.currentTimeMillis();
 
@@ -57,35 +66,64 @@ public class BinderCallsStats {
         mDetailedTracking = detailedTracking;
     }
 
+    private Shard newShard() {
+        final Shard shard = new Shard();
+        synchronized (mLock) {
+            mShards.add(shard);
+        }
+        return shard;
+    }
+
+    /**
+     * @return the session to pass to {@link #callEnded}, or null if the call isn't sampled.
+     */
+    @Nullable
     public CallSession callStarted(Binder binder, int code) {
         return callStarted(binder.getClass().getName(), code);
     }
 
     private CallSession callStarted(String className, int code) {
-        CallSession s = mCallSessionsPool.poll();
-        if (s == null) {
-            s = new CallSession();
+        final Shard shard = mShard.get();
+        final int samplingInterval = mSamplingInterval;
+        if (samplingInterval > 1) {
+            if (++shard.callsSinceSample < samplingInterval) {
+                return null;
+            }
+            shard.callsSinceSample = 0;
         }
+        final CallSession s = shard.obtainSession();
         s.mCallStat.className = className;
         s.mCallStat.msg = code;
 
-        s.mStarted = getThreadTimeMicro();
+        s.mDetailedTracking = mDetailedTracking;
+        if (s.mDetailedTracking) {
+            s.mStarted = SystemClock.currentThreadTimeMicro();
+            s.mStartedNanos = System.nanoTime();
+        }
         return s;
     }
 
-    public void callEnded(CallSession s) {
-        Preconditions.checkNotNull(s);
-        long duration = mDetailedTracking ? getThreadTimeMicro() - s.mStarted : 1;
+    public void callEnded(@Nullable CallSession s) {
+        if (s == null) {
+            // The call wasn't sampled.
+            return;
+        }
+        final boolean detailedTracking = s.mDetailedTracking;
+        final long duration = detailedTracking
+                ? SystemClock.currentThreadTimeMicro() - s.mStarted : 1;
+        final long latencyMicros = detailedTracking
+                ? (System.nanoTime() - s.mStartedNanos) / 1000 : 0;
         s.mCallingUId = Binder.getCallingUid();
 
-        synchronized (mLock) {
-            UidEntry uidEntry = mUidEntries.get(s.mCallingUId);
+        final Shard shard = s.mShard;
+        synchronized (shard) {
+            UidEntry uidEntry = shard.uidEntries.get(s.mCallingUId);
             if (uidEntry == null) {
                 uidEntry = new UidEntry(s.mCallingUId);
-                mUidEntries.put(s.mCallingUId, uidEntry);
+                shard.uidEntries.put(s.mCallingUId, uidEntry);
             }
 
-            if (mDetailedTracking) {
+            if (detailedTracking) {
                 // Find CallDesc entry and update its total time
                 CallStat callStat = uidEntry.mCallStats.get(s.mCallStat);
                 // Only create CallStat if it's a new entry, otherwise update existing instance
@@ -95,14 +133,21 @@ public class BinderCallsStats {
                 }
                 callStat.callCount++;
                 callStat.time += duration;
+
+                ExponentiallyBucketedHistogram histogram =
+                        shard.latencyHistograms.get(s.mCallStat);
+                if (histogram == null) {
+                    histogram = new ExponentiallyBucketedHistogram(LATENCY_HISTOGRAM_BUCKETS);
+                    shard.latencyHistograms.put(
+                            new CallStat(s.mCallStat.className, s.mCallStat.msg), histogram);
+                }
+                histogram.add((int) Math.min(latencyMicros, Integer.MAX_VALUE));
             }
 
             uidEntry.time += duration;
             uidEntry.callCount++;
         }
-        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
-            mCallSessionsPool.add(s);
-        }
+        shard.recycleSession(s);
     }
 
     public void dump(PrintWriter pw) {
@@ -112,22 +157,30 @@ public class BinderCallsStats {
         long totalCallsTime = 0;
         pw.print("Start time: ");
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
-        int uidEntriesSize = mUidEntries.size();
+        final int samplingInterval = mSamplingInterval;
+        if (samplingInterval > 1) {
+            pw.print("Sampling interval: ");
+            pw.print(samplingInterval);
+            pw.println(" (only sampled calls are counted)");
+        }
+        final SparseArray<UidEntry> uidEntries = new SparseArray<>();
+        final ArrayMap<CallStat, ExponentiallyBucketedHistogram> latencyHistograms =
+                new ArrayMap<>();
+        mergeShards(uidEntries, latencyHistograms);
+        int uidEntriesSize = uidEntries.size();
         List<UidEntry> entries = new ArrayList<>();
-        synchronized (mLock) {
-            for (int i = 0; i < uidEntriesSize; i++) {
-                UidEntry e = mUidEntries.valueAt(i);
-                entries.add(e);
-                totalCallsTime += e.time;
-                // Update per-uid totals
-                Long totalTimePerUid = uidTimeMap.get(e.uid);
-                uidTimeMap.put(e.uid,
-                        totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
-                Long totalCallsPerUid = uidCallCountMap.get(e.uid);
-                uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
-                        : totalCallsPerUid + e.callCount);
-                totalCallsCount += e.callCount;
-            }
+        for (int i = 0; i < uidEntriesSize; i++) {
+            UidEntry e = uidEntries.valueAt(i);
+            entries.add(e);
+            totalCallsTime += e.time;
+            // Update per-uid totals
+            Long totalTimePerUid = uidTimeMap.get(e.uid);
+            uidTimeMap.put(e.uid,
+                    totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
+            Long totalCallsPerUid = uidCallCountMap.get(e.uid);
+            uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
+                    : totalCallsPerUid + e.callCount);
+            totalCallsCount += e.callCount;
         }
         if (mDetailedTracking) {
             pw.println("Raw data (uid,call_desc,time):");
@@ -172,6 +225,16 @@ public class BinderCallsStats {
                             + "calls_count=%d, avg_call_time=%.0f",
                     totalCallsTime, totalCallsCount,
                     (double)totalCallsTime / totalCallsCount));
+            pw.println();
+            pw.println("Latency histograms (call_desc: [bucket_us: calls_count]):");
+            List<CallStat> callStats = new ArrayList<>(latencyHistograms.keySet());
+            callStats.sort((o1, o2) -> {
+                final int res = o1.className.compareTo(o2.className);
+                return res != 0 ? res : Integer.compare(o1.msg, o2.msg);
+            });
+            for (CallStat callStat : callStats) {
+                latencyHistograms.get(callStat).dump(pw, "  " + callStat + ": ");
+            }
         } else {
             pw.println("Per UID Summary(UID: calls_count, % of total calls_count):");
             List<Map.Entry<Integer, Long>> uidTotals = new ArrayList<>(uidTimeMap.entrySet());
@@ -184,10 +247,48 @@ public class BinderCallsStats {
         }
     }
 
-    private long getThreadTimeMicro() {
-        // currentThreadTimeMicro is expensive, so we measure cpu time only if detailed tracking is
-        // enabled
-        return mDetailedTracking ? SystemClock.currentThreadTimeMicro() : 0;
+    /**
+     * Merges the stats of all shards into the given collections.
+     */
+    private void mergeShards(SparseArray<UidEntry> uidEntries,
+            ArrayMap<CallStat, ExponentiallyBucketedHistogram> latencyHistograms) {
+        final ArrayList<Shard> shards;
+        synchronized (mLock) {
+            shards = new ArrayList<>(mShards);
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            final Shard shard = shards.get(i);
+            synchronized (shard) {
+                for (int j = 0; j < shard.uidEntries.size(); j++) {
+                    final UidEntry e = shard.uidEntries.valueAt(j);
+                    UidEntry merged = uidEntries.get(e.uid);
+                    if (merged == null) {
+                        merged = new UidEntry(e.uid);
+                        uidEntries.put(e.uid, merged);
+                    }
+                    merged.time += e.time;
+                    merged.callCount += e.callCount;
+                    for (CallStat callStat : e.mCallStats.keySet()) {
+                        CallStat mergedCallStat = merged.mCallStats.get(callStat);
+                        if (mergedCallStat == null) {
+                            mergedCallStat = new CallStat(callStat.className, callStat.msg);
+                            merged.mCallStats.put(mergedCallStat, mergedCallStat);
+                        }
+                        mergedCallStat.time += callStat.time;
+                        mergedCallStat.callCount += callStat.callCount;
+                    }
+                }
+                for (int j = 0; j < shard.latencyHistograms.size(); j++) {
+                    final CallStat callStat = shard.latencyHistograms.keyAt(j);
+                    ExponentiallyBucketedHistogram merged = latencyHistograms.get(callStat);
+                    if (merged == null) {
+                        merged = new ExponentiallyBucketedHistogram(LATENCY_HISTOGRAM_BUCKETS);
+                        latencyHistograms.put(callStat, merged);
+                    }
+                    merged.add(shard.latencyHistograms.valueAt(j));
+                }
+            }
+        }
     }
 
     public static BinderCallsStats getInstance() {
@@ -201,9 +302,31 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Sets the interval at which calls are sampled: with an interval of N, only one in every N
+     * calls of a thread is recorded. An interval of 1 records all calls.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        Preconditions.checkArgumentPositive(samplingInterval, "samplingInterval");
+        if (samplingInterval != mSamplingInterval) {
+            reset();
+            mSamplingInterval = samplingInterval;
+        }
+    }
+
+    public int getSamplingInterval() {
+        return mSamplingInterval;
+    }
+
     public void reset() {
         synchronized (mLock) {
-            mUidEntries.clear();
+            for (int i = 0; i < mShards.size(); i++) {
+                final Shard shard = mShards.get(i);
+                synchronized (shard) {
+                    shard.uidEntries.clear();
+                    shard.latencyHistograms.clear();
+                }
+            }
             mStartTime = System.currentTimeMillis();
         }
     }
@@ -249,9 +372,45 @@ public class BinderCallsStats {
     public static class CallSession {
         int mCallingUId;
         long mStarted;
+        long mStartedNanos;
+        boolean mDetailedTracking;
+        Shard mShard;
         CallStat mCallStat = new CallStat();
     }
 
+    /**
+     * The stats recorded by one thread. Shards of threads that have died are kept, and still
+     * count towards the dumped stats.
+     */
+    private static class Shard {
+        // Only accessed by the thread of the shard.
+        final ArrayList<CallSession> sessionPool = new ArrayList<>(CALL_SESSIONS_POOL_SIZE);
+        int callsSinceSample;
+
+        @GuardedBy("this")
+        final SparseArray<UidEntry> uidEntries = new SparseArray<>();
+        // Latency of calls per call description, in microseconds.
+        @GuardedBy("this")
+        final ArrayMap<CallStat, ExponentiallyBucketedHistogram> latencyHistograms =
+                new ArrayMap<>();
+
+        CallSession obtainSession() {
+            final int size = sessionPool.size();
+            if (size > 0) {
+                return sessionPool.remove(size - 1);
+            }
+            final CallSession s = new CallSession();
+            s.mShard = this;
+            return s;
+        }
+
+        void recycleSession(CallSession s) {
+            if (sessionPool.size() < CALL_SESSIONS_POOL_SIZE) {
+                sessionPool.add(s);
+            }
+        }
+    }
+
     private static class UidEntry {
         int uid;
         long time;
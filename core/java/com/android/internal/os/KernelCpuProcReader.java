@@ -24,21 +24,22 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Reads cpu time proc files with throttling (adjustable interval).
  *
  * KernelCpuProcReader is implemented as singletons for built-in kernel proc files. Get___Instance()
  * method will return corresponding reader instance. In order to prevent frequent GC,
- * KernelCpuProcReader reuses a {@link ByteBuffer} to store data read from proc files.
+ * KernelCpuProcReader reads proc files into a reused direct {@link ByteBuffer}, and returns the
+ * same read-only view of it from every call, so that readers which parse it with absolute
+ * {@link ByteBuffer#getInt(int)} calls don't allocate at all.
  *
  * A KernelCpuProcReader instance keeps an error counter. When the number of read errors within that
  * instance accumulates to 5, this instance will reject all further read requests.
@@ -84,12 +85,15 @@ public class KernelCpuProcReader {
     private long mThrottleInterval = DEFAULT_THROTTLE_INTERVAL;
     private long mLastReadTime = Long.MIN_VALUE;
     private final Path mProc;
-    private byte[] mBuffer = new byte[8 * 1024];
+    private ByteBuffer mBuffer;
+    // Read-only view of mBuffer handed out to callers.
+    private ByteBuffer mView;
     private int mContentSize;
 
     @VisibleForTesting
     public KernelCpuProcReader(String procFile) {
         mProc = Paths.get(procFile);
+        allocateBuffer(8 * 1024);
     }
 
     /**
@@ -100,7 +104,8 @@ public class KernelCpuProcReader {
      * method is thread-unsafe, so is the return value. Caller needs to hold a lock on this
      * object while calling this method and digesting its return value.
      *
-     * @return a {@link ByteBuffer} containing all bytes from the proc file.
+     * @return a {@link ByteBuffer} containing all bytes from the proc file, in native byte order.
+     *         The same buffer is returned from every call, and only stays valid until the next.
      */
     public ByteBuffer readBytes() {
         if (mErrors >= ERROR_THRESHOLD) {
@@ -108,33 +113,31 @@ public class KernelCpuProcReader {
         }
         if (SystemClock.elapsedRealtime() < mLastReadTime + mThrottleInterval) {
             if (mContentSize > 0) {
-                return ByteBuffer.wrap(mBuffer, 0, mContentSize).asReadOnlyBuffer()
-                        .order(ByteOrder.nativeOrder());
+                return getView();
             }
             return null;
         }
         mLastReadTime = SystemClock.elapsedRealtime();
         mContentSize = 0;
         final int oldMask = StrictMode.allowThreadDiskReadsMask();
-        try (InputStream in = Files.newInputStream(mProc)) {
-            int numBytes = 0;
-            int curr;
-            while ((curr = in.read(mBuffer, numBytes, mBuffer.length - numBytes)) >= 0) {
-                numBytes += curr;
-                if (numBytes == mBuffer.length) {
+        try (FileChannel channel = FileChannel.open(mProc, StandardOpenOption.READ)) {
+            mBuffer.clear();
+            while (channel.read(mBuffer) >= 0) {
+                if (!mBuffer.hasRemaining()) {
                     // Hit the limit. Resize mBuffer.
-                    if (mBuffer.length == MAX_BUFFER_SIZE) {
+                    if (mBuffer.capacity() == MAX_BUFFER_SIZE) {
                         mErrors++;
                         Slog.e(TAG, "Proc file is too large: " + mProc);
                         return null;
                     }
-                    mBuffer = Arrays.copyOf(mBuffer,
-                            Math.min(mBuffer.length << 1, MAX_BUFFER_SIZE));
+                    final ByteBuffer old = mBuffer;
+                    allocateBuffer(Math.min(old.capacity() << 1, MAX_BUFFER_SIZE));
+                    old.flip();
+                    mBuffer.put(old);
                 }
             }
-            mContentSize = numBytes;
-            return ByteBuffer.wrap(mBuffer, 0, mContentSize).asReadOnlyBuffer()
-                    .order(ByteOrder.nativeOrder());
+            mContentSize = mBuffer.position();
+            return getView();
         } catch (NoSuchFileException | FileNotFoundException e) {
             // Happens when the kernel does not provide this file. Not a big issue. Just log it.
             mErrors++;
@@ -148,6 +151,17 @@ public class KernelCpuProcReader {
         return null;
     }
 
+    private void allocateBuffer(int capacity) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+        mView = mBuffer.asReadOnlyBuffer();
+    }
+
+    private ByteBuffer getView() {
+        mView.clear();
+        mView.limit(mContentSize);
+        return mView.order(ByteOrder.nativeOrder());
+    }
+
     /**
      * Sets the throttle interval. Set to 0 will disable throttling. Thread-unsafe, holding a lock
      * on this object is recommended.
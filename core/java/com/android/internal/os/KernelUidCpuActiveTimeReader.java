@@ -18,13 +18,10 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.util.Slog;
-import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.function.Consumer;
 
 /**
  * Reads binary proc file /proc/uid_cpupower/concurrent_active_time and reports CPU active time to
@@ -41,6 +38,9 @@ import java.util.function.Consumer;
  * maintains the previous results of a call to {@link #readDelta} in order to provide a
  * proper delta.
  *
+ * The file is parsed in place from the buffer of {@link KernelCpuProcReader}, and the previous
+ * results are kept in a {@link UidTimeArray} in microseconds, so that a read doesn't allocate.
+ *
  * This class uses a throttler to reject any {@link #readDelta} call within
  * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
  * which has a shorter throttle interval and returns cached result from last read when the request
@@ -54,7 +54,7 @@ public class KernelUidCpuActiveTimeReader extends
     private static final String TAG = KernelUidCpuActiveTimeReader.class.getSimpleName();
 
     private final KernelCpuProcReader mProcReader;
-    private SparseArray<Double> mLastUidCpuActiveTimeMs = new SparseArray<>();
+    private final UidTimeArray mLastUidCpuActiveTimeUs = new UidTimeArray(1);
     private int mCores;
 
     public interface Callback extends KernelUidCpuTimeReaderBase.Callback {
@@ -78,59 +78,41 @@ public class KernelUidCpuActiveTimeReader extends
 
     @Override
     protected void readDeltaImpl(@Nullable Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double activeTime = sumActiveTime(buf);
-            if (activeTime > 0) {
-                double delta = activeTime - mLastUidCpuActiveTimeMs.get(uid, 0.0);
-                if (delta > 0) {
-                    mLastUidCpuActiveTimeMs.put(uid, activeTime);
-                    if (callback != null) {
-                        callback.onUidCpuActiveTime(uid, (long) delta);
-                    }
-                } else if (delta < 0) {
-                    Slog.e(TAG, "Negative delta from active time proc: " + delta);
-                }
-            }
-        });
+        readImpl(callback, true);
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double activeTime = sumActiveTime(buf);
-            if (activeTime > 0) {
-                callback.onUidCpuActiveTime(uid, (long) activeTime);
-            }
-        });
+        readImpl(callback, false);
     }
 
-    private double sumActiveTime(IntBuffer buffer) {
-        double sum = 0;
+    /**
+     * Returns the active time of the uid whose times start at the given byte offset in
+     * microseconds, or -1 if the times are corrupted.
+     */
+    private long sumActiveTimeUs(ByteBuffer bytes, int pos) {
+        long sum = 0;
         boolean corrupted = false;
-        for (int j = 1; j <= mCores; j++) {
-            int time = buffer.get();
+        for (int j = 1; j <= mCores; j++, pos += 4) {
+            int time = bytes.getInt(pos);
             if (time < 0) {
-                // Even if error happens, we still need to continue reading.
-                // Buffer cannot be skipped.
+                // Even if error happens, we still need to check the rest.
                 Slog.e(TAG, "Negative time from active time proc: " + time);
                 corrupted = true;
             } else {
-                sum += (double) time * 10 / j; // Unit is 10ms.
+                sum += (long) time * 10000 / j; // Unit is 10ms.
             }
         }
         return corrupted ? -1 : sum;
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
+     * readImpl contains the logic common to readDeltaImpl, which needs to store the last seen
+     * results while processing the buffer, and readAbsolute, which returns the absolute values
+     * read from the buffer without storing.
      *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * @param delta whether to report deltas to the last read rather than absolute values.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
+    private void readImpl(@Nullable Callback callback, boolean delta) {
         synchronized (mProcReader) {
             final ByteBuffer bytes = mProcReader.readBytes();
             if (bytes == null || bytes.remaining() <= 4) {
@@ -142,22 +124,42 @@ public class KernelUidCpuActiveTimeReader extends
                         "Cannot parse active time proc bytes to int: " + bytes.remaining());
                 return;
             }
-            final IntBuffer buf = bytes.asIntBuffer();
-            final int cores = buf.get();
+            int pos = bytes.position();
+            final int remaining = bytes.remaining() / 4 - 1;
+            final int cores = bytes.getInt(pos);
+            pos += 4;
             if (mCores != 0 && cores != mCores) {
                 Slog.wtf(TAG, "Cpu active time wrong # cores: " + cores);
                 return;
             }
             mCores = cores;
-            if (cores <= 0 || buf.remaining() % (cores + 1) != 0) {
+            if (cores <= 0 || remaining % (cores + 1) != 0) {
                 Slog.wtf(TAG,
-                        "Cpu active time format error: " + buf.remaining() + " / " + (cores
-                                + 1));
+                        "Cpu active time format error: " + remaining + " / " + (cores + 1));
                 return;
             }
-            int numUids = buf.remaining() / (cores + 1);
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
+            final int numUids = remaining / (cores + 1);
+            for (int i = 0; i < numUids; i++, pos += (cores + 1) * 4) {
+                final int uid = bytes.getInt(pos);
+                final long activeTimeUs = sumActiveTimeUs(bytes, pos + 4);
+                if (activeTimeUs <= 0) {
+                    continue;
+                }
+                if (!delta) {
+                    callback.onUidCpuActiveTime(uid, activeTimeUs / 1000);
+                    continue;
+                }
+                final int row = mLastUidCpuActiveTimeUs.getOrAddUid(uid);
+                final long lastTimeUs = mLastUidCpuActiveTimeUs.get(row, 0);
+                final long deltaMs = activeTimeUs / 1000 - lastTimeUs / 1000;
+                if (activeTimeUs > lastTimeUs) {
+                    mLastUidCpuActiveTimeUs.set(row, 0, activeTimeUs);
+                    if (callback != null && deltaMs > 0) {
+                        callback.onUidCpuActiveTime(uid, deltaMs);
+                    }
+                } else if (activeTimeUs < lastTimeUs) {
+                    Slog.e(TAG, "Negative delta from active time proc: " + deltaMs);
+                }
             }
             if (DEBUG) {
                 Slog.d(TAG, "Read uids: " + numUids);
@@ -166,14 +168,10 @@ public class KernelUidCpuActiveTimeReader extends
     }
 
     public void removeUid(int uid) {
-        mLastUidCpuActiveTimeMs.delete(uid);
+        mLastUidCpuActiveTimeUs.removeUid(uid);
     }
 
     public void removeUidsInRange(int startUid, int endUid) {
-        mLastUidCpuActiveTimeMs.put(startUid, null);
-        mLastUidCpuActiveTimeMs.put(endUid, null);
-        final int firstIndex = mLastUidCpuActiveTimeMs.indexOfKey(startUid);
-        final int lastIndex = mLastUidCpuActiveTimeMs.indexOfKey(endUid);
-        mLastUidCpuActiveTimeMs.removeAtRange(firstIndex, lastIndex - firstIndex + 1);
+        mLastUidCpuActiveTimeUs.removeUidsInRange(startUid, endUid);
     }
 }
@@ -18,13 +18,10 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.util.Slog;
-import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.function.Consumer;
 
 /**
  * Reads binary proc file /proc/uid_cpupower/concurrent_policy_time and reports CPU cluster times
@@ -45,6 +42,9 @@ import java.util.function.Consumer;
  * maintains the previous results of a call to {@link #readDelta} in order to provide a
  * proper delta.
  *
+ * The file is parsed in place from the buffer of {@link KernelCpuProcReader}, and the previous
+ * results are kept in a {@link UidTimeArray} in microseconds, so that a read doesn't allocate.
+ *
  * This class uses a throttler to reject any {@link #readDelta} call within
  * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
  * which has a shorter throttle interval and returns cached result from last read when the request
@@ -58,13 +58,14 @@ public class KernelUidCpuClusterTimeReader extends
     private static final String TAG = KernelUidCpuClusterTimeReader.class.getSimpleName();
 
     private final KernelCpuProcReader mProcReader;
-    private SparseArray<double[]> mLastUidPolicyTimeMs = new SparseArray<>();
+    // Created once the number of clusters is known.
+    private UidTimeArray mLastUidPolicyTimeUs;
 
     private int mNumClusters = -1;
     private int mNumCores;
     private int[] mNumCoresOnCluster;
 
-    private double[] mCurTime; // Reuse to avoid GC.
+    private long[] mCurTimeUs; // Reuse to avoid GC.
     private long[] mDeltaTime; // Reuse to avoid GC.
     private long[] mCurTimeRounded; // Reuse to avoid GC.
 
@@ -90,72 +91,64 @@ public class KernelUidCpuClusterTimeReader extends
 
     @Override
     protected void readDeltaImpl(@Nullable Callback cb) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double[] lastTimes = mLastUidPolicyTimeMs.get(uid);
-            if (lastTimes == null) {
-                lastTimes = new double[mNumClusters];
-                mLastUidPolicyTimeMs.put(uid, lastTimes);
-            }
-            if (!sumClusterTime(buf, mCurTime)) {
-                return;
-            }
-            boolean valid = true;
-            boolean notify = false;
-            for (int i = 0; i < mNumClusters; i++) {
-                mDeltaTime[i] = (long) (mCurTime[i] - lastTimes[i]);
-                if (mDeltaTime[i] < 0) {
-                    Slog.e(TAG, "Negative delta from cluster time proc: " + mDeltaTime[i]);
-                    valid = false;
-                }
-                notify |= mDeltaTime[i] > 0;
-            }
-            if (notify && valid) {
-                System.arraycopy(mCurTime, 0, lastTimes, 0, mNumClusters);
-                if (cb != null) {
-                    cb.onUidCpuPolicyTime(uid, mDeltaTime);
-                }
-            }
-        });
+        readImpl(cb, true);
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            if (sumClusterTime(buf, mCurTime)) {
-                for (int i = 0; i < mNumClusters; i++) {
-                    mCurTimeRounded[i] = (long) mCurTime[i];
-                }
-                callback.onUidCpuPolicyTime(uid, mCurTimeRounded);
+        readImpl(callback, false);
+    }
+
+    private void processUidDelta(@Nullable Callback cb, int uid) {
+        final int row = mLastUidPolicyTimeUs.getOrAddUid(uid);
+        boolean valid = true;
+        boolean notify = false;
+        for (int i = 0; i < mNumClusters; i++) {
+            final long lastTimeUs = mLastUidPolicyTimeUs.get(row, i);
+            mDeltaTime[i] = mCurTimeUs[i] / 1000 - lastTimeUs / 1000;
+            if (mCurTimeUs[i] < lastTimeUs) {
+                Slog.e(TAG, "Negative delta from cluster time proc: " + mDeltaTime[i]);
+                valid = false;
             }
-        });
+            notify |= mDeltaTime[i] > 0;
+        }
+        if (notify && valid) {
+            for (int i = 0; i < mNumClusters; i++) {
+                mLastUidPolicyTimeUs.set(row, i, mCurTimeUs[i]);
+            }
+            if (cb != null) {
+                cb.onUidCpuPolicyTime(uid, mDeltaTime);
+            }
+        }
     }
 
-    private boolean sumClusterTime(IntBuffer buffer, double[] clusterTime) {
+    /**
+     * Sums the times of the uid whose times start at the given byte offset into clusterTimeUs,
+     * in microseconds.
+     */
+    private boolean sumClusterTime(ByteBuffer bytes, int pos, long[] clusterTimeUs) {
         boolean valid = true;
         for (int i = 0; i < mNumClusters; i++) {
-            clusterTime[i] = 0;
-            for (int j = 1; j <= mNumCoresOnCluster[i]; j++) {
-                int time = buffer.get();
+            clusterTimeUs[i] = 0;
+            for (int j = 1; j <= mNumCoresOnCluster[i]; j++, pos += 4) {
+                int time = bytes.getInt(pos);
                 if (time < 0) {
                     Slog.e(TAG, "Negative time from cluster time proc: " + time);
                     valid = false;
                 }
-                clusterTime[i] += (double) time * 10 / j; // Unit is 10ms.
+                clusterTimeUs[i] += (long) time * 10000 / j; // Unit is 10ms.
             }
         }
         return valid;
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
+     * readImpl contains the logic common to readDeltaImpl, which needs to store the last seen
+     * results while processing the buffer, and readAbsolute, which returns the absolute values
+     * read from the buffer without storing.
      *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * @param delta whether to report deltas to the last read rather than absolute values.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
+    private void readImpl(@Nullable Callback cb, boolean delta) {
         synchronized (mProcReader) {
             ByteBuffer bytes = mProcReader.readBytes();
             if (bytes == null || bytes.remaining() <= 4) {
@@ -167,8 +160,10 @@ public class KernelUidCpuClusterTimeReader extends
                         "Cannot parse cluster time proc bytes to int: " + bytes.remaining());
                 return;
             }
-            IntBuffer buf = bytes.asIntBuffer();
-            final int numClusters = buf.get();
+            int pos = bytes.position();
+            int remaining = bytes.remaining() / 4 - 1;
+            final int numClusters = bytes.getInt(pos);
+            pos += 4;
             if (numClusters <= 0) {
                 Slog.wtf(TAG, "Cluster time format error: " + numClusters);
                 return;
@@ -176,28 +171,38 @@ public class KernelUidCpuClusterTimeReader extends
             if (mNumClusters == -1) {
                 mNumClusters = numClusters;
             }
-            if (buf.remaining() < numClusters) {
-                Slog.wtf(TAG, "Too few data left in the buffer: " + buf.remaining());
+            if (remaining < numClusters) {
+                Slog.wtf(TAG, "Too few data left in the buffer: " + remaining);
                 return;
             }
             if (mNumCores <= 0) {
-                if (!readCoreInfo(buf, numClusters)) {
+                if (!readCoreInfo(bytes, pos, numClusters)) {
                     return;
                 }
-            } else {
-                buf.position(buf.position() + numClusters);
             }
+            pos += numClusters * 4;
+            remaining -= numClusters;
 
-            if (buf.remaining() % (mNumCores + 1) != 0) {
+            if (remaining % (mNumCores + 1) != 0) {
                 Slog.wtf(TAG,
-                        "Cluster time format error: " + buf.remaining() + " / " + (mNumCores
-                                + 1));
+                        "Cluster time format error: " + remaining + " / " + (mNumCores + 1));
                 return;
             }
-            int numUids = buf.remaining() / (mNumCores + 1);
+            int numUids = remaining / (mNumCores + 1);
 
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
+            for (int i = 0; i < numUids; i++, pos += (mNumCores + 1) * 4) {
+                final int uid = bytes.getInt(pos);
+                if (!sumClusterTime(bytes, pos + 4, mCurTimeUs)) {
+                    continue;
+                }
+                if (delta) {
+                    processUidDelta(cb, uid);
+                } else {
+                    for (int j = 0; j < mNumClusters; j++) {
+                        mCurTimeRounded[j] = mCurTimeUs[j] / 1000;
+                    }
+                    cb.onUidCpuPolicyTime(uid, mCurTimeRounded);
+                }
             }
             if (DEBUG) {
                 Slog.d(TAG, "Read uids: " + numUids);
@@ -206,11 +211,11 @@ public class KernelUidCpuClusterTimeReader extends
     }
 
     // Returns if it has read valid info.
-    private boolean readCoreInfo(IntBuffer buf, int numClusters) {
+    private boolean readCoreInfo(ByteBuffer bytes, int pos, int numClusters) {
         int numCores = 0;
         int[] numCoresOnCluster = new int[numClusters];
         for (int i = 0; i < numClusters; i++) {
-            numCoresOnCluster[i] = buf.get();
+            numCoresOnCluster[i] = bytes.getInt(pos + i * 4);
             numCores += numCoresOnCluster[i];
         }
         if (numCores <= 0) {
@@ -219,21 +224,22 @@ public class KernelUidCpuClusterTimeReader extends
         }
         mNumCores = numCores;
         mNumCoresOnCluster = numCoresOnCluster;
-        mCurTime = new double[numClusters];
+        mLastUidPolicyTimeUs = new UidTimeArray(numClusters);
+        mCurTimeUs = new long[numClusters];
         mDeltaTime = new long[numClusters];
         mCurTimeRounded = new long[numClusters];
         return true;
     }
 
     public void removeUid(int uid) {
-        mLastUidPolicyTimeMs.delete(uid);
+        if (mLastUidPolicyTimeUs != null) {
+            mLastUidPolicyTimeUs.removeUid(uid);
+        }
     }
 
     public void removeUidsInRange(int startUid, int endUid) {
-        mLastUidPolicyTimeMs.put(startUid, null);
-        mLastUidPolicyTimeMs.put(endUid, null);
-        final int firstIndex = mLastUidPolicyTimeMs.indexOfKey(startUid);
-        final int lastIndex = mLastUidPolicyTimeMs.indexOfKey(endUid);
-        mLastUidPolicyTimeMs.removeAtRange(firstIndex, lastIndex - firstIndex + 1);
+        if (mLastUidPolicyTimeUs != null) {
+            mLastUidPolicyTimeUs.removeUidsInRange(startUid, endUid);
+        }
     }
 }
@@ -31,8 +31,6 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.function.Consumer;
 
 /**
  * Reads /proc/uid_time_in_state which has the format:
@@ -170,48 +168,44 @@ public class KernelUidCpuFreqTimeReader extends
         if (mCpuFreqs == null) {
             return;
         }
-        readImpl((buf) -> {
-            int uid = buf.get();
-            long[] lastTimes = mLastUidCpuFreqTimeMs.get(uid);
-            if (lastTimes == null) {
-                lastTimes = new long[mCpuFreqsCount];
-                mLastUidCpuFreqTimeMs.put(uid, lastTimes);
-            }
-            if (!getFreqTimeForUid(buf, mCurTimes)) {
-                return;
-            }
-            boolean notify = false;
-            boolean valid = true;
-            for (int i = 0; i < mCpuFreqsCount; i++) {
-                mDeltaTimes[i] = mCurTimes[i] - lastTimes[i];
-                if (mDeltaTimes[i] < 0) {
-                    Slog.e(TAG, "Negative delta from freq time proc: " + mDeltaTimes[i]);
-                    valid = false;
-                }
-                notify |= mDeltaTimes[i] > 0;
-            }
-            if (notify && valid) {
-                System.arraycopy(mCurTimes, 0, lastTimes, 0, mCpuFreqsCount);
-                if (callback != null) {
-                    callback.onUidCpuFreqTime(uid, mDeltaTimes);
-                }
-            }
-        });
+        readImpl(callback, true);
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            if (getFreqTimeForUid(buf, mCurTimes)) {
-                callback.onUidCpuFreqTime(uid, mCurTimes);
-            }
-        });
+        readImpl(callback, false);
     }
 
-    private boolean getFreqTimeForUid(IntBuffer buffer, long[] freqTime) {
+    private void processUidDelta(@Nullable Callback callback, int uid) {
+        long[] lastTimes = mLastUidCpuFreqTimeMs.get(uid);
+        if (lastTimes == null) {
+            lastTimes = new long[mCpuFreqsCount];
+            mLastUidCpuFreqTimeMs.put(uid, lastTimes);
+        }
+        boolean notify = false;
         boolean valid = true;
         for (int i = 0; i < mCpuFreqsCount; i++) {
-            freqTime[i] = (long) buffer.get() * 10; // Unit is 10ms.
+            mDeltaTimes[i] = mCurTimes[i] - lastTimes[i];
+            if (mDeltaTimes[i] < 0) {
+                Slog.e(TAG, "Negative delta from freq time proc: " + mDeltaTimes[i]);
+                valid = false;
+            }
+            notify |= mDeltaTimes[i] > 0;
+        }
+        if (notify && valid) {
+            System.arraycopy(mCurTimes, 0, lastTimes, 0, mCpuFreqsCount);
+            if (callback != null) {
+                callback.onUidCpuFreqTime(uid, mDeltaTimes);
+            }
+        }
+    }
+
+    /**
+     * Reads the times of the uid whose times start at the given byte offset into freqTime.
+     */
+    private boolean getFreqTimeForUid(ByteBuffer bytes, int pos, long[] freqTime) {
+        boolean valid = true;
+        for (int i = 0; i < mCpuFreqsCount; i++, pos += 4) {
+            freqTime[i] = (long) bytes.getInt(pos) * 10; // Unit is 10ms.
             if (freqTime[i] < 0) {
                 Slog.e(TAG, "Negative time from freq time proc: " + freqTime[i]);
                 valid = false;
@@ -221,14 +215,13 @@ public class KernelUidCpuFreqTimeReader extends
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
+     * readImpl contains the logic common to readDeltaImpl, which needs to store the last seen
+     * results while processing the buffer, and readAbsolute, which returns the absolute values
+     * read from the buffer without storing. The buffer is parsed in place, without allocating.
      *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * @param delta whether to report deltas to the last read rather than absolute values.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
+    private void readImpl(@Nullable Callback callback, boolean delta) {
         synchronized (mProcReader) {
             ByteBuffer bytes = mProcReader.readBytes();
             if (bytes == null || bytes.remaining() <= 4) {
@@ -239,19 +232,31 @@ public class KernelUidCpuFreqTimeReader extends
                 Slog.wtf(TAG, "Cannot parse freq time proc bytes to int: " + bytes.remaining());
                 return;
             }
-            IntBuffer buf = bytes.asIntBuffer();
-            final int freqs = buf.get();
+            int pos = bytes.position();
+            final int remaining = bytes.remaining() / 4 - 1;
+            final int freqs = bytes.getInt(pos);
+            pos += 4;
             if (freqs != mCpuFreqsCount) {
                 Slog.wtf(TAG, "Cpu freqs expect " + mCpuFreqsCount + " , got " + freqs);
                 return;
             }
-            if (buf.remaining() % (freqs + 1) != 0) {
-                Slog.wtf(TAG, "Freq time format error: " + buf.remaining() + " / " + (freqs + 1));
+            if (remaining % (freqs + 1) != 0) {
+                Slog.wtf(TAG, "Freq time format error: " + remaining + " / " + (freqs + 1));
                 return;
             }
-            int numUids = buf.remaining() / (freqs + 1);
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
+            int numUids = remaining / (freqs + 1);
+            for (int i = 0; i < numUids; i++, pos += (freqs + 1) * 4) {
+                final int uid = bytes.getInt(pos);
+                if (!delta) {
+                    if (getFreqTimeForUid(bytes, pos + 4, mCurTimes)) {
+                        callback.onUidCpuFreqTime(uid, mCurTimes);
+                    }
+                } else if (getFreqTimeForUid(bytes, pos + 4, mCurTimes)) {
+                    processUidDelta(callback, uid);
+                } else if (mLastUidCpuFreqTimeMs.get(uid) == null) {
+                    // Keep the uid known, so that getAllUidCpuFreqTimeMs() still lists it.
+                    mLastUidCpuFreqTimeMs.put(uid, new long[mCpuFreqsCount]);
+                }
             }
             if (DEBUG) {
                 Slog.d(TAG, "Read uids: #" + numUids);
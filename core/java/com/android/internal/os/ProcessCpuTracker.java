@@ -383,11 +383,12 @@ public class ProcessCpuTracker {
         mLastSampleWallTime = mCurrentSampleWallTime;
         mCurrentSampleWallTime = nowWallTime;
 
-        final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
+        // Use the policy mask rather than a ThreadPolicy, which would be allocated on every update.
+        final int oldMask = StrictMode.allowThreadDiskReadsMask();
         try {
             mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
         } finally {
-            StrictMode.setThreadPolicy(savedPolicy);
+            StrictMode.setThreadPolicyMask(oldMask);
         }
 
         final float[] loadAverages = mLoadAverageData;
@@ -868,7 +869,7 @@ public class ProcessCpuTracker {
         // Permit disk reads here, as /proc/meminfo isn't really "on
         // disk" and should be fast.  TODO: make BlockGuard ignore
         // /proc/ and /sys/ files perhaps?
-        StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
+        final int oldMask = StrictMode.allowThreadDiskReadsMask();
         FileInputStream is = null;
         try {
             is = new FileInputStream(file);
@@ -888,7 +889,7 @@ public class ProcessCpuTracker {
         } catch (java.io.IOException e) {
         } finally {
             IoUtils.closeQuietly(is);
-            StrictMode.setThreadPolicy(savedPolicy);
+            StrictMode.setThreadPolicyMask(oldMask);
         }
         return null;
     }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import java.util.Arrays;
+
+/**
+ * A table of a fixed number of longs per uid, kept in flat primitive arrays sorted by uid, for
+ * the kernel cpu time readers to remember the last values they read without allocating per uid
+ * or boxing.
+ *
+ * <p>The kernel lists uids in ascending order, so looking up the uids of a file in the order they
+ * appear hits the row after the previous lookup and doesn't need to search.
+ *
+ * <p>This class is NOT thread-safe.
+ */
+public final class UidTimeArray {
+    private final int mWidth;
+    private int[] mUids;
+    private long[] mValues;
+    private int mSize;
+    // Row of the last lookup.
+    private int mLastRow = -1;
+
+    /**
+     * @param width number of values per uid.
+     */
+    public UidTimeArray(int width) {
+        mWidth = width;
+        mUids = new int[16];
+        mValues = new long[16 * width];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int uidAt(int row) {
+        return mUids[row];
+    }
+
+    public long get(int row, int index) {
+        return mValues[row * mWidth + index];
+    }
+
+    public void set(int row, int index, long value) {
+        mValues[row * mWidth + index] = value;
+    }
+
+    /**
+     * Returns the row of the given uid, or -1 if it has none.
+     */
+    public int indexOfUid(int uid) {
+        final int row = findRow(uid);
+        return row >= 0 ? row : -1;
+    }
+
+    /**
+     * Returns the row of the given uid, adding a row of zeros for it if it has none.
+     */
+    public int getOrAddUid(int uid) {
+        int row = findRow(uid);
+        if (row >= 0) {
+            return row;
+        }
+        row = ~row;
+        if (mSize == mUids.length) {
+            final int capacity = mSize * 2;
+            mUids = Arrays.copyOf(mUids, capacity);
+            mValues = Arrays.copyOf(mValues, capacity * mWidth);
+        }
+        System.arraycopy(mUids, row, mUids, row + 1, mSize - row);
+        System.arraycopy(mValues, row * mWidth, mValues, (row + 1) * mWidth,
+                (mSize - row) * mWidth);
+        mUids[row] = uid;
+        Arrays.fill(mValues, row * mWidth, (row + 1) * mWidth, 0);
+        mSize++;
+        mLastRow = row;
+        return row;
+    }
+
+    public void removeUid(int uid) {
+        final int row = findRow(uid);
+        if (row >= 0) {
+            removeRows(row, row + 1);
+        }
+    }
+
+    /**
+     * Removes the uids from {@code startUid} to {@code endUid}, inclusive.
+     */
+    public void removeUidsInRange(int startUid, int endUid) {
+        if (endUid < startUid) {
+            return;
+        }
+        int start = findRow(startUid);
+        int end = findRow(endUid);
+        start = start >= 0 ? start : ~start;
+        end = end >= 0 ? end + 1 : ~end;
+        if (start < end) {
+            removeRows(start, end);
+        }
+    }
+
+    public void clear() {
+        mSize = 0;
+        mLastRow = -1;
+    }
+
+    /**
+     * Returns the row of the uid, or the bitwise complement of the row it would be inserted at.
+     */
+    private int findRow(int uid) {
+        // Try the rows at and after the last lookup first.
+        final int next = mLastRow + 1;
+        if (next < mSize && mUids[next] == uid) {
+            mLastRow = next;
+            return next;
+        }
+        if (mLastRow >= 0 && mLastRow < mSize && mUids[mLastRow] == uid) {
+            return mLastRow;
+        }
+        final int row = Arrays.binarySearch(mUids, 0, mSize, uid);
+        if (row >= 0) {
+            mLastRow = row;
+        }
+        return row;
+    }
+
+    private void removeRows(int start, int end) {
+        System.arraycopy(mUids, end, mUids, start, mSize - end);
+        System.arraycopy(mValues, end * mWidth, mValues, start * mWidth, (mSize - end) * mWidth);
+        mSize -= end - start;
+        mLastRow = -1;
+    }
+}
@@ -20,6 +20,7 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.util.Log;
 
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 /**
@@ -57,6 +58,19 @@ public class ExponentiallyBucketedHistogram {
         }
     }
 
+    /**
+     * Add all values of another histogram with the same number of buckets to this histogram.
+     *
+     * @param other The histogram to add
+     */
+    public void add(@NonNull ExponentiallyBucketedHistogram other) {
+        Preconditions.checkArgument(other.mData.length == mData.length,
+                "Histograms have different numbers of buckets");
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] += other.mData[i];
+        }
+    }
+
     /**
      * Clear all data from the histogram
      */
@@ -71,6 +85,20 @@ public class ExponentiallyBucketedHistogram {
      * @param prefix A custom prefix that is printed in front of the histogram
      */
     public void log(@NonNull String tag, @Nullable CharSequence prefix) {
+        Log.d(tag, format(prefix));
+    }
+
+    /**
+     * Print the histogram on a line.
+     *
+     * @param pw     The writer to print to
+     * @param prefix A custom prefix that is printed in front of the histogram
+     */
+    public void dump(@NonNull PrintWriter pw, @Nullable CharSequence prefix) {
+        pw.println(format(prefix));
+    }
+
+    private String format(@Nullable CharSequence prefix) {
         StringBuilder builder = new StringBuilder(prefix);
         builder.append('[');
 
@@ -92,6 +120,6 @@ public class ExponentiallyBucketedHistogram {
         }
         builder.append("]");
 
-        Log.d(tag, builder.toString());
+        return builder.toString();
     }
 }
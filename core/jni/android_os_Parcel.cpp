@@ -24,6 +24,7 @@
 
 #include <fcntl.h>
 #include <stdio.h>
+#include <sys/mman.h>
 #include <sys/stat.h>
 #include <sys/types.h>
 #include <unistd.h>
@@ -627,6 +628,46 @@ static jlong android_os_Parcel_unmarshall(JNIEnv* env, jclass clazz, jlong nativ
     return parcel->getOpenAshmemSize();
 }
 
+static void android_os_Parcel_releaseMappedData(Parcel* parcel, const uint8_t* data,
+        size_t dataSize, const binder_size_t* objects, size_t objectsSize, void* cookie)
+{
+    munmap(const_cast<uint8_t*>(data), dataSize);
+}
+
+static jlong android_os_Parcel_unmarshallMapped(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                                jobject fileDescriptor)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+       return 0;
+    }
+
+    int fd = jniGetFDFromFileDescriptor(env, fileDescriptor);
+    if (fd < 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "bad FileDescriptor");
+        return 0;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0) {
+        jniThrowIOException(env, errno);
+        return 0;
+    }
+    if (st.st_size <= 0) {
+        jniThrowException(env, "java/io/IOException", "Empty parcel file");
+        return 0;
+    }
+    void* data = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    if (data == MAP_FAILED) {
+        jniThrowIOException(env, errno);
+        return 0;
+    }
+
+    // The parcel reads straight from the mapping and unmaps it when its data is freed.
+    parcel->ipcSetDataReference(reinterpret_cast<const uint8_t*>(data), st.st_size,
+            NULL, 0, android_os_Parcel_releaseMappedData, NULL);
+    return parcel->getOpenAshmemSize();
+}
+
 static jint android_os_Parcel_compareData(JNIEnv* env, jclass clazz, jlong thisNativePtr,
                                           jlong otherNativePtr)
 {
@@ -806,6 +847,7 @@ static const JNINativeMethod gParcelMethods[] = {
 
     {"nativeMarshall",            "(J)[B", (void*)android_os_Parcel_marshall},
     {"nativeUnmarshall",          "(J[BII)J", (void*)android_os_Parcel_unmarshall},
+    {"nativeUnmarshallMapped",    "(JLjava/io/FileDescriptor;)J", (void*)android_os_Parcel_unmarshallMapped},
     {"nativeCompareData",         "(JJ)I", (void*)android_os_Parcel_compareData},
     {"nativeAppendFrom",          "(JJII)J", (void*)android_os_Parcel_appendFrom},
     // @CriticalNative
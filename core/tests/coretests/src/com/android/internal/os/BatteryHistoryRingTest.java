@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Test class for {@link BatteryHistoryRing}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.BatteryHistoryRingTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatteryHistoryRingTest {
+    private static final int CAPACITY = 1024;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(), "history.ring");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static byte[] record(int value, int length) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static void append(BatteryHistoryRing ring, int generation, byte[] data) {
+        ring.append(generation, data, 0, data.length);
+    }
+
+    private static void assertRecords(BatteryHistoryRing ring, byte[]... expected) {
+        final int[] offsets = ring.getRecordOffsets();
+        assertEquals(expected.length, offsets.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals("record " + i, expected[i], ring.readRecord(offsets[i]));
+        }
+    }
+
+    @Test
+    public void testAppendAndReopen() throws Exception {
+        BatteryHistoryRing ring = new BatteryHistoryRing(mFile, CAPACITY);
+        assertEquals(-1, ring.getLastGeneration());
+        append(ring, 1, record(1, 10));
+        append(ring, 2, record(2, 0));
+        append(ring, 2, record(3, 7));
+
+        ring = new BatteryHistoryRing(mFile, CAPACITY);
+        assertRecords(ring, record(1, 10), record(2, 0), record(3, 7));
+        assertEquals(2, ring.getLastGeneration());
+        assertEquals(1, ring.getGeneration(ring.getRecordOffsets()[0]));
+    }
+
+    @Test
+    public void testOldestRecordsAreDropped() throws Exception {
+        final BatteryHistoryRing ring = new BatteryHistoryRing(mFile, CAPACITY);
+        // Records that don't divide the capacity evenly, so that the ring has to wrap early.
+        final int length = 300;
+        for (int i = 0; i < 10; i++) {
+            append(ring, 0, record(i, length));
+            assertEquals(Math.min(i + 1, 3), ring.getCount());
+        }
+        assertRecords(ring, record(7, length), record(8, length), record(9, length));
+
+        // A large record replaces several small ones.
+        append(ring, 0, record(10, ring.getMaxRecordSize()));
+        assertRecords(ring, record(10, ring.getMaxRecordSize()));
+        append(ring, 0, record(11, 1));
+        assertRecords(ring, record(11, 1));
+    }
+
+    @Test
+    public void testCapacityChangeClears() throws Exception {
+        append(new BatteryHistoryRing(mFile, CAPACITY), 0, record(1, 10));
+        final BatteryHistoryRing ring = new BatteryHistoryRing(mFile, CAPACITY * 2);
+        assertEquals(0, ring.getCount());
+        assertEquals(CAPACITY * 2, ring.getCapacity());
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws Exception {
+        final BatteryHistoryRing ring = new BatteryHistoryRing(mFile, CAPACITY);
+        append(ring, 0, record(1, 10));
+        append(ring, 0, record(2, 10));
+        final int offset = ring.getRecordOffsets()[1];
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            // Flip the last payload byte of the second record, past the ring and record headers.
+            raf.seek(32 + offset + 12 + 9);
+            raf.write(0);
+        }
+
+        final BatteryHistoryRing reopened = new BatteryHistoryRing(mFile, CAPACITY);
+        assertRecords(reopened, record(1, 10));
+        append(reopened, 0, record(3, 10));
+        assertRecords(new BatteryHistoryRing(mFile, CAPACITY), record(1, 10), record(3, 10));
+    }
+
+    @Test
+    public void testRecordWithOverflowingLengthIsDropped() throws Exception {
+        final BatteryHistoryRing ring = new BatteryHistoryRing(mFile, CAPACITY);
+        append(ring, 0, record(1, 10));
+        append(ring, 0, record(2, 10));
+        final int offset = ring.getRecordOffsets()[1];
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            // A length whose record size overflows to a negative number.
+            raf.seek(32 + offset);
+            raf.writeInt(Integer.MAX_VALUE - 4);
+        }
+
+        assertRecords(new BatteryHistoryRing(mFile, CAPACITY), record(1, 10));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test class for {@link UidTimeArray}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.UidTimeArrayTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UidTimeArrayTest {
+    private static void assertUids(UidTimeArray array, int... uids) {
+        assertEquals(uids.length, array.size());
+        for (int i = 0; i < uids.length; i++) {
+            assertEquals(uids[i], array.uidAt(i));
+            assertEquals(i, array.indexOfUid(uids[i]));
+        }
+    }
+
+    @Test
+    public void testAddKeepsUidsSorted() {
+        final UidTimeArray array = new UidTimeArray(2);
+        // More uids than the initial capacity, out of order.
+        for (int i = 0; i < 40; i++) {
+            final int uid = (i * 7) % 40;
+            final int row = array.getOrAddUid(uid);
+            assertEquals(0, array.get(row, 0));
+            array.set(row, 0, uid);
+            array.set(row, 1, -uid);
+        }
+        assertEquals(40, array.size());
+        for (int row = 0; row < 40; row++) {
+            assertEquals(row, array.uidAt(row));
+            assertEquals(row, array.get(row, 0));
+            assertEquals(-row, array.get(row, 1));
+        }
+        assertEquals(-1, array.indexOfUid(40));
+        assertEquals(5, array.getOrAddUid(5));
+        assertEquals(40, array.size());
+    }
+
+    @Test
+    public void testRemove() {
+        final UidTimeArray array = new UidTimeArray(1);
+        for (int uid = 10; uid <= 100; uid += 10) {
+            array.set(array.getOrAddUid(uid), 0, uid);
+        }
+        array.removeUid(30);
+        array.removeUid(35);
+        assertUids(array, 10, 20, 40, 50, 60, 70, 80, 90, 100);
+
+        // The range is inclusive, and its ends don't need to be uids in the array.
+        array.removeUidsInRange(45, 70);
+        assertUids(array, 10, 20, 40, 80, 90, 100);
+        array.removeUidsInRange(80, 80);
+        assertUids(array, 10, 20, 40, 90, 100);
+        array.removeUidsInRange(0, 15);
+        assertUids(array, 20, 40, 90, 100);
+        assertEquals(90, array.get(array.indexOfUid(90), 0));
+
+        // A removed uid comes back with zeros.
+        assertEquals(0, array.get(array.getOrAddUid(50), 0));
+
+        array.clear();
+        assertUids(array);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.app.AppOpsManager;
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The binary file that persists the app ops state as a journal of per-uid records, so that
+ * writing the state only has to append the records of the uids that changed since the last
+ * write instead of rewriting the state of every uid.
+ *
+ * <p>File format:
+ * <pre>
+ * magic, format version, data version, op count, op names
+ * uid, length, crc32, payload
+ * ...
+ * </pre>
+ * The last record of a uid replaces the ones before it, and a record of length 0 removes the
+ * uid. The payload is opaque to the journal; the op codes in it are the indices into the op names
+ * of the header, see {@link #mapOp}, so that the file survives the renumbering of ops.
+ *
+ * <p>Once the records that have been replaced take more space than the live ones, or the file
+ * was written with different op names or has a corrupt record, the next write rewrites the file
+ * from scratch.
+ *
+ * <p>Not thread safe; guarded by the file lock of {@link AppOpsService}.
+ */
+final class AppOpsJournal {
+    private static final String TAG = "AppOpsJournal";
+
+    private static final int MAGIC = 0x414f504a;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int RECORD_HEADER_SIZE = 12;
+    // Bounds the length of a record read from a corrupt file.
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    // Don't bother compacting files smaller than this.
+    private static final int MIN_COMPACT_SIZE = 16 * 1024;
+
+    private final AtomicFile mFile;
+    private final CRC32 mCrc = new CRC32();
+
+    private int mDataVersion = -1;
+    // Maps the op codes of the file to the current op codes.
+    private int[] mOpMap;
+    private boolean mNeedsFullWrite = true;
+
+    // Size of the latest record of each uid, including its header.
+    private final SparseIntArray mLiveRecordSizes = new SparseIntArray();
+    private long mLiveSize;
+    private long mHeaderSize;
+    private long mFileSize;
+
+    AppOpsJournal(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    File getFile() {
+        return mFile.getBaseFile();
+    }
+
+    /**
+     * Returns the data version the file was written with, or -1 if it wasn't read.
+     */
+    int getDataVersion() {
+        return mDataVersion;
+    }
+
+    /**
+     * Maps an op code of a record read from the file to the current op code.
+     *
+     * @return the op code, or {@link AppOpsManager#OP_NONE} if the op no longer exists.
+     */
+    int mapOp(int code) {
+        if (mOpMap == null) {
+            return code;
+        }
+        return code >= 0 && code < mOpMap.length ? mOpMap[code] : AppOpsManager.OP_NONE;
+    }
+
+    /**
+     * Returns whether the next write has to write the records of all uids, see
+     * {@link #writeFull}.
+     */
+    boolean needsFullWrite() {
+        return mNeedsFullWrite;
+    }
+
+    void setFullWriteNeeded() {
+        mNeedsFullWrite = true;
+    }
+
+    /**
+     * Reads the latest record of each uid. A corrupt record, e.g. because the system went down
+     * while it was being appended, ends the file.
+     *
+     * @return the records by uid, or null if there is no readable file.
+     */
+    SparseArray<byte[]> read() {
+        mDataVersion = -1;
+        mOpMap = null;
+        mNeedsFullWrite = true;
+        mLiveRecordSizes.clear();
+        mLiveSize = mHeaderSize = mFileSize = 0;
+
+        final FileInputStream stream;
+        try {
+            stream = mFile.openRead();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Slog.w(TAG, "Unknown format of " + getFile());
+                return null;
+            }
+            final int dataVersion = in.readInt();
+            final int opCount = in.readInt();
+            final int[] opMap = new int[opCount];
+            boolean opsMatch = opCount == AppOpsManager._NUM_OP;
+            long fileSize = 16;
+            for (int i = 0; i < opCount; i++) {
+                final String name = in.readUTF();
+                opMap[i] = AppOpsManager.nameToOp(name);
+                opsMatch &= opMap[i] == i;
+                fileSize += getEncodedSize(name);
+            }
+            mHeaderSize = fileSize;
+            mDataVersion = dataVersion;
+            mOpMap = opsMatch ? null : opMap;
+
+            final SparseArray<byte[]> records = new SparseArray<>();
+            boolean intact = true;
+            while (true) {
+                // Only the end of the file between records is a clean end.
+                final int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                final int uid;
+                final byte[] payload;
+                try {
+                    uid = (first << 24) | (in.readUnsignedByte() << 16)
+                            | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                    final int length = in.readInt();
+                    final int crc = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    mCrc.reset();
+                    mCrc.update(payload);
+                    if ((int) mCrc.getValue() != crc) {
+                        throw new IOException("Checksum mismatch");
+                    }
+                } catch (IOException e) {
+                    Slog.w(TAG, "Dropping corrupt records of " + getFile() + ": " + e);
+                    intact = false;
+                    break;
+                }
+                final int size = RECORD_HEADER_SIZE + payload.length;
+                fileSize += size;
+                if (payload.length == 0) {
+                    records.remove(uid);
+                    setLiveRecordSize(uid, 0);
+                } else {
+                    records.put(uid, payload);
+                    setLiveRecordSize(uid, size);
+                }
+            }
+            mFileSize = fileSize;
+            // Records appended after a corrupt one would be lost, and a file with other op
+            // names would need records with other op codes.
+            mNeedsFullWrite = !intact || !opsMatch || needsCompaction();
+            return records;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed reading " + getFile() + ": " + e);
+            mDataVersion = -1;
+            mOpMap = null;
+            return null;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Appends the records of the uids that changed; a null record removes the uid.
+     */
+    void append(SparseArray<byte[]> records) throws IOException {
+        if (mNeedsFullWrite) {
+            throw new IllegalStateException("Journal needs a full write");
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < records.size(); i++) {
+            writeRecord(out, records.keyAt(i), records.valueAt(i));
+        }
+        out.flush();
+
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(getFile(), true);
+            bytes.writeTo(stream);
+            FileUtils.sync(stream);
+        } finally {
+            IoUtils.closeQuietly(stream);
+        }
+        mFileSize += bytes.size();
+        for (int i = 0; i < records.size(); i++) {
+            final byte[] record = records.valueAt(i);
+            setLiveRecordSize(records.keyAt(i),
+                    record != null && record.length > 0 ? RECORD_HEADER_SIZE + record.length : 0);
+        }
+        mNeedsFullWrite = needsCompaction();
+    }
+
+    /**
+     * Replaces the file with the given records, which have to be the records of all uids.
+     */
+    void writeFull(int dataVersion, SparseArray<byte[]> records) throws IOException {
+        final FileOutputStream stream = mFile.startWrite();
+        try {
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(dataVersion);
+            out.writeInt(AppOpsManager._NUM_OP);
+            for (int op = 0; op < AppOpsManager._NUM_OP; op++) {
+                out.writeUTF(AppOpsManager.opToName(op));
+            }
+            mLiveRecordSizes.clear();
+            mLiveSize = 0;
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.valueAt(i);
+                if (record != null && record.length > 0) {
+                    writeRecord(out, records.keyAt(i), record);
+                    setLiveRecordSize(records.keyAt(i), RECORD_HEADER_SIZE + record.length);
+                }
+            }
+            out.flush();
+            mFileSize = out.size();
+            mHeaderSize = mFileSize - mLiveSize;
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            mFile.failWrite(stream);
+            throw e;
+        }
+        mDataVersion = dataVersion;
+        mOpMap = null;
+        mNeedsFullWrite = false;
+    }
+
+    private void writeRecord(DataOutputStream out, int uid, byte[] record) throws IOException {
+        final int length = record != null ? record.length : 0;
+        mCrc.reset();
+        if (length > 0) {
+            mCrc.update(record);
+        }
+        out.writeInt(uid);
+        out.writeInt(length);
+        out.writeInt((int) mCrc.getValue());
+        if (length > 0) {
+            out.write(record);
+        }
+    }
+
+    private void setLiveRecordSize(int uid, int size) {
+        mLiveSize += size - mLiveRecordSizes.get(uid);
+        if (size == 0) {
+            mLiveRecordSizes.delete(uid);
+        } else {
+            mLiveRecordSizes.put(uid, size);
+        }
+    }
+
+    private boolean needsCompaction() {
+        final long garbage = mFileSize - mHeaderSize - mLiveSize;
+        return mFileSize > MIN_COMPACT_SIZE && garbage > mLiveSize;
+    }
+
+    private static int getEncodedSize(String name) {
+        // Op names are ASCII, which writeUTF writes as is after their length.
+        return 2 + name.length();
+    }
+}
@@ -74,7 +74,6 @@ import com.android.internal.app.IAppOpsService;
 import com.android.internal.os.Zygote;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 import com.android.internal.util.function.pooled.PooledLambda;
@@ -85,13 +84,15 @@ import libcore.util.EmptyArray;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.Math;
@@ -105,6 +106,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static android.app.AppOpsManager._NUM_UID_STATE;
 import static android.app.AppOpsManager.UID_STATE_BACKGROUND;
@@ -130,6 +132,10 @@ public class AppOpsService extends IAppOpsService.Stub {
     // Constant meaning that any UID should be matched when dispatching callbacks
     private static final int UID_ANY = -2;
 
+    // Returned instead of a mode by the hot paths that run holding only a uid lock, when the
+    // operation has to be done holding the service lock.
+    private static final int NEEDS_SERVICE_LOCK = -1;
+
     // Map from process states to the uid states we track.
     private static final int[] PROCESS_STATE_TO_UID_STATE = new int[] {
         UID_STATE_PERSISTENT,           // ActivityManager.PROCESS_STATE_PERSISTENT
@@ -163,23 +169,15 @@ public class AppOpsService extends IAppOpsService.Stub {
             "cch  ",    // UID_STATE_CACHED
     };
 
-    static final String[] UID_STATE_TIME_ATTRS = new String[] {
-            "tp",       // UID_STATE_PERSISTENT
-            "tt",       // UID_STATE_TOP
-            "tfs",      // UID_STATE_FOREGROUND_SERVICE
-            "tf",       // UID_STATE_FOREGROUND
-            "tb",       // UID_STATE_BACKGROUND
-            "tc",       // UID_STATE_CACHED
-    };
-
-    static final String[] UID_STATE_REJECT_ATTRS = new String[] {
-            "rp",       // UID_STATE_PERSISTENT
-            "rt",       // UID_STATE_TOP
-            "rfs",      // UID_STATE_FOREGROUND_SERVICE
-            "rf",       // UID_STATE_FOREGROUND
-            "rb",       // UID_STATE_BACKGROUND
-            "rc",       // UID_STATE_CACHED
-    };
+    // Fields of an op in its journal record that are only written if they aren't the default.
+    private static final int OP_FIELD_DURATION = 1 << 0;
+    private static final int OP_FIELD_PROXY_UID = 1 << 1;
+    private static final int OP_FIELD_PROXY_PACKAGE = 1 << 2;
+    private static final int OP_FIELD_ALLOWED_COUNT = 1 << 3;
+    private static final int OP_FIELD_IGNORED_COUNT = 1 << 4;
+    // Shifted by the uid state.
+    private static final int OP_FIELD_TIME = 1 << 8;
+    private static final int OP_FIELD_REJECT_TIME = 1 << 16;
 
     // Rate limiting thresholds for ask operations
     public static final int RATE_LIMIT_OP_COUNT = 3;
@@ -187,7 +185,9 @@ public class AppOpsService extends IAppOpsService.Stub {
     public static final int RATE_LIMIT_OP_DELAY_CEILING = 10;
 
     Context mContext;
+    // The xml file of older releases, which is migrated to mJournal. Also the lock of mJournal.
     final AtomicFile mFile;
+    final AppOpsJournal mJournal;
     final Handler mHandler;
     final Looper mLooper;
 
@@ -198,7 +198,8 @@ public class AppOpsService extends IAppOpsService.Stub {
     private final AppOpsManagerInternalImpl mAppOpsManagerInternal
             = new AppOpsManagerInternalImpl();
 
-    boolean mWriteScheduled;
+    // Also read by the hot paths without the service lock, see noteOperationUidLocked().
+    volatile boolean mWriteScheduled;
     boolean mFastWriteScheduled;
     final Runnable mWriteRunner = new Runnable() {
         public void run() {
@@ -216,8 +217,17 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     };
 
+    /**
+     * The state of each uid. The state of a uid, i.e. its {@link UidState} and the {@link Ops}
+     * and {@link Op}s under it, is guarded by the lock of its stripe, see
+     * {@link UidStateMap#getLock}, and code holding the service lock has to take that lock as
+     * well to touch it. This lets {@link #noteOperation} and {@link #checkOperation} of ops that
+     * were noted before run holding only the stripe lock, so that they don't contend with the
+     * calls for other uids. A thread holding a stripe lock but not the service lock must not
+     * wait for any other lock.
+     */
     @VisibleForTesting
-    final SparseArray<UidState> mUidStates = new SparseArray<>();
+    final UidStateMap mUidStates = new UidStateMap();
 
     long mLastUptime;
 
@@ -226,6 +236,11 @@ public class AppOpsService extends IAppOpsService.Stub {
      */
     private final ArrayMap<IBinder, ClientRestrictionState> mOpUserRestrictions = new ArrayMap<>();
 
+    // The ops any client restricts for any user, for the hot paths to tell without the service
+    // lock whether they have to check the restrictions. Replaced under the service lock, see
+    // updateRestrictedOpsLocked().
+    private volatile boolean[] mRestrictedOps = new boolean[AppOpsManager._NUM_OP];
+
     SparseIntArray mProfileOwners;
 
     /**
@@ -339,6 +354,9 @@ public class AppOpsService extends IAppOpsService.Stub {
         public int pendingAskOp;
         public boolean receivedPendingAskResponse;
 
+        // Whether the state changed since it was last written.
+        public boolean dirty;
+
         public UidState(int uid) {
             this.uid = uid;
         }
@@ -479,6 +497,140 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * The {@link UidState}s by uid, split into stripes that each have a lock and a table of their
+     * own, see {@link #mUidStates}. Adding and removing a uid takes the lock of its stripe itself,
+     * but also requires the service lock. The index based methods iterate the stripes one after
+     * the other.
+     */
+    @VisibleForTesting
+    static final class UidStateMap {
+        private static final int STRIPE_COUNT = 16;
+
+        private final ReentrantLock[] mLocks = new ReentrantLock[STRIPE_COUNT];
+        private final SparseArray<UidState>[] mStripes;
+        // Uids removed since the last write; guarded by the service lock.
+        private final SparseBooleanArray mRemovedUids = new SparseBooleanArray();
+
+        @SuppressWarnings("unchecked")
+        UidStateMap() {
+            mStripes = new SparseArray[STRIPE_COUNT];
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                mLocks[i] = new ReentrantLock();
+                mStripes[i] = new SparseArray<>();
+            }
+        }
+
+        private static int stripeOf(int uid) {
+            // App uids are consecutive, so their low bits spread them evenly.
+            return uid & (STRIPE_COUNT - 1);
+        }
+
+        /**
+         * Returns the lock that guards the state of the given uid.
+         */
+        ReentrantLock getLock(int uid) {
+            return mLocks[stripeOf(uid)];
+        }
+
+        /**
+         * Takes the locks of all stripes, which requires holding the service lock.
+         */
+        void lockAll() {
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                mLocks[i].lock();
+            }
+        }
+
+        void unlockAll() {
+            for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+                mLocks[i].unlock();
+            }
+        }
+
+        UidState get(int uid) {
+            return mStripes[stripeOf(uid)].get(uid);
+        }
+
+        void put(int uid, UidState uidState) {
+            final ReentrantLock lock = getLock(uid);
+            lock.lock();
+            try {
+                mStripes[stripeOf(uid)].put(uid, uidState);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(int uid) {
+            final ReentrantLock lock = getLock(uid);
+            lock.lock();
+            try {
+                final SparseArray<UidState> stripe = mStripes[stripeOf(uid)];
+                if (stripe.get(uid) != null) {
+                    stripe.remove(uid);
+                    mRemovedUids.put(uid, true);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                size += mStripes[i].size();
+            }
+            return size;
+        }
+
+        int keyAt(int index) {
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                final int stripeSize = mStripes[i].size();
+                if (index < stripeSize) {
+                    return mStripes[i].keyAt(index);
+                }
+                index -= stripeSize;
+            }
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+
+        UidState valueAt(int index) {
+            return get(keyAt(index));
+        }
+
+        void removeAt(int index) {
+            remove(keyAt(index));
+        }
+
+        void clear() {
+            lockAll();
+            try {
+                for (int i = 0; i < STRIPE_COUNT; i++) {
+                    final SparseArray<UidState> stripe = mStripes[i];
+                    for (int j = 0; j < stripe.size(); j++) {
+                        mRemovedUids.put(stripe.keyAt(j), true);
+                    }
+                    stripe.clear();
+                }
+            } finally {
+                unlockAll();
+            }
+        }
+
+        /**
+         * Returns the uids removed since {@link #clearRemovedUids}, some of which may have been
+         * added again since.
+         */
+        SparseBooleanArray getRemovedUids() {
+            return mRemovedUids;
+        }
+
+        void clearRemovedUids() {
+            mRemovedUids.clear();
+        }
+    }
+
     final SparseArray<ArraySet<ModeCallback>> mOpModeWatchers = new SparseArray<>();
     final ArrayMap<String, ArraySet<ModeCallback>> mPackageModeWatchers = new ArrayMap<>();
     final ArrayMap<IBinder, ModeCallback> mModeWatchers = new ArrayMap<>();
@@ -610,14 +762,20 @@ public class AppOpsService extends IAppOpsService.Stub {
         @Override
         public void binderDied() {
             synchronized (AppOpsService.this) {
-                for (int i=mStartedOps.size()-1; i>=0; i--) {
-                    final Op op = mStartedOps.get(i);
-                    finishOperationLocked(op, /*finishNested*/ true);
-                    if (op.startNesting <= 0) {
-                        scheduleOpActiveChangedIfNeededLocked(op.op, op.uid, op.packageName, false);
+                mUidStates.lockAll();
+                try {
+                    for (int i=mStartedOps.size()-1; i>=0; i--) {
+                        final Op op = mStartedOps.get(i);
+                        finishOperationLocked(op, /*finishNested*/ true);
+                        if (op.startNesting <= 0) {
+                            scheduleOpActiveChangedIfNeededLocked(op.op, op.uid, op.packageName,
+                                    false);
+                        }
                     }
+                    mClients.remove(mAppToken);
+                } finally {
+                    mUidStates.unlockAll();
                 }
-                mClients.remove(mAppToken);
             }
         }
     }
@@ -625,6 +783,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public AppOpsService(File storagePath, Handler handler, ActivityManagerService service) {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath, "appops");
+        mJournal = new AppOpsJournal(getJournalFile(storagePath));
         mHandler = handler;
         mConstants = new Constants(mHandler);
         mLooper = Looper.myLooper();
@@ -632,6 +791,18 @@ public class AppOpsService extends IAppOpsService.Stub {
         readState();
     }
 
+    /**
+     * Returns the journal file that replaces the given xml file.
+     */
+    @VisibleForTesting
+    static File getJournalFile(File storagePath) {
+        String name = storagePath.getName();
+        if (name.endsWith(".xml")) {
+            name = name.substring(0, name.length() - ".xml".length());
+        }
+        return new File(storagePath.getParentFile(), name + ".bin");
+    }
+
     public void publish(Context context) {
         mContext = context;
         ServiceManager.addService(Context.APP_OPS_SERVICE, asBinder());
@@ -647,47 +818,53 @@ public class AppOpsService extends IAppOpsService.Stub {
         mContext.registerReceiver(mIntentReceiver, filter);
 
         synchronized (this) {
-            boolean changed = false;
-            for (int i = mUidStates.size() - 1; i >= 0; i--) {
-                UidState uidState = mUidStates.valueAt(i);
-
-                String[] packageNames = getPackagesForUid(uidState.uid);
-                if (ArrayUtils.isEmpty(packageNames)) {
-                    uidState.clear();
-                    mUidStates.removeAt(i);
-                    changed = true;
-                    continue;
-                }
-
-                ArrayMap<String, Ops> pkgs = uidState.pkgOps;
-                if (pkgs == null) {
-                    continue;
-                }
+            mUidStates.lockAll();
+            try {
+                boolean changed = false;
+                for (int i = mUidStates.size() - 1; i >= 0; i--) {
+                    UidState uidState = mUidStates.valueAt(i);
 
-                Iterator<Ops> it = pkgs.values().iterator();
-                while (it.hasNext()) {
-                    Ops ops = it.next();
-                    int curUid = -1;
-                    try {
-                        curUid = AppGlobals.getPackageManager().getPackageUid(ops.packageName,
-                                PackageManager.MATCH_UNINSTALLED_PACKAGES,
-                                UserHandle.getUserId(ops.uidState.uid));
-                    } catch (RemoteException ignored) {
-                    }
-                    if (curUid != ops.uidState.uid) {
-                        Slog.i(TAG, "Pruning old package " + ops.packageName
-                                + "/" + ops.uidState + ": new uid=" + curUid);
-                        it.remove();
+                    String[] packageNames = getPackagesForUid(uidState.uid);
+                    if (ArrayUtils.isEmpty(packageNames)) {
+                        uidState.clear();
+                        mUidStates.removeAt(i);
                         changed = true;
+                        continue;
+                    }
+
+                    ArrayMap<String, Ops> pkgs = uidState.pkgOps;
+                    if (pkgs == null) {
+                        continue;
+                    }
+
+                    Iterator<Ops> it = pkgs.values().iterator();
+                    while (it.hasNext()) {
+                        Ops ops = it.next();
+                        int curUid = -1;
+                        try {
+                            curUid = AppGlobals.getPackageManager().getPackageUid(ops.packageName,
+                                    PackageManager.MATCH_UNINSTALLED_PACKAGES,
+                                    UserHandle.getUserId(ops.uidState.uid));
+                        } catch (RemoteException ignored) {
+                        }
+                        if (curUid != ops.uidState.uid) {
+                            Slog.i(TAG, "Pruning old package " + ops.packageName
+                                    + "/" + ops.uidState + ": new uid=" + curUid);
+                            it.remove();
+                            uidState.dirty = true;
+                            changed = true;
+                        }
                     }
-                }
 
-                if (uidState.isDefault()) {
-                    mUidStates.removeAt(i);
+                    if (uidState.isDefault()) {
+                        mUidStates.removeAt(i);
+                    }
                 }
-            }
-            if (changed) {
-                scheduleFastWriteLocked();
+                if (changed) {
+                    scheduleFastWriteLocked();
+                }
+            } finally {
+                mUidStates.unlockAll();
             }
         }
 
@@ -720,20 +897,26 @@ public class AppOpsService extends IAppOpsService.Stub {
                             return Zygote.MOUNT_EXTERNAL_NONE;
                         }
                         synchronized (AppOpsService.this) {
-                            UidState uidState = getUidStateLocked(uid, false);
-                            if (uidState != null && uidState.receivedPendingAskResponse) {
-                                int op = uidState.pendingAskOp;
-                                boolean write = op == AppOpsManager.OP_WRITE_EXTERNAL_STORAGE;
-
-                                if (DEBUG) Slog.d(TAG, "getMountMode: allowing "
-                                        + (write ? "write" : "read") + " for uid "
-                                        + uid + " package " + packageName
-                                        + " due to previous response");
-
-                                uidState.pendingAskOp = 0;
-                                uidState.receivedPendingAskResponse = false;
-                                return write
-                                        ? Zygote.MOUNT_EXTERNAL_WRITE : Zygote.MOUNT_EXTERNAL_READ;
+                            final ReentrantLock uidLock = mUidStates.getLock(uid);
+                            uidLock.lock();
+                            try {
+                                UidState uidState = getUidStateLocked(uid, false);
+                                if (uidState != null && uidState.receivedPendingAskResponse) {
+                                    int op = uidState.pendingAskOp;
+                                    boolean write = op == AppOpsManager.OP_WRITE_EXTERNAL_STORAGE;
+
+                                    if (DEBUG) Slog.d(TAG, "getMountMode: allowing "
+                                            + (write ? "write" : "read") + " for uid "
+                                            + uid + " package " + packageName
+                                            + " due to previous response");
+
+                                    uidState.pendingAskOp = 0;
+                                    uidState.receivedPendingAskResponse = false;
+                                    return write ? Zygote.MOUNT_EXTERNAL_WRITE
+                                            : Zygote.MOUNT_EXTERNAL_READ;
+                                }
+                            } finally {
+                                uidLock.unlock();
                             }
                         }
                         int readResult = check(AppOpsManager.OP_READ_EXTERNAL_STORAGE,
@@ -783,20 +966,28 @@ public class AppOpsService extends IAppOpsService.Stub {
 
                     private void scheduleAskOperation(int code, int uid, String packageName) {
                         synchronized (AppOpsService.this) {
-                            UidState uidState = getUidStateLocked(uid, true);
-                            uidState.pendingAskOp = code;
-                            uidState.receivedPendingAskResponse = false;
-                            // Schedule noteOperation which will trigger the dialog
-                            // NOTE: needs to happen in background thread, as otherwise main thread
-                            //       will block due to scheduling the dialog and waiting for it in
-                            //       the same thread
-                            AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
-                                @Override protected Void doInBackground(Void... params) {
-                                    noteOperation(code, uid, packageName);
-                                    return null;
-                                }
-                            };
-                            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[])null);
+                            final ReentrantLock uidLock = mUidStates.getLock(uid);
+                            uidLock.lock();
+                            try {
+                                UidState uidState = getUidStateLocked(uid, true);
+                                uidState.pendingAskOp = code;
+                                uidState.receivedPendingAskResponse = false;
+                                // Schedule noteOperation which will trigger the dialog
+                                // NOTE: needs to happen in background thread, as otherwise main
+                                //       thread will block due to scheduling the dialog and waiting
+                                //       for it in the same thread
+                                AsyncTask<Void, Void, Void> task =
+                                        new AsyncTask<Void, Void, Void>() {
+                                    @Override protected Void doInBackground(Void... params) {
+                                        noteOperation(code, uid, packageName);
+                                        return null;
+                                    }
+                                };
+                                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                                        (Void[])null);
+                            } finally {
+                                uidLock.unlock();
+                            }
                         }
                     }
                 });
@@ -812,146 +1003,176 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             } else if (action.equals(Intent.ACTION_SCREEN_OFF)) {
                 synchronized (AppOpsService.this) {
-                    for (int i = mUidStates.size() - 1; i >= 0; i--) {
-                        UidState uidState = mUidStates.valueAt(i);
+                    mUidStates.lockAll();
+                    try {
+                        for (int i = mUidStates.size() - 1; i >= 0; i--) {
+                            UidState uidState = mUidStates.valueAt(i);
 
-                        ArrayMap<String, Ops> packages = uidState.pkgOps;
-                        if (packages == null) {
-                            continue;
-                        }
+                            ArrayMap<String, Ops> packages = uidState.pkgOps;
+                            if (packages == null) {
+                                continue;
+                            }
 
-                        Iterator<Map.Entry<String, Ops>> it = packages.entrySet().iterator();
-                        while (it.hasNext()) {
-                            Map.Entry<String, Ops> ent = it.next();
-                            Ops pkgOps = ent.getValue();
-                            for (int j = pkgOps.size() - 1; j >= 0; j--) {
-                                Op curOp = pkgOps.valueAt(j);
-                                if (DEBUG) Slog.d(TAG, "Ignoring " + curOp.packageName + " request "
-                                        + curOp.op);
-                                curOp.dialogReqQueue.ignore();
+                            Iterator<Map.Entry<String, Ops>> it = packages.entrySet().iterator();
+                            while (it.hasNext()) {
+                                Map.Entry<String, Ops> ent = it.next();
+                                Ops pkgOps = ent.getValue();
+                                for (int j = pkgOps.size() - 1; j >= 0; j--) {
+                                    Op curOp = pkgOps.valueAt(j);
+                                    if (DEBUG) Slog.d(TAG, "Ignoring " + curOp.packageName
+                                            + " request " + curOp.op);
+                                    curOp.dialogReqQueue.ignore();
+                                }
                             }
                         }
+                        mIsInteractive = false;
+                    } finally {
+                        mUidStates.unlockAll();
                     }
-                    mIsInteractive = false;
                 }
             }
         }
     };
 
     public void handlePackageResumed(int uid, String packageName) {
-       synchronized (this) {
-            Ops ops = getOpsRawLocked(uid, packageName, true, false);
-            if (ops == null) {
-                return;
+        synchronized (this) {
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                Ops ops = getOpsRawLocked(uid, packageName, true, false);
+                if (ops == null) {
+                    return;
+                }
+                ops.startRealtime = SystemClock.elapsedRealtime();
+            } finally {
+                uidLock.unlock();
             }
-            ops.startRealtime = SystemClock.elapsedRealtime();
-       }
+        }
     }
 
     public void packageRemoved(int uid, String packageName) {
         synchronized (this) {
-            UidState uidState = mUidStates.get(uid);
-            if (uidState == null) {
-                return;
-            }
-
-            Ops ops = null;
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                UidState uidState = mUidStates.get(uid);
+                if (uidState == null) {
+                    return;
+                }
 
-            // Remove any package state if such.
-            if (uidState.pkgOps != null) {
-                ops = uidState.pkgOps.remove(packageName);
-            }
+                Ops ops = null;
 
-            // If we just nuked the last package state check if the UID is valid.
-            if (ops != null && uidState.pkgOps.isEmpty()
-                    && getPackagesForUid(uid).length <= 0) {
-                mUidStates.remove(uid);
-            }
+                // Remove any package state if such.
+                if (uidState.pkgOps != null) {
+                    ops = uidState.pkgOps.remove(packageName);
+                }
 
-            // Finish ops other packages started on behalf of the package.
-            final int clientCount = mClients.size();
-            for (int i = 0; i < clientCount; i++) {
-                final ClientState client = mClients.valueAt(i);
-                if (client.mStartedOps == null) {
-                    continue;
+                // If we just nuked the last package state check if the UID is valid.
+                if (ops != null && uidState.pkgOps.isEmpty()
+                        && getPackagesForUid(uid).length <= 0) {
+                    mUidStates.remove(uid);
                 }
-                final int opCount = client.mStartedOps.size();
-                for (int j = opCount - 1; j >= 0; j--) {
-                    final Op op = client.mStartedOps.get(j);
-                    if (uid == op.uid && packageName.equals(op.packageName)) {
-                        finishOperationLocked(op, /*finishNested*/ true);
-                        client.mStartedOps.remove(j);
-                        if (op.startNesting <= 0) {
-                            scheduleOpActiveChangedIfNeededLocked(op.op,
-                                    uid, packageName, false);
+
+                // Finish ops other packages started on behalf of the package.
+                final int clientCount = mClients.size();
+                for (int i = 0; i < clientCount; i++) {
+                    final ClientState client = mClients.valueAt(i);
+                    if (client.mStartedOps == null) {
+                        continue;
+                    }
+                    final int opCount = client.mStartedOps.size();
+                    for (int j = opCount - 1; j >= 0; j--) {
+                        final Op op = client.mStartedOps.get(j);
+                        if (uid == op.uid && packageName.equals(op.packageName)) {
+                            finishOperationLocked(op, /*finishNested*/ true);
+                            client.mStartedOps.remove(j);
+                            if (op.startNesting <= 0) {
+                                scheduleOpActiveChangedIfNeededLocked(op.op,
+                                        uid, packageName, false);
+                            }
                         }
                     }
                 }
-            }
 
-            if (ops != null) {
-                scheduleFastWriteLocked();
+                if (ops != null) {
+                    scheduleFastWriteLocked(uidState);
 
-                final int opCount = ops.size();
-                for (int i = 0; i < opCount; i++) {
-                    final Op op = ops.valueAt(i);
-                    if (op.duration == -1) {
-                        scheduleOpActiveChangedIfNeededLocked(
-                                op.op, op.uid, op.packageName, false);
+                    final int opCount = ops.size();
+                    for (int i = 0; i < opCount; i++) {
+                        final Op op = ops.valueAt(i);
+                        if (op.duration == -1) {
+                            scheduleOpActiveChangedIfNeededLocked(
+                                    op.op, op.uid, op.packageName, false);
+                        }
                     }
                 }
+            } finally {
+                uidLock.unlock();
             }
         }
     }
 
     public void uidRemoved(int uid) {
         synchronized (this) {
-            if (mUidStates.indexOfKey(uid) >= 0) {
-                mUidStates.remove(uid);
-                scheduleFastWriteLocked();
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                if (mUidStates.get(uid) != null) {
+                    mUidStates.remove(uid);
+                    scheduleFastWriteLocked();
+                }
+            } finally {
+                uidLock.unlock();
             }
         }
     }
 
     public void updateUidProcState(int uid, int procState) {
         synchronized (this) {
-            final UidState uidState = getUidStateLocked(uid, true);
-            final int newState = PROCESS_STATE_TO_UID_STATE[procState];
-            if (uidState != null && uidState.pendingState != newState) {
-                final int oldPendingState = uidState.pendingState;
-                uidState.pendingState = newState;
-                if (newState < uidState.state || newState <= UID_STATE_LAST_NON_RESTRICTED) {
-                    // We are moving to a more important state, or the new state is in the
-                    // foreground, then always do it immediately.
-                    commitUidPendingStateLocked(uidState);
-                } else if (uidState.pendingStateCommitTime == 0) {
-                    // We are moving to a less important state for the first time,
-                    // delay the application for a bit.
-                    final long settleTime;
-                    if (uidState.state <= UID_STATE_TOP) {
-                        settleTime = mConstants.TOP_STATE_SETTLE_TIME;
-                    } else if (uidState.state <= UID_STATE_FOREGROUND_SERVICE) {
-                        settleTime = mConstants.FG_SERVICE_STATE_SETTLE_TIME;
-                    } else {
-                        settleTime = mConstants.BG_STATE_SETTLE_TIME;
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                final UidState uidState = getUidStateLocked(uid, true);
+                final int newState = PROCESS_STATE_TO_UID_STATE[procState];
+                if (uidState != null && uidState.pendingState != newState) {
+                    final int oldPendingState = uidState.pendingState;
+                    uidState.pendingState = newState;
+                    if (newState < uidState.state || newState <= UID_STATE_LAST_NON_RESTRICTED) {
+                        // We are moving to a more important state, or the new state is in the
+                        // foreground, then always do it immediately.
+                        commitUidPendingStateLocked(uidState);
+                    } else if (uidState.pendingStateCommitTime == 0) {
+                        // We are moving to a less important state for the first time,
+                        // delay the application for a bit.
+                        final long settleTime;
+                        if (uidState.state <= UID_STATE_TOP) {
+                            settleTime = mConstants.TOP_STATE_SETTLE_TIME;
+                        } else if (uidState.state <= UID_STATE_FOREGROUND_SERVICE) {
+                            settleTime = mConstants.FG_SERVICE_STATE_SETTLE_TIME;
+                        } else {
+                            settleTime = mConstants.BG_STATE_SETTLE_TIME;
+                        }
+                        uidState.pendingStateCommitTime = SystemClock.uptimeMillis() + settleTime;
                     }
-                    uidState.pendingStateCommitTime = SystemClock.uptimeMillis() + settleTime;
-                }
-                if (uidState.startNesting != 0) {
-                    // There is some actively running operation...  need to find it
-                    // and appropriately update its state.
-                    final long now = System.currentTimeMillis();
-                    for (int i = uidState.pkgOps.size() - 1; i >= 0; i--) {
-                        final Ops ops = uidState.pkgOps.valueAt(i);
-                        for (int j = ops.size() - 1; j >= 0; j--) {
-                            final Op op = ops.valueAt(j);
-                            if (op.startNesting > 0) {
-                                op.time[oldPendingState] = now;
-                                op.time[newState] = now;
+                    if (uidState.startNesting != 0) {
+                        // There is some actively running operation...  need to find it
+                        // and appropriately update its state.
+                        final long now = System.currentTimeMillis();
+                        for (int i = uidState.pkgOps.size() - 1; i >= 0; i--) {
+                            final Ops ops = uidState.pkgOps.valueAt(i);
+                            for (int j = ops.size() - 1; j >= 0; j--) {
+                                final Op op = ops.valueAt(j);
+                                if (op.startNesting > 0) {
+                                    op.time[oldPendingState] = now;
+                                    op.time[newState] = now;
+                                    uidState.dirty = true;
+                                }
                             }
                         }
                     }
                 }
+            } finally {
+                uidLock.unlock();
             }
         }
     }
@@ -1036,26 +1257,31 @@ public class AppOpsService extends IAppOpsService.Stub {
                 Binder.getCallingPid(), Binder.getCallingUid(), null);
         ArrayList<AppOpsManager.PackageOps> res = null;
         synchronized (this) {
-            final int uidStateCount = mUidStates.size();
-            for (int i = 0; i < uidStateCount; i++) {
-                UidState uidState = mUidStates.valueAt(i);
-                if (uidState.pkgOps == null || uidState.pkgOps.isEmpty()) {
-                    continue;
-                }
-                ArrayMap<String, Ops> packages = uidState.pkgOps;
-                final int packageCount = packages.size();
-                for (int j = 0; j < packageCount; j++) {
-                    Ops pkgOps = packages.valueAt(j);
-                    ArrayList<AppOpsManager.OpEntry> resOps = collectOps(pkgOps, ops);
-                    if (resOps != null) {
-                        if (res == null) {
-                            res = new ArrayList<AppOpsManager.PackageOps>();
+            mUidStates.lockAll();
+            try {
+                final int uidStateCount = mUidStates.size();
+                for (int i = 0; i < uidStateCount; i++) {
+                    UidState uidState = mUidStates.valueAt(i);
+                    if (uidState.pkgOps == null || uidState.pkgOps.isEmpty()) {
+                        continue;
+                    }
+                    ArrayMap<String, Ops> packages = uidState.pkgOps;
+                    final int packageCount = packages.size();
+                    for (int j = 0; j < packageCount; j++) {
+                        Ops pkgOps = packages.valueAt(j);
+                        ArrayList<AppOpsManager.OpEntry> resOps = collectOps(pkgOps, ops);
+                        if (resOps != null) {
+                            if (res == null) {
+                                res = new ArrayList<AppOpsManager.PackageOps>();
+                            }
+                            AppOpsManager.PackageOps resPackage = new AppOpsManager.PackageOps(
+                                    pkgOps.packageName, pkgOps.uidState.uid, resOps);
+                            res.add(resPackage);
                         }
-                        AppOpsManager.PackageOps resPackage = new AppOpsManager.PackageOps(
-                                pkgOps.packageName, pkgOps.uidState.uid, resOps);
-                        res.add(resPackage);
                     }
                 }
+            } finally {
+                mUidStates.unlockAll();
             }
         }
         return res;
@@ -1071,20 +1297,26 @@ public class AppOpsService extends IAppOpsService.Stub {
             return Collections.emptyList();
         }
         synchronized (this) {
-            Ops pkgOps = getOpsRawLocked(uid, resolvedPackageName, false /* edit */,
-                    false /* uidMismatchExpected */);
-            if (pkgOps == null) {
-                return null;
-            }
-            ArrayList<AppOpsManager.OpEntry> resOps = collectOps(pkgOps, ops);
-            if (resOps == null) {
-                return null;
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                Ops pkgOps = getOpsRawLocked(uid, resolvedPackageName, false /* edit */,
+                        false /* uidMismatchExpected */);
+                if (pkgOps == null) {
+                    return null;
+                }
+                ArrayList<AppOpsManager.OpEntry> resOps = collectOps(pkgOps, ops);
+                if (resOps == null) {
+                    return null;
+                }
+                ArrayList<AppOpsManager.PackageOps> res = new ArrayList<AppOpsManager.PackageOps>();
+                AppOpsManager.PackageOps resPackage = new AppOpsManager.PackageOps(
+                        pkgOps.packageName, pkgOps.uidState.uid, resOps);
+                res.add(resPackage);
+                return res;
+            } finally {
+                uidLock.unlock();
             }
-            ArrayList<AppOpsManager.PackageOps> res = new ArrayList<AppOpsManager.PackageOps>();
-            AppOpsManager.PackageOps resPackage = new AppOpsManager.PackageOps(
-                    pkgOps.packageName, pkgOps.uidState.uid, resOps);
-            res.add(resPackage);
-            return res;
         }
     }
 
@@ -1093,19 +1325,25 @@ public class AppOpsService extends IAppOpsService.Stub {
         mContext.enforcePermission(android.Manifest.permission.GET_APP_OPS_STATS,
                 Binder.getCallingPid(), Binder.getCallingUid(), null);
         synchronized (this) {
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState == null) {
-                return null;
-            }
-            ArrayList<AppOpsManager.OpEntry> resOps = collectOps(uidState.opModes, ops);
-            if (resOps == null) {
-                return null;
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                UidState uidState = getUidStateLocked(uid, false);
+                if (uidState == null) {
+                    return null;
+                }
+                ArrayList<AppOpsManager.OpEntry> resOps = collectOps(uidState.opModes, ops);
+                if (resOps == null) {
+                    return null;
+                }
+                ArrayList<AppOpsManager.PackageOps> res = new ArrayList<AppOpsManager.PackageOps>();
+                AppOpsManager.PackageOps resPackage = new AppOpsManager.PackageOps(
+                        null, uidState.uid, resOps);
+                res.add(resPackage);
+                return res;
+            } finally {
+                uidLock.unlock();
             }
-            ArrayList<AppOpsManager.PackageOps> res = new ArrayList<AppOpsManager.PackageOps>();
-            AppOpsManager.PackageOps resPackage = new AppOpsManager.PackageOps(
-                    null, uidState.uid, resOps);
-            res.add(resPackage);
-            return res;
         }
     }
 
@@ -1157,38 +1395,44 @@ public class AppOpsService extends IAppOpsService.Stub {
         code = AppOpsManager.opToSwitch(code);
 
         synchronized (this) {
-            final int defaultMode = AppOpsManager.opToDefaultMode(code,
-                    AppOpsManager.isStrictOp(code));
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                final int defaultMode = AppOpsManager.opToDefaultMode(code,
+                        AppOpsManager.isStrictOp(code));
 
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState == null) {
-                if (mode == defaultMode) {
-                    return;
-                }
-                uidState = new UidState(uid);
-                uidState.opModes = new SparseIntArray();
-                uidState.opModes.put(code, mode);
-                mUidStates.put(uid, uidState);
-                scheduleWriteLocked();
-            } else if (uidState.opModes == null) {
-                if (mode != defaultMode) {
+                UidState uidState = getUidStateLocked(uid, false);
+                if (uidState == null) {
+                    if (mode == defaultMode) {
+                        return;
+                    }
+                    uidState = new UidState(uid);
                     uidState.opModes = new SparseIntArray();
                     uidState.opModes.put(code, mode);
-                    scheduleWriteLocked();
-                }
-            } else {
-                if (uidState.opModes.get(code) == mode) {
-                    return;
-                }
-                if (mode == defaultMode) {
-                    uidState.opModes.delete(code);
-                    if (uidState.opModes.size() <= 0) {
-                        uidState.opModes = null;
+                    mUidStates.put(uid, uidState);
+                    scheduleWriteLocked(uidState);
+                } else if (uidState.opModes == null) {
+                    if (mode != defaultMode) {
+                        uidState.opModes = new SparseIntArray();
+                        uidState.opModes.put(code, mode);
+                        scheduleWriteLocked(uidState);
                     }
                 } else {
-                    uidState.opModes.put(code, mode);
+                    if (uidState.opModes.get(code) == mode) {
+                        return;
+                    }
+                    if (mode == defaultMode) {
+                        uidState.opModes.delete(code);
+                        if (uidState.opModes.size() <= 0) {
+                            uidState.opModes = null;
+                        }
+                    } else {
+                        uidState.opModes.put(code, mode);
+                    }
+                    scheduleWriteLocked(uidState);
                 }
-                scheduleWriteLocked();
+            } finally {
+                uidLock.unlock();
             }
         }
 
@@ -1261,35 +1505,41 @@ public class AppOpsService extends IAppOpsService.Stub {
         ArraySet<ModeCallback> repCbs = null;
         code = AppOpsManager.opToSwitch(code);
         synchronized (this) {
-            UidState uidState = getUidStateLocked(uid, false);
-            Op op = getOpLocked(code, uid, packageName, true);
-            if (op != null) {
-                if (op.mode != mode) {
-                    op.mode = mode;
-                    if (uidState != null) {
-                        uidState.evalForegroundOps(mOpModeWatchers);
-                    }
-                    ArraySet<ModeCallback> cbs = mOpModeWatchers.get(code);
-                    if (cbs != null) {
-                        if (repCbs == null) {
-                            repCbs = new ArraySet<>();
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                UidState uidState = getUidStateLocked(uid, false);
+                Op op = getOpLocked(code, uid, packageName, true);
+                if (op != null) {
+                    if (op.mode != mode) {
+                        op.mode = mode;
+                        if (uidState != null) {
+                            uidState.evalForegroundOps(mOpModeWatchers);
                         }
-                        repCbs.addAll(cbs);
-                    }
-                    cbs = mPackageModeWatchers.get(packageName);
-                    if (cbs != null) {
-                        if (repCbs == null) {
-                            repCbs = new ArraySet<>();
+                        ArraySet<ModeCallback> cbs = mOpModeWatchers.get(code);
+                        if (cbs != null) {
+                            if (repCbs == null) {
+                                repCbs = new ArraySet<>();
+                            }
+                            repCbs.addAll(cbs);
                         }
-                        repCbs.addAll(cbs);
-                    }
-                    if (mode == AppOpsManager.opToDefaultMode(op.op)) {
-                        // If going into the default mode, prune this op
-                        // if there is nothing else interesting in it.
-                        pruneOp(op, uid, packageName);
+                        cbs = mPackageModeWatchers.get(packageName);
+                        if (cbs != null) {
+                            if (repCbs == null) {
+                                repCbs = new ArraySet<>();
+                            }
+                            repCbs.addAll(cbs);
+                        }
+                        if (mode == AppOpsManager.opToDefaultMode(op.op)) {
+                            // If going into the default mode, prune this op
+                            // if there is nothing else interesting in it.
+                            pruneOp(op, uid, packageName);
+                        }
+                        scheduleFastWriteLocked(op.uidState);
                     }
-                    scheduleFastWriteLocked();
                 }
+            } finally {
+                uidLock.unlock();
             }
         }
         if (repCbs != null) {
@@ -1392,81 +1642,89 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         synchronized (this) {
-            boolean changed = false;
-            for (int i = mUidStates.size() - 1; i >= 0; i--) {
-                UidState uidState = mUidStates.valueAt(i);
-
-                SparseIntArray opModes = uidState.opModes;
-                if (opModes != null && (uidState.uid == reqUid || reqUid == -1)) {
-                    final int uidOpCount = opModes.size();
-                    for (int j = uidOpCount - 1; j >= 0; j--) {
-                        final int code = opModes.keyAt(j);
-                        if (AppOpsManager.opAllowsReset(code)) {
-                            opModes.removeAt(j);
-                            if (opModes.size() <= 0) {
-                                uidState.opModes = null;
-                            }
-                            for (String packageName : getPackagesForUid(uidState.uid)) {
-                                callbacks = addCallbacks(callbacks, code, uidState.uid, packageName,
-                                        mOpModeWatchers.get(code));
-                                callbacks = addCallbacks(callbacks, code, uidState.uid, packageName,
-                                        mPackageModeWatchers.get(packageName));
+            mUidStates.lockAll();
+            try {
+                boolean changed = false;
+                for (int i = mUidStates.size() - 1; i >= 0; i--) {
+                    UidState uidState = mUidStates.valueAt(i);
+
+                    SparseIntArray opModes = uidState.opModes;
+                    if (opModes != null && (uidState.uid == reqUid || reqUid == -1)) {
+                        final int uidOpCount = opModes.size();
+                        for (int j = uidOpCount - 1; j >= 0; j--) {
+                            final int code = opModes.keyAt(j);
+                            if (AppOpsManager.opAllowsReset(code)) {
+                                opModes.removeAt(j);
+                                if (opModes.size() <= 0) {
+                                    uidState.opModes = null;
+                                }
+                                uidState.dirty = true;
+                                changed = true;
+                                for (String packageName : getPackagesForUid(uidState.uid)) {
+                                    callbacks = addCallbacks(callbacks, code, uidState.uid,
+                                            packageName, mOpModeWatchers.get(code));
+                                    callbacks = addCallbacks(callbacks, code, uidState.uid,
+                                            packageName, mPackageModeWatchers.get(packageName));
+                                }
                             }
                         }
                     }
-                }
 
-                if (uidState.pkgOps == null) {
-                    continue;
-                }
-
-                if (reqUserId != UserHandle.USER_ALL
-                        && reqUserId != UserHandle.getUserId(uidState.uid)) {
-                    // Skip any ops for a different user
-                    continue;
-                }
+                    if (uidState.pkgOps == null) {
+                        continue;
+                    }
 
-                Map<String, Ops> packages = uidState.pkgOps;
-                Iterator<Map.Entry<String, Ops>> it = packages.entrySet().iterator();
-                boolean uidChanged = false;
-                while (it.hasNext()) {
-                    Map.Entry<String, Ops> ent = it.next();
-                    String packageName = ent.getKey();
-                    if (reqPackageName != null && !reqPackageName.equals(packageName)) {
-                        // Skip any ops for a different package
+                    if (reqUserId != UserHandle.USER_ALL
+                            && reqUserId != UserHandle.getUserId(uidState.uid)) {
+                        // Skip any ops for a different user
                         continue;
                     }
-                    Ops pkgOps = ent.getValue();
-                    for (int j=pkgOps.size()-1; j>=0; j--) {
-                        Op curOp = pkgOps.valueAt(j);
-                        if (AppOpsManager.opAllowsReset(curOp.op)
-                                && curOp.mode != AppOpsManager.opToDefaultMode(curOp.op)) {
-                            curOp.mode = AppOpsManager.opToDefaultMode(curOp.op);
-                            changed = true;
-                            uidChanged = true;
-                            callbacks = addCallbacks(callbacks, curOp.op, curOp.uid, packageName,
-                                    mOpModeWatchers.get(curOp.op));
-                            callbacks = addCallbacks(callbacks, curOp.op, curOp.uid, packageName,
-                                    mPackageModeWatchers.get(packageName));
-                            if (!curOp.hasAnyTime()) {
-                                pkgOps.removeAt(j);
+
+                    Map<String, Ops> packages = uidState.pkgOps;
+                    Iterator<Map.Entry<String, Ops>> it = packages.entrySet().iterator();
+                    boolean uidChanged = false;
+                    while (it.hasNext()) {
+                        Map.Entry<String, Ops> ent = it.next();
+                        String packageName = ent.getKey();
+                        if (reqPackageName != null && !reqPackageName.equals(packageName)) {
+                            // Skip any ops for a different package
+                            continue;
+                        }
+                        Ops pkgOps = ent.getValue();
+                        for (int j=pkgOps.size()-1; j>=0; j--) {
+                            Op curOp = pkgOps.valueAt(j);
+                            if (AppOpsManager.opAllowsReset(curOp.op)
+                                    && curOp.mode != AppOpsManager.opToDefaultMode(curOp.op)) {
+                                curOp.mode = AppOpsManager.opToDefaultMode(curOp.op);
+                                changed = true;
+                                uidChanged = true;
+                                callbacks = addCallbacks(callbacks, curOp.op, curOp.uid,
+                                        packageName, mOpModeWatchers.get(curOp.op));
+                                callbacks = addCallbacks(callbacks, curOp.op, curOp.uid,
+                                        packageName, mPackageModeWatchers.get(packageName));
+                                if (!curOp.hasAnyTime()) {
+                                    pkgOps.removeAt(j);
+                                }
                             }
                         }
+                        if (pkgOps.size() == 0) {
+                            it.remove();
+                        }
                     }
-                    if (pkgOps.size() == 0) {
-                        it.remove();
+                    if (uidState.isDefault()) {
+                        mUidStates.remove(uidState.uid);
+                    }
+                    if (uidChanged) {
+                        uidState.dirty = true;
+                        uidState.evalForegroundOps(mOpModeWatchers);
                     }
                 }
-                if (uidState.isDefault()) {
-                    mUidStates.remove(uidState.uid);
-                }
-                if (uidChanged) {
-                    uidState.evalForegroundOps(mOpModeWatchers);
-                }
-            }
 
-            if (changed) {
-                scheduleFastWriteLocked();
+                if (changed) {
+                    scheduleFastWriteLocked();
+                }
+            } finally {
+                mUidStates.unlockAll();
             }
         }
         if (callbacks != null) {
@@ -1484,11 +1742,16 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void evalAllForegroundOpsLocked() {
-        for (int uidi = mUidStates.size() - 1; uidi >= 0; uidi--) {
-            final UidState uidState = mUidStates.valueAt(uidi);
-            if (uidState.foregroundOps != null) {
-                uidState.evalForegroundOps(mOpModeWatchers);
+        mUidStates.lockAll();
+        try {
+            for (int uidi = mUidStates.size() - 1; uidi >= 0; uidi--) {
+                final UidState uidState = mUidStates.valueAt(uidi);
+                if (uidState.foregroundOps != null) {
+                    uidState.evalForegroundOps(mOpModeWatchers);
+                }
             }
+        } finally {
+            mUidStates.unlockAll();
         }
     }
 
@@ -1587,24 +1850,69 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
-        synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
-            }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
+        final ReentrantLock uidLock = mUidStates.getLock(uid);
+        uidLock.lock();
+        try {
+            final int mode = checkOperationUidLocked(code, uid, resolvedPackageName);
+            if (mode != NEEDS_SERVICE_LOCK) {
+                return mode;
             }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
+        } finally {
+            uidLock.unlock();
+        }
+        synchronized (this) {
+            uidLock.lock();
+            try {
+                if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
+                    return AppOpsManager.MODE_IGNORED;
+                }
+                code = AppOpsManager.opToSwitch(code);
+                UidState uidState = getUidStateLocked(uid, false);
+                if (uidState != null && uidState.opModes != null
+                        && uidState.opModes.indexOfKey(code) >= 0) {
+                    return uidState.opModes.get(code);
+                }
+                Op op = getOpLocked(code, uid, resolvedPackageName, false);
+                if (op == null) {
+                    return AppOpsManager.opToDefaultMode(code);
+                }
+                return op.mode;
+            } finally {
+                uidLock.unlock();
             }
-            return op.mode;
         }
     }
 
+    /**
+     * Checks the op holding only the uid lock, which is enough unless the op is restricted or the
+     * uid has a pending state change to commit.
+     *
+     * @return the mode, or {@link #NEEDS_SERVICE_LOCK} if the op has to be checked holding the
+     * service lock.
+     */
+    private int checkOperationUidLocked(int code, int uid, String packageName) {
+        if (mRestrictedOps[code]) {
+            return NEEDS_SERVICE_LOCK;
+        }
+        final UidState uidState = mUidStates.get(uid);
+        if (uidState == null) {
+            return AppOpsManager.opToDefaultMode(AppOpsManager.opToSwitch(code));
+        }
+        if (isPendingStateCommitDue(uidState)) {
+            return NEEDS_SERVICE_LOCK;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        if (uidState.opModes != null && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        final Ops ops = uidState.pkgOps != null ? uidState.pkgOps.get(packageName) : null;
+        final Op op = ops != null ? ops.get(code) : null;
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
+        }
+        return op.mode;
+    }
+
     @Override
     public int checkAudioOperation(int code, int usage, int uid, String packageName) {
         boolean suspended;
@@ -1687,12 +1995,18 @@ public class AppOpsService extends IAppOpsService.Stub {
     public int checkPackage(int uid, String packageName) {
         Preconditions.checkNotNull(packageName);
         synchronized (this) {
-            Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
-                    true /* uidMismatchExpected */);
-            if (ops != null) {
-                return AppOpsManager.MODE_ALLOWED;
-            } else {
-                return AppOpsManager.MODE_ERRORED;
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
+                        true /* uidMismatchExpected */);
+                if (ops != null) {
+                    return AppOpsManager.MODE_ALLOWED;
+                } else {
+                    return AppOpsManager.MODE_ERRORED;
+                }
+            } finally {
+                uidLock.unlock();
             }
         }
     }
@@ -1732,122 +2046,142 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private int noteOperationUnchecked(int code, int uid, String packageName,
             int proxyUid, String proxyPackageName, boolean avoidAskMode) {
+        final ReentrantLock uidLock = mUidStates.getLock(uid);
+        uidLock.lock();
+        try {
+            final int mode = noteOperationUidLocked(code, uid, packageName, proxyUid,
+                    proxyPackageName);
+            if (mode != NEEDS_SERVICE_LOCK) {
+                return mode;
+            }
+        } finally {
+            uidLock.unlock();
+        }
         PermissionDialogReq req = null;
         synchronized (this) {
-            final Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
-                    false /* uidMismatchExpected */);
-            if (ops == null) {
-                if (DEBUG) Slog.d(TAG, "noteOperation: no op for code " + code + " uid " + uid
-                        + " package " + packageName);
-                return AppOpsManager.MODE_ERRORED;
-            }
-            final Op op = getOpLocked(ops, code, true);
-            if (isOpRestrictedLocked(uid, code, packageName)) {
-                op.ignoredCount++;
-                return AppOpsManager.MODE_IGNORED;
-            }
-            final UidState uidState = ops.uidState;
-            if (op.duration == -1) {
-                Slog.w(TAG, "Noting op not finished: uid " + uid + " pkg " + packageName
-                        + " code " + code + " time=" + op.time[uidState.state]
-                        + " duration=" + op.duration);
-            }
-            op.duration = 0;
-            final int switchCode = AppOpsManager.opToSwitch(code);
-            // If there is a non-default per UID policy (we set UID op mode only if
-            // non-default) it takes over, otherwise use the per package policy.
-            if (uidState.opModes != null && uidState.opModes.indexOfKey(switchCode) >= 0) {
-                final int uidMode = uidState.evalMode(uidState.opModes.get(switchCode));
-                if (uidMode != AppOpsManager.MODE_ALLOWED) {
-                    if (DEBUG) Slog.d(TAG, "noteOperation: uid reject #" + uidMode + " for code "
-                            + switchCode + " (" + code + ") uid " + uid + " package "
-                            + packageName);
-                    op.rejectTime[uidState.state] = System.currentTimeMillis();
-                    return uidMode;
+            uidLock.lock();
+            try {
+                final Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
+                        false /* uidMismatchExpected */);
+                if (ops == null) {
+                    if (DEBUG) Slog.d(TAG, "noteOperation: no op for code " + code + " uid " + uid
+                            + " package " + packageName);
+                    return AppOpsManager.MODE_ERRORED;
                 }
-            } else {
-                final Op switchOp = switchCode != code ? getOpLocked(ops, switchCode, true) : op;
-                final int mode = switchOp.getMode();
-                if (mode != AppOpsManager.MODE_ALLOWED && mode != AppOpsManager.MODE_ASK) {
-                    if (DEBUG) Slog.d(TAG, "noteOperation: reject #" + mode + " for code "
-                            + switchCode + " (" + code + ") uid " + uid + " package "
-                            + packageName);
-                    op.rejectTime[uidState.state] = System.currentTimeMillis();
+                final Op op = getOpLocked(ops, code, true);
+                if (isOpRestrictedLocked(uid, code, packageName)) {
                     op.ignoredCount++;
-                    return mode;
-                } else if (mode == AppOpsManager.MODE_ASK) {
-                    if (Looper.myLooper() == mLooper || Thread.holdsLock(mActivityManagerService)) {
-                        Slog.e(TAG, "noteOperation: this method will deadlock if called" +
-                               " from the main thread. (Code: " + code + " uid: " + uid +
-                               " package: " + packageName + ")");
-                        return mode;
-                    } else if (avoidAskMode) {
-                        return mode;
+                    return AppOpsManager.MODE_IGNORED;
+                }
+                final UidState uidState = ops.uidState;
+                if (op.duration == -1) {
+                    Slog.w(TAG, "Noting op not finished: uid " + uid + " pkg " + packageName
+                            + " code " + code + " time=" + op.time[uidState.state]
+                            + " duration=" + op.duration);
+                }
+                op.duration = 0;
+                final int switchCode = AppOpsManager.opToSwitch(code);
+                // If there is a non-default per UID policy (we set UID op mode only if
+                // non-default) it takes over, otherwise use the per package policy.
+                if (uidState.opModes != null && uidState.opModes.indexOfKey(switchCode) >= 0) {
+                    final int uidMode = uidState.evalMode(uidState.opModes.get(switchCode));
+                    if (uidMode != AppOpsManager.MODE_ALLOWED) {
+                        if (DEBUG) Slog.d(TAG, "noteOperation: uid reject #" + uidMode
+                                + " for code " + switchCode + " (" + code + ") uid " + uid
+                                + " package " + packageName);
+                        op.rejectTime[uidState.state] = System.currentTimeMillis();
+                        return uidMode;
                     }
+                } else {
+                    final Op switchOp = switchCode != code
+                            ? getOpLocked(ops, switchCode, true) : op;
+                    final int mode = switchOp.getMode();
+                    if (mode != AppOpsManager.MODE_ALLOWED && mode != AppOpsManager.MODE_ASK) {
+                        if (DEBUG) Slog.d(TAG, "noteOperation: reject #" + mode + " for code "
+                                + switchCode + " (" + code + ") uid " + uid + " package "
+                                + packageName);
+                        op.rejectTime[uidState.state] = System.currentTimeMillis();
+                        op.ignoredCount++;
+                        return mode;
+                    } else if (mode == AppOpsManager.MODE_ASK) {
+                        if (Looper.myLooper() == mLooper
+                                || Thread.holdsLock(mActivityManagerService)) {
+                            Slog.e(TAG, "noteOperation: this method will deadlock if called" +
+                                   " from the main thread. (Code: " + code + " uid: " + uid +
+                                   " package: " + packageName + ")");
+                            return mode;
+                        } else if (avoidAskMode) {
+                            return mode;
+                        }
 
-                    if (DEBUG) {
-                            Slog.d(TAG, "Package " + op.packageName + " has " + op.noteOpCount
-                                    + " requests and " + op.startOpCount + " start requests with "
-                                    + op.ignoredCount + " ignored at " + Arrays.toString(op.time) +
-                                    " with a duration of " + op.duration +
-                                    " while being delayed " + op.delayedCount + " times");
-                            Slog.d(TAG, "Total pkops for " + ops.packageName + " "
-                                    + ops.uidState.pkgOps.size());
-                    }
-
-                    // We don't need ask everytime, just after app resume.
-                    // Check once and remember the choice for 5 minutes.
-                    final long lastcheck = Math.max(op.time[uidState.state],
-                            op.rejectTime[uidState.state]);
-                    if (lastcheck > ops.startRealtime &&
-                            lastcheck < (ops.startRealtime + 5 * 60 * 1000L)) {
-                        return op.time[uidState.state] >= op.rejectTime[uidState.state]
-                                ? AppOpsManager.MODE_ALLOWED : AppOpsManager.MODE_IGNORED;
-                    }
-
-                    // First drop all request events if the device is not interactive, next check
-                    // what the global pkg ops count for the package, then check op scoped count.
-                    // High frequency request ops will be delayed until their delay count ceiling
-                    // is met. This is to mitigate the overloading the main activity manager
-                    // service handler and having watchdog kill our service.
-                    // Google Play services likes to share its uid with numerous packages to avoid
-                    // having to grant permissions from the users perspective and thus is the worst
-                    // example of overloading this queue -- so, to not encourage bad behavior,
-                    // we move them to the back of the line.
-                    //
-                    // NOTE: these values are magic, and may need tuning. Ideally we'd want a
-                    // ringbuffer or token bucket here to do proper rate limiting.
-                    if (mIsInteractive &&
-                            (ops.uidState.pkgOps.size() < RATE_LIMIT_OPS_TOTAL_PKG_COUNT
-                              && op.noteOpCount < RATE_LIMIT_OP_COUNT
-                              || op.delayedCount > RATE_LIMIT_OP_DELAY_CEILING)) {
-
-                        // Reset delayed count, most ops will never need this
-                        if (op.delayedCount > 0) {
-                            if (DEBUG) Slog.d(TAG, "Resetting delayed count for " + op.packageName);
-                            op.delayedCount = 0;
+                        if (DEBUG) {
+                                Slog.d(TAG, "Package " + op.packageName + " has "
+                                        + op.noteOpCount + " requests and " + op.startOpCount
+                                        + " start requests with " + op.ignoredCount
+                                        + " ignored at " + Arrays.toString(op.time) +
+                                        " with a duration of " + op.duration +
+                                        " while being delayed " + op.delayedCount + " times");
+                                Slog.d(TAG, "Total pkops for " + ops.packageName + " "
+                                        + ops.uidState.pkgOps.size());
                         }
 
-                        op.noteOpCount++;
-                        req = askOperationLocked(code, uid, packageName, switchOp);
-                    } else {
-                        if (mIsInteractive) {
-                            op.delayedCount++;
+                        // We don't need ask everytime, just after app resume.
+                        // Check once and remember the choice for 5 minutes.
+                        final long lastcheck = Math.max(op.time[uidState.state],
+                                op.rejectTime[uidState.state]);
+                        if (lastcheck > ops.startRealtime &&
+                                lastcheck < (ops.startRealtime + 5 * 60 * 1000L)) {
+                            return op.time[uidState.state] >= op.rejectTime[uidState.state]
+                                    ? AppOpsManager.MODE_ALLOWED : AppOpsManager.MODE_IGNORED;
+                        }
+
+                        // First drop all request events if the device is not interactive, next
+                        // check what the global pkg ops count for the package, then check op
+                        // scoped count. High frequency request ops will be delayed until their
+                        // delay count ceiling is met. This is to mitigate the overloading the main
+                        // activity manager service handler and having watchdog kill our service.
+                        // Google Play services likes to share its uid with numerous packages to
+                        // avoid having to grant permissions from the users perspective and thus is
+                        // the worst example of overloading this queue -- so, to not encourage bad
+                        // behavior, we move them to the back of the line.
+                        //
+                        // NOTE: these values are magic, and may need tuning. Ideally we'd want a
+                        // ringbuffer or token bucket here to do proper rate limiting.
+                        if (mIsInteractive &&
+                                (ops.uidState.pkgOps.size() < RATE_LIMIT_OPS_TOTAL_PKG_COUNT
+                                  && op.noteOpCount < RATE_LIMIT_OP_COUNT
+                                  || op.delayedCount > RATE_LIMIT_OP_DELAY_CEILING)) {
+
+                            // Reset delayed count, most ops will never need this
+                            if (op.delayedCount > 0) {
+                                if (DEBUG) Slog.d(TAG, "Resetting delayed count for "
+                                        + op.packageName);
+                                op.delayedCount = 0;
+                            }
+
+                            op.noteOpCount++;
+                            req = askOperationLocked(code, uid, packageName, switchOp);
+                        } else {
+                            if (mIsInteractive) {
+                                op.delayedCount++;
+                            }
+                            op.ignoredCount++;
+                            return AppOpsManager.MODE_IGNORED;
                         }
-                        op.ignoredCount++;
-                        return AppOpsManager.MODE_IGNORED;
                     }
                 }
-            }
-            if (req == null) {
-                if (DEBUG) Slog.d(TAG, "noteOperation: allowing code " + code + " uid " + uid
-                        + " package " + packageName);
-                op.time[uidState.state] = System.currentTimeMillis();
-                op.rejectTime[uidState.state] = 0;
-                op.proxyUid = proxyUid;
-                op.proxyPackageName = proxyPackageName;
-                op.allowedCount++;
-                return AppOpsManager.MODE_ALLOWED;
+                if (req == null) {
+                    if (DEBUG) Slog.d(TAG, "noteOperation: allowing code " + code + " uid " + uid
+                            + " package " + packageName);
+                    op.time[uidState.state] = System.currentTimeMillis();
+                    op.rejectTime[uidState.state] = 0;
+                    op.proxyUid = proxyUid;
+                    op.proxyPackageName = proxyPackageName;
+                    op.allowedCount++;
+                    return AppOpsManager.MODE_ALLOWED;
+                }
+            } finally {
+                uidLock.unlock();
             }
         }
 
@@ -1857,6 +2191,62 @@ public class AppOpsService extends IAppOpsService.Stub {
         return req.get();
     }
 
+    /**
+     * Notes the op holding only the uid lock, which is enough when the op was noted before and
+     * the state to note it exists, the op isn't restricted, doesn't have to ask the user and
+     * doesn't have to schedule a write.
+     *
+     * @return the mode, or {@link #NEEDS_SERVICE_LOCK} if the op has to be noted holding the
+     * service lock.
+     */
+    private int noteOperationUidLocked(int code, int uid, String packageName, int proxyUid,
+            String proxyPackageName) {
+        // A write that is already scheduled collects the state of the uid after this, see
+        // writeState().
+        if (!mWriteScheduled || mRestrictedOps[code]) {
+            return NEEDS_SERVICE_LOCK;
+        }
+        final UidState uidState = mUidStates.get(uid);
+        if (uidState == null || uidState.pkgOps == null || isPendingStateCommitDue(uidState)) {
+            return NEEDS_SERVICE_LOCK;
+        }
+        final Ops ops = uidState.pkgOps.get(packageName);
+        final Op op = ops != null ? ops.get(code) : null;
+        if (op == null) {
+            return NEEDS_SERVICE_LOCK;
+        }
+        final int switchCode = AppOpsManager.opToSwitch(code);
+        final boolean hasUidMode = uidState.opModes != null
+                && uidState.opModes.indexOfKey(switchCode) >= 0;
+        final Op switchOp = switchCode != code ? ops.get(switchCode) : op;
+        if (!hasUidMode && (switchOp == null || switchOp.getMode() == AppOpsManager.MODE_ASK)) {
+            return NEEDS_SERVICE_LOCK;
+        }
+
+        if (op.duration == -1) {
+            Slog.w(TAG, "Noting op not finished: uid " + uid + " pkg " + packageName
+                    + " code " + code + " time=" + op.time[uidState.state]
+                    + " duration=" + op.duration);
+        }
+        op.duration = 0;
+        uidState.dirty = true;
+        final int mode = hasUidMode
+                ? uidState.evalMode(uidState.opModes.get(switchCode)) : switchOp.getMode();
+        if (mode != AppOpsManager.MODE_ALLOWED) {
+            op.rejectTime[uidState.state] = System.currentTimeMillis();
+            if (!hasUidMode) {
+                op.ignoredCount++;
+            }
+            return mode;
+        }
+        op.time[uidState.state] = System.currentTimeMillis();
+        op.rejectTime[uidState.state] = 0;
+        op.proxyUid = proxyUid;
+        op.proxyPackageName = proxyPackageName;
+        op.allowedCount++;
+        return AppOpsManager.MODE_ALLOWED;
+    }
+
     @Override
     public void startWatchingActive(int[] ops, IAppOpsActiveCallback callback) {
         int watchedUid = -1;
@@ -1920,69 +2310,75 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
         ClientState client = (ClientState)token;
         synchronized (this) {
-            final Ops ops = getOpsRawLocked(uid, resolvedPackageName, true /* edit */,
-                    false /* uidMismatchExpected */);
-            if (ops == null) {
-                if (DEBUG) Slog.d(TAG, "startOperation: no op for code " + code + " uid " + uid
-                        + " package " + resolvedPackageName);
-                return AppOpsManager.MODE_ERRORED;
-            }
-            final Op op = getOpLocked(ops, code, true);
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                op.ignoredCount++;
-                return AppOpsManager.MODE_IGNORED;
-            }
-            final int switchCode = AppOpsManager.opToSwitch(code);
-            final UidState uidState = ops.uidState;
-            if (uidState.opModes != null) {
-                final int uidMode = uidState.opModes.get(switchCode);
-                if (uidMode != AppOpsManager.MODE_ALLOWED) {
-                    if (DEBUG) Slog.d(TAG, "noteOperation: uid reject #" + uidMode + " for code "
-                            + switchCode + " (" + code + ") uid " + uid + " package "
-                            + resolvedPackageName);
-                    op.rejectTime[uidState.state] = System.currentTimeMillis();
-                    return uidMode;
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                final Ops ops = getOpsRawLocked(uid, resolvedPackageName, true /* edit */,
+                        false /* uidMismatchExpected */);
+                if (ops == null) {
+                    if (DEBUG) Slog.d(TAG, "startOperation: no op for code " + code + " uid " + uid
+                            + " package " + resolvedPackageName);
+                    return AppOpsManager.MODE_ERRORED;
                 }
-            }
-            final Op switchOp = switchCode != code ? getOpLocked(ops, switchCode, true) : op;
-            final int mode = switchOp.getMode();
-            if (mode != AppOpsManager.MODE_ALLOWED && mode != AppOpsManager.MODE_ASK) {
-                if (DEBUG) Slog.d(TAG, "startOperation: reject #" + op.mode + " for code "
-                        + switchCode + " (" + code + ") uid " + uid + " package "
-                        + resolvedPackageName);
-                op.rejectTime[uidState.state] = System.currentTimeMillis();
-                op.ignoredCount++;
-                return mode;
-            } else if (mode == AppOpsManager.MODE_ALLOWED) {
-                if (DEBUG) Slog.d(TAG, "startOperation: allowing code " + code + " uid " + uid
-                        + " package " + resolvedPackageName);
-                if (op.startNesting == 0) {
-                    op.startRealtime = SystemClock.elapsedRealtime();
-                    op.time[uidState.state] = System.currentTimeMillis();
-                    op.rejectTime[uidState.state] = 0;
-                    op.duration = -1;
-                    op.allowedCount++;
-                    scheduleOpActiveChangedIfNeededLocked(code, uid, packageName, true);
+                final Op op = getOpLocked(ops, code, true);
+                if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
+                    op.ignoredCount++;
+                    return AppOpsManager.MODE_IGNORED;
                 }
-                op.startNesting++;
-                uidState.startNesting++;
-                if (client.mStartedOps != null) {
-                    client.mStartedOps.add(op);
+                final int switchCode = AppOpsManager.opToSwitch(code);
+                final UidState uidState = ops.uidState;
+                if (uidState.opModes != null) {
+                    final int uidMode = uidState.opModes.get(switchCode);
+                    if (uidMode != AppOpsManager.MODE_ALLOWED) {
+                        if (DEBUG) Slog.d(TAG, "noteOperation: uid reject #" + uidMode
+                                + " for code " + switchCode + " (" + code + ") uid " + uid
+                                + " package " + resolvedPackageName);
+                        op.rejectTime[uidState.state] = System.currentTimeMillis();
+                        return uidMode;
+                    }
                 }
-                return AppOpsManager.MODE_ALLOWED;
-            } else {
-                if (Looper.myLooper() == mLooper || Thread.holdsLock(mActivityManagerService)) {
-                    Slog.e(TAG, "startOperation: this method will deadlock if called" +
-                            " from the main thread. (Code: " + code + " uid: " + uid +
-                            " package: " + resolvedPackageName + ")");
+                final Op switchOp = switchCode != code ? getOpLocked(ops, switchCode, true) : op;
+                final int mode = switchOp.getMode();
+                if (mode != AppOpsManager.MODE_ALLOWED && mode != AppOpsManager.MODE_ASK) {
+                    if (DEBUG) Slog.d(TAG, "startOperation: reject #" + op.mode + " for code "
+                            + switchCode + " (" + code + ") uid " + uid + " package "
+                            + resolvedPackageName);
+                    op.rejectTime[uidState.state] = System.currentTimeMillis();
+                    op.ignoredCount++;
                     return mode;
+                } else if (mode == AppOpsManager.MODE_ALLOWED) {
+                    if (DEBUG) Slog.d(TAG, "startOperation: allowing code " + code + " uid " + uid
+                            + " package " + resolvedPackageName);
+                    if (op.startNesting == 0) {
+                        op.startRealtime = SystemClock.elapsedRealtime();
+                        op.time[uidState.state] = System.currentTimeMillis();
+                        op.rejectTime[uidState.state] = 0;
+                        op.duration = -1;
+                        op.allowedCount++;
+                        scheduleOpActiveChangedIfNeededLocked(code, uid, packageName, true);
+                    }
+                    op.startNesting++;
+                    uidState.startNesting++;
+                    if (client.mStartedOps != null) {
+                        client.mStartedOps.add(op);
+                    }
+                    return AppOpsManager.MODE_ALLOWED;
+                } else {
+                    if (Looper.myLooper() == mLooper || Thread.holdsLock(mActivityManagerService)) {
+                        Slog.e(TAG, "startOperation: this method will deadlock if called" +
+                                " from the main thread. (Code: " + code + " uid: " + uid +
+                                " package: " + resolvedPackageName + ")");
+                        return mode;
+                    }
+                    if (DEBUG) Slog.d(TAG, "startOperation: asking for code " + code
+                            + " uid " + uid + " package " + resolvedPackageName);
+                    op.startOpCount++;
+                    IBinder clientToken = client.mAppToken;
+                    op.clientTokens.add(clientToken);
+                    req = askOperationLocked(code, uid, resolvedPackageName, switchOp);
                 }
-                if (DEBUG) Slog.d(TAG, "startOperation: asking for code " + code
-                        + " uid " + uid + " package " + resolvedPackageName);
-                op.startOpCount++;
-                IBinder clientToken = client.mAppToken;
-                op.clientTokens.add(clientToken);
-                req = askOperationLocked(code, uid, resolvedPackageName, switchOp);
+            } finally {
+                uidLock.unlock();
             }
         }
         return req.get();
@@ -2001,34 +2397,40 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
         ClientState client = (ClientState) token;
         synchronized (this) {
-            Op op = getOpLocked(code, uid, resolvedPackageName, true);
-            if (op == null) {
-                return;
-            }
-            if (!client.mStartedOps.remove(op)) {
-                // We finish ops when packages get removed to guarantee no dangling
-                // started ops. However, some part of the system may asynchronously
-                // finish ops for an already gone package. Hence, finishing an op
-                // for a non existing package is fine and we don't log as a wtf.
-                final long identity = Binder.clearCallingIdentity();
-                try {
-                    if (LocalServices.getService(PackageManagerInternal.class).getPackageUid(
-                            resolvedPackageName, 0, UserHandle.getUserId(uid)) < 0) {
-                        Slog.i(TAG, "Finishing op=" + AppOpsManager.opToName(code)
-                                + " for non-existing package=" + resolvedPackageName
-                                + " in uid=" + uid);
-                        return;
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                Op op = getOpLocked(code, uid, resolvedPackageName, true);
+                if (op == null) {
+                    return;
+                }
+                if (!client.mStartedOps.remove(op)) {
+                    // We finish ops when packages get removed to guarantee no dangling
+                    // started ops. However, some part of the system may asynchronously
+                    // finish ops for an already gone package. Hence, finishing an op
+                    // for a non existing package is fine and we don't log as a wtf.
+                    final long identity = Binder.clearCallingIdentity();
+                    try {
+                        if (LocalServices.getService(PackageManagerInternal.class).getPackageUid(
+                                resolvedPackageName, 0, UserHandle.getUserId(uid)) < 0) {
+                            Slog.i(TAG, "Finishing op=" + AppOpsManager.opToName(code)
+                                    + " for non-existing package=" + resolvedPackageName
+                                    + " in uid=" + uid);
+                            return;
+                        }
+                    } finally {
+                        Binder.restoreCallingIdentity(identity);
                     }
-                } finally {
-                    Binder.restoreCallingIdentity(identity);
+                    Slog.wtf(TAG, "Operation not started: uid=" + op.uid + " pkg="
+                            + op.packageName + " op=" + AppOpsManager.opToName(op.op));
+                    return;
                 }
-                Slog.wtf(TAG, "Operation not started: uid=" + op.uid + " pkg="
-                        + op.packageName + " op=" + AppOpsManager.opToName(op.op));
-                return;
-            }
-            finishOperationLocked(op, /*finishNested*/ false);
-            if (op.startNesting <= 0) {
-                scheduleOpActiveChangedIfNeededLocked(code, uid, packageName, false);
+                finishOperationLocked(op, /*finishNested*/ false);
+                if (op.startNesting <= 0) {
+                    scheduleOpActiveChangedIfNeededLocked(code, uid, packageName, false);
+                }
+            } finally {
+                uidLock.unlock();
             }
         }
     }
@@ -2088,6 +2490,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     void finishOperationLocked(Op op, boolean finishNested) {
+        op.uidState.dirty = true;
         if (op.startNesting <= 1 || finishNested) {
             if (op.startNesting == 1 || finishNested) {
                 op.duration = (int)(SystemClock.elapsedRealtime() - op.startRealtime);
@@ -2152,6 +2555,15 @@ public class AppOpsService extends IAppOpsService.Stub {
         return uidState;
     }
 
+    /**
+     * Returns whether the pending state of the uid has settled, and the next access holding the
+     * service lock commits it.
+     */
+    private static boolean isPendingStateCommitDue(UidState uidState) {
+        return uidState.pendingStateCommitTime != 0
+                && uidState.pendingStateCommitTime < SystemClock.uptimeMillis();
+    }
+
     private void commitUidPendingStateLocked(UidState uidState) {
         final boolean lastForeground = uidState.state <= UID_STATE_LAST_NON_RESTRICTED;
         final boolean nowForeground = uidState.pendingState <= UID_STATE_LAST_NON_RESTRICTED;
@@ -2273,6 +2685,19 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Schedules a write that includes the given uid, which requires holding its uid lock too.
+     */
+    private void scheduleWriteLocked(UidState uidState) {
+        uidState.dirty = true;
+        scheduleWriteLocked();
+    }
+
+    private void scheduleFastWriteLocked(UidState uidState) {
+        uidState.dirty = true;
+        scheduleFastWriteLocked();
+    }
+
     private Op getOpLocked(int code, int uid, String packageName, boolean edit) {
         Ops ops = getOpsRawLocked(uid, packageName, edit,
                 false /* uidMismatchExpected */);
@@ -2292,7 +2717,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             ops.put(code, op);
         }
         if (edit) {
-            scheduleWriteLocked();
+            scheduleWriteLocked(ops.uidState);
         }
         return op;
     }
@@ -2326,78 +2751,114 @@ public class AppOpsService extends IAppOpsService.Stub {
         int oldVersion = NO_VERSION;
         synchronized (mFile) {
             synchronized (this) {
-                FileInputStream stream;
-                try {
-                    stream = mFile.openRead();
-                } catch (FileNotFoundException e) {
-                    Slog.i(TAG, "No existing app ops " + mFile.getBaseFile() + "; starting empty");
-                    return;
-                }
-                boolean success = false;
-                mUidStates.clear();
+                mUidStates.lockAll();
                 try {
-                    XmlPullParser parser = Xml.newPullParser();
-                    parser.setInput(stream, StandardCharsets.UTF_8.name());
-                    int type;
-                    while ((type = parser.next()) != XmlPullParser.START_TAG
-                            && type != XmlPullParser.END_DOCUMENT) {
-                        ;
-                    }
-
-                    if (type != XmlPullParser.START_TAG) {
-                        throw new IllegalStateException("no start tag found");
-                    }
-
-                    final String versionString = parser.getAttributeValue(null, "v");
-                    if (versionString != null) {
-                        oldVersion = Integer.parseInt(versionString);
-                    }
-
-                    int outerDepth = parser.getDepth();
-                    while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-                        if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
-
-                        String tagName = parser.getName();
-                        if (tagName.equals("pkg")) {
-                            readPackage(parser);
-                        } else if (tagName.equals("uid")) {
-                            readUidOps(parser);
-                        } else {
-                            Slog.w(TAG, "Unknown element under <app-ops>: "
-                                    + parser.getName());
-                            XmlUtils.skipCurrentTag(parser);
+                    mUidStates.clear();
+                    final SparseArray<byte[]> records = mJournal.read();
+                    if (records != null) {
+                        oldVersion = mJournal.getDataVersion();
+                        for (int i = 0; i < records.size(); i++) {
+                            readUidRecordLocked(records.keyAt(i), records.valueAt(i));
                         }
+                    } else {
+                        // Migrate the state from the xml file that the journal replaced; the
+                        // first write moves all of it to the journal and deletes the xml file.
+                        oldVersion = readLegacyStateLocked();
                     }
-                    success = true;
-                } catch (IllegalStateException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (NullPointerException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (NumberFormatException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (XmlPullParserException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (IOException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (IndexOutOfBoundsException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
+                    mUidStates.clearRemovedUids();
                 } finally {
-                    if (!success) {
-                        mUidStates.clear();
-                    }
-                    try {
-                        stream.close();
-                    } catch (IOException e) {
-                    }
+                    mUidStates.unlockAll();
                 }
             }
+            if (oldVersion < CURRENT_VERSION) {
+                // The upgrade may touch any uid.
+                mJournal.setFullWriteNeeded();
+            }
         }
         synchronized (this) {
-            upgradeLocked(oldVersion);
+            mUidStates.lockAll();
+            try {
+                upgradeLocked(oldVersion);
+            } finally {
+                mUidStates.unlockAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the state from the xml file of older releases.
+     *
+     * @return the version of the file.
+     */
+    private int readLegacyStateLocked() {
+        FileInputStream stream;
+        try {
+            stream = mFile.openRead();
+        } catch (FileNotFoundException e) {
+            Slog.i(TAG, "No existing app ops " + mFile.getBaseFile() + "; starting empty");
+            return CURRENT_VERSION;
+        }
+        int oldVersion = NO_VERSION;
+        boolean success = false;
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(stream, StandardCharsets.UTF_8.name());
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG
+                    && type != XmlPullParser.END_DOCUMENT) {
+                ;
+            }
+
+            if (type != XmlPullParser.START_TAG) {
+                throw new IllegalStateException("no start tag found");
+            }
+
+            final String versionString = parser.getAttributeValue(null, "v");
+            if (versionString != null) {
+                oldVersion = Integer.parseInt(versionString);
+            }
+
+            int outerDepth = parser.getDepth();
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                    && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+                if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                    continue;
+                }
+
+                String tagName = parser.getName();
+                if (tagName.equals("pkg")) {
+                    readPackage(parser);
+                } else if (tagName.equals("uid")) {
+                    readUidOps(parser);
+                } else {
+                    Slog.w(TAG, "Unknown element under <app-ops>: "
+                            + parser.getName());
+                    XmlUtils.skipCurrentTag(parser);
+                }
+            }
+            success = true;
+        } catch (IllegalStateException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (NullPointerException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (NumberFormatException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (XmlPullParserException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (IndexOutOfBoundsException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } finally {
+            if (!success) {
+                mUidStates.clear();
+            }
+            try {
+                stream.close();
+            } catch (IOException e) {
+            }
         }
+        return oldVersion;
     }
 
     private void upgradeRunAnyInBackgroundLocked() {
@@ -2440,7 +2901,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (oldVersion >= CURRENT_VERSION) {
             return;
         }
-        Slog.d(TAG, "Upgrading app-ops xml from version " + oldVersion + " to " + CURRENT_VERSION);
+        Slog.d(TAG, "Upgrading app-ops from version " + oldVersion + " to " + CURRENT_VERSION);
         switch (oldVersion) {
             case NO_VERSION:
                 upgradeRunAnyInBackgroundLocked();
@@ -2667,129 +3128,222 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void writeState() {
         synchronized (mFile) {
-            FileOutputStream stream;
+            final boolean full = mJournal.needsFullWrite();
+            final SparseArray<byte[]> records = new SparseArray<>();
+            synchronized (this) {
+                mUidStates.lockAll();
+                try {
+                    if (!full) {
+                        final SparseBooleanArray removedUids = mUidStates.getRemovedUids();
+                        for (int i = 0; i < removedUids.size(); i++) {
+                            records.put(removedUids.keyAt(i), null);
+                        }
+                    }
+                    final int uidStateCount = mUidStates.size();
+                    for (int i = 0; i < uidStateCount; i++) {
+                        final UidState uidState = mUidStates.valueAt(i);
+                        if (full || uidState.dirty) {
+                            records.put(uidState.uid, writeUidRecordLocked(uidState));
+                            uidState.dirty = false;
+                        }
+                    }
+                    mUidStates.clearRemovedUids();
+                } finally {
+                    mUidStates.unlockAll();
+                }
+            }
+
             try {
-                stream = mFile.startWrite();
+                if (full) {
+                    mJournal.writeFull(CURRENT_VERSION, records);
+                } else if (records.size() > 0) {
+                    mJournal.append(records);
+                }
             } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state: " + e);
+                Slog.w(TAG, "Failed to write state to " + mJournal.getFile(), e);
+                // The records that failed are no longer dirty; write them all next time.
+                mJournal.setFullWriteNeeded();
                 return;
             }
+            if (mFile.getBaseFile().exists()) {
+                // Migrated to the journal.
+                mFile.delete();
+            }
+        }
+    }
 
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
+    /**
+     * Encodes the persisted state of a uid for the journal, or returns null if it has none.
+     */
+    private byte[] writeUidRecordLocked(UidState uidState) {
+        final int opModeCount = uidState.opModes != null ? uidState.opModes.size() : 0;
+        final int pkgCount = uidState.pkgOps != null ? uidState.pkgOps.size() : 0;
+        if (opModeCount == 0 && pkgCount == 0) {
+            return null;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(opModeCount);
+            for (int i = 0; i < opModeCount; i++) {
+                out.writeShort(uidState.opModes.keyAt(i));
+                out.writeInt(uidState.opModes.valueAt(i));
+            }
+            out.writeInt(pkgCount);
+            for (int i = 0; i < pkgCount; i++) {
+                final Ops ops = uidState.pkgOps.valueAt(i);
+                out.writeUTF(ops.packageName);
+                out.writeBoolean(ops.isPrivileged);
+                out.writeInt(ops.size());
+                for (int j = 0; j < ops.size(); j++) {
+                    writeOpRecord(out, ops.valueAt(j));
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
 
-            try {
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(stream, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.startTag(null, "app-ops");
-                out.attribute(null, "v", String.valueOf(CURRENT_VERSION));
+    private static void writeOpRecord(DataOutputStream out, Op op) throws IOException {
+        int fields = 0;
+        if (op.duration != 0) {
+            fields |= OP_FIELD_DURATION;
+        }
+        if (op.proxyUid != -1) {
+            fields |= OP_FIELD_PROXY_UID;
+        }
+        if (op.proxyPackageName != null) {
+            fields |= OP_FIELD_PROXY_PACKAGE;
+        }
+        if (op.allowedCount != 0) {
+            fields |= OP_FIELD_ALLOWED_COUNT;
+        }
+        if (op.ignoredCount != 0) {
+            fields |= OP_FIELD_IGNORED_COUNT;
+        }
+        for (int k = 0; k < _NUM_UID_STATE; k++) {
+            if (op.time[k] != 0) {
+                fields |= OP_FIELD_TIME << k;
+            }
+            if (op.rejectTime[k] != 0) {
+                fields |= OP_FIELD_REJECT_TIME << k;
+            }
+        }
+        out.writeShort(op.op);
+        out.writeInt(op.mode);
+        out.writeInt(fields);
+        if ((fields & OP_FIELD_DURATION) != 0) {
+            out.writeInt(op.duration);
+        }
+        if ((fields & OP_FIELD_PROXY_UID) != 0) {
+            out.writeInt(op.proxyUid);
+        }
+        if ((fields & OP_FIELD_PROXY_PACKAGE) != 0) {
+            out.writeUTF(op.proxyPackageName);
+        }
+        if ((fields & OP_FIELD_ALLOWED_COUNT) != 0) {
+            out.writeInt(op.allowedCount);
+        }
+        if ((fields & OP_FIELD_IGNORED_COUNT) != 0) {
+            out.writeInt(op.ignoredCount);
+        }
+        for (int k = 0; k < _NUM_UID_STATE; k++) {
+            if ((fields & (OP_FIELD_TIME << k)) != 0) {
+                out.writeLong(op.time[k]);
+            }
+            if ((fields & (OP_FIELD_REJECT_TIME << k)) != 0) {
+                out.writeLong(op.rejectTime[k]);
+            }
+        }
+    }
 
-                final int uidStateCount = mUidStates.size();
-                for (int i = 0; i < uidStateCount; i++) {
-                    UidState uidState = mUidStates.valueAt(i);
-                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(uidState.uid));
-                        SparseIntArray uidOpModes = uidState.opModes;
-                        final int opCount = uidOpModes.size();
-                        for (int j = 0; j < opCount; j++) {
-                            final int op = uidOpModes.keyAt(j);
-                            final int mode = uidOpModes.valueAt(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
-                    }
+    /**
+     * Decodes the state of a uid from its journal record, see {@link #writeUidRecordLocked}.
+     */
+    private void readUidRecordLocked(int uid, byte[] record) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            final int opModeCount = in.readInt();
+            for (int i = 0; i < opModeCount; i++) {
+                final int code = mJournal.mapOp(in.readShort());
+                final int mode = in.readInt();
+                if (code == AppOpsManager.OP_NONE) {
+                    continue;
                 }
-
-                if (allOps != null) {
-                    String lastPkg = null;
-                    for (int i=0; i<allOps.size(); i++) {
-                        AppOpsManager.PackageOps pkg = allOps.get(i);
-                        if (!pkg.getPackageName().equals(lastPkg)) {
-                            if (lastPkg != null) {
-                                out.endTag(null, "pkg");
-                            }
-                            lastPkg = pkg.getPackageName();
-                            out.startTag(null, "pkg");
-                            out.attribute(null, "n", lastPkg);
-                        }
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(pkg.getUid()));
-                        synchronized (this) {
-                            Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(),
-                                    false /* edit */, false /* uidMismatchExpected */);
-                            // Should always be present as the list of PackageOps is generated
-                            // from Ops.
-                            if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
-                            } else {
-                                out.attribute(null, "p", Boolean.toString(false));
-                            }
-                        }
-                        List<AppOpsManager.OpEntry> ops = pkg.getOps();
-                        for (int j=0; j<ops.size(); j++) {
-                            AppOpsManager.OpEntry op = ops.get(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op.getOp()));
-                            out.attribute(null, "ns", AppOpsManager.opToName(op.getOp()));
-                            int defaultMode = AppOpsManager.opToDefaultMode(op.getOp());
-                            if (op.getMode() != defaultMode) {
-                                out.attribute(null, "m", Integer.toString(op.getMode()));
-                            } else {
-                                out.attribute(null, "dm", Integer.toString(defaultMode));
-                            }
-                            for (int k = 0; k < _NUM_UID_STATE; k++) {
-                                final long time = op.getLastTimeFor(k);
-                                if (time != 0) {
-                                    out.attribute(null, UID_STATE_TIME_ATTRS[k],
-                                            Long.toString(time));
-                                }
-                                final long rejectTime = op.getLastRejectTimeFor(k);
-                                if (rejectTime != 0) {
-                                    out.attribute(null, UID_STATE_REJECT_ATTRS[k],
-                                            Long.toString(rejectTime));
-                                }
-                            }
-                            int dur = op.getDuration();
-                            if (dur != 0) {
-                                out.attribute(null, "d", Integer.toString(dur));
-                            }
-                            int proxyUid = op.getProxyUid();
-                            if (proxyUid != -1) {
-                                out.attribute(null, "pu", Integer.toString(proxyUid));
-                            }
-                            String proxyPackageName = op.getProxyPackageName();
-                            if (proxyPackageName != null) {
-                                out.attribute(null, "pp", proxyPackageName);
-                            }
-                            int allowed = op.getAllowedCount();
-                            if (allowed != 0) {
-                                out.attribute(null, "ac", Integer.toString(allowed));
-                            }
-                            int ignored = op.getIgnoredCount();
-                            if (ignored != 0) {
-                                out.attribute(null, "ic", Integer.toString(ignored));
-                            }
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
-                    }
-                    if (lastPkg != null) {
-                        out.endTag(null, "pkg");
-                    }
+                final UidState uidState = getUidStateLocked(uid, true);
+                if (uidState.opModes == null) {
+                    uidState.opModes = new SparseIntArray();
                 }
-
-                out.endTag(null, "app-ops");
-                out.endDocument();
-                mFile.finishWrite(stream);
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state, restoring backup.", e);
-                mFile.failWrite(stream);
+                uidState.opModes.put(code, mode);
             }
+            final int pkgCount = in.readInt();
+            for (int i = 0; i < pkgCount; i++) {
+                final String pkgName = in.readUTF();
+                final boolean isPrivileged = in.readBoolean();
+                final int opCount = in.readInt();
+                for (int j = 0; j < opCount; j++) {
+                    readOpRecord(in, uid, pkgName, isPrivileged);
+                }
+            }
+        } catch (IOException e) {
+            // The record passed its checksum, so it was written by a build with another format.
+            Slog.w(TAG, "Failed parsing app ops of uid " + uid + ": " + e);
+            mUidStates.remove(uid);
+            return;
+        }
+        final UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null) {
+            uidState.evalForegroundOps(mOpModeWatchers);
+        }
+    }
+
+    private void readOpRecord(DataInputStream in, int uid, String pkgName, boolean isPrivileged)
+            throws IOException {
+        final int code = mJournal.mapOp(in.readShort());
+        final int mode = in.readInt();
+        final int fields = in.readInt();
+        final int duration = (fields & OP_FIELD_DURATION) != 0 ? in.readInt() : 0;
+        final int proxyUid = (fields & OP_FIELD_PROXY_UID) != 0 ? in.readInt() : -1;
+        final String proxyPackageName =
+                (fields & OP_FIELD_PROXY_PACKAGE) != 0 ? in.readUTF() : null;
+        final int allowedCount = (fields & OP_FIELD_ALLOWED_COUNT) != 0 ? in.readInt() : 0;
+        final int ignoredCount = (fields & OP_FIELD_IGNORED_COUNT) != 0 ? in.readInt() : 0;
+        final long[] time = new long[_NUM_UID_STATE];
+        final long[] rejectTime = new long[_NUM_UID_STATE];
+        for (int k = 0; k < _NUM_UID_STATE; k++) {
+            if ((fields & (OP_FIELD_TIME << k)) != 0) {
+                time[k] = in.readLong();
+            }
+            if ((fields & (OP_FIELD_REJECT_TIME << k)) != 0) {
+                rejectTime[k] = in.readLong();
+            }
+        }
+        if (code == AppOpsManager.OP_NONE) {
+            // The op no longer exists.
+            return;
+        }
+
+        final UidState uidState = getUidStateLocked(uid, true);
+        if (uidState.pkgOps == null) {
+            uidState.pkgOps = new ArrayMap<>();
         }
+        Ops ops = uidState.pkgOps.get(pkgName);
+        if (ops == null) {
+            ops = new Ops(pkgName, uidState, isPrivileged);
+            uidState.pkgOps.put(pkgName, ops);
+        }
+        final Op op = new Op(uidState, pkgName, code, mode);
+        op.duration = duration;
+        op.proxyUid = proxyUid;
+        op.proxyPackageName = proxyPackageName;
+        op.allowedCount = allowedCount;
+        op.ignoredCount = ignoredCount;
+        op.time = time;
+        op.rejectTime = rejectTime;
+        ops.put(op.op, op);
     }
 
     static class Shell extends ShellCommand {
@@ -3529,157 +4083,163 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (needSep) {
                 pw.println();
             }
-            for (int i=0; i<mUidStates.size(); i++) {
-                UidState uidState = mUidStates.valueAt(i);
-                final SparseIntArray opModes = uidState.opModes;
-                final ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
-
-                if (dumpOp >= 0 || dumpPackage != null || dumpMode >= 0) {
-                    boolean hasOp = dumpOp < 0 || (uidState.opModes != null
-                            && uidState.opModes.indexOfKey(dumpOp) >= 0);
-                    boolean hasPackage = dumpPackage == null;
-                    boolean hasMode = dumpMode < 0;
-                    if (!hasMode && opModes != null) {
-                        for (int opi = 0; !hasMode && opi < opModes.size(); opi++) {
-                            if (opModes.valueAt(opi) == dumpMode) {
-                                hasMode = true;
+            mUidStates.lockAll();
+            try {
+                for (int i=0; i<mUidStates.size(); i++) {
+                    UidState uidState = mUidStates.valueAt(i);
+                    final SparseIntArray opModes = uidState.opModes;
+                    final ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
+
+                    if (dumpOp >= 0 || dumpPackage != null || dumpMode >= 0) {
+                        boolean hasOp = dumpOp < 0 || (uidState.opModes != null
+                                && uidState.opModes.indexOfKey(dumpOp) >= 0);
+                        boolean hasPackage = dumpPackage == null;
+                        boolean hasMode = dumpMode < 0;
+                        if (!hasMode && opModes != null) {
+                            for (int opi = 0; !hasMode && opi < opModes.size(); opi++) {
+                                if (opModes.valueAt(opi) == dumpMode) {
+                                    hasMode = true;
+                                }
                             }
                         }
-                    }
-                    if (pkgOps != null) {
-                        for (int pkgi = 0;
-                                (!hasOp || !hasPackage || !hasMode) && pkgi < pkgOps.size();
-                                pkgi++) {
-                            Ops ops = pkgOps.valueAt(pkgi);
-                            if (!hasOp && ops != null && ops.indexOfKey(dumpOp) >= 0) {
-                                hasOp = true;
-                            }
-                            if (!hasMode) {
-                                for (int opi = 0; !hasMode && opi < ops.size(); opi++) {
-                                    if (ops.valueAt(opi).mode == dumpMode) {
-                                        hasMode = true;
+                        if (pkgOps != null) {
+                            for (int pkgi = 0;
+                                    (!hasOp || !hasPackage || !hasMode) && pkgi < pkgOps.size();
+                                    pkgi++) {
+                                Ops ops = pkgOps.valueAt(pkgi);
+                                if (!hasOp && ops != null && ops.indexOfKey(dumpOp) >= 0) {
+                                    hasOp = true;
+                                }
+                                if (!hasMode) {
+                                    for (int opi = 0; !hasMode && opi < ops.size(); opi++) {
+                                        if (ops.valueAt(opi).mode == dumpMode) {
+                                            hasMode = true;
+                                        }
                                     }
                                 }
+                                if (!hasPackage && dumpPackage.equals(ops.packageName)) {
+                                    hasPackage = true;
+                                }
                             }
-                            if (!hasPackage && dumpPackage.equals(ops.packageName)) {
-                                hasPackage = true;
+                        }
+                        if (uidState.foregroundOps != null && !hasOp) {
+                            if (uidState.foregroundOps.indexOfKey(dumpOp) > 0) {
+                                hasOp = true;
                             }
                         }
-                    }
-                    if (uidState.foregroundOps != null && !hasOp) {
-                        if (uidState.foregroundOps.indexOfKey(dumpOp) > 0) {
-                            hasOp = true;
+                        if (!hasOp || !hasPackage || !hasMode) {
+                            continue;
                         }
                     }
-                    if (!hasOp || !hasPackage || !hasMode) {
-                        continue;
-                    }
-                }
 
-                pw.print("  Uid "); UserHandle.formatUid(pw, uidState.uid); pw.println(":");
-                pw.print("    state=");
-                pw.println(UID_STATE_NAMES[uidState.state]);
-                if (uidState.state != uidState.pendingState) {
-                    pw.print("    pendingState=");
-                    pw.println(UID_STATE_NAMES[uidState.pendingState]);
-                }
-                if (uidState.pendingStateCommitTime != 0) {
-                    pw.print("    pendingStateCommitTime=");
-                    TimeUtils.formatDuration(uidState.pendingStateCommitTime, nowUptime, pw);
-                    pw.println();
-                }
-                if (uidState.startNesting != 0) {
-                    pw.print("    startNesting=");
-                    pw.println(uidState.startNesting);
-                }
-                if (uidState.foregroundOps != null && (dumpMode < 0
-                        || dumpMode == AppOpsManager.MODE_FOREGROUND)) {
-                    pw.println("    foregroundOps:");
-                    for (int j = 0; j < uidState.foregroundOps.size(); j++) {
-                        if (dumpOp >= 0 && dumpOp != uidState.foregroundOps.keyAt(j)) {
-                            continue;
+                    pw.print("  Uid "); UserHandle.formatUid(pw, uidState.uid); pw.println(":");
+                    pw.print("    state=");
+                    pw.println(UID_STATE_NAMES[uidState.state]);
+                    if (uidState.state != uidState.pendingState) {
+                        pw.print("    pendingState=");
+                        pw.println(UID_STATE_NAMES[uidState.pendingState]);
+                    }
+                    if (uidState.pendingStateCommitTime != 0) {
+                        pw.print("    pendingStateCommitTime=");
+                        TimeUtils.formatDuration(uidState.pendingStateCommitTime, nowUptime, pw);
+                        pw.println();
+                    }
+                    if (uidState.startNesting != 0) {
+                        pw.print("    startNesting=");
+                        pw.println(uidState.startNesting);
+                    }
+                    if (uidState.foregroundOps != null && (dumpMode < 0
+                            || dumpMode == AppOpsManager.MODE_FOREGROUND)) {
+                        pw.println("    foregroundOps:");
+                        for (int j = 0; j < uidState.foregroundOps.size(); j++) {
+                            if (dumpOp >= 0 && dumpOp != uidState.foregroundOps.keyAt(j)) {
+                                continue;
+                            }
+                            pw.print("      ");
+                            pw.print(AppOpsManager.opToName(uidState.foregroundOps.keyAt(j)));
+                            pw.print(": ");
+                            pw.println(uidState.foregroundOps.valueAt(j) ? "WATCHER" : "SILENT");
                         }
-                        pw.print("      ");
-                        pw.print(AppOpsManager.opToName(uidState.foregroundOps.keyAt(j)));
-                        pw.print(": ");
-                        pw.println(uidState.foregroundOps.valueAt(j) ? "WATCHER" : "SILENT");
+                        pw.print("    hasForegroundWatchers=");
+                        pw.println(uidState.hasForegroundWatchers);
                     }
-                    pw.print("    hasForegroundWatchers=");
-                    pw.println(uidState.hasForegroundWatchers);
-                }
-                needSep = true;
+                    needSep = true;
 
-                if (opModes != null) {
-                    final int opModeCount = opModes.size();
-                    for (int j = 0; j < opModeCount; j++) {
-                        final int code = opModes.keyAt(j);
-                        final int mode = opModes.valueAt(j);
-                        if (dumpOp >= 0 && dumpOp != code) {
-                            continue;
-                        }
-                        if (dumpMode >= 0 && dumpMode != mode) {
-                            continue;
+                    if (opModes != null) {
+                        final int opModeCount = opModes.size();
+                        for (int j = 0; j < opModeCount; j++) {
+                            final int code = opModes.keyAt(j);
+                            final int mode = opModes.valueAt(j);
+                            if (dumpOp >= 0 && dumpOp != code) {
+                                continue;
+                            }
+                            if (dumpMode >= 0 && dumpMode != mode) {
+                                continue;
+                            }
+                            pw.print("      "); pw.print(AppOpsManager.opToName(code));
+                            pw.print(": mode="); pw.println(AppOpsManager.modeToName(mode));
                         }
-                        pw.print("      "); pw.print(AppOpsManager.opToName(code));
-                        pw.print(": mode="); pw.println(AppOpsManager.modeToName(mode));
                     }
-                }
-
-                if (pkgOps == null) {
-                    continue;
-                }
 
-                for (int pkgi = 0; pkgi < pkgOps.size(); pkgi++) {
-                    final Ops ops = pkgOps.valueAt(pkgi);
-                    if (dumpPackage != null && !dumpPackage.equals(ops.packageName)) {
+                    if (pkgOps == null) {
                         continue;
                     }
-                    boolean printedPackage = false;
-                    for (int j=0; j<ops.size(); j++) {
-                        final Op op = ops.valueAt(j);
-                        if (dumpOp >= 0 && dumpOp != op.op) {
-                            continue;
-                        }
-                        if (dumpMode >= 0 && dumpMode != op.mode) {
+
+                    for (int pkgi = 0; pkgi < pkgOps.size(); pkgi++) {
+                        final Ops ops = pkgOps.valueAt(pkgi);
+                        if (dumpPackage != null && !dumpPackage.equals(ops.packageName)) {
                             continue;
                         }
-                        if (!printedPackage) {
-                            pw.print("    Package "); pw.print(ops.packageName); pw.println(":");
-                            printedPackage = true;
-                        }
-                        pw.print("      "); pw.print(AppOpsManager.opToName(op.op));
-                        pw.print(" ("); pw.print(AppOpsManager.modeToName(op.mode));
-                        final int switchOp = AppOpsManager.opToSwitch(op.op);
-                        if (switchOp != op.op) {
-                            pw.print(" / switch ");
-                            pw.print(AppOpsManager.opToName(switchOp));
-                            final Op switchObj = ops.get(switchOp);
-                            int mode = switchObj != null
-                                    ? switchObj.mode : AppOpsManager.opToDefaultMode(switchOp);
-                            pw.print("="); pw.print(AppOpsManager.modeToName(mode));
-                        }
-                        pw.println("): ");
-                        dumpTimesLocked(pw,
-                                "          Access: ",
-                                "                  ", op.time, now, sdf, date);
-                        dumpTimesLocked(pw,
-                                "          Reject: ",
-                                "                  ", op.rejectTime, now, sdf, date);
-                        if (op.duration == -1) {
-                            pw.print("          Running start at: ");
-                            TimeUtils.formatDuration(nowElapsed-op.startRealtime, pw);
-                            pw.println();
-                        } else if (op.duration != 0) {
-                            pw.print("          duration=");
-                            TimeUtils.formatDuration(op.duration, pw);
-                            pw.println();
-                        }
-                        if (op.startNesting != 0) {
-                            pw.print("          startNesting=");
-                            pw.println(op.startNesting);
+                        boolean printedPackage = false;
+                        for (int j=0; j<ops.size(); j++) {
+                            final Op op = ops.valueAt(j);
+                            if (dumpOp >= 0 && dumpOp != op.op) {
+                                continue;
+                            }
+                            if (dumpMode >= 0 && dumpMode != op.mode) {
+                                continue;
+                            }
+                            if (!printedPackage) {
+                                pw.print("    Package "); pw.print(ops.packageName);
+                                pw.println(":");
+                                printedPackage = true;
+                            }
+                            pw.print("      "); pw.print(AppOpsManager.opToName(op.op));
+                            pw.print(" ("); pw.print(AppOpsManager.modeToName(op.mode));
+                            final int switchOp = AppOpsManager.opToSwitch(op.op);
+                            if (switchOp != op.op) {
+                                pw.print(" / switch ");
+                                pw.print(AppOpsManager.opToName(switchOp));
+                                final Op switchObj = ops.get(switchOp);
+                                int mode = switchObj != null
+                                        ? switchObj.mode : AppOpsManager.opToDefaultMode(switchOp);
+                                pw.print("="); pw.print(AppOpsManager.modeToName(mode));
+                            }
+                            pw.println("): ");
+                            dumpTimesLocked(pw,
+                                    "          Access: ",
+                                    "                  ", op.time, now, sdf, date);
+                            dumpTimesLocked(pw,
+                                    "          Reject: ",
+                                    "                  ", op.rejectTime, now, sdf, date);
+                            if (op.duration == -1) {
+                                pw.print("          Running start at: ");
+                                TimeUtils.formatDuration(nowElapsed-op.startRealtime, pw);
+                                pw.println();
+                            } else if (op.duration != 0) {
+                                pw.print("          duration=");
+                                TimeUtils.formatDuration(op.duration, pw);
+                                pw.println();
+                            }
+                            if (op.startNesting != 0) {
+                                pw.print("          startNesting=");
+                                pw.println(op.startNesting);
+                            }
                         }
                     }
                 }
+            } finally {
+                mUidStates.unlockAll();
             }
             if (needSep) {
                 pw.println();
@@ -3797,7 +4357,26 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mOpUserRestrictions.remove(token);
                 restrictionState.destroy();
             }
+            updateRestrictedOpsLocked();
+        }
+    }
+
+    private void updateRestrictedOpsLocked() {
+        final boolean[] restrictedOps = new boolean[AppOpsManager._NUM_OP];
+        for (int i = mOpUserRestrictions.size() - 1; i >= 0; i--) {
+            final SparseArray<boolean[]> perUserRestrictions =
+                    mOpUserRestrictions.valueAt(i).perUserRestrictions;
+            if (perUserRestrictions == null) {
+                continue;
+            }
+            for (int j = perUserRestrictions.size() - 1; j >= 0; j--) {
+                final boolean[] restrictions = perUserRestrictions.valueAt(j);
+                for (int code = 0; code < restrictedOps.length; code++) {
+                    restrictedOps[code] |= restrictions[code];
+                }
+            }
         }
+        mRestrictedOps = restrictedOps;
     }
 
     private void notifyWatchersOfChange(int code, int uid) {
@@ -3817,12 +4396,18 @@ public class AppOpsService extends IAppOpsService.Stub {
     public void removeUser(int userHandle) throws RemoteException {
         checkSystemUid("removeUser");
         synchronized (AppOpsService.this) {
-            final int tokenCount = mOpUserRestrictions.size();
-            for (int i = tokenCount - 1; i >= 0; i--) {
-                ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
-                opRestrictions.removeUser(userHandle);
+            mUidStates.lockAll();
+            try {
+                final int tokenCount = mOpUserRestrictions.size();
+                for (int i = tokenCount - 1; i >= 0; i--) {
+                    ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
+                    opRestrictions.removeUser(userHandle);
+                }
+                updateRestrictedOpsLocked();
+                removeUidsForUserLocked(userHandle);
+            } finally {
+                mUidStates.unlockAll();
             }
-            removeUidsForUserLocked(userHandle);
         }
     }
 
@@ -3959,44 +4544,50 @@ public class AppOpsService extends IAppOpsService.Stub {
         int switchCode = AppOpsManager.opToSwitch(code);
         boolean needsPolicyUpdate = false;
         synchronized (this) {
-            recordOperationLocked(code, uid, packageName, mode);
-            Op op = getOpLocked(switchCode, uid, packageName, true);
-            if (op != null) {
-                // Send result to all waiting client
-                op.dialogReqQueue.dismissAndNotify(mode);
-                if (remember && op.mode != mode) {
-                    op.mode = mode;
-                    ArraySet<ModeCallback> cbs = mOpModeWatchers.get(switchCode);
-                    if (cbs != null) {
-                        if (repCbs == null) {
-                            repCbs = new ArraySet<ModeCallback>();
+            final ReentrantLock uidLock = mUidStates.getLock(uid);
+            uidLock.lock();
+            try {
+                recordOperationLocked(code, uid, packageName, mode);
+                Op op = getOpLocked(switchCode, uid, packageName, true);
+                if (op != null) {
+                    // Send result to all waiting client
+                    op.dialogReqQueue.dismissAndNotify(mode);
+                    if (remember && op.mode != mode) {
+                        op.mode = mode;
+                        ArraySet<ModeCallback> cbs = mOpModeWatchers.get(switchCode);
+                        if (cbs != null) {
+                            if (repCbs == null) {
+                                repCbs = new ArraySet<ModeCallback>();
+                            }
+                            repCbs.addAll(cbs);
                         }
-                        repCbs.addAll(cbs);
-                    }
-                    cbs = mPackageModeWatchers.get(packageName);
-                    if (cbs != null) {
-                        if (repCbs == null) {
-                            repCbs = new ArraySet<ModeCallback>();
+                        cbs = mPackageModeWatchers.get(packageName);
+                        if (cbs != null) {
+                            if (repCbs == null) {
+                                repCbs = new ArraySet<ModeCallback>();
+                            }
+                            repCbs.addAll(cbs);
                         }
-                        repCbs.addAll(cbs);
-                    }
-                    if (mode == AppOpsManager.opToDefaultMode(op.op)) {
-                        // If going into the default mode, prune this op
-                        // if there is nothing else interesting in it.
-                        pruneOp(op, uid, packageName);
+                        if (mode == AppOpsManager.opToDefaultMode(op.op)) {
+                            // If going into the default mode, prune this op
+                            // if there is nothing else interesting in it.
+                            pruneOp(op, uid, packageName);
+                        }
+                        scheduleWriteLocked(op.uidState);
                     }
-                    scheduleWriteLocked();
                 }
-            }
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.pendingAskOp == code) {
-                if (mode == AppOpsManager.MODE_ALLOWED) {
-                    uidState.receivedPendingAskResponse = true;
-                    needsPolicyUpdate = true;
-                } else {
-                    uidState.pendingAskOp = 0;
-                    uidState.receivedPendingAskResponse = false;
+                UidState uidState = getUidStateLocked(uid, false);
+                if (uidState != null && uidState.pendingAskOp == code) {
+                    if (mode == AppOpsManager.MODE_ALLOWED) {
+                        uidState.receivedPendingAskResponse = true;
+                        needsPolicyUpdate = true;
+                    } else {
+                        uidState.pendingAskOp = 0;
+                        uidState.receivedPendingAskResponse = false;
+                    }
                 }
+            } finally {
+                uidLock.unlock();
             }
         }
         if (repCbs != null) {
@@ -4179,6 +4770,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                updateRestrictedOpsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
@@ -4248,23 +4840,29 @@ public class AppOpsService extends IAppOpsService.Stub {
         mContext.enforcePermission(android.Manifest.permission.UPDATE_APP_OPS_STATS,
                 Binder.getCallingPid(), Binder.getCallingUid(), null);
         synchronized (this) {
-            for (int i = 0; i < mUidStates.size(); i++) {
-                final UidState uidState = mUidStates.valueAt(i);
-                if (uidState.pkgOps == null) {
-                    continue;
-                }
-                for (Map.Entry<String, Ops> ent : uidState.pkgOps.entrySet()) {
-                    String packageName = ent.getKey();
-                    Ops pkgOps = ent.getValue();
-                    for (int j = 0; j < pkgOps.size(); j++) {
-                        Op curOp = pkgOps.valueAt(j);
-                        curOp.allowedCount = 0;
-                        curOp.ignoredCount = 0;
+            mUidStates.lockAll();
+            try {
+                for (int i = 0; i < mUidStates.size(); i++) {
+                    final UidState uidState = mUidStates.valueAt(i);
+                    if (uidState.pkgOps == null) {
+                        continue;
+                    }
+                    uidState.dirty = true;
+                    for (Map.Entry<String, Ops> ent : uidState.pkgOps.entrySet()) {
+                        String packageName = ent.getKey();
+                        Ops pkgOps = ent.getValue();
+                        for (int j = 0; j < pkgOps.size(); j++) {
+                            Op curOp = pkgOps.valueAt(j);
+                            curOp.allowedCount = 0;
+                            curOp.ignoredCount = 0;
+                        }
                     }
                 }
+                // ensure the counter reset persists
+                scheduleWriteLocked();
+            } finally {
+                mUidStates.unlockAll();
             }
-            // ensure the counter reset persists
-            scheduleWriteLocked();
         }
     }
 }
@@ -32,6 +32,8 @@ public class BinderCallsStatsService extends Binder {
 
     private static final String PERSIST_SYS_BINDER_CALLS_DETAILED_TRACKING
             = "persist.sys.binder_calls_detailed_tracking";
+    private static final String PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL
+            = "persist.sys.binder_calls_sampling_interval";
 
     public static void start() {
         BinderCallsStatsService service = new BinderCallsStatsService();
@@ -45,6 +47,14 @@ public class BinderCallsStatsService extends Binder {
                     + " or via dumpsys binder_calls_stats --enable-detailed-tracking");
             BinderCallsStats.getInstance().setDetailedTracking(true);
         }
+        final int samplingInterval = SystemProperties.getInt(
+                PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL, 1);
+        if (samplingInterval > 1) {
+            Slog.i(TAG, "Sampling 1 in " + samplingInterval + " binder calls. Controlled by "
+                    + PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL
+                    + " or via dumpsys binder_calls_stats --sampling-interval");
+            BinderCallsStats.getInstance().setSamplingInterval(samplingInterval);
+        }
     }
 
     public static void reset() {
@@ -55,7 +65,8 @@ public class BinderCallsStatsService extends Binder {
     @Override
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (args != null) {
-            for (final String arg : args) {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
                 if ("-a".equals(arg)) {
                     // We currently dump all information by default
                     continue;
@@ -73,11 +84,29 @@ public class BinderCallsStatsService extends Binder {
                     BinderCallsStats.getInstance().setDetailedTracking(false);
                     pw.println("Detailed tracking disabled");
                     return;
+                } else if ("--sampling-interval".equals(arg)) {
+                    int samplingInterval = 0;
+                    if (i + 1 < args.length) {
+                        try {
+                            samplingInterval = Integer.parseInt(args[i + 1]);
+                        } catch (NumberFormatException e) {
+                        }
+                    }
+                    if (samplingInterval <= 0) {
+                        pw.println("--sampling-interval requires a positive number of calls");
+                        return;
+                    }
+                    SystemProperties.set(PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL,
+                            Integer.toString(samplingInterval));
+                    BinderCallsStats.getInstance().setSamplingInterval(samplingInterval);
+                    pw.println("Sampling 1 in " + samplingInterval + " calls");
+                    return;
                 } else if ("-h".equals(arg)) {
                     pw.println("binder_calls_stats commands:");
                     pw.println("  --reset: Reset stats");
                     pw.println("  --enable-detailed-tracking: Enables detailed tracking");
                     pw.println("  --disable-detailed-tracking: Disables detailed tracking");
+                    pw.println("  --sampling-interval <N>: Only records 1 in N calls of a thread");
                     return;
                 } else {
                     pw.println("Unknown option: " + arg);
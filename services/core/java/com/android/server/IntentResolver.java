@@ -23,13 +23,17 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 
 import android.net.Uri;
 import android.util.FastImmutableArraySet;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
@@ -51,6 +55,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /** Maximum number of intents whose matching filters are remembered. */
+    final private static int MATCH_CACHE_SIZE = 64;
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -59,8 +66,12 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        mFilterOrder.put(f, mNextFilterOrder++);
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        if (numS != 0) {
+            register_data_authorities(f);
+        }
         int numT = register_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             register_intent_filter(f, f.actionsIterator(),
@@ -70,6 +81,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             register_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        mMatchCache.evictAll();
     }
 
     public static boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -204,6 +216,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        if (numS != 0) {
+            unregister_data_authorities(f);
+        }
         int numT = unregister_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             unregister_intent_filter(f, f.actionsIterator(),
@@ -213,6 +228,8 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             unregister_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        mFilterOrder.remove(f);
+        mMatchCache.evictAll();
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -409,6 +426,17 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        // Which filters match only depends on the intent, so unless we are asked to
+        // log the resolution, reuse the matches of an earlier query for an equal intent.
+        final MatchKey key = debug ? null : new MatchKey(intent, resolvedType);
+        MatchResult matched = key != null ? mMatchCache.get(key) : null;
+        if (matched != null) {
+            buildResolveList(intent, defaultOnly, matched, finalList, userId);
+            filterResults(finalList);
+            sortResults(finalList);
+            return finalList;
+        }
+
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -453,10 +481,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         // If the intent includes a data URI, then we want to collect all of
-        // the filters that match its scheme (we will further refine matches
-        // on the authority and path by directly matching each resulting filter).
+        // the filters that match its scheme and could match its host (we will
+        // further refine matches on the authority and path by directly matching
+        // each resulting filter).
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
+            schemeCut = getSchemeCut(scheme, intent.getData());
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
@@ -469,21 +498,38 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
-        }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+        if (debug) {
+            if (firstTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, firstTypeCut, finalList, userId);
+            }
+            if (secondTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, secondTypeCut, finalList, userId);
+            }
+            if (thirdTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, thirdTypeCut, finalList, userId);
+            }
+            if (schemeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, schemeCut, finalList, userId);
+            }
+        } else {
+            final ArrayList<F> filters = new ArrayList<>();
+            final IntArray matches = new IntArray();
+            collectMatches(intent, categories, resolvedType, scheme, firstTypeCut,
+                    filters, matches);
+            collectMatches(intent, categories, resolvedType, scheme, secondTypeCut,
+                    filters, matches);
+            collectMatches(intent, categories, resolvedType, scheme, thirdTypeCut,
+                    filters, matches);
+            collectMatches(intent, categories, resolvedType, scheme, schemeCut,
+                    filters, matches);
+            matched = new MatchResult(filters.toArray(newArray(filters.size())),
+                    matches.toArray());
+            mMatchCache.put(key, matched);
+            buildResolveList(intent, defaultOnly, matched, finalList, userId);
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -684,6 +730,135 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return num;
     }
 
+    /**
+     * Registers a filter with data schemes either under each scheme and host it can
+     * match, or, if it may match data URIs of its schemes regardless of their host,
+     * under each of its schemes in {@link #mUnindexedSchemeToFilter}.
+     */
+    private final void register_data_authorities(F filter) {
+        final ArraySet<String> keys = getAuthorityKeys(filter);
+        if (keys == null) {
+            register_intent_filter(filter, filter.schemesIterator(),
+                    mUnindexedSchemeToFilter, "      Unindexed scheme: ");
+            return;
+        }
+        register_intent_filter(filter, keys.iterator(),
+                mAuthorityToFilter, "      Authority: ");
+    }
+
+    private final void unregister_data_authorities(F filter) {
+        final ArraySet<String> keys = getAuthorityKeys(filter);
+        if (keys == null) {
+            unregister_intent_filter(filter, filter.schemesIterator(),
+                    mUnindexedSchemeToFilter, "      Unindexed scheme: ");
+            return;
+        }
+        unregister_intent_filter(filter, keys.iterator(),
+                mAuthorityToFilter, "      Authority: ");
+    }
+
+    /**
+     * Returns the keys under which the filter is registered in {@link #mAuthorityToFilter},
+     * or null if it can match a data URI of one of its schemes without matching one of
+     * its hosts exactly: when it has no authorities, matches scheme specific parts, or
+     * uses wildcard hosts.
+     */
+    private static ArraySet<String> getAuthorityKeys(IntentFilter filter) {
+        final int numAuthorities = filter.countDataAuthorities();
+        if (numAuthorities == 0 || filter.countDataSchemeSpecificParts() != 0) {
+            return null;
+        }
+        final ArraySet<String> hosts = new ArraySet<>(numAuthorities);
+        for (int i = 0; i < numAuthorities; i++) {
+            final String host = filter.getDataAuthority(i).getHost();
+            if (host.startsWith("*") || !isIndexableHost(host)) {
+                return null;
+            }
+            hosts.add(host.toLowerCase(Locale.ROOT));
+        }
+        final int numSchemes = filter.countDataSchemes();
+        final ArraySet<String> keys = new ArraySet<>(numSchemes * hosts.size());
+        for (int i = 0; i < numSchemes; i++) {
+            for (int j = 0; j < hosts.size(); j++) {
+                keys.add(authorityKey(filter.getDataScheme(i), hosts.valueAt(j)));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Hosts are matched ignoring case, which only agrees with lower-casing the host
+     * for plain ASCII.
+     */
+    private static boolean isIndexableHost(String host) {
+        for (int i = host.length() - 1; i >= 0; i--) {
+            if (host.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String authorityKey(String scheme, String lowerCaseHost) {
+        return scheme + "://" + lowerCaseHost;
+    }
+
+    /**
+     * Returns the filters for the given scheme that can match the host of the data URI,
+     * in the order they appear in {@link #mSchemeToFilter}.
+     */
+    private F[] getSchemeCut(String scheme, Uri data) {
+        final F[] schemeCut = mSchemeToFilter.get(scheme);
+        if (schemeCut == null || data == null) {
+            return schemeCut;
+        }
+        final String host = data.getHost();
+        if (host == null) {
+            // Filters with authorities can only match through a scheme specific part
+            return mUnindexedSchemeToFilter.get(scheme);
+        }
+        if (!isIndexableHost(host)) {
+            return schemeCut;
+        }
+        return mergeCuts(mUnindexedSchemeToFilter.get(scheme),
+                mAuthorityToFilter.get(authorityKey(scheme, host.toLowerCase(Locale.ROOT))));
+    }
+
+    /**
+     * Merges two disjoint, null terminated filter arrays, keeping the filters in the
+     * order they were added.
+     */
+    private F[] mergeCuts(F[] first, F[] second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        int N1 = 0;
+        while (N1 < first.length && first[N1] != null) {
+            N1++;
+        }
+        int N2 = 0;
+        while (N2 < second.length && second[N2] != null) {
+            N2++;
+        }
+        final F[] merged = newArray(N1 + N2);
+        int i1 = 0;
+        int i2 = 0;
+        int i = 0;
+        while (i1 < N1 && i2 < N2) {
+            if (mFilterOrder.get(first[i1]) < mFilterOrder.get(second[i2])) {
+                merged[i++] = first[i1++];
+            } else {
+                merged[i++] = second[i2++];
+            }
+        }
+        System.arraycopy(first, i1, merged, i, N1 - i1);
+        System.arraycopy(second, i2, merged, i + N1 - i1, N2 - i2);
+        return merged;
+    }
+
     private final void remove_all_objects(ArrayMap<String, F[]> map, String name,
             Object object) {
         F[] array = map.get(name);
@@ -823,6 +998,104 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    private void collectMatches(Intent intent, FastImmutableArraySet<String> categories,
+            String resolvedType, String scheme, F[] src, ArrayList<F> filters,
+            IntArray matches) {
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        final int N = src != null ? src.length : 0;
+        F filter;
+        for (int i=0; i<N && (filter=src[i]) != null; i++) {
+            final int match = filter.match(action, resolvedType, scheme, data, categories, TAG);
+            if (match >= 0) {
+                filters.add(filter);
+                matches.add(match);
+            }
+        }
+    }
+
+    /**
+     * Adds the results for filters already known to match the intent, applying the
+     * same per-query checks as the buildResolveList variant that does the matching.
+     */
+    private void buildResolveList(Intent intent, boolean defaultOnly, MatchResult matched,
+            List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+        final int N = matched.filters.length;
+        for (int i = 0; i < N; i++) {
+            final F filter = matched.filters[i];
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, matched.matches[i], userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            }
+        }
+    }
+
+    /**
+     * The parts of an intent that {@link IntentFilter#match} looks at.  The package,
+     * flags and user of a query are applied after matching and are not part of it.
+     */
+    private static final class MatchKey {
+        private final String mAction;
+        private final String mResolvedType;
+        private final Uri mData;
+        private final ArraySet<String> mCategories;
+        private final int mHashCode;
+
+        MatchKey(Intent intent, String resolvedType) {
+            mAction = intent.getAction();
+            mResolvedType = resolvedType;
+            mData = intent.getData();
+            final Set<String> categories = intent.getCategories();
+            mCategories = categories != null ? new ArraySet<>(categories) : null;
+            mHashCode = Objects.hash(mAction, mResolvedType, mData, mCategories);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MatchKey)) {
+                return false;
+            }
+            final MatchKey other = (MatchKey) o;
+            return mHashCode == other.mHashCode
+                    && Objects.equals(mAction, other.mAction)
+                    && Objects.equals(mResolvedType, other.mResolvedType)
+                    && Objects.equals(mData, other.mData)
+                    && Objects.equals(mCategories, other.mCategories);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /**
+     * The filters that matched an intent, in resolution order, together with the
+     * result of {@link IntentFilter#match} for each.
+     */
+    private final class MatchResult {
+        final F[] filters;
+        final int[] matches;
+
+        MatchResult(F[] filters, int[] matches) {
+            this.filters = filters;
+            this.matches = matches;
+        }
+    }
+
     // Sorts a List of IntentFilter objects into descending priority order.
     @SuppressWarnings("rawtypes")
     private static final Comparator mResolvePrioritySorter = new Comparator() {
@@ -875,4 +1148,30 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * All of the filters with URI schemes and authorities that only match hosts
+     * exactly, keyed by scheme and lower-cased host, such as "https://www.android.com".
+     */
+    private final ArrayMap<String, F[]> mAuthorityToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * All of the URI schemes that have been registered by filters that are not in
+     * {@link #mAuthorityToFilter}.
+     */
+    private final ArrayMap<String, F[]> mUnindexedSchemeToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * The order in which filters were added, which is the order they appear in within
+     * each of the maps above.
+     */
+    private final ArrayMap<F, Integer> mFilterOrder = new ArrayMap<F, Integer>();
+    private int mNextFilterOrder;
+
+    /**
+     * Recently resolved intents and the filters that matched them.  Cleared whenever
+     * a filter is added or removed, i.e. whenever the package that owns it changes.
+     */
+    private final LruCache<MatchKey, MatchResult> mMatchCache =
+            new LruCache<MatchKey, MatchResult>(MATCH_CACHE_SIZE);
 }
@@ -17,15 +17,22 @@
 package com.android.server;
 
 import android.annotation.Nullable;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
+import com.android.internal.util.ArrayUtils;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * LockGuard is a mechanism to help detect lock inversions inside the system
@@ -60,6 +67,16 @@ import java.io.PrintWriter;
  * <p>
  * This class also supports a second simpler mode of operation where well-known
  * locks are explicitly registered and checked via indexes.
+ * <p>
+ * Finally, it profiles the contention of the well-known locks whose locked
+ * sections report themselves through {@link #onLockedSectionEntered} and
+ * {@link #onLockedSectionExited}, which {@link ThreadPriorityBooster} does for
+ * the activity manager and window manager locks. For each lock it keeps
+ * histograms of how long the lock was held and waited for, and the stacks of
+ * the slowest owners and waiters, see {@link #dump}. The cost is a thread
+ * local lookup, a clock read and a few atomic updates on entering and exiting
+ * a locked section, as stacks are only taken for sections that are already
+ * slow.
  */
 public class LockGuard {
     private static final String TAG = "LockGuard";
@@ -79,6 +96,36 @@ public class LockGuard {
 
     private static Object[] sKnownFixed = new Object[INDEX_DPMS + 1];
 
+    private static final boolean PROFILE_CONTENTION = true;
+
+    /**
+     * If a lock is acquired within this time after another thread released it,
+     * the acquiring thread is assumed to have been waiting for it.
+     */
+    private static final long HANDOFF_NANOS = 500 * 1000;
+
+    /** Locked sections that held or waited at least this long have their stack sampled. */
+    private static final long SLOW_NANOS = 16 * 1000 * 1000;
+
+    /** Number of histogram buckets, the first for under 1ms and then doubling. */
+    @VisibleForTesting
+    static final int HISTOGRAM_BUCKETS = 12;
+
+    private static final int MAX_SIGNATURES = 20;
+    private static final int SIGNATURE_FRAMES = 3;
+
+    private static final ContentionStats[] sContentionStats =
+            new ContentionStats[INDEX_DPMS + 1];
+
+    static {
+        for (int i = 0; i < sContentionStats.length; i++) {
+            sContentionStats[i] = new ContentionStats();
+        }
+    }
+
+    private static final ThreadLocal<SectionState> sSectionState =
+            ThreadLocal.withInitial(SectionState::new);
+
     private static ArrayMap<Object, LockInfo> sKnown = new ArrayMap<>(0, true);
 
     private static class LockInfo {
@@ -92,6 +139,88 @@ public class LockGuard {
         public boolean doWtf;
     }
 
+    /** The locked sections of the calling thread, by lock index. */
+    private static class SectionState {
+        final int[] depth = new int[INDEX_DPMS + 1];
+        final long[] acquiredNanos = new long[INDEX_DPMS + 1];
+    }
+
+    /**
+     * Contention of a well-known lock.
+     * <p>
+     * A locked section may report its exit only after the lock was released,
+     * e.g. when the exit is injected after the monitor exit, so the exit of
+     * one owner can race with the entry of the next. Hence the counters are
+     * atomic, and the owner is only a hint of who holds the lock: an entry
+     * that finds another thread still recorded as the owner was handed the
+     * lock before that thread reported its exit. Dumps may be slightly
+     * inconsistent.
+     */
+    private static class ContentionStats {
+        final AtomicReference<Thread> owner = new AtomicReference<>();
+        volatile Thread lastOwner;
+        volatile long lastReleasedNanos;
+        /** When the lock was acquired after last being free for longer than a handoff. */
+        volatile long busySinceNanos;
+
+        final AtomicLong acquisitions = new AtomicLong();
+        final AtomicLong contended = new AtomicLong();
+        final AtomicLong totalHoldNanos = new AtomicLong();
+        final AtomicLong maxHoldNanos = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLongArray holdHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        final AtomicLongArray waitHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        @GuardedBy("this")
+        final ArrayMap<String, Signature> slowOwners = new ArrayMap<>();
+        @GuardedBy("this")
+        final ArrayMap<String, Signature> slowWaiters = new ArrayMap<>();
+
+        void reset() {
+            acquisitions.set(0);
+            contended.set(0);
+            totalHoldNanos.set(0);
+            maxHoldNanos.set(0);
+            totalWaitNanos.set(0);
+            maxWaitNanos.set(0);
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                holdHistogram.set(i, 0);
+                waitHistogram.set(i, 0);
+            }
+            synchronized (this) {
+                slowOwners.clear();
+                slowWaiters.clear();
+            }
+        }
+
+        void addSignature(ArrayMap<String, Signature> signatures, long nanos) {
+            String key = getStackSignature();
+            synchronized (this) {
+                Signature signature = signatures.get(key);
+                if (signature == null) {
+                    if (signatures.size() >= MAX_SIGNATURES) {
+                        key = "(other)";
+                        signature = signatures.get(key);
+                    }
+                    if (signature == null) {
+                        signature = new Signature();
+                        signatures.put(key, signature);
+                    }
+                }
+                signature.count++;
+                signature.totalNanos += nanos;
+                signature.maxNanos = Math.max(signature.maxNanos, nanos);
+            }
+        }
+    }
+
+    private static class Signature {
+        int count;
+        long totalNanos;
+        long maxNanos;
+    }
+
     private static LockInfo findOrCreateLockInfo(Object lock) {
         LockInfo info = sKnown.get(lock);
         if (info == null) {
@@ -212,6 +341,146 @@ public class LockGuard {
         return lock;
     }
 
+    /**
+     * Called by the calling thread right after it acquired the well-known lock
+     * with the given index.
+     * <p>
+     * The time it waited for the lock can't be observed directly. Instead, if
+     * the lock was handed over from another thread, the wait is taken as the time
+     * the lock has been held without a break, which bounds it and is the length
+     * of the convoy the thread was in.
+     */
+    public static void onLockedSectionEntered(int index) {
+        if (!PROFILE_CONTENTION) {
+            return;
+        }
+        final SectionState state = sSectionState.get();
+        if (state.depth[index]++ != 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final Thread thread = Thread.currentThread();
+        final ContentionStats stats = sContentionStats[index];
+        state.acquiredNanos[index] = now;
+        stats.acquisitions.incrementAndGet();
+        final Thread previousOwner = stats.owner.getAndSet(thread);
+        final Thread lastOwner = stats.lastOwner;
+        if ((previousOwner != null && previousOwner != thread)
+                || (lastOwner != null && lastOwner != thread
+                        && now - stats.lastReleasedNanos <= HANDOFF_NANOS)) {
+            final long wait = now - stats.busySinceNanos;
+            stats.contended.incrementAndGet();
+            stats.totalWaitNanos.addAndGet(wait);
+            updateMax(stats.maxWaitNanos, wait);
+            stats.waitHistogram.incrementAndGet(getHistogramBucket(wait));
+            if (wait >= SLOW_NANOS) {
+                stats.addSignature(stats.slowWaiters, wait);
+            }
+        } else {
+            stats.busySinceNanos = now;
+        }
+    }
+
+    /**
+     * Called by the calling thread when it leaves a locked section of the
+     * well-known lock with the given index. This may be right after it
+     * released the lock, such that another thread may already hold it.
+     */
+    public static void onLockedSectionExited(int index) {
+        if (!PROFILE_CONTENTION) {
+            return;
+        }
+        final SectionState state = sSectionState.get();
+        if (state.depth[index] == 0 || --state.depth[index] != 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final long hold = now - state.acquiredNanos[index];
+        final Thread thread = Thread.currentThread();
+        final ContentionStats stats = sContentionStats[index];
+        // Unless the next owner already took over.
+        stats.owner.compareAndSet(thread, null);
+        stats.lastOwner = thread;
+        stats.lastReleasedNanos = now;
+        stats.totalHoldNanos.addAndGet(hold);
+        updateMax(stats.maxHoldNanos, hold);
+        stats.holdHistogram.incrementAndGet(getHistogramBucket(hold));
+        if (hold >= SLOW_NANOS) {
+            stats.addSignature(stats.slowOwners, hold);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    @VisibleForTesting
+    static int getHistogramBucket(long nanos) {
+        final long millis = nanos / 1000000;
+        if (millis <= 0) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    @VisibleForTesting
+    static long getAcquisitionCount(int index) {
+        return sContentionStats[index].acquisitions.get();
+    }
+
+    @VisibleForTesting
+    static long getContendedCount(int index) {
+        return sContentionStats[index].contended.get();
+    }
+
+    @VisibleForTesting
+    static long[] getHoldHistogram(int index) {
+        final AtomicLongArray histogram = sContentionStats[index].holdHistogram;
+        final long[] result = new long[histogram.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = histogram.get(i);
+        }
+        return result;
+    }
+
+    @VisibleForTesting
+    static void resetContentionStats() {
+        for (ContentionStats stats : sContentionStats) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Returns the top frames of the calling stack that aren't part of the
+     * locking mechanism, identifying the code that holds or waits for a lock.
+     */
+    private static String getStackSignature() {
+        final StackTraceElement[] stack = new Throwable().getStackTrace();
+        final StringBuilder sb = new StringBuilder();
+        int frames = 0;
+        for (int i = 0; i < stack.length && frames < SIGNATURE_FRAMES; i++) {
+            final StackTraceElement frame = stack[i];
+            final String className = frame.getClassName();
+            final String methodName = frame.getMethodName();
+            if (className.equals(LockGuard.class.getName())
+                    || className.endsWith("ThreadPriorityBooster")
+                    || methodName.equals("boostPriorityForLockedSection")
+                    || methodName.equals("resetPriorityAfterLockedSection")) {
+                continue;
+            }
+            if (frames > 0) {
+                sb.append(" < ");
+            }
+            sb.append(className.substring(className.lastIndexOf('.') + 1));
+            sb.append('.').append(methodName).append(':').append(frame.getLineNumber());
+            frames++;
+        }
+        return sb.toString();
+    }
+
     private static String lockToString(Object lock) {
         final LockInfo info = sKnown.get(lock);
         if (info != null && !TextUtils.isEmpty(info.label)) {
@@ -235,6 +504,11 @@ public class LockGuard {
         }
     }
 
+    /**
+     * Dumps the known locks and their children, and the contention of the
+     * well-known locks. With {@code --reset}, the contention is reset after
+     * dumping it.
+     */
     public static void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         for (int i = 0; i < sKnown.size(); i++) {
             final Object lock = sKnown.keyAt(i);
@@ -245,5 +519,63 @@ public class LockGuard {
             }
             pw.println();
         }
+        if (PROFILE_CONTENTION) {
+            dumpContention(pw);
+            if (ArrayUtils.contains(args, "--reset")) {
+                resetContentionStats();
+                pw.println("Lock contention reset.");
+            }
+        }
+    }
+
+    private static void dumpContention(PrintWriter pw) {
+        pw.println("Lock contention:");
+        for (int i = 0; i < sContentionStats.length; i++) {
+            final ContentionStats stats = sContentionStats[i];
+            final long acquisitions = stats.acquisitions.get();
+            if (acquisitions == 0) {
+                continue;
+            }
+            pw.print("  " + lockToString(i) + ": " + acquisitions + " acquisitions, "
+                    + stats.contended.get() + " contended");
+            final Thread owner = stats.owner.get();
+            if (owner != null) {
+                pw.print(", held by " + owner.getName());
+            }
+            pw.println();
+            pw.println("    hold: total=" + stats.totalHoldNanos.get() / 1000000 + "ms max="
+                    + stats.maxHoldNanos.get() / 1000000 + "ms");
+            dumpHistogram(pw, stats.holdHistogram);
+            pw.println("    wait: total=" + stats.totalWaitNanos.get() / 1000000 + "ms max="
+                    + stats.maxWaitNanos.get() / 1000000 + "ms");
+            dumpHistogram(pw, stats.waitHistogram);
+            synchronized (stats) {
+                dumpSignatures(pw, "Slow owners", stats.slowOwners);
+                dumpSignatures(pw, "Slow waiters", stats.slowWaiters);
+            }
+        }
+        pw.println();
+    }
+
+    private static void dumpHistogram(PrintWriter pw, AtomicLongArray histogram) {
+        pw.print("     ");
+        for (int i = 0; i < histogram.length(); i++) {
+            pw.print(i < histogram.length() - 1 ? " <" + (1 << i) : " >=" + (1 << (i - 1)));
+            pw.print("ms=" + histogram.get(i));
+        }
+        pw.println();
+    }
+
+    private static void dumpSignatures(PrintWriter pw, String title,
+            ArrayMap<String, Signature> signatures) {
+        if (signatures.isEmpty()) {
+            return;
+        }
+        pw.println("    " + title + ":");
+        for (int i = 0; i < signatures.size(); i++) {
+            final Signature signature = signatures.valueAt(i);
+            pw.println("      " + signature.count + "x total=" + signature.totalNanos / 1000000
+                    + "ms max=" + signature.maxNanos / 1000000 + "ms " + signatures.keyAt(i));
+        }
     }
 }
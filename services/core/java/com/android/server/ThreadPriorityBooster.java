@@ -42,6 +42,7 @@ public class ThreadPriorityBooster {
     }
 
     public void boost() {
+        LockGuard.onLockedSectionEntered(mLockGuardIndex);
         final int tid = myTid();
         final int prevPriority = getThreadPriority(tid);
         final PriorityState state = mThreadState.get();
@@ -58,6 +59,8 @@ public class ThreadPriorityBooster {
     }
 
     public void reset() {
+        // First, as close as possible to the release of the lock.
+        LockGuard.onLockedSectionExited(mLockGuardIndex);
         final PriorityState state = mThreadState.get();
         state.regionCounter--;
         final int currentPriority = getThreadPriority(myTid());
@@ -25,6 +25,7 @@ import android.system.OsConstants;
 import android.system.StructRlimit;
 import com.android.internal.os.ZygoteConnectionConstants;
 import com.android.server.am.ActivityManagerService;
+import com.android.server.wm.WindowManagerInternal;
 
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -510,6 +511,13 @@ public class Watchdog extends Thread {
             final File stack = ActivityManagerService.dumpStackTraces(
                     !waitedHalf, pids, null, null, getInterestingNativePids());
 
+            // Save the window manager states that led up to the hang, which doesn't need the
+            // window manager lock.
+            final WindowManagerInternal wm = LocalServices.getService(WindowManagerInternal.class);
+            if (wm != null) {
+                wm.saveWindowTraceRingBuffer();
+            }
+
             // Give some extra time to make sure the stack traces get written.
             // The system's been hanging for a minute, another second or two won't hurt much.
             SystemClock.sleep(2000);
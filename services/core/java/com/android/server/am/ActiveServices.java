@@ -1757,6 +1757,8 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            final boolean incremental = mAm.mConstants.OOM_ADJ_INCREMENTAL;
+            boolean lruChanged = false;
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -1776,12 +1778,17 @@ public final class ActiveServices {
                         mAm.updateLruProcessLocked(r.binding.service.app,
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
+                        lruChanged = true;
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    mAm.updateOomAdjLocked(r.binding.service.app, incremental);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            // Incremental updates already fell back to a full update when needed, unless the
+            // LRU list was reordered.
+            if (!incremental || lruChanged) {
+                mAm.updateOomAdjLocked();
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
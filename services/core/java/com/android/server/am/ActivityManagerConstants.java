@@ -51,6 +51,9 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final String KEY_GC_MIN_INTERVAL = "gc_min_interval";
     private static final String KEY_FULL_PSS_MIN_INTERVAL = "full_pss_min_interval";
     private static final String KEY_FULL_PSS_LOWERED_INTERVAL = "full_pss_lowered_interval";
+    static final String KEY_PSS_SAMPLE_CPU_BUDGET = "pss_sample_cpu_budget";
+    static final String KEY_PSS_SAMPLE_CYCLE_INTERVAL = "pss_sample_cycle_interval";
+    static final String KEY_PSS_RSS_CHANGE_THRESHOLD = "pss_rss_change_threshold";
     private static final String KEY_POWER_CHECK_INTERVAL = "power_check_interval";
     private static final String KEY_POWER_CHECK_MAX_CPU_1 = "power_check_max_cpu_1";
     private static final String KEY_POWER_CHECK_MAX_CPU_2 = "power_check_max_cpu_2";
@@ -70,6 +73,10 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
     static final String KEY_PROCESS_START_ASYNC = "process_start_async";
     static final String KEY_TOP_TO_FGS_GRACE_DURATION = "top_to_fgs_grace_duration";
+    static final String KEY_OOM_ADJ_INCREMENTAL = "oom_adj_incremental";
+    static final String KEY_OOM_ADJ_INCREMENTAL_MAX_PROCS = "oom_adj_incremental_max_procs";
+    static final String KEY_OFFLOAD_BROADCAST_QUEUE = "offload_broadcast_queue";
+    static final String KEY_TASK_IMAGE_LOW_COST_ENCODING = "task_image_low_cost_encoding";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES =
             SystemProperties.getInt("ro.vendor.qti.sys.fw.bg_apps_limit",32);
@@ -83,6 +90,9 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final long DEFAULT_GC_MIN_INTERVAL = 60*1000;
     private static final long DEFAULT_FULL_PSS_MIN_INTERVAL = 20*60*1000;
     private static final long DEFAULT_FULL_PSS_LOWERED_INTERVAL = 5*60*1000;
+    private static final long DEFAULT_PSS_SAMPLE_CPU_BUDGET = 100;
+    private static final long DEFAULT_PSS_SAMPLE_CYCLE_INTERVAL = 1000;
+    private static final int DEFAULT_PSS_RSS_CHANGE_THRESHOLD = 10;
     private static final long DEFAULT_POWER_CHECK_INTERVAL = (DEBUG_POWER_QUICK ? 1 : 5) * 60*1000;
     private static final int DEFAULT_POWER_CHECK_MAX_CPU_1 = 25;
     private static final int DEFAULT_POWER_CHECK_MAX_CPU_2 = 25;
@@ -100,6 +110,10 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
     private static final boolean DEFAULT_PROCESS_START_ASYNC = true;
     private static final long DEFAULT_TOP_TO_FGS_GRACE_DURATION = 15 * 1000;
+    private static final boolean DEFAULT_OOM_ADJ_INCREMENTAL = true;
+    private static final int DEFAULT_OOM_ADJ_INCREMENTAL_MAX_PROCS = 32;
+    private static final boolean DEFAULT_OFFLOAD_BROADCAST_QUEUE = true;
+    private static final boolean DEFAULT_TASK_IMAGE_LOW_COST_ENCODING = false;
 
     // Maximum number of cached processes we will allow.
     public int MAX_CACHED_PROCESSES = DEFAULT_MAX_CACHED_PROCESSES;
@@ -147,6 +161,18 @@ final class ActivityManagerConstants extends ContentObserver {
     // when the request is due to the memory state being lowered.
     long FULL_PSS_LOWERED_INTERVAL = DEFAULT_FULL_PSS_LOWERED_INTERVAL;
 
+    // The amount of CPU time the background thread may spend collecting PSS before it takes
+    // a break of PSS_SAMPLE_CYCLE_INTERVAL, so that a burst of requests is spread over time.
+    long PSS_SAMPLE_CPU_BUDGET = DEFAULT_PSS_SAMPLE_CPU_BUDGET;
+
+    // The break between two cycles of PSS collection, see PSS_SAMPLE_CPU_BUDGET.
+    long PSS_SAMPLE_CYCLE_INTERVAL = DEFAULT_PSS_SAMPLE_CYCLE_INTERVAL;
+
+    // How much the RSS of a process whose state didn't change must have moved since its last
+    // PSS sample, in percent, for a periodic sample to read its PSS again.  Otherwise reading
+    // the RSS is all the periodic sample does.  0 always reads the PSS.
+    int PSS_RSS_CHANGE_THRESHOLD = DEFAULT_PSS_RSS_CHANGE_THRESHOLD;
+
     // The minimum sample duration we will allow before deciding we have
     // enough data on CPU usage to start killing things.
     long POWER_CHECK_INTERVAL = DEFAULT_POWER_CHECK_INTERVAL;
@@ -215,6 +241,22 @@ final class ActivityManagerConstants extends ContentObserver {
     // this long.
     public long TOP_TO_FGS_GRACE_DURATION = DEFAULT_TOP_TO_FGS_GRACE_DURATION;
 
+    // Whether a change to a single process, such as a service binding or a content provider
+    // connection, only updates the oom adj of that process and of the processes that depend
+    // on it, rather than of all processes.
+    public boolean OOM_ADJ_INCREMENTAL = DEFAULT_OOM_ADJ_INCREMENTAL;
+
+    // Incremental oom adj updates reaching more processes than this do a full update instead.
+    public int OOM_ADJ_INCREMENTAL_MAX_PROCS = DEFAULT_OOM_ADJ_INCREMENTAL_MAX_PROCS;
+
+    // Whether broadcasts sent with Intent.FLAG_RECEIVER_OFFLOAD go to their own queue rather
+    // than the background one.
+    public boolean OFFLOAD_BROADCAST_QUEUE = DEFAULT_OFFLOAD_BROADCAST_QUEUE;
+
+    // Whether the task description icons persisted for recents are scaled down to the launcher
+    // icon size before they are encoded.
+    public boolean TASK_IMAGE_LOW_COST_ENCODING = DEFAULT_TASK_IMAGE_LOW_COST_ENCODING;
+
     // Indicates whether the activity starts logging is enabled.
     // Controlled by Settings.Global.ACTIVITY_STARTS_LOGGING_ENABLED
     boolean mFlagActivityStartsLoggingEnabled;
@@ -354,6 +396,12 @@ final class ActivityManagerConstants extends ContentObserver {
                     DEFAULT_FULL_PSS_MIN_INTERVAL);
             FULL_PSS_LOWERED_INTERVAL = mParser.getLong(KEY_FULL_PSS_LOWERED_INTERVAL,
                     DEFAULT_FULL_PSS_LOWERED_INTERVAL);
+            PSS_SAMPLE_CPU_BUDGET = mParser.getLong(KEY_PSS_SAMPLE_CPU_BUDGET,
+                    DEFAULT_PSS_SAMPLE_CPU_BUDGET);
+            PSS_SAMPLE_CYCLE_INTERVAL = mParser.getLong(KEY_PSS_SAMPLE_CYCLE_INTERVAL,
+                    DEFAULT_PSS_SAMPLE_CYCLE_INTERVAL);
+            PSS_RSS_CHANGE_THRESHOLD = mParser.getInt(KEY_PSS_RSS_CHANGE_THRESHOLD,
+                    DEFAULT_PSS_RSS_CHANGE_THRESHOLD);
             POWER_CHECK_INTERVAL = mParser.getLong(KEY_POWER_CHECK_INTERVAL,
                     DEFAULT_POWER_CHECK_INTERVAL);
             POWER_CHECK_MAX_CPU_1 = mParser.getInt(KEY_POWER_CHECK_MAX_CPU_1,
@@ -389,6 +437,14 @@ final class ActivityManagerConstants extends ContentObserver {
                     DEFAULT_PROCESS_START_ASYNC);
             TOP_TO_FGS_GRACE_DURATION = mParser.getDurationMillis(KEY_TOP_TO_FGS_GRACE_DURATION,
                     DEFAULT_TOP_TO_FGS_GRACE_DURATION);
+            OOM_ADJ_INCREMENTAL = mParser.getBoolean(KEY_OOM_ADJ_INCREMENTAL,
+                    DEFAULT_OOM_ADJ_INCREMENTAL);
+            OOM_ADJ_INCREMENTAL_MAX_PROCS = mParser.getInt(KEY_OOM_ADJ_INCREMENTAL_MAX_PROCS,
+                    DEFAULT_OOM_ADJ_INCREMENTAL_MAX_PROCS);
+            OFFLOAD_BROADCAST_QUEUE = mParser.getBoolean(KEY_OFFLOAD_BROADCAST_QUEUE,
+                    DEFAULT_OFFLOAD_BROADCAST_QUEUE);
+            TASK_IMAGE_LOW_COST_ENCODING = mParser.getBoolean(KEY_TASK_IMAGE_LOW_COST_ENCODING,
+                    DEFAULT_TASK_IMAGE_LOW_COST_ENCODING);
 
             updateMaxCachedProcesses();
         }
@@ -439,6 +495,12 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(FULL_PSS_MIN_INTERVAL);
         pw.print("  "); pw.print(KEY_FULL_PSS_LOWERED_INTERVAL); pw.print("=");
         pw.println(FULL_PSS_LOWERED_INTERVAL);
+        pw.print("  "); pw.print(KEY_PSS_SAMPLE_CPU_BUDGET); pw.print("=");
+        pw.println(PSS_SAMPLE_CPU_BUDGET);
+        pw.print("  "); pw.print(KEY_PSS_SAMPLE_CYCLE_INTERVAL); pw.print("=");
+        pw.println(PSS_SAMPLE_CYCLE_INTERVAL);
+        pw.print("  "); pw.print(KEY_PSS_RSS_CHANGE_THRESHOLD); pw.print("=");
+        pw.println(PSS_RSS_CHANGE_THRESHOLD);
         pw.print("  "); pw.print(KEY_POWER_CHECK_INTERVAL); pw.print("=");
         pw.println(POWER_CHECK_INTERVAL);
         pw.print("  "); pw.print(KEY_POWER_CHECK_MAX_CPU_1); pw.print("=");
@@ -467,6 +529,14 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(BG_START_TIMEOUT);
         pw.print("  "); pw.print(KEY_TOP_TO_FGS_GRACE_DURATION); pw.print("=");
         pw.println(TOP_TO_FGS_GRACE_DURATION);
+        pw.print("  "); pw.print(KEY_OOM_ADJ_INCREMENTAL); pw.print("=");
+        pw.println(OOM_ADJ_INCREMENTAL);
+        pw.print("  "); pw.print(KEY_OOM_ADJ_INCREMENTAL_MAX_PROCS); pw.print("=");
+        pw.println(OOM_ADJ_INCREMENTAL_MAX_PROCS);
+        pw.print("  "); pw.print(KEY_OFFLOAD_BROADCAST_QUEUE); pw.print("=");
+        pw.println(OFFLOAD_BROADCAST_QUEUE);
+        pw.print("  "); pw.print(KEY_TASK_IMAGE_LOW_COST_ENCODING); pw.print("=");
+        pw.println(TASK_IMAGE_LOW_COST_ENCODING);
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
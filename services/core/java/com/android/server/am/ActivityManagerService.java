@@ -428,6 +428,7 @@ import com.android.internal.policy.IKeyguardDismissCallback;
 import com.android.internal.policy.KeyguardDismissCallback;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.FastPrintWriter;
 import com.android.internal.util.FastXmlSerializer;
@@ -481,7 +482,6 @@ import libcore.io.IoUtils;
 import libcore.util.EmptyArray;
 
 import com.google.android.collect.Lists;
-import com.google.android.collect.Maps;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -515,7 +515,12 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import com.android.internal.util.aospextended.GamingModeController;
@@ -692,6 +697,13 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     private static final int NATIVE_DUMP_TIMEOUT_MS = 2000; // 2 seconds;
 
+    // All stack dumps of an ANR must complete within this time.
+    private static final long STACK_DUMP_TIMEOUT_MS = 20 * 1000; // 20 seconds
+
+    // Maximum number of processes whose stacks are dumped at the same time. The dumps mostly
+    // wait for the target process and tombstoned, so this doesn't need to match the cores.
+    private static final int MAX_PARALLEL_STACK_DUMPS = 4;
+
     /* Freq Aggr boost objects */
     public static BoostFramework mPerfServiceStartHint = null;
     /* UX perf event object */
@@ -742,19 +754,29 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
+    BroadcastQueue mOffloadBroadcastQueue;
     // Convenient for easy iteration over the queues. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[3];
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
 
     BroadcastQueue broadcastQueueForIntent(Intent intent) {
-        final boolean isFg = (intent.getFlags() & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
+        final BroadcastQueue queue = broadcastQueueForFlags(intent.getFlags());
         if (DEBUG_BROADCAST_BACKGROUND) Slog.i(TAG_BROADCAST,
-                "Broadcast intent " + intent + " on "
-                + (isFg ? "foreground" : "background") + " queue");
-        return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
+                "Broadcast intent " + intent + " on " + queue + " queue");
+        return queue;
+    }
+
+    BroadcastQueue broadcastQueueForFlags(int flags) {
+        if ((flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0) {
+            return mFgBroadcastQueue;
+        }
+        if ((flags & Intent.FLAG_RECEIVER_OFFLOAD) != 0 && mConstants.OFFLOAD_BROADCAST_QUEUE) {
+            return mOffloadBroadcastQueue;
+        }
+        return mBgBroadcastQueue;
     }
 
     /**
@@ -1015,19 +1037,9 @@ public class ActivityManagerService extends IActivityManager.Stub
     /**
      * List of running applications, sorted by recent usage.
      * The first entry in the list is the least recently used.
+     * The processes hosting activities are at the top, below them those hosting services.
      */
-    final ArrayList<ProcessRecord> mLruProcesses = new ArrayList<ProcessRecord>();
-
-    /**
-     * Where in mLruProcesses that the processes hosting activities start.
-     */
-    int mLruProcessActivityStart = 0;
-
-    /**
-     * Where in mLruProcesses that the processes hosting services start.
-     * This is after (lower index) than mLruProcessesActivityStart.
-     */
-    int mLruProcessServiceStart = 0;
+    final ProcessLruList mLruProcesses = new ProcessLruList();
 
     /**
      * List of processes that should gc as soon as things are idle.
@@ -1240,8 +1252,7 @@ public class ActivityManagerService extends IActivityManager.Stub
      * to {@link UriPermission#uri} to {@link UriPermission}.
      */
     @GuardedBy("this")
-    private final SparseArray<ArrayMap<GrantUri, UriPermission>>
-            mGrantedUriPermissions = new SparseArray<ArrayMap<GrantUri, UriPermission>>();
+    private final SparseArray<UriPermissionMap> mGrantedUriPermissions = new SparseArray<>();
 
     public static class GrantUri {
         public final int sourceUserId;
@@ -1588,6 +1599,19 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Counters comparing full oom adj updates of all the processes in the LRU list with
+     * incremental updates of a process and the processes that depend on it.
+     */
+    int mNumFullOomAdjUpdates = 0;
+    long mNumFullOomAdjProcs = 0;
+    long mFullOomAdjUpdateNanos = 0;
+    int mNumIncrementalOomAdjUpdates = 0;
+    long mNumIncrementalOomAdjProcs = 0;
+    long mIncrementalOomAdjUpdateNanos = 0;
+    /** Incremental updates that had to be followed by a full update. */
+    int mNumIncrementalOomAdjFallbacks = 0;
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -2721,12 +2745,15 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     static final int COLLECT_PSS_BG_MSG = 1;
 
+    private static final String[] PSS_RSS_FIELDS = new String[] { "VmRSS:" };
+
     final Handler mBgHandler = new Handler(BackgroundThread.getHandler().getLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
             case COLLECT_PSS_BG_MSG: {
                 long start = SystemClock.uptimeMillis();
+                final long cycleStartTime = SystemClock.currentThreadTimeMillis();
                 MemInfoReader memInfo = null;
                 synchronized (ActivityManagerService.this) {
                     if (mFullPssPending) {
@@ -2769,21 +2796,40 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
 
                 int num = 0;
+                int numRss = 0;
                 long[] tmp = new long[3];
+                long[] rss = new long[1];
                 do {
                     ProcessRecord proc;
                     int procState;
                     int statType;
                     int pid;
                     long lastPssTime;
+                    long requestTime = 0;
+                    long lastPssRss = 0;
+                    int rssChangeThreshold = 0;
                     synchronized (ActivityManagerService.this) {
                         if (mPendingPssProcesses.size() <= 0) {
                             if (mTestPssMode || DEBUG_PSS) Slog.d(TAG_PSS,
-                                    "Collected pss of " + num + " processes in "
+                                    "Collected pss of " + num + " processes and rss of "
+                                    + numRss + " processes in "
                                     + (SystemClock.uptimeMillis() - start) + "ms");
                             mPendingPssProcesses.clear();
                             return;
                         }
+                        if (!mTestPssMode && (num + numRss) > 0
+                                && (SystemClock.currentThreadTimeMillis() - cycleStartTime)
+                                        >= mConstants.PSS_SAMPLE_CPU_BUDGET) {
+                            // Out of CPU time for this cycle; leave the rest for later rather
+                            // than taking all of them in one burst.
+                            if (DEBUG_PSS) Slog.d(TAG_PSS,
+                                    "Collected pss of " + num + " processes and rss of "
+                                    + numRss + " processes, deferring "
+                                    + mPendingPssProcesses.size() + " processes");
+                            mBgHandler.sendEmptyMessageDelayed(COLLECT_PSS_BG_MSG,
+                                    mConstants.PSS_SAMPLE_CYCLE_INTERVAL);
+                            return;
+                        }
                         proc = mPendingPssProcesses.remove(0);
                         procState = proc.pssProcState;
                         statType = proc.pssStatType;
@@ -2793,6 +2839,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                                 && (lastPssTime+ProcessList.PSS_SAFE_TIME_FROM_STATE_CHANGE)
                                         < now) {
                             pid = proc.pid;
+                            requestTime = proc.pssRequestTime;
+                            if (canCheckRssFirstLocked(proc, now)) {
+                                lastPssRss = proc.lastPssRss;
+                                rssChangeThreshold = mConstants.PSS_RSS_CHANGE_THRESHOLD;
+                            }
                         } else {
                             ProcessList.abortNextPssTime(proc.procStateMemTracker);
                             if (DEBUG_PSS) Slog.d(TAG_PSS, "Skipped pss collection of " + pid +
@@ -2805,15 +2856,33 @@ public class ActivityManagerService extends IActivityManager.Stub
                     }
                     if (proc != null) {
                         long startTime = SystemClock.currentThreadTimeMillis();
-                        long pss = Debug.getPss(pid, tmp, null);
+                        boolean full = true;
+                        if (lastPssRss > 0) {
+                            // Reading the rss is much cheaper than walking the smaps for the
+                            // pss; only do the latter if the process memory visibly moved.
+                            rss[0] = 0;
+                            Process.readProcLines("/proc/" + pid + "/status", PSS_RSS_FIELDS,
+                                    rss);
+                            full = rss[0] <= 0 || Math.abs(rss[0] - lastPssRss) * 100
+                                    > lastPssRss * rssChangeThreshold;
+                        }
+                        long pss = full ? Debug.getPss(pid, tmp, null) : 0;
                         long endTime = SystemClock.currentThreadTimeMillis();
                         synchronized (ActivityManagerService.this) {
-                            if (pss != 0 && proc.thread != null && proc.setProcState == procState
+                            if ((pss != 0 || !full) && proc.thread != null
+                                    && proc.setProcState == procState
                                     && proc.pid == pid && proc.lastPssTime == lastPssTime) {
-                                num++;
+                                final long now = SystemClock.uptimeMillis();
                                 ProcessList.commitNextPssTime(proc.procStateMemTracker);
-                                recordPssSampleLocked(proc, procState, pss, tmp[0], tmp[1], tmp[2],
-                                        statType, endTime-startTime, SystemClock.uptimeMillis());
+                                mProcessStats.notePssSampleLocked(full, endTime - startTime,
+                                        now - requestTime);
+                                if (full) {
+                                    num++;
+                                    recordPssSampleLocked(proc, procState, pss, tmp[0], tmp[1],
+                                            tmp[2], statType, endTime-startTime, now);
+                                } else {
+                                    numRss++;
+                                }
                             } else {
                                 ProcessList.abortNextPssTime(proc.procStateMemTracker);
                                 if (DEBUG_PSS) Slog.d(TAG_PSS, "Skipped pss collection of " + pid +
@@ -3198,8 +3267,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                 "foreground", BROADCAST_FG_TIMEOUT, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", BROADCAST_BG_TIMEOUT, true);
+        mOffloadBroadcastQueue = new BroadcastQueue(this, mHandler,
+                "offload", BROADCAST_BG_TIMEOUT, true);
         mBroadcastQueues[0] = mFgBroadcastQueue;
         mBroadcastQueues[1] = mBgBroadcastQueue;
+        mBroadcastQueues[2] = mOffloadBroadcastQueue;
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -3824,41 +3896,51 @@ public class ActivityManagerService extends IActivityManager.Stub
         mAppWarnings.showDeprecatedTargetDialogIfNeeded(r);
     }
 
-    private int updateLruProcessInternalLocked(ProcessRecord app, long now, int index,
-            String what, Object obj, ProcessRecord srcApp) {
+    /**
+     * Moves a dependent process directly below {@code below}, or to the top of the region of
+     * processes not otherwise of interest if {@code below} is null, unless it already is more
+     * recently used than that.
+     *
+     * @return where the next dependent process is to be moved.
+     */
+    private ProcessRecord updateLruProcessInternalLocked(ProcessRecord app, long now,
+            ProcessRecord below, String what, Object obj, ProcessRecord srcApp) {
         app.lastActivityTime = now;
 
         if (app.activities.size() > 0 || app.recentTasks.size() > 0) {
             // Don't want to touch dependent processes that are hosting activities.
-            return index;
+            return below;
         }
 
-        int lrui = mLruProcesses.lastIndexOf(app);
-        if (lrui < 0) {
+        final int region = mLruProcesses.getRegion(app);
+        if (region == ProcessLruList.REGION_NONE) {
             Slog.wtf(TAG, "Adding dependent process " + app + " not on LRU list: "
                     + what + " " + obj + " from " + srcApp);
-            return index;
+            return below;
         }
 
-        if (lrui >= index) {
+        if (below != null ? !mLruProcesses.isBelow(app, below)
+                : region != ProcessLruList.REGION_OTHER) {
             // Don't want to cause this to move dependent processes *back* in the
             // list as if they were less frequently used.
-            return index;
+            return below;
         }
 
-        if (lrui >= mLruProcessActivityStart) {
+        if (region == ProcessLruList.REGION_ACTIVITY) {
             // Don't want to touch dependent processes that are hosting activities.
-            return index;
+            return below;
         }
 
-        mLruProcesses.remove(lrui);
-        if (index > 0) {
-            index--;
+        mLruProcesses.remove(app);
+        if (below != null) {
+            if (DEBUG_LRU) Slog.d(TAG_LRU, "Moving dep below " + below
+                    + " in LRU list: " + app);
+            mLruProcesses.addBelow(app, below);
+        } else {
+            if (DEBUG_LRU) Slog.d(TAG_LRU, "Moving dep to top of other in LRU list: " + app);
+            mLruProcesses.addTop(app, ProcessLruList.REGION_OTHER);
         }
-        if (DEBUG_LRU) Slog.d(TAG_LRU, "Moving dep from " + lrui + " to " + index
-                + " in LRU list: " + app);
-        mLruProcesses.add(index, app);
-        return index;
+        return app;
     }
 
     static void killProcessGroup(int uid, int pid) {
@@ -3872,8 +3954,7 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     final void removeLruProcessLocked(ProcessRecord app) {
-        int lrui = mLruProcesses.lastIndexOf(app);
-        if (lrui >= 0) {
+        if (mLruProcesses.contains(app)) {
             if (!app.killed) {
                 if (app.persistent) {
                     Slog.w(TAG, "Removing persistent process that hasn't been killed: " + app);
@@ -3887,13 +3968,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     }
                 }
             }
-            if (lrui <= mLruProcessActivityStart) {
-                mLruProcessActivityStart--;
-            }
-            if (lrui <= mLruProcessServiceStart) {
-                mLruProcessServiceStart--;
-            }
-            mLruProcesses.remove(lrui);
+            mLruProcesses.remove(app);
         }
     }
 
@@ -3917,118 +3992,63 @@ public class ActivityManagerService extends IActivityManager.Stub
         // First a quick reject: if the app is already at the position we will
         // put it, then there is nothing to do.
         if (hasActivity) {
-            final int N = mLruProcesses.size();
-            if (N > 0 && mLruProcesses.get(N-1) == app) {
+            if (mLruProcesses.getTop() == app) {
                 if (DEBUG_LRU) Slog.d(TAG_LRU, "Not moving, already top activity: " + app);
                 return;
             }
         } else {
-            if (mLruProcessServiceStart > 0
-                    && mLruProcesses.get(mLruProcessServiceStart-1) == app) {
+            if (mLruProcesses.getTop(ProcessLruList.REGION_OTHER) == app) {
                 if (DEBUG_LRU) Slog.d(TAG_LRU, "Not moving, already top other: " + app);
                 return;
             }
         }
 
-        int lrui = mLruProcesses.lastIndexOf(app);
+        final int region = mLruProcesses.getRegion(app);
 
-        if (app.persistent && lrui >= 0) {
+        if (app.persistent && region != ProcessLruList.REGION_NONE) {
             // We don't care about the position of persistent processes, as long as
             // they are in the list.
             if (DEBUG_LRU) Slog.d(TAG_LRU, "Not moving, persistent: " + app);
             return;
         }
 
-        /* In progress: compute new position first, so we can avoid doing work
-           if the process is not actually going to move.  Not yet working.
-        int addIndex;
-        int nextIndex;
-        boolean inActivity = false, inService = false;
+        // Dependent processes are moved directly below this one, or to the top of the
+        // non-service area if it is null.
+        ProcessRecord nextBelow;
         if (hasActivity) {
-            // Process has activities, put it at the very tipsy-top.
-            addIndex = mLruProcesses.size();
-            nextIndex = mLruProcessServiceStart;
-            inActivity = true;
-        } else if (hasService) {
-            // Process has services, put it at the top of the service list.
-            addIndex = mLruProcessActivityStart;
-            nextIndex = mLruProcessServiceStart;
-            inActivity = true;
-            inService = true;
-        } else  {
-            // Process not otherwise of interest, it goes to the top of the non-service area.
-            addIndex = mLruProcessServiceStart;
-            if (client != null) {
-                int clientIndex = mLruProcesses.lastIndexOf(client);
-                if (clientIndex < 0) Slog.d(TAG, "Unknown client " + client + " when updating "
-                        + app);
-                if (clientIndex >= 0 && addIndex > clientIndex) {
-                    addIndex = clientIndex;
-                }
-            }
-            nextIndex = addIndex > 0 ? addIndex-1 : addIndex;
-        }
-
-        Slog.d(TAG, "Update LRU at " + lrui + " to " + addIndex + " (act="
-                + mLruProcessActivityStart + "): " + app);
-        */
-
-        if (lrui >= 0) {
-            if (lrui < mLruProcessActivityStart) {
-                mLruProcessActivityStart--;
-            }
-            if (lrui < mLruProcessServiceStart) {
-                mLruProcessServiceStart--;
-            }
-            /*
-            if (addIndex > lrui) {
-                addIndex--;
-            }
-            if (nextIndex > lrui) {
-                nextIndex--;
-            }
-            */
-            mLruProcesses.remove(lrui);
-        }
-
-        /*
-        mLruProcesses.add(addIndex, app);
-        if (inActivity) {
-            mLruProcessActivityStart++;
-        }
-        if (inService) {
-            mLruProcessActivityStart++;
-        }
-        */
-
-        int nextIndex;
-        if (hasActivity) {
-            final int N = mLruProcesses.size();
+            mLruProcesses.remove(app);
+            final ProcessRecord top = mLruProcesses.getTop(ProcessLruList.REGION_ACTIVITY);
             if ((app.activities.size() == 0 || app.recentTasks.size() > 0)
-                    && mLruProcessActivityStart < (N - 1)) {
+                    && mLruProcesses.getRegionSize(ProcessLruList.REGION_ACTIVITY) > 1) {
                 // Process doesn't have activities, but has clients with
                 // activities...  move it up, but one below the top (the top
                 // should always have a real activity).
                 if (DEBUG_LRU) Slog.d(TAG_LRU,
                         "Adding to second-top of LRU activity list: " + app);
-                mLruProcesses.add(N - 1, app);
+                mLruProcesses.addBelow(app, top);
                 // To keep it from spamming the LRU list (by making a bunch of clients),
                 // we will push down any other entries owned by the app.
                 final int uid = app.info.uid;
-                for (int i = N - 2; i > mLruProcessActivityStart; i--) {
-                    ProcessRecord subProc = mLruProcesses.get(i);
+                ProcessRecord subProc = mLruProcesses.getBelow(app);
+                while (subProc != null) {
+                    final ProcessRecord belowProc = mLruProcesses.getBelow(subProc);
+                    if (belowProc == null) {
+                        // Reached the bottom of the activity list.
+                        break;
+                    }
                     if (subProc.info.uid == uid) {
                         // We want to push this one down the list.  If the process after
                         // it is for the same uid, however, don't do so, because we don't
                         // want them internally to be re-ordered.
-                        if (mLruProcesses.get(i - 1).info.uid != uid) {
+                        if (belowProc.info.uid != uid) {
                             if (DEBUG_LRU) Slog.d(TAG_LRU,
-                                    "Pushing uid " + uid + " swapping at " + i + ": "
-                                    + mLruProcesses.get(i) + " : " + mLruProcesses.get(i - 1));
-                            ProcessRecord tmp = mLruProcesses.get(i);
-                            mLruProcesses.set(i, mLruProcesses.get(i - 1));
-                            mLruProcesses.set(i - 1, tmp);
-                            i--;
+                                    "Pushing uid " + uid + " swapping: "
+                                    + subProc + " : " + belowProc);
+                            mLruProcesses.remove(subProc);
+                            mLruProcesses.addBelow(subProc, belowProc);
+                            subProc = mLruProcesses.getBelow(subProc);
+                        } else {
+                            subProc = belowProc;
                         }
                     } else {
                         // A gap, we can stop here.
@@ -4038,38 +4058,54 @@ public class ActivityManagerService extends IActivityManager.Stub
             } else {
                 // Process has activities, put it at the very tipsy-top.
                 if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding to top of LRU activity list: " + app);
-                mLruProcesses.add(app);
+                mLruProcesses.addTop(app, ProcessLruList.REGION_ACTIVITY);
             }
-            nextIndex = mLruProcessServiceStart;
+            nextBelow = null;
         } else if (hasService) {
             // Process has services, put it at the top of the service list.
             if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding to top of LRU service list: " + app);
-            mLruProcesses.add(mLruProcessActivityStart, app);
-            nextIndex = mLruProcessServiceStart;
-            mLruProcessActivityStart++;
+            mLruProcesses.remove(app);
+            mLruProcesses.addTop(app, ProcessLruList.REGION_SERVICE);
+            nextBelow = null;
         } else  {
             // Process not otherwise of interest, it goes to the top of the non-service area.
-            int index = mLruProcessServiceStart;
+            ProcessRecord clientAbove = null;
+            boolean keepPosition = false;
             if (client != null) {
                 // If there is a client, don't allow the process to be moved up higher
                 // in the list than that client.
-                int clientIndex = mLruProcesses.lastIndexOf(client);
-                if (DEBUG_LRU && clientIndex < 0) Slog.d(TAG_LRU, "Unknown client " + client
-                        + " when updating " + app);
-                if (clientIndex <= lrui) {
+                final int clientRegion = mLruProcesses.getRegion(client);
+                if (DEBUG_LRU && clientRegion == ProcessLruList.REGION_NONE) Slog.d(TAG_LRU,
+                        "Unknown client " + client + " when updating " + app);
+                if (clientRegion != ProcessLruList.REGION_NONE && client != app
+                        && (region == ProcessLruList.REGION_NONE
+                                || mLruProcesses.isBelow(app, client))) {
+                    if (clientRegion == ProcessLruList.REGION_OTHER) {
+                        clientAbove = client;
+                    }
+                } else {
                     // Don't allow the client index restriction to push it down farther in the
                     // list than it already is.
-                    clientIndex = lrui;
-                }
-                if (clientIndex >= 0 && index > clientIndex) {
-                    index = clientIndex;
+                    keepPosition = region == ProcessLruList.REGION_OTHER;
                 }
             }
-            if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding at " + index + " of LRU list: " + app);
-            mLruProcesses.add(index, app);
-            nextIndex = index-1;
-            mLruProcessActivityStart++;
-            mLruProcessServiceStart++;
+            if (keepPosition) {
+                if (DEBUG_LRU) Slog.d(TAG_LRU, "Keeping position in LRU list: " + app);
+            } else if (clientAbove != null) {
+                if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding below client " + clientAbove
+                        + " in LRU list: " + app);
+                mLruProcesses.remove(app);
+                mLruProcesses.addBelow(app, clientAbove);
+            } else {
+                if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding to top of LRU other list: " + app);
+                mLruProcesses.remove(app);
+                mLruProcesses.addTop(app, ProcessLruList.REGION_OTHER);
+            }
+            nextBelow = mLruProcesses.getBelow(app);
+            if (nextBelow == null) {
+                // Nothing is below the process, so dependent processes can't move up to it.
+                nextBelow = app;
+            }
         }
 
         // If the app is currently using a content provider or service,
@@ -4080,14 +4116,14 @@ public class ActivityManagerService extends IActivityManager.Stub
                     && cr.binding.service.app != null
                     && cr.binding.service.app.lruSeq != mLruSeq
                     && !cr.binding.service.app.persistent) {
-                nextIndex = updateLruProcessInternalLocked(cr.binding.service.app, now, nextIndex,
-                        "service connection", cr, app);
+                nextBelow = updateLruProcessInternalLocked(cr.binding.service.app, now,
+                        nextBelow, "service connection", cr, app);
             }
         }
         for (int j=app.conProviders.size()-1; j>=0; j--) {
             ContentProviderRecord cpr = app.conProviders.get(j).provider;
             if (cpr.proc != null && cpr.proc.lruSeq != mLruSeq && !cpr.proc.persistent) {
-                nextIndex = updateLruProcessInternalLocked(cpr.proc, now, nextIndex,
+                nextBelow = updateLruProcessInternalLocked(cpr.proc, now, nextBelow,
                         "provider reference", cpr, app);
             }
         }
@@ -6521,25 +6557,149 @@ public class ActivityManagerService extends IActivityManager.Stub
     private static void dumpStackTraces(String tracesFile, ArrayList<Integer> firstPids,
             ArrayList<Integer> nativePids, ArrayList<Integer> extraPids,
             boolean useTombstonedForJavaTraces) {
-
-        // We don't need any sort of inotify based monitoring when we're dumping traces via
-        // tombstoned. Data is piped to an "intercept" FD installed in tombstoned so we're in full
-        // control of all writes to the file in question.
-        final DumpStackFileObserver observer;
         if (useTombstonedForJavaTraces) {
-            observer = null;
+            dumpStackTracesInParallel(tracesFile, firstPids, nativePids, extraPids);
         } else {
-            // Use a FileObserver to detect when traces finish writing.
-            // The order of traces is considered important to maintain for legibility.
-            observer = new DumpStackFileObserver(tracesFile);
+            dumpStackTracesWithObserver(tracesFile, firstPids, nativePids, extraPids);
+        }
+    }
+
+    /**
+     * The stack dump of a single process, written to its own file until all dumps are done and
+     * appended to the traces file in the order they were requested.
+     */
+    private static final class StackDump implements Runnable {
+        final int pid;
+        final boolean isNative;
+        final File file;
+        final long deadline;
+        volatile long timeTaken = -1;
+
+        StackDump(int pid, boolean isNative, File file, long deadline) {
+            this.pid = pid;
+            this.isNative = isNative;
+            this.file = file;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            final long remainingTime = deadline - SystemClock.elapsedRealtime();
+            if (remainingTime <= 0) {
+                return;
+            }
+            if (DEBUG_ANR) Slog.d(TAG, "Collecting stacks for "
+                    + (isNative ? "native pid " : "pid ") + pid);
+            if (isNative) {
+                final long start = SystemClock.elapsedRealtime();
+                Debug.dumpNativeBacktraceToFileTimeout(pid, file.getAbsolutePath(),
+                        (int) (Math.min(NATIVE_DUMP_TIMEOUT_MS, remainingTime) / 1000));
+                timeTaken = SystemClock.elapsedRealtime() - start;
+            } else {
+                timeTaken = dumpJavaTracesTombstoned(pid, file.getAbsolutePath(), remainingTime);
+            }
         }
+    }
 
-        // We must complete all stack dumps within 20 seconds.
-        long remainingTime = 20 * 1000;
+    /**
+     * Requests the stack dumps of all processes at once, each into its own file next to
+     * {@code tracesFile}, and then assembles them into {@code tracesFile} with the first pids
+     * first, the native pids next and the extra pids last, as the sequential dump would.
+     * Dumps that didn't complete within {@link #STACK_DUMP_TIMEOUT_MS} are left out.
+     */
+    private static void dumpStackTracesInParallel(String tracesFile, ArrayList<Integer> firstPids,
+            ArrayList<Integer> nativePids, ArrayList<Integer> extraPids) {
+        final long start = SystemClock.elapsedRealtime();
+        final long deadline = start + STACK_DUMP_TIMEOUT_MS;
+        final File traces = new File(tracesFile);
+        final ArrayList<StackDump> dumps = new ArrayList<>();
+        addStackDumps(dumps, traces, firstPids, false, deadline);
+        addStackDumps(dumps, traces, nativePids, true, deadline);
+        addStackDumps(dumps, traces, extraPids, false, deadline);
+        if (dumps.isEmpty()) {
+            return;
+        }
+
+        final ExecutorService executor = ConcurrentUtils.newFixedThreadPool(
+                Math.min(dumps.size(), MAX_PARALLEL_STACK_DUMPS), "AnrStackDump",
+                Process.THREAD_PRIORITY_FOREGROUND);
+        final ArrayList<Future<?>> futures = new ArrayList<>(dumps.size());
         try {
-            if (observer != null) {
-                observer.startWatching();
+            for (int i = 0; i < dumps.size(); i++) {
+                futures.add(executor.submit(dumps.get(i)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                final long remainingTime = deadline - SystemClock.elapsedRealtime();
+                try {
+                    futures.get(i).get(Math.max(remainingTime, 0), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    Slog.e(TAG, "Aborting stack trace dump (current pid=" + dumps.get(i).pid
+                            + "); deadline exceeded.");
+                    break;
+                } catch (InterruptedException | ExecutionException e) {
+                    Slog.w(TAG, "Failed to dump stacks of pid " + dumps.get(i).pid, e);
+                }
+            }
+        } finally {
+            // Dumps still running hold on to their own files only; they are dropped below.
+            executor.shutdownNow();
+        }
+
+        final StringBuilder sb = new StringBuilder(128);
+        try (FileOutputStream out = new FileOutputStream(traces, true)) {
+            for (int i = 0; i < dumps.size(); i++) {
+                final StackDump dump = dumps.get(i);
+                sb.append(i == 0 ? " " : ", ").append(dump.pid).append('=');
+                if (!futures.get(i).isDone() || dump.timeTaken < 0) {
+                    sb.append("timeout");
+                    continue;
+                }
+                sb.append(dump.timeTaken).append("ms");
+                if (dump.file.exists()) {
+                    try (FileInputStream in = new FileInputStream(dump.file)) {
+                        FileUtils.copy(in, out);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to assemble ANR traces file: " + tracesFile, e);
+        } finally {
+            for (int i = 0; i < dumps.size(); i++) {
+                dumps.get(i).file.delete();
             }
+        }
+        Slog.i(TAG, "Dumped stacks of " + dumps.size() + " pids in "
+                + (SystemClock.elapsedRealtime() - start) + "ms:" + sb);
+    }
+
+    private static void addStackDumps(ArrayList<StackDump> dumps, File tracesFile,
+            ArrayList<Integer> pids, boolean isNative, long deadline) {
+        if (pids == null) {
+            return;
+        }
+        for (int i = 0; i < pids.size(); i++) {
+            final int pid = pids.get(i);
+            // Hidden, so that dumpstate doesn't pick up the partial dumps as ANR traces.
+            final File file = new File(tracesFile.getParentFile(),
+                    "." + tracesFile.getName() + "." + dumps.size() + "_" + pid);
+            dumps.add(new StackDump(pid, isNative, file, deadline));
+        }
+    }
+
+    /**
+     * Dumps the stacks of one process after the other into the global traces file, using a
+     * FileObserver to detect when each of them finished writing.
+     */
+    private static void dumpStackTracesWithObserver(String tracesFile,
+            ArrayList<Integer> firstPids, ArrayList<Integer> nativePids,
+            ArrayList<Integer> extraPids) {
+        // All processes write to the same file, so the dumps can't overlap.
+        // The order of traces is considered important to maintain for legibility.
+        final DumpStackFileObserver observer = new DumpStackFileObserver(tracesFile);
+
+        long remainingTime = STACK_DUMP_TIMEOUT_MS;
+        try {
+            observer.startWatching();
 
             // First collect all of the stacks of the most important pids.
             if (firstPids != null) {
@@ -6547,12 +6707,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 for (int i = 0; i < num; i++) {
                     if (DEBUG_ANR) Slog.d(TAG, "Collecting stacks for pid "
                             + firstPids.get(i));
-                    final long timeTaken;
-                    if (useTombstonedForJavaTraces) {
-                        timeTaken = dumpJavaTracesTombstoned(firstPids.get(i), tracesFile, remainingTime);
-                    } else {
-                        timeTaken = observer.dumpWithTimeout(firstPids.get(i), remainingTime);
-                    }
+                    final long timeTaken = observer.dumpWithTimeout(firstPids.get(i),
+                            remainingTime);
 
                     remainingTime -= timeTaken;
                     if (remainingTime <= 0) {
@@ -6596,12 +6752,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 for (int pid : extraPids) {
                     if (DEBUG_ANR) Slog.d(TAG, "Collecting stacks for extra pid " + pid);
 
-                    final long timeTaken;
-                    if (useTombstonedForJavaTraces) {
-                        timeTaken = dumpJavaTracesTombstoned(pid, tracesFile, remainingTime);
-                    } else {
-                        timeTaken = observer.dumpWithTimeout(pid, remainingTime);
-                    }
+                    final long timeTaken = observer.dumpWithTimeout(pid, remainingTime);
 
                     remainingTime -= timeTaken;
                     if (remainingTime <= 0) {
@@ -6616,9 +6767,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             }
         } finally {
-            if (observer != null) {
-                observer.stopWatching();
-            }
+            observer.stopWatching();
         }
     }
 
@@ -9694,7 +9843,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     @GuardedBy("this")
     private UriPermission findUriPermissionLocked(int targetUid, GrantUri grantUri) {
-        final ArrayMap<GrantUri, UriPermission> targetUris = mGrantedUriPermissions.get(targetUid);
+        final UriPermissionMap targetUris = mGrantedUriPermissions.get(targetUid);
         if (targetUris != null) {
             return targetUris.get(grantUri);
         }
@@ -9704,16 +9853,16 @@ public class ActivityManagerService extends IActivityManager.Stub
     @GuardedBy("this")
     private UriPermission findOrCreateUriPermissionLocked(String sourcePkg,
             String targetPkg, int targetUid, GrantUri grantUri) {
-        ArrayMap<GrantUri, UriPermission> targetUris = mGrantedUriPermissions.get(targetUid);
+        UriPermissionMap targetUris = mGrantedUriPermissions.get(targetUid);
         if (targetUris == null) {
-            targetUris = Maps.newArrayMap();
+            targetUris = new UriPermissionMap();
             mGrantedUriPermissions.put(targetUid, targetUris);
         }
 
         UriPermission perm = targetUris.get(grantUri);
         if (perm == null) {
             perm = new UriPermission(sourcePkg, targetPkg, targetUid, grantUri);
-            targetUris.put(grantUri, perm);
+            targetUris.put(perm);
         }
 
         return perm;
@@ -9731,7 +9880,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             return true;
         }
 
-        final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(uid);
+        final UriPermissionMap perms = mGrantedUriPermissions.get(uid);
         if (perms == null) return false;
 
         // First look for exact match
@@ -9741,16 +9890,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
 
         // No exact match, look for prefixes
-        final int N = perms.size();
-        for (int i = 0; i < N; i++) {
-            final UriPermission perm = perms.valueAt(i);
-            if (perm.uri.prefix && grantUri.uri.isPathPrefixMatch(perm.uri.uri)
-                    && perm.getStrength(modeFlags) >= minStrength) {
-                return true;
-            }
-        }
-
-        return false;
+        return perms.hasPrefixMatch(grantUri.uri, modeFlags, minStrength);
     }
 
     /**
@@ -10208,8 +10348,7 @@ public class ActivityManagerService extends IActivityManager.Stub
     @GuardedBy("this")
     void removeUriPermissionIfNeededLocked(UriPermission perm) {
         if (perm.modeFlags == 0) {
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(
-                    perm.targetUid);
+            final UriPermissionMap perms = mGrantedUriPermissions.get(perm.targetUid);
             if (perms != null) {
                 if (DEBUG_URI_PERMISSION) Slog.v(TAG_URI_PERMISSION,
                         "Removing " + perm.targetUid + " permission to " + perm.uri);
@@ -10242,7 +10381,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (!checkHoldingPermissionsLocked(pm, pi, grantUri, callingUid, modeFlags)) {
             // If they don't have direct access to the URI, then revoke any
             // ownerless URI permissions that have been granted to them.
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(callingUid);
+            final UriPermissionMap perms = mGrantedUriPermissions.get(callingUid);
             if (perms != null) {
                 boolean persistChanged = false;
                 for (int i = perms.size()-1; i >= 0; i--) {
@@ -10277,7 +10416,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         // Go through all of the permissions and remove any that match.
         for (int i = mGrantedUriPermissions.size()-1; i >= 0; i--) {
             final int targetUid = mGrantedUriPermissions.keyAt(i);
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+            final UriPermissionMap perms = mGrantedUriPermissions.valueAt(i);
 
             for (int j = perms.size()-1; j >= 0; j--) {
                 final UriPermission perm = perms.valueAt(j);
@@ -10369,13 +10508,13 @@ public class ActivityManagerService extends IActivityManager.Stub
         int N = mGrantedUriPermissions.size();
         for (int i = 0; i < N; i++) {
             final int targetUid = mGrantedUriPermissions.keyAt(i);
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+            final UriPermissionMap perms = mGrantedUriPermissions.valueAt(i);
 
             // Only inspect grants matching user
             if (userHandle == UserHandle.USER_ALL
                     || userHandle == UserHandle.getUserId(targetUid)) {
-                for (Iterator<UriPermission> it = perms.values().iterator(); it.hasNext();) {
-                    final UriPermission perm = it.next();
+                for (int j = perms.size() - 1; j >= 0; j--) {
+                    final UriPermission perm = perms.valueAt(j);
 
                     // Only inspect grants matching package
                     if (packageName == null || (!targetOnly && perm.sourcePkg.equals(packageName))
@@ -10392,7 +10531,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         // Only remove when no modes remain; any persisted grants
                         // will keep this alive.
                         if (perm.modeFlags == 0) {
-                            it.remove();
+                            perms.removeAt(j);
                         }
                     }
                 }
@@ -10504,8 +10643,12 @@ public class ActivityManagerService extends IActivityManager.Stub
         synchronized (this) {
             final int size = mGrantedUriPermissions.size();
             for (int i = 0; i < size; i++) {
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
-                for (UriPermission perm : perms.values()) {
+                final UriPermissionMap perms = mGrantedUriPermissions.valueAt(i);
+                if (perms.getPersistedCount() == 0) {
+                    continue;
+                }
+                for (int j = 0; j < perms.size(); j++) {
+                    final UriPermission perm = perms.valueAt(j);
                     if (perm.persistedModeFlags != 0) {
                         persist.add(perm.snapshot());
                     }
@@ -10730,12 +10873,13 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     @GuardedBy("this")
     private boolean maybePrunePersistedUriGrantsLocked(int uid) {
-        final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(uid);
+        final UriPermissionMap perms = mGrantedUriPermissions.get(uid);
         if (perms == null) return false;
-        if (perms.size() < MAX_PERSISTED_URI_GRANTS) return false;
+        if (perms.getPersistedCount() <= MAX_PERSISTED_URI_GRANTS) return false;
 
         final ArrayList<UriPermission> persisted = Lists.newArrayList();
-        for (UriPermission perm : perms.values()) {
+        for (int i = 0; i < perms.size(); i++) {
+            final UriPermission perm = perms.valueAt(i);
             if (perm.persistedModeFlags != 0) {
                 persisted.add(perm);
             }
@@ -10781,8 +10925,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         final ArrayList<android.content.UriPermission> result = Lists.newArrayList();
         synchronized (this) {
             if (incoming) {
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(
-                        callingUid);
+                final UriPermissionMap perms = mGrantedUriPermissions.get(callingUid);
                 if (perms == null) {
                     Slog.w(TAG, "No permission grants found for " + packageName);
                 } else {
@@ -10796,8 +10939,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             } else {
                 final int size = mGrantedUriPermissions.size();
                 for (int i = 0; i < size; i++) {
-                    final ArrayMap<GrantUri, UriPermission> perms =
-                            mGrantedUriPermissions.valueAt(i);
+                    final UriPermissionMap perms = mGrantedUriPermissions.valueAt(i);
                     for (int j = 0; j < perms.size(); j++) {
                         final UriPermission perm = perms.valueAt(j);
                         if (packageName.equals(perm.sourcePkg) && perm.persistedModeFlags != 0) {
@@ -10820,7 +10962,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         synchronized (this) {
             final int size = mGrantedUriPermissions.size();
             for (int i = 0; i < size; i++) {
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+                final UriPermissionMap perms = mGrantedUriPermissions.valueAt(i);
                 for (int j = 0; j < perms.size(); j++) {
                     final UriPermission perm = perms.valueAt(j);
                     if ((packageName == null || packageName.equals(perm.targetPkg))
@@ -10959,10 +11101,25 @@ public class ActivityManagerService extends IActivityManager.Stub
                 android.Manifest.permission.GET_DETAILED_TASKS)
                         == PackageManager.PERMISSION_GRANTED;
 
+        final ParceledListSlice<ActivityManager.RecentTaskInfo> recentTasks;
         synchronized (this) {
-            return mRecentTasks.getRecentTasks(maxNum, flags, allowed, detailed, userId,
+            recentTasks = mRecentTasks.getRecentTasks(maxNum, flags, allowed, detailed, userId,
                     callingUid);
+            if (!mRecentTasks.isCallerRecents(callingUid)) {
+                return recentTasks;
+            }
+        }
+
+        // Recents is about to show the tasks, so restore their snapshots ahead of it asking.
+        final List<ActivityManager.RecentTaskInfo> tasks = recentTasks.getList();
+        final int[] taskIds = new int[tasks.size()];
+        final int[] userIds = new int[tasks.size()];
+        for (int i = 0; i < tasks.size(); i++) {
+            taskIds[i] = tasks.get(i).persistentId;
+            userIds[i] = tasks.get(i).userId;
         }
+        mWindowManager.preloadTaskSnapshots(taskIds, userIds);
+        return recentTasks;
     }
 
     @Override
@@ -12237,7 +12394,7 @@ public class ActivityManagerService extends IActivityManager.Stub
      * Returns if the ContentProvider has granted a uri to callingUid
      */
     boolean checkAuthorityGrants(int callingUid, ProviderInfo cpi, int userId, boolean checkUser) {
-        final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(callingUid);
+        final UriPermissionMap perms = mGrantedUriPermissions.get(callingUid);
         if (perms != null) {
             for (int i=perms.size()-1; i>=0; i--) {
                 GrantUri grantUri = perms.keyAt(i);
@@ -12893,7 +13050,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    updateOomAdjForConnectionLocked(conn.provider.proc);
                 }
             }
         } finally {
@@ -12927,7 +13084,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked();
+                    updateOomAdjForConnectionLocked(localCpr.proc);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -17108,9 +17265,11 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
             pw.print("  Process LRU list (sorted by oom_adj, "); pw.print(mLruProcesses.size());
                     pw.print(" total, non-act at ");
-                    pw.print(mLruProcesses.size()-mLruProcessActivityStart);
+                    pw.print(mLruProcesses.size()
+                            - mLruProcesses.getRegionStart(ProcessLruList.REGION_ACTIVITY));
                     pw.print(", non-svc at ");
-                    pw.print(mLruProcesses.size()-mLruProcessServiceStart);
+                    pw.print(mLruProcesses.size()
+                            - mLruProcesses.getRegionStart(ProcessLruList.REGION_SERVICE));
                     pw.println("):");
             dumpProcessOomList(pw, this, mLruProcesses, "    ", "Proc", "PERS", false, dumpPackage);
             needSep = true;
@@ -17450,6 +17609,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                dumpOomAdjStatsLocked(pw, "  ");
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -17551,8 +17711,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             long lruToken = proto.start(ActivityManagerServiceDumpProcessesProto.LRU_PROCS);
             int total = mLruProcesses.size();
             proto.write(ActivityManagerServiceDumpProcessesProto.LruProcesses.SIZE, total);
-            proto.write(ActivityManagerServiceDumpProcessesProto.LruProcesses.NON_ACT_AT, total-mLruProcessActivityStart);
-            proto.write(ActivityManagerServiceDumpProcessesProto.LruProcesses.NON_SVC_AT, total-mLruProcessServiceStart);
+            proto.write(ActivityManagerServiceDumpProcessesProto.LruProcesses.NON_ACT_AT,
+                    total - mLruProcesses.getRegionStart(ProcessLruList.REGION_ACTIVITY));
+            proto.write(ActivityManagerServiceDumpProcessesProto.LruProcesses.NON_SVC_AT,
+                    total - mLruProcesses.getRegionStart(ProcessLruList.REGION_SERVICE));
             writeProcessOomListToProto(proto, ActivityManagerServiceDumpProcessesProto.LruProcesses.LIST, this,
                     mLruProcesses,false, dumpPackage);
             proto.end(lruToken);
@@ -17884,9 +18046,11 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (needSep) pw.println();
             pw.print("  Process OOM control ("); pw.print(mLruProcesses.size());
                     pw.print(" total, non-act at ");
-                    pw.print(mLruProcesses.size()-mLruProcessActivityStart);
+                    pw.print(mLruProcesses.size()
+                            - mLruProcesses.getRegionStart(ProcessLruList.REGION_ACTIVITY));
                     pw.print(", non-svc at ");
-                    pw.print(mLruProcesses.size()-mLruProcessServiceStart);
+                    pw.print(mLruProcesses.size()
+                            - mLruProcesses.getRegionStart(ProcessLruList.REGION_SERVICE));
                     pw.println("):");
             dumpProcessOomList(pw, this, mLruProcesses, "    ", "Proc", "PERS", true, null);
             needSep = true;
@@ -18346,7 +18510,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (dumpUid >= -1 && UserHandle.getAppId(uid) != dumpUid) {
                     continue;
                 }
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+                final UriPermissionMap perms = mGrantedUriPermissions.valueAt(i);
                 if (!printed) {
                     if (needSep) pw.println();
                     needSep = true;
@@ -18355,7 +18519,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                     printedAnything = true;
                 }
                 pw.print("  * UID "); pw.print(uid); pw.println(" holds:");
-                for (UriPermission perm : perms.values()) {
+                for (int j = 0; j < perms.size(); j++) {
+                    final UriPermission perm = perms.valueAt(j);
                     pw.print("    "); pw.println(perm);
                     if (dumpAll) {
                         perm.dump(pw, "      ");
@@ -21090,7 +21255,8 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     boolean isPendingBroadcastProcessLocked(int pid) {
         return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
+                || mOffloadBroadcastQueue.isPendingBroadcastProcessLocked(pid);
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -22007,7 +22173,8 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
 
         final boolean replacePending =
-                (intent.getFlags()&Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0;
+                (intent.getFlags()&Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0
+                || (brOptions != null && brOptions.getCoalescingExtraKey() != null);
 
         if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing broadcast: " + intent.getAction()
                 + " replacePending=" + replacePending);
@@ -22347,9 +22514,14 @@ public class ActivityManagerService extends IActivityManager.Stub
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
+                BroadcastQueue queue = broadcastQueueForFlags(flags);
                 r = queue.getMatchingOrderedReceiver(who);
+                if (r == null && (flags & Intent.FLAG_RECEIVER_OFFLOAD) != 0) {
+                    // The offload queue may have been turned on or off since the broadcast
+                    // was sent.
+                    r = (queue == mBgBroadcastQueue ? mOffloadBroadcastQueue : mBgBroadcastQueue)
+                            .getMatchingOrderedReceiver(who);
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -24368,6 +24540,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
         proc.lastPss = pss;
         proc.lastSwapPss = swapPss;
+        proc.lastPssRss = rss;
         if (procState >= ActivityManager.PROCESS_STATE_HOME) {
             proc.lastCachedPss = pss;
             proc.lastCachedSwapPss = swapPss;
@@ -24463,10 +24636,46 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (DEBUG_PSS) Slog.d(TAG_PSS, "Requesting pss of: " + proc);
         proc.pssProcState = procState;
         proc.pssStatType = ProcessStats.ADD_PSS_INTERNAL_SINGLE;
-        mPendingPssProcesses.add(proc);
+        addPendingPssLocked(proc, SystemClock.uptimeMillis());
         return true;
     }
 
+    /**
+     * Queues a process for PSS collection.  Processes whose state changed since their last
+     * sample go ahead of those that are merely due for another sample of the same state.
+     */
+    @GuardedBy("this")
+    private void addPendingPssLocked(ProcessRecord proc, long now) {
+        proc.pssRequestTime = now;
+        proc.pssStateChanged = proc.lastStateTime > proc.lastPssTime;
+        if (!proc.pssStateChanged) {
+            mPendingPssProcesses.add(proc);
+            return;
+        }
+        final int N = mPendingPssProcesses.size();
+        int i = 0;
+        while (i < N && mPendingPssProcesses.get(i).pssStateChanged) {
+            i++;
+        }
+        mPendingPssProcesses.add(i, proc);
+    }
+
+    /**
+     * Returns whether the pending PSS collection of a process can read its RSS first, and
+     * skip the PSS if the RSS stayed within
+     * {@link ActivityManagerConstants#PSS_RSS_CHANGE_THRESHOLD} percent of what it was at the
+     * last sample.  The first sample of a new state, explicit polls and
+     * processes without a recent PSS always read the PSS.
+     */
+    @GuardedBy("this")
+    private boolean canCheckRssFirstLocked(ProcessRecord proc, long now) {
+        return !mTestPssMode && mConstants.PSS_RSS_CHANGE_THRESHOLD > 0
+                && !proc.pssStateChanged
+                && proc.pssStatType != ProcessStats.ADD_PSS_INTERNAL_ALL_POLL
+                && proc.lastPssRss > 0
+                && now < (proc.lastPssTime + ProcessList.PSS_MAX_INTERVAL);
+    }
+
     /**
      * Schedule PSS collection of all processes.
      */
@@ -24500,7 +24709,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         : ProcessStats.ADD_PSS_INTERNAL_ALL_MEM;
                 app.nextPssTime = ProcessList.computeNextPssTime(app.curProcState,
                         app.procStateMemTracker, mTestPssMode, isSleepingLocked(), now);
-                mPendingPssProcesses.add(app);
+                addPendingPssLocked(app, now);
             }
         }
         if (!mBgHandler.hasMessages(COLLECT_PSS_BG_MSG)) {
@@ -25262,7 +25471,9 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     /**
-     * Update OomAdj for a specific process.
+     * Update OomAdj for a specific process.  When incremental updates are enabled, the
+     * processes whose importance derives from it are updated too, see
+     * {@link #collectOomAdjDependentsLocked}.
      * @param app The process to update
      * @param oomAdjAll If it's ok to call updateOomAdjLocked() for all running apps
      *                  if necessary, or skip.
@@ -25272,31 +25483,139 @@ public class ActivityManagerService extends IActivityManager.Stub
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
-        final boolean wasCached = app.cached;
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+
+        final ArrayList<ProcessRecord> procs = new ArrayList<>();
+        procs.add(app);
+        boolean needOomAdjAll = mConstants.OOM_ADJ_INCREMENTAL
+                && !collectOomAdjDependentsLocked(procs, mConstants.OOM_ADJ_INCREMENTAL_MAX_PROCS);
 
         mAdjSeq++;
 
-        // This is the desired cached adjusment we want to tell it to use.
-        // If our app is currently cached, we know it, and that is it.  Otherwise,
-        // we don't know it yet, and it needs to now be cached we will then
-        // need to do a complete oom adj.
-        final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
-                ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
-        if (oomAdjAll
-                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
-            // Changed to/from cached state, so apps after it in the LRU
-            // list may also be changed.
+        final int N = procs.size();
+        final boolean[] wasCached = new boolean[N];
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = procs.get(i);
+            wasCached[i] = proc.cached;
+            proc.containsCycle = false;
+        }
+
+        boolean success = false;
+        final long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = procs.get(i);
+            // This is the desired cached adjusment we want to tell it to use.
+            // If our app is currently cached, we know it, and that is it.  Otherwise,
+            // we don't know it yet, and it needs to now be cached we will then
+            // need to do a complete oom adj.
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            final boolean procSuccess = updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+            if (proc == app) {
+                success = procSuccess;
+            }
+            if (wasCached[i] != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ
+                    || (mConstants.OOM_ADJ_INCREMENTAL && proc.containsCycle)) {
+                // Changed to/from cached state, so apps after it in the LRU
+                // list may also be changed.  Cycles are only resolved by a full update.
+                needOomAdjAll = true;
+            }
+        }
+
+        if (mConstants.OOM_ADJ_INCREMENTAL) {
+            mNumIncrementalOomAdjUpdates++;
+            mNumIncrementalOomAdjProcs += N;
+            mIncrementalOomAdjUpdateNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+        }
+
+        if (oomAdjAll && needOomAdjAll) {
+            if (mConstants.OOM_ADJ_INCREMENTAL) {
+                mNumIncrementalOomAdjFallbacks++;
+            }
             updateOomAdjLocked();
         }
         return success;
     }
 
+    /**
+     * Adds to {@code procs} the processes whose oom adj derives from the processes already in
+     * it, transitively: the processes hosting the services they are bound to and the content
+     * providers they are connected to.
+     *
+     * @return false if there are more than {@code maxProcs} such processes, in which case
+     *         {@code procs} is incomplete.
+     */
+    @GuardedBy("this")
+    private boolean collectOomAdjDependentsLocked(ArrayList<ProcessRecord> procs, int maxProcs) {
+        final ArraySet<ProcessRecord> seen = new ArraySet<>(procs);
+        for (int i = 0; i < procs.size(); i++) {
+            final ProcessRecord proc = procs.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ConnectionRecord cr = proc.connections.valueAt(j);
+                if ((cr.flags & Context.BIND_WAIVE_PRIORITY) != 0) {
+                    // The service doesn't get the client's importance.
+                    continue;
+                }
+                if (!addOomAdjDependentLocked(procs, seen, cr.binding.service.app, maxProcs)) {
+                    return false;
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ContentProviderConnection conn = proc.conProviders.get(j);
+                if (!addOomAdjDependentLocked(procs, seen, conn.provider.proc, maxProcs)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean addOomAdjDependentLocked(ArrayList<ProcessRecord> procs,
+            ArraySet<ProcessRecord> seen, ProcessRecord proc, int maxProcs) {
+        if (proc == null || proc.thread == null || seen.contains(proc)) {
+            return true;
+        }
+        if (procs.size() >= maxProcs) {
+            return false;
+        }
+        procs.add(proc);
+        seen.add(proc);
+        return true;
+    }
+
+    /**
+     * Updates OomAdj after a service connection or a content provider connection to the given
+     * process was removed, which can only have made it and its dependents less important.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjForConnectionLocked(ProcessRecord app) {
+        if (mConstants.OOM_ADJ_INCREMENTAL && app != null) {
+            updateOomAdjLocked(app, true);
+        } else {
+            updateOomAdjLocked();
+        }
+    }
+
+    @GuardedBy("this")
+    void dumpOomAdjStatsLocked(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Full oom adj updates: "); pw.print(mNumFullOomAdjUpdates);
+        pw.print(" procs="); pw.print(mNumFullOomAdjProcs);
+        pw.print(" avg="); pw.print(mNumFullOomAdjUpdates == 0 ? 0
+                : mFullOomAdjUpdateNanos / 1000 / mNumFullOomAdjUpdates);
+        pw.println("us");
+        pw.print(prefix); pw.print("Incremental oom adj updates: ");
+        pw.print(mNumIncrementalOomAdjUpdates);
+        pw.print(" procs="); pw.print(mNumIncrementalOomAdjProcs);
+        pw.print(" avg="); pw.print(mNumIncrementalOomAdjUpdates == 0 ? 0
+                : mIncrementalOomAdjUpdateNanos / 1000 / mNumIncrementalOomAdjUpdates);
+        pw.print("us fallbacks="); pw.println(mNumIncrementalOomAdjFallbacks);
+    }
+
     @GuardedBy("this")
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final long now = SystemClock.uptimeMillis();
         final long nowElapsed = SystemClock.elapsedRealtime();
         final long oldTime = now - ProcessList.MAX_EMPTY_TIME;
@@ -25843,6 +26162,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             });
         }
 
+        mNumFullOomAdjUpdates++;
+        mNumFullOomAdjProcs += N;
+        mFullOomAdjUpdateNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+
         if (DEBUG_OOM_ADJ) {
             final long duration = SystemClock.uptimeMillis() - now;
             if (false) {
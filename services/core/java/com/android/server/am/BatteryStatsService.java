@@ -1230,6 +1230,8 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         pw.println("  --proto: write the current aggregate stats (without history) in proto format.");
         pw.println("  --history: show only history data.");
         pw.println("  --history-start <num>: show only history data starting at given time offset.");
+        pw.println("  --history-archive: show all history kept on disk, including the history");
+        pw.println("     from before the last reset.");
         pw.println("  --charged: only output data since last charged.");
         pw.println("  --daily: only output full daily data.");
         pw.println("  --reset: reset the stats, clearing all current data.");
@@ -1320,6 +1322,11 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                     }
                     historyStart = Long.parseLong(args[i]);
                     writeData = true;
+                } else if ("--history-archive".equals(arg)) {
+                    synchronized (mStats) {
+                        mStats.dumpHistoryArchiveLocked(pw, false);
+                        noOutput = true;
+                    }
                 } else if ("-c".equals(arg)) {
                     useCheckinFormat = true;
                     flags |= BatteryStats.DUMP_INCLUDE_HISTORY;
@@ -58,8 +58,9 @@ import static com.android.server.am.ActivityManagerDebugConfig.*;
 /**
  * BROADCASTS
  *
- * We keep two broadcast queues and associated bookkeeping, one for those at
- * foreground priority, and one for normal (background-priority) broadcasts.
+ * We keep three broadcast queues and associated bookkeeping, one for those at
+ * foreground priority, one for normal (background-priority) broadcasts, and
+ * one for heavy broadcasts offloaded from the background queue.
  */
 public final class BroadcastQueue {
     private static final String TAG = "BroadcastQueue";
@@ -129,6 +130,30 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Upper bounds, in milliseconds, of the buckets of {@link #mDispatchLatencies}.
+     * The last bucket counts everything slower.
+     */
+    static final long[] DISPATCH_LATENCY_BUCKETS_MS =
+            { 1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 60000 };
+
+    /**
+     * Histogram of how long broadcasts waited in this queue before being dispatched.
+     */
+    final int[] mDispatchLatencies = new int[DISPATCH_LATENCY_BUCKETS_MS.length + 1];
+    long mTotalDispatchLatency;
+
+    /**
+     * Number of broadcasts that replaced one that was still waiting to be dispatched.
+     */
+    int mReplacedCount;
+
+    /**
+     * Number of manifest receivers delivered in the same process and package as the
+     * previous receiver of their broadcast, without setting those up again.
+     */
+    int mBatchedReceiverCount;
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -228,6 +253,7 @@ public final class BroadcastQueue {
      * enqueueOrderedBroadcastLocked.
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
+        r.enqueueTime = SystemClock.uptimeMillis();
         r.enqueueClockTime = System.currentTimeMillis();
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
@@ -238,16 +264,16 @@ public final class BroadcastQueue {
     }
 
     /**
-     * Find the same intent from queued parallel broadcast, replace with a new one and return
-     * the old one.
+     * Find the same intent, or one the new broadcast can coalesce with, from queued parallel
+     * broadcast, replace with a new one and return the old one.
      */
     public final BroadcastRecord replaceParallelBroadcastLocked(BroadcastRecord r) {
         return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL");
     }
 
     /**
-     * Find the same intent from queued ordered broadcast, replace with a new one and return
-     * the old one.
+     * Find the same intent, or one the new broadcast can coalesce with, from queued ordered
+     * broadcast, replace with a new one and return the old one.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
         return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
@@ -256,14 +282,18 @@ public final class BroadcastQueue {
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
             BroadcastRecord r, String typeForLogging) {
         final Intent intent = r.intent;
+        final boolean replacePending =
+                (intent.getFlags() & Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0;
         for (int i = queue.size() - 1; i > 0; i--) {
             final BroadcastRecord old = queue.get(i);
-            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
+            if ((replacePending && old.userId == r.userId && intent.filterEquals(old.intent))
+                    || r.canCoalesce(old)) {
                 if (DEBUG_BROADCAST) {
                     Slog.v(TAG_BROADCAST, "***** DROPPING "
                             + typeForLogging + " [" + mQueueName + "]: " + intent);
                 }
                 queue.set(i, r);
+                mReplacedCount++;
                 return old;
             }
         }
@@ -271,7 +301,7 @@ public final class BroadcastQueue {
     }
 
     private final void processCurBroadcastLocked(BroadcastRecord r,
-            ProcessRecord app, boolean skipOomAdj) throws RemoteException {
+            ProcessRecord app, boolean skipOomAdj, boolean batched) throws RemoteException {
         if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
                 "Process cur broadcast " + r + " for app " + app);
         if (app.thread == null) {
@@ -286,7 +316,11 @@ public final class BroadcastQueue {
         r.curApp = app;
         app.curReceivers.add(r);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
-        mService.updateLruProcessLocked(app, false, null);
+        if (!batched) {
+            // A batched receiver runs right after the previous one in the same process,
+            // which has already been moved up for it.
+            mService.updateLruProcessLocked(app, false, null);
+        }
         if (!skipOomAdj) {
             mService.updateOomAdjLocked();
         }
@@ -299,8 +333,10 @@ public final class BroadcastQueue {
             if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST,
                     "Delivering to component " + r.curComponent
                     + ": " + r);
-            mService.notifyPackageUse(r.intent.getComponent().getPackageName(),
-                                      PackageManager.NOTIFY_PACKAGE_USE_BROADCAST_RECEIVER);
+            if (!batched) {
+                mService.notifyPackageUse(r.intent.getComponent().getPackageName(),
+                        PackageManager.NOTIFY_PACKAGE_USE_BROADCAST_RECEIVER);
+            }
             app.thread.scheduleReceiver(new Intent(r.intent), r.curReceiver,
                     mService.compatibilityInfoForPackageLocked(r.curReceiver.applicationInfo),
                     r.resultCode, r.resultData, r.resultExtras, r.ordered, r.userId,
@@ -319,6 +355,33 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Returns whether the current manifest receiver of {@code r} runs in the same process
+     * and package as the previous one, so that it can be delivered as a batch without
+     * setting up the process and package again.
+     */
+    boolean isBatchedReceiverLocked(BroadcastRecord r, ProcessRecord app) {
+        final boolean batched = app != null && app == r.batchApp
+                && r.curComponent.getPackageName().equals(r.batchPackage);
+        r.batchApp = null;
+        r.batchPackage = null;
+        return batched;
+    }
+
+    void processCurBroadcastToRunningAppLocked(BroadcastRecord r, ProcessRecord app,
+            boolean skipOomAdj, boolean batched) throws RemoteException {
+        if (!batched) {
+            app.addPackage(r.curReceiver.packageName,
+                    r.curReceiver.applicationInfo.versionCode, mService.mProcessStats);
+        }
+        processCurBroadcastLocked(r, app, skipOomAdj, batched);
+        if (batched) {
+            mBatchedReceiverCount++;
+        }
+        r.batchApp = app;
+        r.batchPackage = r.curComponent.getPackageName();
+    }
+
     public boolean sendPendingBroadcastsLocked(ProcessRecord app) {
         boolean didSomething = false;
         final BroadcastRecord br = mPendingBroadcast;
@@ -330,7 +393,7 @@ public final class BroadcastQueue {
             }
             try {
                 mPendingBroadcast = null;
-                processCurBroadcastLocked(br, app, false);
+                processCurBroadcastLocked(br, app, false, false);
                 didSomething = true;
             } catch (Exception e) {
                 Slog.w(TAG, "Exception in new application when starting receiver "
@@ -424,6 +487,11 @@ public final class BroadcastQueue {
         r.curFilter = null;
         r.curReceiver = null;
         r.curApp = null;
+        if (r.receivers == null || r.nextReceiver >= r.receivers.size()) {
+            // Nothing left to batch with, don't keep the process around in the history.
+            r.batchApp = null;
+            r.batchPackage = null;
+        }
         mPendingBroadcast = null;
 
         r.resultCode = resultCode;
@@ -845,6 +913,7 @@ public final class BroadcastQueue {
             r = mParallelBroadcasts.remove(0);
             r.dispatchTime = SystemClock.uptimeMillis();
             r.dispatchClockTime = System.currentTimeMillis();
+            noteDispatchLatencyLocked(r);
 
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -1012,6 +1081,7 @@ public final class BroadcastQueue {
         if (recIdx == 0) {
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
+            noteDispatchLatencyLocked(r);
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                     createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1329,22 +1399,25 @@ public final class BroadcastQueue {
                     brOptions.getTemporaryAppWhitelistDuration(), r);
         }
 
+        final boolean batched = isBatchedReceiverLocked(r, app);
+
         // Broadcast is being executed, its package can't be stopped.
-        try {
-            AppGlobals.getPackageManager().setPackageStoppedState(
-                    r.curComponent.getPackageName(), false, UserHandle.getUserId(r.callingUid));
-        } catch (RemoteException e) {
-        } catch (IllegalArgumentException e) {
-            Slog.w(TAG, "Failed trying to unstop package "
-                    + r.curComponent.getPackageName() + ": " + e);
+        if (!batched) {
+            try {
+                AppGlobals.getPackageManager().setPackageStoppedState(
+                        r.curComponent.getPackageName(), false,
+                        UserHandle.getUserId(r.callingUid));
+            } catch (RemoteException e) {
+            } catch (IllegalArgumentException e) {
+                Slog.w(TAG, "Failed trying to unstop package "
+                        + r.curComponent.getPackageName() + ": " + e);
+            }
         }
 
         // Is this receiver's application already running?
         if (app != null && app.thread != null && !app.killed) {
             try {
-                app.addPackage(info.activityInfo.packageName,
-                        info.activityInfo.applicationInfo.versionCode, mService.mProcessStats);
-                processCurBroadcastLocked(r, app, skipOomAdj);
+                processCurBroadcastToRunningAppLocked(r, app, skipOomAdj, batched);
                 return;
             } catch (RemoteException e) {
                 Slog.w(TAG, "Exception when sending broadcast to "
@@ -1531,6 +1604,9 @@ public final class BroadcastQueue {
             return;
         }
         original.finishTime = SystemClock.uptimeMillis();
+        // The broadcast may also finish by skipping or aborting its remaining receivers.
+        original.batchApp = null;
+        original.batchPackage = null;
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
             Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -1608,6 +1684,17 @@ public final class BroadcastQueue {
                 record.intent == null ? "" : record.intent.getAction());
     }
 
+    private void noteDispatchLatencyLocked(BroadcastRecord r) {
+        final long latency = r.dispatchTime - r.enqueueTime;
+        int bucket = 0;
+        while (bucket < DISPATCH_LATENCY_BUCKETS_MS.length
+                && latency >= DISPATCH_LATENCY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        mDispatchLatencies[bucket]++;
+        mTotalDispatchLatency += latency;
+    }
+
     final boolean isIdle() {
         return mParallelBroadcasts.isEmpty() && mOrderedBroadcasts.isEmpty()
                 && (mPendingBroadcast == null);
@@ -1822,6 +1909,39 @@ public final class BroadcastQueue {
             } while (ringIndex != lastIndex);
         }
 
+        if (dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            dumpDispatchLatenciesLocked(pw);
+        }
+
         return needSep;
     }
+
+    private void dumpDispatchLatenciesLocked(PrintWriter pw) {
+        int count = 0;
+        for (int latencies : mDispatchLatencies) {
+            count += latencies;
+        }
+        pw.print("  Dispatch latency [" + mQueueName + "]: "); pw.print(count);
+                pw.print(" dispatched, avg=");
+                pw.print(count > 0 ? mTotalDispatchLatency / count : 0);
+                pw.print("ms replaced="); pw.print(mReplacedCount);
+                pw.print(" batched="); pw.println(mBatchedReceiverCount);
+        if (count == 0) {
+            return;
+        }
+        pw.print("   ");
+        for (int i = 0; i < mDispatchLatencies.length; i++) {
+            if (i < DISPATCH_LATENCY_BUCKETS_MS.length) {
+                pw.print(" <"); pw.print(DISPATCH_LATENCY_BUCKETS_MS[i]);
+            } else {
+                pw.print(" >="); pw.print(DISPATCH_LATENCY_BUCKETS_MS[i - 1]);
+            }
+            pw.print("ms="); pw.print(mDispatchLatencies[i]);
+        }
+        pw.println();
+    }
 }
@@ -37,6 +37,7 @@ import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -58,9 +59,11 @@ final class BroadcastRecord extends Binder {
     final String[] requiredPermissions; // permissions the caller has required
     final int appOp;        // an app op that is associated with this broadcast
     final BroadcastOptions options; // BroadcastOptions supplied by caller
+    final Object coalescingValue; // value of the coalescing extra, if any
     final List receivers;   // contains BroadcastFilter and ResolveInfo
     final int[] delivery;   // delivery state of each receiver
     IIntentReceiver resultTo; // who receives final result if non-null
+    long enqueueTime;       // when the broadcast was enqueued
     long enqueueClockTime;  // the clock time the broadcast was enqueued
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
@@ -99,6 +102,11 @@ final class BroadcastRecord extends Binder {
     ComponentName curComponent; // the receiver class that is currently running.
     ActivityInfo curReceiver;   // info about the receiver that is currently running.
 
+    // Where the last manifest receiver ran, so that further receivers in the same
+    // process and package can be delivered without setting them up again.
+    ProcessRecord batchApp;
+    String batchPackage;
+
     void dump(PrintWriter pw, String prefix, SimpleDateFormat sdf) {
         final long now = SystemClock.uptimeMillis();
 
@@ -235,6 +243,9 @@ final class BroadcastRecord extends Binder {
         requiredPermissions = _requiredPermissions;
         appOp = _appOp;
         options = _options;
+        final String coalescingKey = _options != null ? _options.getCoalescingExtraKey() : null;
+        final Bundle extras = coalescingKey != null ? _intent.getExtras() : null;
+        coalescingValue = extras != null ? extras.get(coalescingKey) : null;
         receivers = _receivers;
         delivery = new int[_receivers != null ? _receivers.size() : 0];
         resultTo = _resultTo;
@@ -270,9 +281,11 @@ final class BroadcastRecord extends Binder {
         requiredPermissions = from.requiredPermissions;
         appOp = from.appOp;
         options = from.options;
+        coalescingValue = from.coalescingValue;
         receivers = from.receivers;
         delivery = from.delivery;
         resultTo = from.resultTo;
+        enqueueTime = from.enqueueTime;
         enqueueClockTime = from.enqueueClockTime;
         dispatchTime = from.dispatchTime;
         dispatchClockTime = from.dispatchClockTime;
@@ -298,6 +311,22 @@ final class BroadcastRecord extends Binder {
         return new BroadcastRecord(this, intent.maybeStripForHistory());
     }
 
+    /**
+     * Returns whether this broadcast may replace {@code other} while it waits to be
+     * dispatched, see {@link BroadcastOptions#setCoalescingExtraKey}.
+     */
+    boolean canCoalesce(BroadcastRecord other) {
+        final String extraKey = options != null ? options.getCoalescingExtraKey() : null;
+        if (extraKey == null || other.options == null
+                || !extraKey.equals(other.options.getCoalescingExtraKey())) {
+            return false;
+        }
+        return callingUid == other.callingUid && userId == other.userId
+                && ordered == other.ordered
+                && Objects.equals(intent.getAction(), other.intent.getAction())
+                && Objects.equals(coalescingValue, other.coalescingValue);
+    }
+
     boolean cleanupDisabledPackageReceiversLocked(
             String packageName, Set<String> filterByClasses, int userId, boolean doit) {
         final boolean cleanUpAllUser = userId == UserHandle.USER_ALL;
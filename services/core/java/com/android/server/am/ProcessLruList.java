@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * The list of running processes, sorted by recent usage. The first entry in the list is the
+ * least recently used.
+ *
+ * <p>The list is split into regions which, from the bottom up, hold the processes not otherwise
+ * of interest, the processes hosting services and the processes hosting activities. Each region
+ * is a linked list threaded through its {@link ProcessRecord}s, which also carry an order key
+ * within their region, so moving a process, removing it and comparing the positions of two
+ * processes take constant time. Index based access, as used by the oom adj pass and the dumps,
+ * is served from an array that is rebuilt on the first access after the list changed.
+ *
+ * <p>Not thread safe; guarded by the {@link ActivityManagerService} lock.
+ */
+final class ProcessLruList extends AbstractList<ProcessRecord> {
+    static final int REGION_NONE = -1;
+    static final int REGION_OTHER = 0;
+    static final int REGION_SERVICE = 1;
+    static final int REGION_ACTIVITY = 2;
+    private static final int REGION_COUNT = 3;
+
+    // Distance between the order keys of neighbours when a region is numbered, so that most
+    // insertions fit between two existing keys.
+    private static final long ORDER_GAP = 1L << 20;
+
+    private final ProcessRecord[] mBottoms = new ProcessRecord[REGION_COUNT];
+    private final ProcessRecord[] mTops = new ProcessRecord[REGION_COUNT];
+    private final int[] mSizes = new int[REGION_COUNT];
+    private int mSize;
+
+    // Index based view of the list, valid while mArrayValid is true.
+    private ProcessRecord[] mArray = new ProcessRecord[16];
+    private int mArrayCount;
+    private boolean mArrayValid = true;
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public ProcessRecord get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+        ensureArray();
+        return mArray[index];
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof ProcessRecord && ((ProcessRecord) o).lruList == this;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!contains(o)) {
+            return -1;
+        }
+        ensureArray();
+        return ((ProcessRecord) o).lruIndex;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // A process is on the list at most once.
+        return indexOf(o);
+    }
+
+    /**
+     * Adds the process at the top of the list, i.e. as the most recently used process hosting
+     * activities. Moves it there if it already is on the list.
+     */
+    @Override
+    public boolean add(ProcessRecord app) {
+        if (app.lruList == this) {
+            unlink(app);
+        }
+        addTop(app, REGION_ACTIVITY);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        unlink((ProcessRecord) o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (int region = 0; region < REGION_COUNT; region++) {
+            for (ProcessRecord app = mBottoms[region]; app != null; ) {
+                final ProcessRecord next = app.lruNext;
+                app.lruList = null;
+                app.lruPrev = app.lruNext = null;
+                app = next;
+            }
+            mBottoms[region] = mTops[region] = null;
+            mSizes[region] = 0;
+        }
+        mSize = 0;
+        changed();
+    }
+
+    /**
+     * Returns the region the process is in, or {@link #REGION_NONE} if it is not on the list.
+     */
+    int getRegion(ProcessRecord app) {
+        return app.lruList == this ? app.lruRegion : REGION_NONE;
+    }
+
+    /**
+     * Returns the index at which the given region starts, i.e. the number of processes in the
+     * regions below it.
+     */
+    int getRegionStart(int region) {
+        int start = 0;
+        for (int i = 0; i < region; i++) {
+            start += mSizes[i];
+        }
+        return start;
+    }
+
+    int getRegionSize(int region) {
+        return mSizes[region];
+    }
+
+    /**
+     * Returns the most recently used process of the whole list, or null if it is empty.
+     */
+    ProcessRecord getTop() {
+        for (int region = REGION_COUNT - 1; region >= 0; region--) {
+            if (mTops[region] != null) {
+                return mTops[region];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the most recently used process of the given region, or null if it is empty.
+     */
+    ProcessRecord getTop(int region) {
+        return mTops[region];
+    }
+
+    /**
+     * Returns the process directly below the given one in the same region, or null if it is
+     * the bottom of its region.
+     */
+    ProcessRecord getBelow(ProcessRecord app) {
+        checkOnList(app);
+        return app.lruPrev;
+    }
+
+    /**
+     * Returns whether {@code app} is further down the list, i.e. less recently used, than
+     * {@code other}. Both processes must be on the list.
+     */
+    boolean isBelow(ProcessRecord app, ProcessRecord other) {
+        checkOnList(app);
+        checkOnList(other);
+        if (app.lruRegion != other.lruRegion) {
+            return app.lruRegion < other.lruRegion;
+        }
+        return app.lruOrder < other.lruOrder;
+    }
+
+    /**
+     * Adds a process that is not on the list at the top of the given region.
+     */
+    void addTop(ProcessRecord app, int region) {
+        checkNotOnList(app);
+        final ProcessRecord top = mTops[region];
+        if (top != null && top.lruOrder > Long.MAX_VALUE - ORDER_GAP) {
+            renumber(region);
+        }
+        app.lruOrder = top != null ? top.lruOrder + ORDER_GAP : 0;
+        link(app, region, top, null);
+    }
+
+    /**
+     * Adds a process that is not on the list directly below {@code anchor}, in the region of
+     * {@code anchor}.
+     */
+    void addBelow(ProcessRecord app, ProcessRecord anchor) {
+        checkNotOnList(app);
+        checkOnList(anchor);
+        final int region = anchor.lruRegion;
+        if (anchor.lruPrev == null) {
+            if (anchor.lruOrder < Long.MIN_VALUE + ORDER_GAP) {
+                renumber(region);
+            }
+            app.lruOrder = anchor.lruOrder - ORDER_GAP;
+        } else {
+            if (anchor.lruOrder - anchor.lruPrev.lruOrder < 2) {
+                renumber(region);
+            }
+            // Halve both keys first so that their sum can't overflow.
+            app.lruOrder = (anchor.lruPrev.lruOrder >> 1) + (anchor.lruOrder >> 1)
+                    + (anchor.lruPrev.lruOrder & anchor.lruOrder & 1);
+        }
+        link(app, region, anchor.lruPrev, anchor);
+    }
+
+    private void link(ProcessRecord app, int region, ProcessRecord prev, ProcessRecord next) {
+        app.lruList = this;
+        app.lruRegion = region;
+        app.lruPrev = prev;
+        app.lruNext = next;
+        if (prev != null) {
+            prev.lruNext = app;
+        } else {
+            mBottoms[region] = app;
+        }
+        if (next != null) {
+            next.lruPrev = app;
+        } else {
+            mTops[region] = app;
+        }
+        mSizes[region]++;
+        mSize++;
+        changed();
+    }
+
+    private void unlink(ProcessRecord app) {
+        final int region = app.lruRegion;
+        if (app.lruPrev != null) {
+            app.lruPrev.lruNext = app.lruNext;
+        } else {
+            mBottoms[region] = app.lruNext;
+        }
+        if (app.lruNext != null) {
+            app.lruNext.lruPrev = app.lruPrev;
+        } else {
+            mTops[region] = app.lruPrev;
+        }
+        app.lruList = null;
+        app.lruPrev = app.lruNext = null;
+        mSizes[region]--;
+        mSize--;
+        changed();
+    }
+
+    private void renumber(int region) {
+        long order = 0;
+        for (ProcessRecord app = mBottoms[region]; app != null; app = app.lruNext) {
+            app.lruOrder = order;
+            order += ORDER_GAP;
+        }
+    }
+
+    private void changed() {
+        modCount++;
+        mArrayValid = false;
+    }
+
+    private void ensureArray() {
+        if (mArrayValid) {
+            return;
+        }
+        if (mArray.length < mSize) {
+            mArray = new ProcessRecord[Math.max(mSize, mArray.length * 2)];
+        }
+        int index = 0;
+        for (int region = 0; region < REGION_COUNT; region++) {
+            for (ProcessRecord app = mBottoms[region]; app != null; app = app.lruNext) {
+                app.lruIndex = index;
+                mArray[index++] = app;
+            }
+        }
+        if (mArrayCount > index) {
+            // Don't hold on to processes that have been removed.
+            Arrays.fill(mArray, index, mArrayCount, null);
+        }
+        mArrayCount = index;
+        mArrayValid = true;
+    }
+
+    private void checkOnList(ProcessRecord app) {
+        if (app.lruList != this) {
+            throw new IllegalArgumentException("Not on the LRU list: " + app);
+        }
+    }
+
+    private void checkNotOnList(ProcessRecord app) {
+        if (app.lruList != null) {
+            throw new IllegalStateException("Already on an LRU list: " + app);
+        }
+    }
+}
@@ -91,6 +91,8 @@ final class ProcessRecord {
     long lastSwapPss;           // Last computed SwapPss.
     long lastCachedPss;         // Last computed pss when in cached state.
     long lastCachedSwapPss;     // Last computed SwapPss when in cached state.
+    long lastPssRss;            // RSS at the time of the last computed pss.
+    long pssRequestTime;        // Time the pending pss collection was requested
     int maxAdj;                 // Maximum OOM adjustment for this process
     int curRawAdj;              // Current OOM unlimited adjustment for this process
     int setRawAdj;              // Last set OOM unlimited adjustment for this process
@@ -106,6 +108,7 @@ final class ProcessRecord {
     int setProcState = PROCESS_STATE_NONEXISTENT; // Last set process state in process tracker
     int pssProcState = PROCESS_STATE_NONEXISTENT; // Currently requesting pss for
     int pssStatType;            // The type of stat collection that we are currently requesting
+    boolean pssStateChanged;    // The state changed since the last pss; collect it first
     int savedPriority;          // Previous priority value if we're switching to non-SCHED_OTHER
     int renderThreadTid;        // TID for RenderThread
     boolean serviceb;           // Process currently is on the service B list
@@ -153,6 +156,12 @@ final class ProcessRecord {
     int completedAdjSeq;        // Sequence id for identifying oom_adj assignment cycles
     boolean containsCycle;      // Whether this app has encountered a cycle in the most recent update
     int lruSeq;                 // Sequence id for identifying LRU update cycles
+    ProcessLruList lruList;     // The LRU list this process is on, if any
+    int lruRegion;              // Region of lruList holding this process
+    long lruOrder;              // Position within the region, ordered by recent usage
+    int lruIndex;               // Index in lruList, valid while its index view is current
+    ProcessRecord lruPrev;      // Less recently used neighbour in the same region
+    ProcessRecord lruNext;      // More recently used neighbour in the same region
     CompatibilityInfo compat;   // last used compatibility mode
     IBinder.DeathRecipient deathRecipient; // Who is watching for the death.
     ActiveInstrumentation instr;// Set to currently active instrumentation running in process
@@ -308,6 +317,7 @@ final class ProcessRecord {
                 pw.print(" lastSwapPss="); DebugUtils.printSizeValue(pw, lastSwapPss*1024);
                 pw.print(" lastCachedPss="); DebugUtils.printSizeValue(pw, lastCachedPss*1024);
                 pw.print(" lastCachedSwapPss="); DebugUtils.printSizeValue(pw, lastCachedSwapPss*1024);
+                pw.print(" lastPssRss="); DebugUtils.printSizeValue(pw, lastPssRss*1024);
                 pw.println();
         pw.print(prefix); pw.print("procStateMemTracker: ");
         procStateMemTracker.dumpLine(pw);
@@ -88,6 +88,42 @@ public final class ProcessStatsService extends IProcessStats.Stub {
     @GuardedBy("mAm")
     Boolean mInjectedScreenState;
 
+    /**
+     * Cost and staleness of the samples the activity manager took since boot, of samples that
+     * read the process pss and of samples that only read its rss.
+     */
+    @GuardedBy("mAm")
+    final PssSampleStats mFullPssSampleStats = new PssSampleStats();
+    @GuardedBy("mAm")
+    final PssSampleStats mRssSampleStats = new PssSampleStats();
+
+    static final class PssSampleStats {
+        int mCount;
+        long mTotalCpuTime;
+        long mMaxCpuTime;
+        long mTotalStaleness;
+        long mMaxStaleness;
+
+        void add(long cpuTime, long staleness) {
+            mCount++;
+            mTotalCpuTime += cpuTime;
+            mMaxCpuTime = Math.max(mMaxCpuTime, cpuTime);
+            mTotalStaleness += staleness;
+            mMaxStaleness = Math.max(mMaxStaleness, staleness);
+        }
+
+        void dump(PrintWriter pw, String label) {
+            pw.print("  "); pw.print(label); pw.print(": "); pw.print(mCount);
+            if (mCount > 0) {
+                pw.print(" cpu avg="); pw.print(mTotalCpuTime / mCount);
+                pw.print("ms max="); pw.print(mMaxCpuTime);
+                pw.print("ms, staleness avg="); pw.print(mTotalStaleness / mCount);
+                pw.print("ms max="); pw.print(mMaxStaleness); pw.print("ms");
+            }
+            pw.println();
+        }
+    }
+
     public ProcessStatsService(ActivityManagerService am, File file) {
         mAm = am;
         mBaseDir = file;
@@ -183,6 +219,18 @@ public final class ProcessStatsService extends IProcessStats.Stub {
         mProcessStats.addSysMemUsage(cachedMem, freeMem, zramMem, kernelMem, nativeMem);
     }
 
+    /**
+     * Notes a memory sample of a process.
+     *
+     * @param full whether the sample read the pss of the process, rather than only its rss.
+     * @param cpuTime the CPU time it took to read the sample.
+     * @param staleness the time between the request and the sample.
+     */
+    @GuardedBy("mAm")
+    public void notePssSampleLocked(boolean full, long cpuTime, long staleness) {
+        (full ? mFullPssSampleStats : mRssSampleStats).add(cpuTime, staleness);
+    }
+
     public boolean shouldWriteNowLocked(long now) {
         if (now > (mLastWriteTime+WRITE_PERIOD)) {
             if (SystemClock.elapsedRealtime()
@@ -1038,6 +1086,10 @@ public final class ProcessStatsService extends IProcessStats.Stub {
                     } else {
                         mProcessStats.dumpSummaryLocked(pw, reqPackage, now, activeOnly);
                     }
+                    pw.println();
+                    pw.println("MEMORY SAMPLES SINCE BOOT:");
+                    mFullPssSampleStats.dump(pw, "pss");
+                    mRssSampleStats.dump(pw, "rss");
                     sepNeeded = true;
                 }
             }
@@ -17,6 +17,7 @@
 package com.android.server.am;
 
 import android.annotation.NonNull;
+import android.app.ActivityManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Debug;
@@ -24,6 +25,7 @@ import android.os.Environment;
 import android.os.FileUtils;
 import android.os.Process;
 import android.os.SystemClock;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
@@ -31,7 +33,9 @@ import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.XmlUtils;
 import libcore.io.IoUtils;
@@ -53,6 +57,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import static com.android.server.am.ActivityStackSupervisor.MATCH_TASK_IN_STACKS_OR_RECENT_TASKS;
 
@@ -75,6 +80,9 @@ public class TaskPersister {
     /** Special value for mWriteTime to mean don't wait, just write */
     private static final long FLUSH_QUEUE = -1;
 
+    /** The number of threads encoding images, so a big image doesn't hold up the task files. */
+    private static final int IMAGE_WRITER_THREADS = 2;
+
     private static final String TASKS_DIRNAME = "recent_tasks";
     private static final String TASK_FILENAME_SUFFIX = "_task.xml";
     private static final String IMAGES_DIRNAME = "recent_images";
@@ -102,6 +110,8 @@ public class TaskPersister {
 
     private final LazyTaskWriterThread mLazyTaskWriterThread;
 
+    private final ExecutorService mImageWriter;
+
     private static class WriteQueueItem {}
 
     private static class TaskWriteQueueItem extends WriteQueueItem {
@@ -114,16 +124,41 @@ public class TaskPersister {
 
     private static class ImageWriteQueueItem extends WriteQueueItem {
         final String mFilePath;
+        final int mTaskId;
         Bitmap mImage;
+        /** Set once the image has been handed to the image writer and can't change anymore. */
+        boolean mWriting;
 
         ImageWriteQueueItem(String filePath, Bitmap image) {
             mFilePath = filePath;
+            mTaskId = getTaskIdFromFileName(new File(filePath).getName());
             mImage = image;
         }
     }
 
     ArrayList<WriteQueueItem> mWriteQueue = new ArrayList<WriteQueueItem>();
 
+    /**
+     * The pending write of each task, so that another change to a task that is already queued
+     * doesn't queue it again.  The task is saved as it is at the time of the write.
+     */
+    @GuardedBy("this")
+    private final SparseArray<TaskWriteQueueItem> mPendingTaskWrites = new SparseArray<>();
+
+    /**
+     * The latest image for each file that is queued or being written.  An image that is saved
+     * again while it is queued replaces the queued one; an image that is saved again while it
+     * is being written makes that write be dropped in favor of the new one.
+     */
+    @GuardedBy("this")
+    private final ArrayMap<String, ImageWriteQueueItem> mPendingImages = new ArrayMap<>();
+
+    @GuardedBy("this")
+    private int mImageWritesInFlight;
+
+    /** The size images are scaled down to when encoding at low cost, 0 if not known yet. */
+    private int mLowCostImageSize;
+
     TaskPersister(File systemDir, ActivityStackSupervisor stackSupervisor,
             ActivityManagerService service, RecentTasks recentTasks) {
 
@@ -146,6 +181,8 @@ public class TaskPersister {
         mService = service;
         mRecentTasks = recentTasks;
         mLazyTaskWriterThread = new LazyTaskWriterThread("LazyTaskWriterThread");
+        mImageWriter = ConcurrentUtils.newFixedThreadPool(IMAGE_WRITER_THREADS,
+                "TaskImageWriter", Process.THREAD_PRIORITY_BACKGROUND);
     }
 
     @VisibleForTesting
@@ -155,6 +192,8 @@ public class TaskPersister {
         mService = null;
         mRecentTasks = null;
         mLazyTaskWriterThread = new LazyTaskWriterThread("LazyTaskWriterThreadTest");
+        mImageWriter = ConcurrentUtils.newFixedThreadPool(IMAGE_WRITER_THREADS,
+                "TaskImageWriterTest", Process.THREAD_PRIORITY_BACKGROUND);
     }
 
     void startPersisting() {
@@ -163,23 +202,40 @@ public class TaskPersister {
         }
     }
 
+    @GuardedBy("this")
     private void removeThumbnails(TaskRecord task) {
-        final String taskString = Integer.toString(task.taskId);
         for (int queueNdx = mWriteQueue.size() - 1; queueNdx >= 0; --queueNdx) {
             final WriteQueueItem item = mWriteQueue.get(queueNdx);
             if (item instanceof ImageWriteQueueItem) {
-                final File thumbnailFile = new File(((ImageWriteQueueItem) item).mFilePath);
-                if (thumbnailFile.getName().startsWith(taskString)) {
+                final ImageWriteQueueItem imageItem = (ImageWriteQueueItem) item;
+                if (imageItem.mTaskId == task.taskId) {
                     if (DEBUG) {
-                        Slog.d(TAG, "Removing " + ((ImageWriteQueueItem) item).mFilePath +
-                                " from write queue");
+                        Slog.d(TAG, "Removing " + imageItem.mFilePath + " from write queue");
                     }
                     mWriteQueue.remove(queueNdx);
+                    mPendingImages.remove(imageItem.mFilePath);
                 }
             }
         }
     }
 
+    /**
+     * Returns the id of the task a task or image file belongs to, or -1 if the name doesn't
+     * start with one.
+     */
+    @VisibleForTesting
+    static int getTaskIdFromFileName(String filename) {
+        final int taskIdEnd = filename.indexOf('_');
+        if (taskIdEnd <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(filename.substring(0, taskIdEnd));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private void yieldIfQueueTooDeep() {
         boolean stall = false;
         synchronized (this) {
@@ -253,20 +309,16 @@ public class TaskPersister {
     void wakeup(TaskRecord task, boolean flush) {
         synchronized (this) {
             if (task != null) {
-                int queueNdx;
-                for (queueNdx = mWriteQueue.size() - 1; queueNdx >= 0; --queueNdx) {
-                    final WriteQueueItem item = mWriteQueue.get(queueNdx);
-                    if (item instanceof TaskWriteQueueItem &&
-                            ((TaskWriteQueueItem) item).mTask == task) {
-                        if (!task.inRecents) {
-                            // This task is being removed.
-                            removeThumbnails(task);
-                        }
-                        break;
+                final TaskWriteQueueItem pending = mPendingTaskWrites.get(task.taskId);
+                if (pending != null && pending.mTask == task) {
+                    if (!task.inRecents) {
+                        // This task is being removed.
+                        removeThumbnails(task);
                     }
-                }
-                if (queueNdx < 0 && task.isPersistable) {
-                    mWriteQueue.add(new TaskWriteQueueItem(task));
+                } else if (task.isPersistable) {
+                    final TaskWriteQueueItem item = new TaskWriteQueueItem(task);
+                    mPendingTaskWrites.put(task.taskId, item);
+                    mWriteQueue.add(item);
                 }
             } else {
                 // Dummy. Ensures removeObsoleteFiles is called when LazyTaskThreadWriter is
@@ -296,26 +348,20 @@ public class TaskPersister {
                     wait();
                 } catch (InterruptedException e) {
                 }
-            } while (mNextWriteTime == FLUSH_QUEUE);
+            } while (mNextWriteTime == FLUSH_QUEUE || mImageWritesInFlight > 0);
         }
     }
 
     void saveImage(Bitmap image, String filePath) {
         synchronized (this) {
-            int queueNdx;
-            for (queueNdx = mWriteQueue.size() - 1; queueNdx >= 0; --queueNdx) {
-                final WriteQueueItem item = mWriteQueue.get(queueNdx);
-                if (item instanceof ImageWriteQueueItem) {
-                    ImageWriteQueueItem imageWriteQueueItem = (ImageWriteQueueItem) item;
-                    if (imageWriteQueueItem.mFilePath.equals(filePath)) {
-                        // replace the Bitmap with the new one.
-                        imageWriteQueueItem.mImage = image;
-                        break;
-                    }
-                }
-            }
-            if (queueNdx < 0) {
-                mWriteQueue.add(new ImageWriteQueueItem(filePath, image));
+            final ImageWriteQueueItem pending = mPendingImages.get(filePath);
+            if (pending != null && !pending.mWriting) {
+                // replace the Bitmap with the new one.
+                pending.mImage = image;
+            } else {
+                final ImageWriteQueueItem item = new ImageWriteQueueItem(filePath, image);
+                mPendingImages.put(filePath, item);
+                mWriteQueue.add(item);
             }
             if (mWriteQueue.size() > MAX_WRITE_QUEUE_LENGTH) {
                 mNextWriteTime = FLUSH_QUEUE;
@@ -342,16 +388,8 @@ public class TaskPersister {
 
     Bitmap getImageFromWriteQueue(String filePath) {
         synchronized (this) {
-            for (int queueNdx = mWriteQueue.size() - 1; queueNdx >= 0; --queueNdx) {
-                final WriteQueueItem item = mWriteQueue.get(queueNdx);
-                if (item instanceof ImageWriteQueueItem) {
-                    ImageWriteQueueItem imageWriteQueueItem = (ImageWriteQueueItem) item;
-                    if (imageWriteQueueItem.mFilePath.equals(filePath)) {
-                        return imageWriteQueueItem.mImage;
-                    }
-                }
-            }
-            return null;
+            final ImageWriteQueueItem item = mPendingImages.get(filePath);
+            return item != null ? item.mImage : null;
         }
     }
 
@@ -546,15 +584,13 @@ public class TaskPersister {
             String filename = file.getName();
             final int taskIdEnd = filename.indexOf('_');
             if (taskIdEnd > 0) {
-                final int taskId;
-                try {
-                    taskId = Integer.parseInt(filename.substring(0, taskIdEnd));
-                    if (DEBUG) Slog.d(TAG, "removeObsoleteFiles: Found taskId=" + taskId);
-                } catch (Exception e) {
+                final int taskId = getTaskIdFromFileName(filename);
+                if (taskId < 0) {
                     Slog.wtf(TAG, "removeObsoleteFiles: Can't parse file=" + file.getName());
                     file.delete();
                     continue;
                 }
+                if (DEBUG) Slog.d(TAG, "removeObsoleteFiles: Found taskId=" + taskId);
                 if (!persistentTaskIds.contains(taskId)) {
                     if (DEBUG) Slog.d(TAG, "removeObsoleteFiles: deleting file=" + file.getName());
                     file.delete();
@@ -631,6 +667,69 @@ public class TaskPersister {
         return parentDir.exists() || parentDir.mkdirs();
     }
 
+    /**
+     * Encodes an image on the image writer pool.  The image is written to a temporary file
+     * first, which only replaces the image file if no newer image was saved for it meanwhile.
+     */
+    private void writeImage(ImageWriteQueueItem item) {
+        final String filePath = item.mFilePath;
+        final File file = new File(filePath);
+        final File tmpFile = new File(filePath + "." + System.identityHashCode(item) + ".tmp");
+        boolean written = false;
+        if (!createParentDirectory(filePath)) {
+            Slog.e(TAG, "Error while creating images directory for file: " + filePath);
+        } else {
+            final Bitmap bitmap = scaleImageForEncoding(item.mImage);
+            if (DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
+            FileOutputStream imageFile = null;
+            try {
+                imageFile = new FileOutputStream(tmpFile);
+                written = bitmap.compress(Bitmap.CompressFormat.PNG, 100, imageFile);
+                FileUtils.sync(imageFile);
+            } catch (Exception e) {
+                Slog.e(TAG, "saveImage: unable to save " + filePath, e);
+            } finally {
+                IoUtils.closeQuietly(imageFile);
+            }
+        }
+        synchronized (this) {
+            if (mPendingImages.get(filePath) == item) {
+                mPendingImages.remove(filePath);
+                if (written && !tmpFile.renameTo(file)) {
+                    Slog.e(TAG, "saveImage: unable to rename " + tmpFile + " to " + file);
+                }
+            } else if (DEBUG) {
+                Slog.d(TAG, "Dropping bitmap superseded while writing: filename=" + filePath);
+            }
+            tmpFile.delete();
+            mImageWritesInFlight--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the image to encode, scaled down to the launcher icon size if low cost encoding
+     * is enabled.
+     */
+    private Bitmap scaleImageForEncoding(Bitmap image) {
+        if (mService == null || !mService.mConstants.TASK_IMAGE_LOW_COST_ENCODING) {
+            return image;
+        }
+        if (mLowCostImageSize == 0) {
+            mLowCostImageSize = mService.mContext.getSystemService(ActivityManager.class)
+                    .getLauncherLargeIconSize();
+        }
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int size = Math.max(width, height);
+        if (size <= mLowCostImageSize) {
+            return image;
+        }
+        return Bitmap.createScaledBitmap(image,
+                Math.max(1, width * mLowCostImageSize / size),
+                Math.max(1, height * mLowCostImageSize / size), true /* filter */);
+    }
+
     private class LazyTaskWriterThread extends Thread {
 
         LazyTaskWriterThread(String name) {
@@ -696,6 +795,12 @@ public class TaskPersister {
                     // from now.
                 }
                 item = mWriteQueue.remove(0);
+                if (item instanceof TaskWriteQueueItem) {
+                    final TaskWriteQueueItem taskItem = (TaskWriteQueueItem) item;
+                    if (mPendingTaskWrites.get(taskItem.mTask.taskId) == taskItem) {
+                        mPendingTaskWrites.remove(taskItem.mTask.taskId);
+                    }
+                }
 
                 long now = SystemClock.uptimeMillis();
                 if (DEBUG) Slog.d(TAG, "LazyTaskWriter: now=" + now + " mNextWriteTime=" +
@@ -711,26 +816,15 @@ public class TaskPersister {
                 }
 
                 // Got something to do.
+                if (item instanceof ImageWriteQueueItem) {
+                    ((ImageWriteQueueItem) item).mWriting = true;
+                    mImageWritesInFlight++;
+                }
             }
 
             if (item instanceof ImageWriteQueueItem) {
-                ImageWriteQueueItem imageWriteQueueItem = (ImageWriteQueueItem) item;
-                final String filePath = imageWriteQueueItem.mFilePath;
-                if (!createParentDirectory(filePath)) {
-                    Slog.e(TAG, "Error while creating images directory for file: " + filePath);
-                    return;
-                }
-                final Bitmap bitmap = imageWriteQueueItem.mImage;
-                if (DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
-                FileOutputStream imageFile = null;
-                try {
-                    imageFile = new FileOutputStream(new File(filePath));
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, imageFile);
-                } catch (Exception e) {
-                    Slog.e(TAG, "saveImage: unable to save " + filePath, e);
-                } finally {
-                    IoUtils.closeQuietly(imageFile);
-                }
+                final ImageWriteQueueItem imageItem = (ImageWriteQueueItem) item;
+                mImageWriter.execute(() -> writeImage(imageItem));
             } else if (item instanceof TaskWriteQueueItem) {
                 // Write out one task.
                 StringWriter stringWriter = null;
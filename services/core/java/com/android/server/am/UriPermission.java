@@ -87,6 +87,10 @@ final class UriPermission {
 
     private String stringName;
 
+    /** The map of the grants of {@link #targetUid} while this is in it. */
+    private UriPermissionMap mMap;
+    private boolean mPersisted;
+
     UriPermission(String sourcePkg, String targetPkg, int targetUid, GrantUri uri) {
         this.targetUserId = UserHandle.getUserId(targetUid);
         this.sourcePkg = sourcePkg;
@@ -99,6 +103,14 @@ final class UriPermission {
         final int oldModeFlags = modeFlags;
         modeFlags = ownedModeFlags | globalModeFlags | persistableModeFlags | persistedModeFlags;
 
+        final boolean persisted = persistedModeFlags != 0;
+        if (persisted != mPersisted) {
+            mPersisted = persisted;
+            if (mMap != null) {
+                mMap.onPersistedChanged(persisted);
+            }
+        }
+
         if (Log.isLoggable(TAG, Log.VERBOSE) && (modeFlags != oldModeFlags)) {
             Slog.d(TAG,
                     "Permission for " + targetPkg + " to " + uri + " is changing from 0x"
@@ -109,6 +121,17 @@ final class UriPermission {
         }
     }
 
+    void setMap(UriPermissionMap map) {
+        mMap = map;
+    }
+
+    /**
+     * @return if this has modes that should be persisted.
+     */
+    boolean isPersisted() {
+        return mPersisted;
+    }
+
     /**
      * Initialize persisted modes as read from file. This doesn't issue any
      * global or owner grants.
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.net.Uri;
+import android.util.ArrayMap;
+
+import com.android.server.am.ActivityManagerService.GrantUri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link UriPermission}s granted to a single uid, by {@link GrantUri}.
+ *
+ * <p>Prefix grants are also kept in a trie of the scheme, the authority and the path segments of
+ * their uri, so that finding the prefix grants that cover a uri only walks the segments of its
+ * path instead of every grant of the uid, see {@link #hasPrefixMatch}. The map also counts the
+ * grants that have persisted modes, so that pruning and persisting them doesn't have to look at
+ * uids that have none.
+ *
+ * <p>Guarded by the {@link ActivityManagerService} lock.
+ */
+final class UriPermissionMap {
+    private final ArrayMap<GrantUri, UriPermission> mPerms = new ArrayMap<>();
+
+    // Roots of the prefix trie by scheme and authority.
+    private final ArrayMap<String, ArrayMap<String, PrefixNode>> mPrefixRoots = new ArrayMap<>();
+
+    private int mPersistedCount;
+
+    private static final class PrefixNode {
+        // By path segment.
+        ArrayMap<String, PrefixNode> children;
+        // The prefix grants of the path of this node, one per source user.
+        ArrayList<UriPermission> perms;
+
+        boolean isEmpty() {
+            return (children == null || children.isEmpty()) && (perms == null || perms.isEmpty());
+        }
+    }
+
+    int size() {
+        return mPerms.size();
+    }
+
+    boolean isEmpty() {
+        return mPerms.isEmpty();
+    }
+
+    GrantUri keyAt(int index) {
+        return mPerms.keyAt(index);
+    }
+
+    UriPermission valueAt(int index) {
+        return mPerms.valueAt(index);
+    }
+
+    UriPermission get(GrantUri grantUri) {
+        return mPerms.get(grantUri);
+    }
+
+    /**
+     * Returns the number of grants that have persisted modes.
+     */
+    int getPersistedCount() {
+        return mPersistedCount;
+    }
+
+    /**
+     * Adds a grant under its {@link UriPermission#uri}, which mustn't have one yet.
+     */
+    void put(UriPermission perm) {
+        final UriPermission old = mPerms.put(perm.uri, perm);
+        if (old != null) {
+            onRemoved(old);
+        }
+        perm.setMap(this);
+        if (perm.isPersisted()) {
+            mPersistedCount++;
+        }
+        if (perm.uri.prefix) {
+            addPrefix(perm);
+        }
+    }
+
+    UriPermission remove(GrantUri grantUri) {
+        final UriPermission perm = mPerms.remove(grantUri);
+        if (perm != null) {
+            onRemoved(perm);
+        }
+        return perm;
+    }
+
+    void removeAt(int index) {
+        onRemoved(mPerms.removeAt(index));
+    }
+
+    /**
+     * Called by a grant of this map when it gains or loses its persisted modes.
+     */
+    void onPersistedChanged(boolean persisted) {
+        mPersistedCount += persisted ? 1 : -1;
+    }
+
+    /**
+     * Returns whether a prefix grant covers the given uri, i.e. has the same scheme and authority
+     * and a path that is a prefix of its path, with at least the given strength for the modes.
+     * Like {@link Uri#isPathPrefixMatch}, doesn't consider the source user of the grants.
+     */
+    boolean hasPrefixMatch(Uri uri, int modeFlags, int minStrength) {
+        final ArrayMap<String, PrefixNode> authorities = mPrefixRoots.get(uri.getScheme());
+        if (authorities == null) {
+            return false;
+        }
+        PrefixNode node = authorities.get(uri.getAuthority());
+        final List<String> segments = uri.getPathSegments();
+        for (int i = 0; node != null; i++) {
+            if (node.perms != null) {
+                for (int j = node.perms.size() - 1; j >= 0; j--) {
+                    if (node.perms.get(j).getStrength(modeFlags) >= minStrength) {
+                        return true;
+                    }
+                }
+            }
+            if (i == segments.size() || node.children == null) {
+                break;
+            }
+            node = node.children.get(segments.get(i));
+        }
+        return false;
+    }
+
+    private void onRemoved(UriPermission perm) {
+        perm.setMap(null);
+        if (perm.isPersisted()) {
+            mPersistedCount--;
+        }
+        if (perm.uri.prefix) {
+            removePrefix(perm);
+        }
+    }
+
+    private void addPrefix(UriPermission perm) {
+        final Uri uri = perm.uri.uri;
+        ArrayMap<String, PrefixNode> authorities = mPrefixRoots.get(uri.getScheme());
+        if (authorities == null) {
+            authorities = new ArrayMap<>();
+            mPrefixRoots.put(uri.getScheme(), authorities);
+        }
+        PrefixNode node = authorities.get(uri.getAuthority());
+        if (node == null) {
+            node = new PrefixNode();
+            authorities.put(uri.getAuthority(), node);
+        }
+        final List<String> segments = uri.getPathSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            if (node.children == null) {
+                node.children = new ArrayMap<>();
+            }
+            PrefixNode child = node.children.get(segments.get(i));
+            if (child == null) {
+                child = new PrefixNode();
+                node.children.put(segments.get(i), child);
+            }
+            node = child;
+        }
+        if (node.perms == null) {
+            node.perms = new ArrayList<>(1);
+        }
+        node.perms.add(perm);
+    }
+
+    private void removePrefix(UriPermission perm) {
+        final Uri uri = perm.uri.uri;
+        final ArrayMap<String, PrefixNode> authorities = mPrefixRoots.get(uri.getScheme());
+        if (authorities == null) {
+            return;
+        }
+        final PrefixNode root = authorities.get(uri.getAuthority());
+        if (root == null) {
+            return;
+        }
+        removePrefix(root, uri.getPathSegments(), 0, perm);
+        if (root.isEmpty()) {
+            authorities.remove(uri.getAuthority());
+            if (authorities.isEmpty()) {
+                mPrefixRoots.remove(uri.getScheme());
+            }
+        }
+    }
+
+    /**
+     * Removes the grant from the subtree of the given node, and the nodes that become empty.
+     */
+    private static void removePrefix(PrefixNode node, List<String> segments, int depth,
+            UriPermission perm) {
+        if (depth == segments.size()) {
+            if (node.perms != null) {
+                node.perms.remove(perm);
+            }
+            return;
+        }
+        if (node.children == null) {
+            return;
+        }
+        final PrefixNode child = node.children.get(segments.get(depth));
+        if (child == null) {
+            return;
+        }
+        removePrefix(child, segments, depth + 1, perm);
+        if (child.isEmpty()) {
+            node.children.remove(segments.get(depth));
+        }
+    }
+}
@@ -54,10 +54,16 @@ public abstract class AbstractStatsBase<T> {
     }
 
     protected AtomicFile getFile() {
+        return new AtomicFile(getSystemFile(mFileName));
+    }
+
+    /**
+     * Returns the file with the given name next to the stats file.
+     */
+    protected static File getSystemFile(String fileName) {
         File dataDir = Environment.getDataDirectory();
         File systemDir = new File(dataDir, "system");
-        File fname = new File(systemDir, mFileName);
-        return new AtomicFile(fname);
+        return new File(systemDir, fileName);
     }
 
     protected void writeNow(final T data) {
@@ -29,11 +29,18 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.BatteryManager;
 import android.os.Environment;
+import android.os.IThermalService;
+import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
 
 import com.android.server.pm.dex.DexManager;
 import com.android.server.LocalServices;
@@ -42,6 +49,7 @@ import com.android.server.pm.dex.DexoptOptions;
 
 import java.io.File;
 import java.lang.Runnable;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -77,10 +85,17 @@ public class BackgroundDexOptService extends JobService {
     private static final int OPTIMIZE_ABORT_BY_JOB_SCHEDULER = 2;
     // Optimizations should be aborted. No space left on device.
     private static final int OPTIMIZE_ABORT_NO_SPACE_LEFT = 3;
+    // Optimizations should be aborted. The device is throttling because of its temperature.
+    private static final int OPTIMIZE_ABORT_THERMAL = 4;
 
     // Used for calculating space threshold for downgrading unused apps.
     private static final int LOW_THRESHOLD_MULTIPLIER_FOR_DOWNGRADE = 2;
 
+    /**
+     * Progress of the most recent dexopt pass, reported through dumpsys.
+     */
+    private static final Progress sProgress = new Progress();
+
     /**
      * Set of failed packages remembered across job runs.
      */
@@ -198,26 +213,31 @@ public class BackgroundDexOptService extends JobService {
 
         mAbortPostBootUpdate.set(false);
 
-        ArraySet<String> updatedPackages = new ArraySet<>();
-        for (String pkg : pkgs) {
+        final ArraySet<String> updatedPackages = new ArraySet<>();
+        final int result = runInUsageOrder("post-boot", pm, pkgs, (pkg) -> {
             if (mAbortPostBootUpdate.get()) {
                 // JobScheduler requested an early abort.
-                return;
+                return OPTIMIZE_ABORT_BY_JOB_SCHEDULER;
             }
             if (mExitPostBootUpdate.get()) {
                 // Different job, which supersedes this one, is running.
-                break;
+                return OPTIMIZE_PROCESSED;
             }
             if (getBatteryLevel() < lowBatteryThreshold) {
                 // Rather bail than completely drain the battery.
-                break;
+                return OPTIMIZE_PROCESSED;
+            }
+            if (isThermalThrottling()) {
+                // Rather bail than heat up the device further; idle optimization catches up.
+                Log.w(TAG, "Aborting post-boot dex opt job due to thermal throttling");
+                return OPTIMIZE_PROCESSED;
             }
             long usableSpace = mDataDir.getUsableSpace();
             if (usableSpace < lowThreshold) {
                 // Rather bail than completely fill up the disk.
                 Log.w(TAG, "Aborting background dex opt job due to low storage: " +
                         usableSpace);
-                break;
+                return OPTIMIZE_PROCESSED;
             }
 
             if (DEBUG_DEXOPT) {
@@ -232,13 +252,20 @@ public class BackgroundDexOptService extends JobService {
             // Unfortunately this will also means that "pm.dexopt.boot=speed-profile" will
             // behave differently than "pm.dexopt.bg-dexopt=speed-profile" but that's a
             // trade-off worth doing to save boot time work.
-            int result = pm.performDexOptWithStatus(new DexoptOptions(
+            final long startTime = SystemClock.elapsedRealtime();
+            int status = pm.performDexOptWithStatus(new DexoptOptions(
                     pkg,
                     PackageManagerService.REASON_BOOT,
                     DexoptOptions.DEXOPT_BOOT_COMPLETE));
-            if (result == PackageDexOptimizer.DEX_OPT_PERFORMED)  {
+            sProgress.packageFinished(pkg, PackageManagerService.REASON_BOOT, status,
+                    SystemClock.elapsedRealtime() - startTime);
+            if (status == PackageDexOptimizer.DEX_OPT_PERFORMED)  {
                 updatedPackages.add(pkg);
             }
+            return OPTIMIZE_CONTINUE;
+        });
+        if (result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+            return;
         }
         notifyPinService(updatedPackages);
         // Ran to completion, so we abandon our timeslice and do not reschedule.
@@ -251,7 +278,10 @@ public class BackgroundDexOptService extends JobService {
             @Override
             public void run() {
                 int result = idleOptimization(pm, pkgs, BackgroundDexOptService.this);
-                if (result != OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+                if (result == OPTIMIZE_ABORT_THERMAL) {
+                    // Try again once the device has cooled down.
+                    jobFinished(jobParams, /* reschedule */ true);
+                } else if (result != OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
                     Log.w(TAG, "Idle optimizations aborted because of space constraints.");
                     // If we didn't abort we ran to completion (or stopped because of space).
                     // Abandon our timeslice and do not reschedule.
@@ -275,7 +305,7 @@ public class BackgroundDexOptService extends JobService {
         int result = optimizePackages(pm, pkgs, lowStorageThreshold, /*is_for_primary_dex*/ true,
                 sFailedPackageNamesPrimary);
 
-        if (result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+        if (result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER || result == OPTIMIZE_ABORT_THERMAL) {
             return result;
         }
 
@@ -302,7 +332,7 @@ public class BackgroundDexOptService extends JobService {
     private int optimizePackages(PackageManagerService pm, ArraySet<String> pkgs,
             long lowStorageThreshold, boolean is_for_primary_dex,
             ArraySet<String> failedPackageNames) {
-        ArraySet<String> updatedPackages = new ArraySet<>();
+        final ArraySet<String> updatedPackages = new ArraySet<>();
         Set<String> unusedPackages = pm.getUnusedPackages(mDowngradeUnusedAppsThresholdInMillis);
         // Only downgrade apps when space is low on device.
         // Threshold is selected above the lowStorageThreshold so that we can pro-actively clean
@@ -310,7 +340,8 @@ public class BackgroundDexOptService extends JobService {
         final long lowStorageThresholdForDowngrade = LOW_THRESHOLD_MULTIPLIER_FOR_DOWNGRADE *
                 lowStorageThreshold;
         boolean shouldDowngrade = shouldDowngrade(lowStorageThresholdForDowngrade);
-        for (String pkg : pkgs) {
+        final String jobName = is_for_primary_dex ? "idle" : "idle-secondary";
+        int result = runInUsageOrder(jobName, pm, pkgs, (pkg) -> {
             // Wait for the PackageManager handler to process all queued up
             // items so that we don't constantly interrupt it and grab the
             // install lock
@@ -326,14 +357,15 @@ public class BackgroundDexOptService extends JobService {
             } while (interrupted);
 
             int abort_code = abortIdleOptimizations(lowStorageThreshold);
-            if (abort_code == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+            if (abort_code == OPTIMIZE_ABORT_BY_JOB_SCHEDULER
+                    || abort_code == OPTIMIZE_ABORT_THERMAL) {
                 return abort_code;
             }
 
             synchronized (failedPackageNames) {
                 if (failedPackageNames.contains(pkg)) {
                     // Skip previously failing package
-                    continue;
+                    return OPTIMIZE_CONTINUE;
                 }
             }
 
@@ -347,7 +379,7 @@ public class BackgroundDexOptService extends JobService {
                     // For apps that don't have the oat directory, instead of downgrading,
                     // remove their compiler artifacts from dalvik cache.
                     pm.deleteOatArtifactsOfPackage(pkg);
-                    continue;
+                    return OPTIMIZE_CONTINUE;
                 } else {
                     reason = PackageManagerService.REASON_INACTIVE_PACKAGE_DOWNGRADE;
                     downgrade = true;
@@ -357,7 +389,7 @@ public class BackgroundDexOptService extends JobService {
                 downgrade = false;
             } else {
                 // can't dexopt because of low space.
-                continue;
+                return OPTIMIZE_CONTINUE;
             }
 
             synchronized (failedPackageNames) {
@@ -368,32 +400,80 @@ public class BackgroundDexOptService extends JobService {
 
             // Optimize package if needed. Note that there can be no race between
             // concurrent jobs because PackageDexOptimizer.performDexOpt is synchronized.
+            final long startTime = SystemClock.elapsedRealtime();
             boolean success;
             int dexoptFlags =
                     DexoptOptions.DEXOPT_CHECK_FOR_PROFILES_UPDATES |
                     DexoptOptions.DEXOPT_BOOT_COMPLETE |
                     (downgrade ? DexoptOptions.DEXOPT_DOWNGRADE : 0) |
                     DexoptOptions.DEXOPT_IDLE_BACKGROUND_JOB;
+            int status;
             if (is_for_primary_dex) {
-                int result = pm.performDexOptWithStatus(new DexoptOptions(pkg, reason,
+                status = pm.performDexOptWithStatus(new DexoptOptions(pkg, reason,
                         dexoptFlags));
-                success = result != PackageDexOptimizer.DEX_OPT_FAILED;
-                if (result == PackageDexOptimizer.DEX_OPT_PERFORMED) {
+                success = status != PackageDexOptimizer.DEX_OPT_FAILED;
+                if (status == PackageDexOptimizer.DEX_OPT_PERFORMED) {
                     updatedPackages.add(pkg);
                 }
             } else {
                 success = pm.performDexOpt(new DexoptOptions(pkg,
                         reason, dexoptFlags | DexoptOptions.DEXOPT_ONLY_SECONDARY_DEX));
+                status = success
+                        ? PackageDexOptimizer.DEX_OPT_PERFORMED
+                        : PackageDexOptimizer.DEX_OPT_FAILED;
             }
+            sProgress.packageFinished(pkg, reason, status,
+                    SystemClock.elapsedRealtime() - startTime);
             if (success) {
                 // Dexopt succeeded, remove package from the list of failing ones.
                 synchronized (failedPackageNames) {
                     failedPackageNames.remove(pkg);
                 }
             }
+            return OPTIMIZE_CONTINUE;
+        });
+        if (result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+            return result;
         }
         notifyPinService(updatedPackages);
-        return OPTIMIZE_PROCESSED;
+        return result == OPTIMIZE_ABORT_THERMAL ? result : OPTIMIZE_PROCESSED;
+    }
+
+    /**
+     * Dexopt step for a single package. Returns {@link #OPTIMIZE_CONTINUE} to move on to the
+     * next package, or the code the whole pass should stop with.
+     */
+    private interface PackageStep {
+        int run(String pkg);
+    }
+
+    /**
+     * Runs {@code step} on the given packages one at a time, most recently used first.
+     * Packages aren't compiled concurrently: installd compiles them under the install lock,
+     * so more threads wouldn't compile faster but would keep the lock from installs. Returns
+     * {@link #OPTIMIZE_PROCESSED} if every package was visited, or the code a step stopped
+     * the pass with.
+     */
+    private static int runInUsageOrder(String jobName, PackageManagerService pm,
+            ArraySet<String> pkgs, PackageStep step) {
+        final List<String> queue = pm.sortPackageNamesByUsage(pkgs);
+        sProgress.start(jobName, queue.size());
+        int result = OPTIMIZE_PROCESSED;
+        for (String pkg : queue) {
+            sProgress.packageStarted(pkg);
+            final int code;
+            try {
+                code = step.run(pkg);
+            } finally {
+                sProgress.packageDone(pkg);
+            }
+            if (code != OPTIMIZE_CONTINUE) {
+                result = code;
+                break;
+            }
+        }
+        sProgress.finish();
+        return result;
     }
 
     private int reconcileSecondaryDexFiles(DexManager dm) {
@@ -413,6 +493,11 @@ public class BackgroundDexOptService extends JobService {
             // JobScheduler requested an early abort.
             return OPTIMIZE_ABORT_BY_JOB_SCHEDULER;
         }
+        if (isThermalThrottling()) {
+            // Rather bail than heat up the device further.
+            Log.w(TAG, "Aborting background dex opt job due to thermal throttling");
+            return OPTIMIZE_ABORT_THERMAL;
+        }
         long usableSpace = mDataDir.getUsableSpace();
         if (usableSpace < lowStorageThreshold) {
             // Rather bail than completely fill up the disk.
@@ -423,6 +508,20 @@ public class BackgroundDexOptService extends JobService {
         return OPTIMIZE_CONTINUE;
     }
 
+    // Returns whether the device is currently throttling because of its temperature.
+    private static boolean isThermalThrottling() {
+        final IThermalService thermalService = IThermalService.Stub.asInterface(
+                ServiceManager.getService("thermalservice"));
+        if (thermalService == null) {
+            return false;
+        }
+        try {
+            return thermalService.isThrottling();
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
     // Evaluate whether apps should be downgraded.
     private boolean shouldDowngrade(long lowStorageThresholdForDowngrade) {
         long usableSpace = mDataDir.getUsableSpace();
@@ -531,4 +630,119 @@ public class BackgroundDexOptService extends JobService {
         return SystemProperties.getBoolean("pm.dexopt.disable_bg_dexopt" /* key */,
                 false /* default */);
     }
+
+    /**
+     * Dumps the progress of the current or most recent dexopt pass.
+     */
+    static void dumpProgress(IndentingPrintWriter ipw) {
+        sProgress.dump(ipw);
+    }
+
+    /**
+     * Queue progress and per-package compile times of a dexopt pass.
+     */
+    private static final class Progress {
+        // Number of per-package results kept for dumpsys.
+        private static final int MAX_HISTORY = 50;
+
+        private final Object mLock = new Object();
+
+        @GuardedBy("mLock")
+        private String mJobName;
+        @GuardedBy("mLock")
+        private long mStartTime;
+        @GuardedBy("mLock")
+        private long mFinishTime;
+        @GuardedBy("mLock")
+        private int mQueued;
+        @GuardedBy("mLock")
+        private int mDone;
+        @GuardedBy("mLock")
+        private long mTotalCompileTime;
+        @GuardedBy("mLock")
+        private final ArraySet<String> mActive = new ArraySet<>();
+        @GuardedBy("mLock")
+        private final ArrayDeque<String> mHistory = new ArrayDeque<>(MAX_HISTORY);
+
+        void start(String jobName, int queued) {
+            synchronized (mLock) {
+                mJobName = jobName;
+                mStartTime = SystemClock.elapsedRealtime();
+                mFinishTime = 0;
+                mQueued = queued;
+                mDone = 0;
+                mTotalCompileTime = 0;
+                mActive.clear();
+            }
+        }
+
+        void packageStarted(String pkg) {
+            synchronized (mLock) {
+                mActive.add(pkg);
+            }
+        }
+
+        void packageDone(String pkg) {
+            synchronized (mLock) {
+                mActive.remove(pkg);
+                mDone++;
+            }
+        }
+
+        void packageFinished(String pkg, int reason, int status, long durationMs) {
+            synchronized (mLock) {
+                mTotalCompileTime += durationMs;
+                if (mHistory.size() == MAX_HISTORY) {
+                    mHistory.removeFirst();
+                }
+                mHistory.addLast(pkg + " reason="
+                        + PackageManagerServiceCompilerMapping.getReasonName(reason)
+                        + " status=" + statusToString(status) + " time=" + durationMs + "ms");
+            }
+        }
+
+        void finish() {
+            synchronized (mLock) {
+                mFinishTime = SystemClock.elapsedRealtime();
+            }
+        }
+
+        void dump(IndentingPrintWriter ipw) {
+            synchronized (mLock) {
+                ipw.println("Background dexopt:");
+                ipw.increaseIndent();
+                if (mJobName == null) {
+                    ipw.println("No dexopt pass has run yet");
+                    ipw.decreaseIndent();
+                    return;
+                }
+                final long end = mFinishTime != 0 ? mFinishTime : SystemClock.elapsedRealtime();
+                ipw.print("job=" + mJobName + (mFinishTime != 0 ? " finished" : " running"));
+                ipw.print(" progress=" + mDone + "/" + mQueued + " elapsed=");
+                TimeUtils.formatDuration(end - mStartTime, ipw);
+                ipw.print(" compile=");
+                TimeUtils.formatDuration(mTotalCompileTime, ipw);
+                ipw.println();
+                if (!mActive.isEmpty()) {
+                    ipw.println("active=" + mActive);
+                }
+                ipw.println("Recent packages:");
+                ipw.increaseIndent();
+                for (String entry : mHistory) {
+                    ipw.println(entry);
+                }
+                ipw.decreaseIndent();
+                ipw.decreaseIndent();
+            }
+        }
+
+        private static String statusToString(int status) {
+            switch (status) {
+                case PackageDexOptimizer.DEX_OPT_SKIPPED: return "skipped";
+                case PackageDexOptimizer.DEX_OPT_PERFORMED: return "performed";
+                case PackageDexOptimizer.DEX_OPT_FAILED: return "failed";
+                default: return Integer.toString(status);
+            }
+        }
+    }
 }
@@ -20,22 +20,28 @@ import android.util.ArrayMap;
 import android.util.AtomicFile;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.FastPrintWriter;
 import com.android.internal.util.IndentingPrintWriter;
 
 import libcore.io.IoUtils;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A class that collects, serializes and deserializes compiler-related statistics on a
@@ -48,6 +54,9 @@ class CompilerStats extends AbstractStatsBase<Void> {
     private final static String COMPILER_STATS_VERSION_HEADER = "PACKAGE_MANAGER__COMPILER_STATS__";
     private final static int COMPILER_STATS_VERSION = 1;
 
+    // Version of the binary record log, which replaces the text file on disk.
+    private final static int COMPILER_STATS_LOG_VERSION = 1;
+
     /**
      * Class to collect all stats pertaining to one package.
      */
@@ -61,6 +70,12 @@ class CompilerStats extends AbstractStatsBase<Void> {
          */
         private final Map<String, Long> compileTimePerCodePath;
 
+        /**
+         * Whether the compile times changed since the stats were last written.
+         */
+        @GuardedBy("compileTimePerCodePath")
+        private boolean dirty;
+
         /**
          * @param packageName
          */
@@ -93,9 +108,10 @@ class CompilerStats extends AbstractStatsBase<Void> {
             String storagePath = getStoredPathFromCodePath(codePath);
             synchronized (compileTimePerCodePath) {
                 if (compileTimeInMs <= 0) {
-                    compileTimePerCodePath.remove(storagePath);
+                    dirty |= compileTimePerCodePath.remove(storagePath) != null;
                 } else {
                     compileTimePerCodePath.put(storagePath, compileTimeInMs);
+                    dirty = true;
                 }
             }
         }
@@ -120,26 +136,69 @@ class CompilerStats extends AbstractStatsBase<Void> {
 
     private final Map<String, PackageStats> packageStats;
 
+    /**
+     * Records read from the log which have not been asked for yet. They are decoded into
+     * packageStats on first access.
+     */
+    @GuardedBy("packageStats")
+    private final Map<String, byte[]> undecodedRecords = new HashMap<>();
+
+    /**
+     * Packages whose stats were deleted since the last write.
+     */
+    @GuardedBy("packageStats")
+    private final Set<String> deletedPackages = new HashSet<>();
+
+    /**
+     * Whether the next write should rewrite the log with all the records.
+     */
+    @GuardedBy("packageStats")
+    private boolean compactionRequested;
+
+    private final StatsRecordLog recordLog;
+
+    /**
+     * The text file the stats were stored in before the record log, if it should be migrated.
+     */
+    private final AtomicFile legacyFile;
+
     public CompilerStats() {
         super("package-cstats.list", "CompilerStats_DiskWriter", /* lock */ false);
         packageStats = new HashMap<>();
+        recordLog = new StatsRecordLog(getSystemFile("package-cstats.log"),
+                COMPILER_STATS_LOG_VERSION);
+        legacyFile = getFile();
+    }
+
+    CompilerStats(StatsRecordLog recordLog) {
+        super("package-cstats.list", "CompilerStats_DiskWriter", /* lock */ false);
+        packageStats = new HashMap<>();
+        this.recordLog = recordLog;
+        legacyFile = null;
     }
 
     public PackageStats getPackageStats(String packageName) {
         synchronized (packageStats) {
-            return packageStats.get(packageName);
+            return getPackageStatsLocked(packageName);
         }
     }
 
     public void setPackageStats(String packageName, PackageStats stats) {
         synchronized (packageStats) {
+            undecodedRecords.remove(packageName);
             packageStats.put(packageName, stats);
+            synchronized (stats.compileTimePerCodePath) {
+                stats.dirty = true;
+            }
         }
     }
 
     public PackageStats createPackageStats(String packageName) {
         synchronized (packageStats) {
             PackageStats newStats = new PackageStats(packageName);
+            // Replaces any stats written before.
+            newStats.dirty = true;
+            undecodedRecords.remove(packageName);
             packageStats.put(packageName, newStats);
             return newStats;
         }
@@ -147,7 +206,7 @@ class CompilerStats extends AbstractStatsBase<Void> {
 
     public PackageStats getOrCreatePackageStats(String packageName) {
         synchronized (packageStats) {
-            PackageStats existingStats = packageStats.get(packageName);
+            PackageStats existingStats = getPackageStatsLocked(packageName);
             if (existingStats != null) {
                 return existingStats;
             }
@@ -158,7 +217,40 @@ class CompilerStats extends AbstractStatsBase<Void> {
 
     public void deletePackageStats(String packageName) {
         synchronized (packageStats) {
-            packageStats.remove(packageName);
+            boolean deleted = packageStats.remove(packageName) != null;
+            deleted |= undecodedRecords.remove(packageName) != null;
+            if (deleted) {
+                deletedPackages.add(packageName);
+            }
+        }
+    }
+
+    @GuardedBy("packageStats")
+    private PackageStats getPackageStatsLocked(String packageName) {
+        PackageStats stats = packageStats.get(packageName);
+        if (stats == null) {
+            byte[] record = undecodedRecords.remove(packageName);
+            if (record != null) {
+                try {
+                    stats = decodePackageStats(packageName, record);
+                    packageStats.put(packageName, stats);
+                } catch (IOException e) {
+                    Log.w(PackageManagerService.TAG, "Failed to decode compiler stats of "
+                            + packageName, e);
+                    deletedPackages.add(packageName);
+                }
+            }
+        }
+        return stats;
+    }
+
+    @GuardedBy("packageStats")
+    private void decodeAllLocked() {
+        if (undecodedRecords.isEmpty()) {
+            return;
+        }
+        for (String packageName : new ArrayList<>(undecodedRecords.keySet())) {
+            getPackageStatsLocked(packageName);
         }
     }
 
@@ -181,6 +273,7 @@ class CompilerStats extends AbstractStatsBase<Void> {
         fpw.println(COMPILER_STATS_VERSION);
 
         synchronized (packageStats) {
+            decodeAllLocked();
             for (PackageStats pkg : packageStats.values()) {
                 synchronized (pkg.compileTimePerCodePath) {
                     if (!pkg.compileTimePerCodePath.isEmpty()) {
@@ -202,6 +295,10 @@ class CompilerStats extends AbstractStatsBase<Void> {
             // TODO: Could make this a final switch, then we wouldn't have to synchronize over
             //       the whole reading.
             packageStats.clear();
+            undecodedRecords.clear();
+            deletedPackages.clear();
+            // Store the text data in the record log with the next write.
+            compactionRequested = true;
 
             try {
                 BufferedReader in = new BufferedReader(r);
@@ -257,32 +354,115 @@ class CompilerStats extends AbstractStatsBase<Void> {
         return maybeWriteAsync(null);
     }
 
+    // The binary record of a package is its code path count followed by
+    // {code-path}{compile-time} pairs.
+
+    /**
+     * Appends the records of the packages whose stats changed since the last write to the
+     * record log, or rewrites the whole log if it grew too much or cannot be appended to.
+     */
     @Override
     protected void writeInternal(Void data) {
-        AtomicFile file = getFile();
-        FileOutputStream f = null;
+        final boolean compact;
+        final Map<String, byte[]> records = new HashMap<>();
+        synchronized (packageStats) {
+            compact = compactionRequested || recordLog.needsCompaction();
+            if (compact) {
+                records.putAll(undecodedRecords);
+            } else {
+                for (String packageName : deletedPackages) {
+                    records.put(packageName, null);
+                }
+            }
+            for (PackageStats pkg : packageStats.values()) {
+                synchronized (pkg.compileTimePerCodePath) {
+                    if (compact || pkg.dirty) {
+                        records.put(pkg.getPackageName(), encodePackageStats(pkg));
+                    }
+                    pkg.dirty = false;
+                }
+            }
+            deletedPackages.clear();
+            compactionRequested = false;
+        }
 
         try {
-            f = file.startWrite();
-            OutputStreamWriter osw = new OutputStreamWriter(f);
-            write(osw);
-            osw.flush();
-            file.finishWrite(f);
+            if (compact) {
+                recordLog.compact(records);
+                if (legacyFile != null) {
+                    legacyFile.delete();
+                }
+            } else {
+                recordLog.append(records);
+            }
         } catch (IOException e) {
-            if (f != null) {
-                file.failWrite(f);
+            synchronized (packageStats) {
+                // The log may be missing any of the records, write them all next time.
+                compactionRequested = true;
             }
             Log.e(PackageManagerService.TAG, "Failed to write compiler stats", e);
         }
     }
 
+    // Returns null for packages without any compile time, which removes their record.
+    private static byte[] encodePackageStats(PackageStats pkg) {
+        if (pkg.compileTimePerCodePath.isEmpty()) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(pkg.compileTimePerCodePath.size());
+            for (Map.Entry<String, Long> e : pkg.compileTimePerCodePath.entrySet()) {
+                StatsRecordLog.writeString(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static PackageStats decodePackageStats(String packageName, byte[] record)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        PackageStats stats = new PackageStats(packageName);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String codePath = StatsRecordLog.readString(in);
+            stats.compileTimePerCodePath.put(codePath, in.readLong());
+        }
+        return stats;
+    }
+
     void read() {
         read((Void)null);
     }
 
     @Override
     protected void readInternal(Void data) {
-        AtomicFile file = getFile();
+        try {
+            Map<String, byte[]> records = recordLog.read();
+            synchronized (packageStats) {
+                packageStats.clear();
+                deletedPackages.clear();
+                undecodedRecords.clear();
+                undecodedRecords.putAll(records);
+            }
+            return;
+        } catch (FileNotFoundException expected) {
+            // The log has not been written yet. Migrate the text file if there is one.
+        } catch (IOException e) {
+            // Fall back to the text file, which is only deleted once a log was compacted.
+            Log.w(PackageManagerService.TAG, "Failed to read compiler stats log", e);
+        }
+        if (legacyFile == null) {
+            return;
+        }
+
+        AtomicFile file = legacyFile;
         BufferedReader in = null;
         try {
             in = new BufferedReader(new InputStreamReader(file.openRead()));
@@ -267,6 +267,7 @@ import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
+import android.util.TimeUtils;
 import android.util.TimingsTraceLog;
 import android.util.Xml;
 import android.util.jar.StrictJarFile;
@@ -371,6 +372,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
 /**
@@ -709,6 +711,29 @@ public class PackageManagerService extends IPackageManager.Stub
     @GuardedBy("mPackages")
     final SparseIntArray mIsolatedOwners = new SparseIntArray();
 
+    /**
+     * Snapshot used to answer queries without the package lock. It is stale once
+     * {@link PackageQuerySnapshot#invalidate()} was called after it had been built.
+     */
+    private volatile PackageQuerySnapshot mQuerySnapshot;
+
+    /** Lock waits longer than this are counted as contended in dumpsys. */
+    private static final long QUERY_LOCK_CONTENDED_NANOS = 1000000L;
+
+    // Statistics about how queries were answered, reported by "dumpsys package snapshot"
+    private final AtomicLong mQuerySnapshotHits = new AtomicLong();
+    private final AtomicLong mQuerySnapshotMisses = new AtomicLong();
+    @GuardedBy("mPackages")
+    private long mQuerySnapshotRebuilds;
+    @GuardedBy("mPackages")
+    private long mQuerySnapshotRebuildNanos;
+    @GuardedBy("mPackages")
+    private long mQueryLockWaitNanos;
+    @GuardedBy("mPackages")
+    private long mQueryLockMaxWaitNanos;
+    @GuardedBy("mPackages")
+    private long mQueryLockContended;
+
     /**
      * Tracks new system packages [received in an OTA] that we expect to
      * find updated user-installed versions. Keys are package name, values
@@ -759,6 +784,13 @@ public class PackageManagerService extends IPackageManager.Stub
 
     boolean mFirstBoot;
 
+    /**
+     * Packages being scanned whose certificates were already collected while parsing
+     * them, so that {@link #collectCertificatesLI} does not need to do it again.
+     */
+    @GuardedBy("mInstallLock")
+    private final ArraySet<PackageParser.Package> mPrecollectedCertificates = new ArraySet<>();
+
     PackageManagerInternal.ExternalSourcesPolicy mExternalSourcesPolicy;
 
     @GuardedBy("mAvailableFeatures")
@@ -1340,6 +1372,7 @@ public class PackageManagerService extends IPackageManager.Stub
     static final int WRITE_PACKAGE_LIST = 19;
     static final int INSTANT_APP_RESOLUTION_PHASE_TWO = 20;
     static final int DEF_CONTAINER_BIND = 21;
+    static final int REBUILD_QUERY_SNAPSHOT = 22;
 
     static final int WRITE_SETTINGS_DELAY = 10*1000;  // 10 seconds
 
@@ -1906,7 +1939,12 @@ public class PackageManagerService extends IPackageManager.Stub
                             (InstantAppRequest) msg.obj,
                             mInstantAppInstallerActivity,
                             mHandler);
-                }
+                } break;
+                case REBUILD_QUERY_SNAPSHOT: {
+                    synchronized (mPackages) {
+                        rebuildQuerySnapshotLPw();
+                    }
+                } break;
             }
         }
     }
@@ -5459,7 +5497,19 @@ public class PackageManagerService extends IPackageManager.Stub
 
     @Override
     public int checkUidPermission(String permName, int uid) {
+        final int callingUid = getCallingUid();
+        final PackageQuerySnapshot snapshot = getQuerySnapshot();
+        if (snapshot != null && !Process.isIsolated(callingUid)) {
+            final int result = snapshot.checkUidPermission(permName, uid, callingUid);
+            if (result != PackageQuerySnapshot.UNKNOWN) {
+                mQuerySnapshotHits.incrementAndGet();
+                return result;
+            }
+        }
+        mQuerySnapshotMisses.incrementAndGet();
+        final long waitStart = SystemClock.elapsedRealtimeNanos();
         synchronized (mPackages) {
+            onQueryLockAcquiredLPw(waitStart);
             final String[] packageNames = getPackagesForUid(uid);
             final PackageParser.Package pkg = (packageNames != null && packageNames.length > 0)
                     ? mPackages.get(packageNames[0])
@@ -5913,6 +5963,16 @@ public class PackageManagerService extends IPackageManager.Stub
     @Override
     public String[] getPackagesForUid(int uid) {
         final int callingUid = Binder.getCallingUid();
+        final PackageQuerySnapshot snapshot = getQuerySnapshot();
+        if (snapshot != null && !Process.isIsolated(callingUid)) {
+            final boolean[] unknown = new boolean[1];
+            final String[] packageNames = snapshot.getPackagesForUid(uid, callingUid, unknown);
+            if (!unknown[0]) {
+                mQuerySnapshotHits.incrementAndGet();
+                return packageNames;
+            }
+        }
+        mQuerySnapshotMisses.incrementAndGet();
         final boolean isCallerInstantApp = getInstantAppPackageName(callingUid) != null;
         final int userId = UserHandle.getUserId(uid);
         uid = UserHandle.getAppId(uid);
@@ -6697,6 +6757,73 @@ public class PackageManagerService extends IPackageManager.Stub
         return null;
     }
 
+    /**
+     * Returns the query snapshot if it still reflects the current package state.
+     */
+    private @Nullable PackageQuerySnapshot getQuerySnapshot() {
+        final PackageQuerySnapshot snapshot = mQuerySnapshot;
+        return snapshot != null && snapshot.isCurrent() ? snapshot : null;
+    }
+
+    /**
+     * Records how long a query waited for the package lock, and schedules a new query
+     * snapshot to be built if the current one went stale. Must be called right after
+     * acquiring the lock.
+     */
+    @GuardedBy("mPackages")
+    private void onQueryLockAcquiredLPw(long waitStartNanos) {
+        final long waited = SystemClock.elapsedRealtimeNanos() - waitStartNanos;
+        mQueryLockWaitNanos += waited;
+        if (waited > mQueryLockMaxWaitNanos) {
+            mQueryLockMaxWaitNanos = waited;
+        }
+        if (waited > QUERY_LOCK_CONTENDED_NANOS) {
+            mQueryLockContended++;
+        }
+        // Package state keeps changing until the boot scan is complete
+        if (!mSystemReady || getQuerySnapshot() != null) {
+            return;
+        }
+        // Building the snapshot walks every package, so it is done on the package
+        // handler rather than on the binder thread of the query. Changes that come in
+        // a burst, like during an install, are rebuilt only once.
+        if (!mHandler.hasMessages(REBUILD_QUERY_SNAPSHOT)) {
+            mHandler.sendEmptyMessage(REBUILD_QUERY_SNAPSHOT);
+        }
+    }
+
+    @GuardedBy("mPackages")
+    private void rebuildQuerySnapshotLPw() {
+        if (!mSystemReady || getQuerySnapshot() != null) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mQuerySnapshot = PackageQuerySnapshot.build(sUserManager.getUserIds(),
+                mSettings.getAppIdsLPr(), mPackages,
+                SystemConfig.getInstance().getSystemPermissions());
+        mQuerySnapshotRebuilds++;
+        mQuerySnapshotRebuildNanos += SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    @GuardedBy("mPackages")
+    private void dumpQuerySnapshotLPr(PrintWriter pw) {
+        final PackageQuerySnapshot snapshot = mQuerySnapshot;
+        pw.println("Query snapshot:");
+        pw.print("  version="); pw.print(snapshot != null ? snapshot.version : -1);
+        pw.print(" current="); pw.println(getQuerySnapshot() != null);
+        pw.print("  hits="); pw.print(mQuerySnapshotHits.get());
+        pw.print(" misses="); pw.println(mQuerySnapshotMisses.get());
+        pw.print("  rebuilds="); pw.print(mQuerySnapshotRebuilds);
+        pw.print(" rebuildTime=");
+        TimeUtils.formatDuration(mQuerySnapshotRebuildNanos / 1000000, pw);
+        pw.println();
+        pw.print("  lockWaitTime=");
+        TimeUtils.formatDuration(mQueryLockWaitNanos / 1000000, pw);
+        pw.print(" maxLockWait=");
+        TimeUtils.formatDuration(mQueryLockMaxWaitNanos / 1000000, pw);
+        pw.print(" contended="); pw.println(mQueryLockContended);
+    }
+
     private @NonNull List<ResolveInfo> queryIntentActivitiesInternal(Intent intent,
             String resolvedType, int flags, int userId) {
         return queryIntentActivitiesInternal(
@@ -8553,9 +8680,11 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + scanDir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
+        // Certificates of system packages are collected on every first boot and OTA, so
+        // collect them while parsing instead of while scanning.
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback, mIsUpgrade || mFirstBoot)) {
             // Submit files for parsing in parallel
             int fileCount = 0;
             for (File file : files) {
@@ -8581,6 +8710,9 @@ public class PackageManagerService extends IPackageManager.Stub
                 int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
                 if (throwable == null) {
+                    if (parseResult.certificatesCollected) {
+                        addPrecollectedCertificatesLI(parseResult.pkg);
+                    }
                     // TODO(toddke): move lower in the scan chain
                     // Static shared libraries have synthetic package names
                     if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
@@ -8613,6 +8745,16 @@ public class PackageManagerService extends IPackageManager.Stub
                     removeCodePathLI(parseResult.scanFile);
                 }
             }
+        } finally {
+            mPrecollectedCertificates.clear();
+        }
+    }
+
+    private void addPrecollectedCertificatesLI(PackageParser.Package pkg) {
+        mPrecollectedCertificates.add(pkg);
+        final int childCount = (pkg.childPackages != null) ? pkg.childPackages.size() : 0;
+        for (int i = 0; i < childCount; i++) {
+            mPrecollectedCertificates.add(pkg.childPackages.get(i));
         }
     }
 
@@ -8652,7 +8794,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
         try {
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "collectCertificates");
-            PackageParser.collectCertificates(pkg, skipVerify);
+            // Certificates collected while parsing skipped full APK verification
+            if (!(skipVerify && mPrecollectedCertificates.remove(pkg))) {
+                PackageParser.collectCertificates(pkg, skipVerify);
+            }
             if (compareSignatures(pkg.mSigningDetails.signatures,
                   mVendorPlatformSignatures) == PackageManager.SIGNATURE_MATCH) {
                 // Overwrite package signature with our platform signature
@@ -8947,6 +9092,7 @@ public class PackageManagerService extends IPackageManager.Stub
             synchronized (mPackages) {
                 // just remove the loaded entries from package lists
                 mPackages.remove(pkgSetting.name);
+                PackageQuerySnapshot.invalidate();
             }
 
             logCriticalInfo(Log.WARN,
@@ -8974,6 +9120,7 @@ public class PackageManagerService extends IPackageManager.Stub
             synchronized (mPackages) {
                 if (!mPackages.containsKey(pkg.packageName)) {
                     mPackages.put(pkg.packageName, pkg);
+                    PackageQuerySnapshot.invalidate();
                 }
             }
             throw new PackageManagerException(Log.WARN, "Package " + pkg.packageName + " at "
@@ -9492,6 +9639,28 @@ public class PackageManagerService extends IPackageManager.Stub
         return pkgs;
     }
 
+    /**
+     * Returns the given packages ordered by their last foreground use, most recently used
+     * first. Packages that are no longer installed are dropped.
+     */
+    List<String> sortPackageNamesByUsage(Collection<String> packageNames) {
+        final ArrayList<PackageParser.Package> pkgs = new ArrayList<>(packageNames.size());
+        synchronized (mPackages) {
+            for (String packageName : packageNames) {
+                final PackageParser.Package pkg = mPackages.get(packageName);
+                if (pkg != null) {
+                    pkgs.add(pkg);
+                }
+            }
+            PackageManagerServiceUtils.sortPackagesByUsageDate(pkgs, this);
+        }
+        final ArrayList<String> result = new ArrayList<>(pkgs.size());
+        for (int i = 0; i < pkgs.size(); i++) {
+            result.add(pkgs.get(i).packageName);
+        }
+        return result;
+    }
+
     private int performDexOptInternalWithDependenciesLI(PackageParser.Package p,
             DexoptOptions options) {
         // Select the dex optimizer based on the force parameter.
@@ -11620,12 +11789,14 @@ public class PackageManagerService extends IPackageManager.Stub
             mSettings.insertPackageSettingLPw(pkgSetting, pkg);
             // Add the new setting to mPackages
             mPackages.put(pkg.applicationInfo.packageName, pkg);
+            PackageQuerySnapshot.invalidate();
             // Make sure we don't accidentally delete its data.
             final Iterator<PackageCleanItem> iter = mSettings.mPackagesToBeCleaned.iterator();
             while (iter.hasNext()) {
                 PackageCleanItem item = iter.next();
                 if (pkgName.equals(item.packageName)) {
                     iter.remove();
+                    mSettings.markUnjournaledChangesLPw();
                 }
             }
 
@@ -12391,6 +12562,7 @@ public class PackageManagerService extends IPackageManager.Stub
         // writer
         synchronized (mPackages) {
             mPackages.remove(ps.name);
+            PackageQuerySnapshot.invalidate();
             final PackageParser.Package pkg = ps.pkg;
             if (pkg != null) {
                 cleanPackageDataStructuresLILPw(pkg, chatty);
@@ -12408,6 +12580,7 @@ public class PackageManagerService extends IPackageManager.Stub
         synchronized (mPackages) {
             // Remove the parent package
             mPackages.remove(pkg.applicationInfo.packageName);
+            PackageQuerySnapshot.invalidate();
             cleanPackageDataStructuresLILPw(pkg, chatty);
 
             // Remove the child packages
@@ -12415,6 +12588,7 @@ public class PackageManagerService extends IPackageManager.Stub
             for (int i = 0; i < childCount; i++) {
                 PackageParser.Package childPkg = pkg.childPackages.get(i);
                 mPackages.remove(childPkg.applicationInfo.packageName);
+                PackageQuerySnapshot.invalidate();
                 cleanPackageDataStructuresLILPw(childPkg, chatty);
             }
         }
@@ -13836,8 +14010,8 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         synchronized (mPackages) {
             final ArrayList<PackageCleanItem> pkgs = mSettings.mPackagesToBeCleaned;
-            if (lastPackage != null) {
-                pkgs.remove(lastPackage);
+            if (lastPackage != null && pkgs.remove(lastPackage)) {
+                mSettings.markUnjournaledChangesLPw();
             }
             if (pkgs.size() > 0) {
                 return pkgs.get(0);
@@ -17265,10 +17439,11 @@ public class PackageManagerService extends IPackageManager.Stub
             res.uid = pkg.applicationInfo.uid;
             res.pkg = pkg;
             mSettings.setInstallerPackageName(pkgName, installerPackageName);
+            mSettings.markPackageDirtyLPw(pkgName);
             res.setReturnCode(PackageManager.INSTALL_SUCCEEDED);
             //to update install status
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "writeSettings");
-            mSettings.writeLPr();
+            mSettings.writeChangedLPr();
             Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
         }
 
@@ -18780,7 +18955,8 @@ public class PackageManagerService extends IPackageManager.Stub
             // can downgrade to reader
             if (writeSettings) {
                 // Save settings now
-                mSettings.writeLPr();
+                mSettings.markPackageDirtyLPw(packageName);
+                mSettings.writeChangedLPr();
             }
             if (installedStateChanged) {
                 mSettings.writeKernelMappingLPr(ps);
@@ -21612,6 +21788,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
                 pw.println("    service-permissions: dump permissions required by services");
+                pw.println("    snapshot: dump lock-free query snapshot statistics");
                 pw.println("    <package.name>: info about given package");
                 return;
             } else if ("--checkin".equals(opt)) {
@@ -21749,6 +21926,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_CHANGES);
             } else if ("service-permissions".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_SERVICE_PERMISSIONS);
+            } else if ("snapshot".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_QUERY_SNAPSHOT);
             } else if ("write".equals(cmd)) {
                 synchronized (mPackages) {
                     mSettings.writeLPr();
@@ -22170,6 +22349,12 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             if (checkin && dumpState.isDumping(DumpState.DUMP_MESSAGES)) {
                 dumpCriticalInfo(pw, "msg,");
             }
+
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_QUERY_SNAPSHOT)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                dumpQuerySnapshotLPr(pw);
+            }
         }
 
         // PackageInstaller should be called outside of mPackages lock
@@ -22280,6 +22465,9 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         ipw.println();
         ipw.println("Dexopt state:");
         ipw.increaseIndent();
+        if (packageName == null) {
+            BackgroundDexOptService.dumpProgress(ipw);
+        }
         Collection<PackageParser.Package> packages = null;
         if (packageName != null) {
             PackageParser.Package targetPackage = mPackages.get(packageName);
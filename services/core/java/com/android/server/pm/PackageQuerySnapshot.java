@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.Manifest;
+import android.annotation.Nullable;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageParser;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.util.ArrayUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable view of the package state needed to answer the hottest package manager
+ * queries without taking the package lock.
+ * <p>
+ * Writers never update a snapshot; any change to the state it was computed from calls
+ * {@link #invalidate()}, which bumps a global version. A snapshot is only usable while
+ * its version is current; once a query finds it stale, a new one is built on the
+ * package handler. Queries the snapshot cannot answer exactly the way the locked code
+ * path would, for example anything involving instant apps, report {@link #UNKNOWN} so
+ * that the caller falls back to the locked path.
+ */
+public final class PackageQuerySnapshot {
+    /** Result of a query that has to be answered with the package lock held. */
+    static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final AtomicInteger sVersion = new AtomicInteger();
+
+    /**
+     * Marks all snapshots as stale. Must be called after any change to the uid to
+     * package mapping, the install or instant state of a package, or to granted
+     * permissions.
+     */
+    public static void invalidate() {
+        sVersion.incrementAndGet();
+    }
+
+    static int currentVersion() {
+        return sVersion.get();
+    }
+
+    /** State of an app id for a single user. */
+    private static final class UidState {
+        /** Packages installed for the user, in {@link SharedUserSetting#packages} order. */
+        final String[] packageNames;
+        final boolean sharedUser;
+        /** Whether the (non-shared) package is an instant app for the user. */
+        final boolean instantApp;
+        /** Permissions granted to the uid, or null if the uid has no scanned package. */
+        final ArraySet<String> grantedPermissions;
+
+        UidState(String[] packageNames, boolean sharedUser, boolean instantApp,
+                @Nullable ArraySet<String> grantedPermissions) {
+            this.packageNames = packageNames;
+            this.sharedUser = sharedUser;
+            this.instantApp = instantApp;
+            this.grantedPermissions = grantedPermissions;
+        }
+    }
+
+    final int version;
+    /** Per user, the state of each app id that has a package or shared user setting. */
+    private final SparseArray<SparseArray<UidState>> mUserStates;
+    private final SparseArray<ArraySet<String>> mSystemPermissions;
+
+    private PackageQuerySnapshot(int version, SparseArray<SparseArray<UidState>> userStates,
+            SparseArray<ArraySet<String>> systemPermissions) {
+        this.version = version;
+        mUserStates = userStates;
+        mSystemPermissions = systemPermissions;
+    }
+
+    boolean isCurrent() {
+        return version == sVersion.get();
+    }
+
+    /**
+     * Builds a snapshot of the current state. Must be called with the package lock held.
+     *
+     * @param appIds every app id that has a {@link PackageSetting} or
+     *         {@link SharedUserSetting}
+     */
+    static PackageQuerySnapshot build(int[] userIds, SparseArray<Object> appIds,
+            ArrayMap<String, PackageParser.Package> packages,
+            SparseArray<ArraySet<String>> systemPermissions) {
+        final int version = sVersion.get();
+        final SparseArray<SparseArray<UidState>> userStates = new SparseArray<>(userIds.length);
+        for (int userId : userIds) {
+            final SparseArray<UidState> states = new SparseArray<>(appIds.size());
+            for (int i = 0; i < appIds.size(); i++) {
+                final Object obj = appIds.valueAt(i);
+                String[] names = null;
+                boolean sharedUser = false;
+                boolean instantApp = false;
+                if (obj instanceof SharedUserSetting) {
+                    final SharedUserSetting sus = (SharedUserSetting) obj;
+                    sharedUser = true;
+                    for (PackageSetting ps : sus.packages) {
+                        if (ps.getInstalled(userId)) {
+                            names = ArrayUtils.appendElement(String.class, names, ps.name);
+                        }
+                    }
+                } else if (obj instanceof PackageSetting) {
+                    final PackageSetting ps = (PackageSetting) obj;
+                    instantApp = ps.getInstantApp(userId);
+                    if (ps.getInstalled(userId)) {
+                        names = new String[] { ps.name };
+                    }
+                } else {
+                    continue;
+                }
+                final PackageParser.Package pkg = names != null ? packages.get(names[0]) : null;
+                ArraySet<String> granted = null;
+                if (pkg != null) {
+                    granted = new ArraySet<>(((PackageSetting) pkg.mExtras)
+                            .getPermissionsState().getPermissions(userId));
+                }
+                states.put(appIds.keyAt(i), new UidState(
+                        names != null ? names : new String[0], sharedUser, instantApp, granted));
+            }
+            userStates.put(userId, states);
+        }
+        return new PackageQuerySnapshot(version, userStates, systemPermissions);
+    }
+
+    @Nullable
+    private UidState getUidState(int userId, int appId) {
+        final SparseArray<UidState> states = mUserStates.get(userId);
+        return states != null ? states.get(appId) : null;
+    }
+
+    private boolean isInstantApp(int userId, int appId) {
+        final UidState state = getUidState(userId, appId);
+        return state != null && state.instantApp;
+    }
+
+    /**
+     * Mirrors {@link PackageManagerService#getPackagesForUid(int)}.
+     *
+     * @return the package names, or {@code null} with {@code unknown[0]} set if the
+     *         query must be answered with the package lock held
+     */
+    @Nullable
+    String[] getPackagesForUid(int uid, int callingUid, boolean[] unknown) {
+        final int userId = UserHandle.getUserId(uid);
+        final int appId = UserHandle.getAppId(uid);
+        final int callingUserId = UserHandle.getUserId(callingUid);
+        if (mUserStates.get(userId) == null || mUserStates.get(callingUserId) == null) {
+            unknown[0] = true;
+            return null;
+        }
+        final UidState state = getUidState(userId, appId);
+        if (state == null) {
+            return null;
+        }
+        final boolean callerIsInstantApp =
+                isInstantApp(callingUserId, UserHandle.getAppId(callingUid));
+        if (state.sharedUser) {
+            return callerIsInstantApp ? null : state.packageNames.clone();
+        }
+        if (state.packageNames.length == 0) {
+            return null;
+        }
+        // Access filtering only depends on the package when an instant app is involved
+        if (callerIsInstantApp || state.instantApp) {
+            unknown[0] = true;
+            return null;
+        }
+        return state.packageNames.clone();
+    }
+
+    /**
+     * Mirrors {@link PackageManagerService#checkUidPermission(String, int)} for a caller
+     * whose user exists.
+     *
+     * @return the permission check result, or {@link #UNKNOWN}
+     */
+    int checkUidPermission(String permName, int uid, int callingUid) {
+        final int userId = UserHandle.getUserId(uid);
+        final int appId = UserHandle.getAppId(uid);
+        final int callingUserId = UserHandle.getUserId(callingUid);
+        if (mUserStates.get(userId) == null || mUserStates.get(callingUserId) == null) {
+            return UNKNOWN;
+        }
+        final boolean callerIsInstantApp =
+                isInstantApp(callingUserId, UserHandle.getAppId(callingUid));
+        final UidState state = getUidState(userId, appId);
+        // Shared user ids are hidden from instant apps, leaving only system permissions
+        if (state != null && state.grantedPermissions != null
+                && !(state.sharedUser && callerIsInstantApp)) {
+            if (!state.sharedUser && (callerIsInstantApp || state.instantApp
+                    || isInstantApp(callingUserId, appId))) {
+                return UNKNOWN;
+            }
+            final ArraySet<String> granted = state.grantedPermissions;
+            if (granted.contains(permName)
+                    || (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName)
+                            && granted.contains(Manifest.permission.ACCESS_FINE_LOCATION))) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+            return PackageManager.PERMISSION_DENIED;
+        }
+        final ArraySet<String> perms = mSystemPermissions.get(uid);
+        if (perms != null) {
+            if (perms.contains(permName)) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+            if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName)
+                    && perms.contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+        }
+        return PackageManager.PERMISSION_DENIED;
+    }
+}
@@ -304,6 +304,7 @@ public abstract class PackageSettingBase extends SettingBase {
 
     void setInstalled(boolean inst, int userId) {
         modifyUserState(userId).installed = inst;
+        PackageQuerySnapshot.invalidate();
     }
 
     boolean getInstalled(int userId) {
@@ -412,6 +413,7 @@ public abstract class PackageSettingBase extends SettingBase {
 
     void setInstantApp(boolean instantApp, int userId) {
         modifyUserState(userId).instantApp = instantApp;
+        PackageQuerySnapshot.invalidate();
     }
 
     boolean getVirtulalPreload(int userId) {
@@ -451,6 +453,7 @@ public abstract class PackageSettingBase extends SettingBase {
         state.instantApp = instantApp;
         state.virtualPreload = virtualPreload;
         state.harmfulAppWarning = harmfulAppWarning;
+        PackageQuerySnapshot.invalidate();
     }
 
     ArraySet<String> getEnabledComponents(int userId) {
@@ -536,6 +539,7 @@ public abstract class PackageSettingBase extends SettingBase {
     }
 
     void removeUser(int userId) {
+        PackageQuerySnapshot.invalidate();
         userState.delete(userId);
     }
 
@@ -34,33 +34,48 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
+ * <p>Parsing requests are processed by a thread-pool of {@link #THREAD_COUNT}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    // Parsing alternates between reading APKs and CPU bound XML or parcel work, so
+    // keep a few threads busy even on devices with few cores. Beyond MAX_THREADS
+    // the scan is bound by storage and by the thread consuming the results.
+    private static final int MIN_THREADS = 4;
+    private static final int MAX_THREADS = 8;
+    @VisibleForTesting
+    static final int THREAD_COUNT = Math.max(MIN_THREADS,
+            Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    private static final int QUEUE_CAPACITY = 3 * THREAD_COUNT;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    private final boolean mCollectCertificates;
     private volatile String mInterruptedInThread;
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
+    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(THREAD_COUNT,
             "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
 
+    /**
+     * @param collectCertificates whether to also collect the certificates of packages
+     *         parsed with {@link PackageParser#PARSE_IS_SYSTEM_DIR}, skipping full APK
+     *         verification, so that the scan does not have to do it serially
+     */
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
-            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            boolean collectCertificates) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mCollectCertificates = collectCertificates;
     }
 
     static class ParseResult {
@@ -68,6 +83,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        boolean certificatesCollected; // Set if pkg.mSigningDetails was collected
 
         @Override
         public String toString() {
@@ -75,6 +91,7 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", certificatesCollected=" + certificatesCollected +
                     '}';
         }
     }
@@ -115,6 +132,10 @@ class ParallelPackageParser implements AutoCloseable {
                 pp.setCallback(mPackageParserCallback);
                 pr.scanFile = scanFile;
                 pr.pkg = parsePackage(pp, scanFile, parseFlags);
+                if (mCollectCertificates
+                        && (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0) {
+                    pr.certificatesCollected = collectCertificates(pr.pkg);
+                }
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
@@ -138,6 +159,20 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    /**
+     * Collects the certificates of a package on a system partition. A failure is left
+     * for the scan to report, which will collect the certificates again.
+     */
+    private static boolean collectCertificates(PackageParser.Package pkg) {
+        try {
+            PackageParser.collectCertificates(pkg, true /* skipVerify */);
+            return true;
+        } catch (PackageParser.PackageParserException e) {
+            pkg.mSigningDetails = PackageParser.SigningDetails.UNKNOWN;
+            return false;
+        }
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
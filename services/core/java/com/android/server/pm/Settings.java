@@ -102,6 +102,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -201,6 +203,7 @@ public final class Settings {
     private static final String TAG_DEFAULT_BROWSER = "default-browser";
     private static final String TAG_DEFAULT_DIALER = "default-dialer";
     private static final String TAG_VERSION = "version";
+    private static final String TAG_JOURNAL = "journal";
     private static final String TAG_SUSPENDED_APP_EXTRAS = "suspended-app-extras";
     private static final String TAG_SUSPENDED_LAUNCHER_EXTRAS = "suspended-launcher-extras";
 
@@ -240,6 +243,7 @@ public final class Settings {
     private static final String ATTR_VOLUME_UUID = "volumeUuid";
     private static final String ATTR_SDK_VERSION = "sdkVersion";
     private static final String ATTR_DATABASE_VERSION = "databaseVersion";
+    private static final String ATTR_GENERATION = "generation";
 
     // Bookkeeping for restored permission grants
     private static final String TAG_RESTORED_RUNTIME_PERMISSIONS = "restored-perms";
@@ -263,6 +267,18 @@ public final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+    /** Records entries changed since {@link #mSettingsFilename} was last fully written. */
+    private final SettingsJournal mJournal;
+    /**
+     * Keys of the journaled entries that changed since the last write, see
+     * {@link #markPackageDirtyLPw(String)}.
+     */
+    private final ArraySet<String> mDirtyJournalKeys = new ArraySet<>();
+    /**
+     * Whether settings that aren't journaled may have changed since the last full write,
+     * in which case {@link #writeChangedLPr()} has to rewrite the complete settings file.
+     */
+    private boolean mUnjournaledChanges = true;
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -438,6 +454,7 @@ public final class Settings {
                 -1, -1);
         mSettingsFilename = new File(mSystemDir, "packages.xml");
         mBackupSettingsFilename = new File(mSystemDir, "packages-backup.xml");
+        mJournal = new SettingsJournal(new File(mSystemDir, "packages-journal.bin"));
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
 
@@ -458,9 +475,52 @@ public final class Settings {
     }
 
     String addRenamedPackageLPw(String pkgName, String origPkgName) {
+        mUnjournaledChanges = true;
         return mRenamedPackages.put(pkgName, origPkgName);
     }
 
+    /**
+     * Records that the settings of the given package changed, such that the next
+     * {@link #writeChangedLPr()} journals its entries, those of its shared user and
+     * disabled system package, the key sets and, if the package defines any, the
+     * permissions.
+     */
+    void markPackageDirtyLPw(String name) {
+        mDirtyJournalKeys.add(SettingsJournal.key(SettingsJournal.TYPE_PACKAGE, name));
+        mDirtyJournalKeys.add(SettingsJournal.key(SettingsJournal.TYPE_KEY_SETS, ""));
+        final PackageSetting disabled = mDisabledSysPackages.get(name);
+        if (disabled != null) {
+            mDirtyJournalKeys.add(
+                    SettingsJournal.key(SettingsJournal.TYPE_DISABLED_PACKAGE, name));
+            markSettingDirtyLPw(disabled);
+        }
+        markSettingDirtyLPw(mPackages.get(name));
+    }
+
+    private void markSettingDirtyLPw(PackageSetting p) {
+        if (p == null) {
+            return;
+        }
+        if (p.sharedUser != null) {
+            mDirtyJournalKeys.add(
+                    SettingsJournal.key(SettingsJournal.TYPE_SHARED_USER, p.sharedUser.name));
+        }
+        // Without the parsed package we can't tell whether it defines permissions
+        if (p.pkg == null || !p.pkg.permissions.isEmpty()) {
+            mDirtyJournalKeys.add(
+                    SettingsJournal.key(SettingsJournal.TYPE_PERMISSION_TREES, ""));
+            mDirtyJournalKeys.add(SettingsJournal.key(SettingsJournal.TYPE_PERMISSIONS, ""));
+        }
+    }
+
+    /**
+     * Records that settings which aren't journaled changed, such that the next
+     * {@link #writeChangedLPr()} rewrites the complete settings file.
+     */
+    void markUnjournaledChangesLPw() {
+        mUnjournaledChanges = true;
+    }
+
     void applyPendingPermissionGrantsLPw(String packageName, int userId) {
         ArrayMap<String, ArraySet<RestoredPermissionGrant>> grantsByPackage =
                 mRestoredUserGrants.get(userId);
@@ -505,6 +565,7 @@ public final class Settings {
     void setInstallerPackageName(String pkgName, String installerPkgName) {
         PackageSetting p = mPackages.get(pkgName);
         if (p != null) {
+            markPackageDirtyLPw(pkgName);
             p.setInstallerPackageName(installerPkgName);
             if (installerPkgName != null) {
                 mInstallerPackages.add(installerPkgName);
@@ -526,6 +587,7 @@ public final class Settings {
             }
             Log.i(PackageManagerService.TAG, "New shared user " + name + ": id=" + s.userId);
             mSharedUsers.put(name, s);
+            mDirtyJournalKeys.add(SettingsJournal.key(SettingsJournal.TYPE_SHARED_USER, name));
         }
         return s;
     }
@@ -547,6 +609,7 @@ public final class Settings {
                 p.pkg.applicationInfo.flags |= ApplicationInfo.FLAG_UPDATED_SYSTEM_APP;
             }
             mDisabledSysPackages.put(name, p);
+            markPackageDirtyLPw(name);
 
             if (replaced) {
                 // a little trick...  when we install the new package, we don't
@@ -578,6 +641,8 @@ public final class Settings {
                 p.parentPackageName, p.childPackageNames, p.usesStaticLibraries,
                 p.usesStaticLibrariesVersions);
         mDisabledSysPackages.remove(name);
+        mDirtyJournalKeys.add(SettingsJournal.key(SettingsJournal.TYPE_DISABLED_PACKAGE, name));
+        markPackageDirtyLPw(name);
         return ret;
     }
 
@@ -586,6 +651,7 @@ public final class Settings {
     }
 
     void removeDisabledSystemPackageLPw(String name) {
+        markPackageDirtyLPw(name);
         mDisabledSysPackages.remove(name);
     }
 
@@ -611,6 +677,7 @@ public final class Settings {
         p.appId = uid;
         if (addUserIdLPw(uid, p, name)) {
             mPackages.put(name, p);
+            markPackageDirtyLPw(name);
             return p;
         }
         return null;
@@ -660,6 +727,8 @@ public final class Settings {
         }
         for (int i = 0; i < removeStage.size(); i++) {
             mSharedUsers.remove(removeStage.get(i));
+            mDirtyJournalKeys.add(
+                    SettingsJournal.key(SettingsJournal.TYPE_SHARED_USER, removeStage.get(i)));
         }
     }
 
@@ -963,6 +1032,7 @@ public final class Settings {
             p.sharedUser = sharedUser;
             p.appId = sharedUser.userId;
         }
+        markPackageDirtyLPw(p.name);
 
         // If the we know about this user id, we have to update it as it
         // has to point to the same PackageSetting instance as the package.
@@ -1071,6 +1141,7 @@ public final class Settings {
     int removePackageLPw(String name) {
         final PackageSetting p = mPackages.get(name);
         if (p != null) {
+            markPackageDirtyLPw(name);
             mPackages.remove(name);
             removeInstallerPackageStatus(name);
             if (p.sharedUser != null) {
@@ -1104,6 +1175,7 @@ public final class Settings {
                     && installerPackageName.equals(packageName)) {
                 ps.setInstallerPackageName(null);
                 ps.isOrphaned = true;
+                markPackageDirtyLPw(ps.name);
             }
         }
         mInstallerPackages.remove(packageName);
@@ -1120,6 +1192,7 @@ public final class Settings {
             }
         }
         mPackages.put(name, newp);
+        markPackageDirtyLPw(name);
     }
 
     private boolean addUserIdLPw(int uid, Object obj, Object name) {
@@ -1150,6 +1223,7 @@ public final class Settings {
             }
             mOtherUserIds.put(uid, obj);
         }
+        PackageQuerySnapshot.invalidate();
         return true;
     }
 
@@ -1172,6 +1246,7 @@ public final class Settings {
             mOtherUserIds.remove(uid);
         }
         setFirstAvailableUid(uid+1);
+        PackageQuerySnapshot.invalidate();
     }
 
     private void replaceUserIdLPw(int uid, Object obj) {
@@ -1182,6 +1257,25 @@ public final class Settings {
         } else {
             mOtherUserIds.put(uid, obj);
         }
+        PackageQuerySnapshot.invalidate();
+    }
+
+    /**
+     * Returns every app id that is assigned to a package or shared user.
+     */
+    SparseArray<Object> getAppIdsLPr() {
+        final SparseArray<Object> appIds = new SparseArray<>(
+                mUserIds.size() + mOtherUserIds.size());
+        for (int i = 0; i < mOtherUserIds.size(); i++) {
+            appIds.put(mOtherUserIds.keyAt(i), mOtherUserIds.valueAt(i));
+        }
+        for (int i = 0; i < mUserIds.size(); i++) {
+            final Object obj = mUserIds.get(i);
+            if (obj != null) {
+                appIds.put(Process.FIRST_APPLICATION_UID + i, obj);
+            }
+        }
+        return appIds;
     }
 
     PreferredIntentResolver editPreferredActivitiesLPw(int userId) {
@@ -2452,11 +2546,34 @@ public final class Settings {
         }
     }
 
+    /**
+     * Writes the settings like {@link #writeLPr()}, but only journals the entries that were
+     * marked as changed since the last write, see {@link #markPackageDirtyLPw(String)}. Falls
+     * back to rewriting the complete settings file if anything else changed or the journal is
+     * due for compaction.
+     */
+    void writeChangedLPr() {
+        final long startTime = SystemClock.uptimeMillis();
+        if (!writeJournalLPr(startTime)) {
+            writeLPr();
+            return;
+        }
+        writeKernelMappingLPr();
+        writePackageListLPr();
+        writeAllUsersPackageRestrictionsLPr();
+        writeAllRuntimePermissionsLPr();
+        com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
+                "package", SystemClock.uptimeMillis() - startTime);
+    }
+
     void writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
         final long startTime = SystemClock.uptimeMillis();
 
+        final long generation = mJournal.getGeneration() + 1;
+        mJournal.invalidate();
+
         // Keep the old settings around until we know the new ones have
         // been successfully written.
         if (mSettingsFilename.exists()) {
@@ -2491,38 +2608,11 @@ public final class Settings {
 
             serializer.startTag(null, "packages");
 
-            for (int i = 0; i < mVersion.size(); i++) {
-                final String volumeUuid = mVersion.keyAt(i);
-                final VersionInfo ver = mVersion.valueAt(i);
-
-                serializer.startTag(null, TAG_VERSION);
-                XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
-                XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
-                serializer.endTag(null, TAG_VERSION);
-            }
-
-            if (mVerifierDeviceIdentity != null) {
-                serializer.startTag(null, "verifier");
-                serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
-                serializer.endTag(null, "verifier");
-            }
-
-            if (mReadExternalStorageEnforced != null) {
-                serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
-                serializer.attribute(
-                        null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
-                serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
-            }
-
-            serializer.startTag(null, "permission-trees");
-            mPermissions.writePermissionTrees(serializer);
-            serializer.endTag(null, "permission-trees");
+            serializer.startTag(null, TAG_JOURNAL);
+            XmlUtils.writeLongAttribute(serializer, ATTR_GENERATION, generation);
+            serializer.endTag(null, TAG_JOURNAL);
 
-            serializer.startTag(null, "permissions");
-            mPermissions.writePermissions(serializer);
-            serializer.endTag(null, "permissions");
+            writeHeaderLPr(serializer);
 
             for (final PackageSetting pkg : mPackages.values()) {
                 writePackageLPr(serializer, pkg);
@@ -2533,54 +2623,10 @@ public final class Settings {
             }
 
             for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
+                writeSharedUserLPr(serializer, usr);
             }
 
-            if (mPackagesToBeCleaned.size() > 0) {
-                for (PackageCleanItem item : mPackagesToBeCleaned) {
-                    final String userStr = Integer.toString(item.userId);
-                    serializer.startTag(null, "cleaning-package");
-                    serializer.attribute(null, ATTR_NAME, item.packageName);
-                    serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
-                    serializer.attribute(null, ATTR_USER, userStr);
-                    serializer.endTag(null, "cleaning-package");
-                }
-            }
-
-            if (mRenamedPackages.size() > 0) {
-                for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
-                    serializer.startTag(null, "renamed-package");
-                    serializer.attribute(null, "new", e.getKey());
-                    serializer.attribute(null, "old", e.getValue());
-                    serializer.endTag(null, "renamed-package");
-                }
-            }
-
-            final int numIVIs = mRestoredIntentFilterVerifications.size();
-            if (numIVIs > 0) {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
-                }
-                serializer.startTag(null, "restored-ivi");
-                for (int i = 0; i < numIVIs; i++) {
-                    IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
-                    writeDomainVerificationsLPr(serializer, ivi);
-                }
-                serializer.endTag(null, "restored-ivi");
-            } else {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "  no restored IVI entries to write");
-                }
-            }
-
-            mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+            writeTrailerLPr(serializer);
 
             serializer.endTag(null, "packages");
 
@@ -2598,6 +2644,10 @@ public final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
+            mJournal.reset(generation, SystemClock.uptimeMillis() - startTime);
+            mDirtyJournalKeys.clear();
+            mUnjournaledChanges = false;
+
             writeKernelMappingLPr();
             writePackageListLPr();
             writeAllUsersPackageRestrictionsLPr();
@@ -2620,6 +2670,198 @@ public final class Settings {
         //Debug.stopMethodTracing();
     }
 
+    /**
+     * Writes the elements of packages.xml that precede the per-package entries.
+     */
+    private void writeHeaderLPr(XmlSerializer serializer) throws IOException {
+        for (int i = 0; i < mVersion.size(); i++) {
+            final String volumeUuid = mVersion.keyAt(i);
+            final VersionInfo ver = mVersion.valueAt(i);
+
+            serializer.startTag(null, TAG_VERSION);
+            XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
+            XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
+            XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+            XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
+            serializer.endTag(null, TAG_VERSION);
+        }
+
+        if (mVerifierDeviceIdentity != null) {
+            serializer.startTag(null, "verifier");
+            serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
+            serializer.endTag(null, "verifier");
+        }
+
+        if (mReadExternalStorageEnforced != null) {
+            serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
+            serializer.attribute(
+                    null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
+            serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+        }
+
+        serializer.startTag(null, "permission-trees");
+        mPermissions.writePermissionTrees(serializer);
+        serializer.endTag(null, "permission-trees");
+
+        serializer.startTag(null, "permissions");
+        mPermissions.writePermissions(serializer);
+        serializer.endTag(null, "permissions");
+    }
+
+    /**
+     * Writes the elements of packages.xml that follow the per-package entries.
+     */
+    private void writeTrailerLPr(XmlSerializer serializer) throws IOException {
+        if (mPackagesToBeCleaned.size() > 0) {
+            for (PackageCleanItem item : mPackagesToBeCleaned) {
+                final String userStr = Integer.toString(item.userId);
+                serializer.startTag(null, "cleaning-package");
+                serializer.attribute(null, ATTR_NAME, item.packageName);
+                serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
+                serializer.attribute(null, ATTR_USER, userStr);
+                serializer.endTag(null, "cleaning-package");
+            }
+        }
+
+        if (mRenamedPackages.size() > 0) {
+            for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
+                serializer.startTag(null, "renamed-package");
+                serializer.attribute(null, "new", e.getKey());
+                serializer.attribute(null, "old", e.getValue());
+                serializer.endTag(null, "renamed-package");
+            }
+        }
+
+        final int numIVIs = mRestoredIntentFilterVerifications.size();
+        if (numIVIs > 0) {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
+            }
+            serializer.startTag(null, "restored-ivi");
+            for (int i = 0; i < numIVIs; i++) {
+                IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
+                writeDomainVerificationsLPr(serializer, ivi);
+            }
+            serializer.endTag(null, "restored-ivi");
+        } else {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "  no restored IVI entries to write");
+            }
+        }
+
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+    }
+
+    private void writeSharedUserLPr(XmlSerializer serializer, SharedUserSetting usr)
+            throws IOException {
+        serializer.startTag(null, "shared-user");
+        serializer.attribute(null, ATTR_NAME, usr.name);
+        serializer.attribute(null, "userId",
+                Integer.toString(usr.userId));
+        usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
+        writePermissionsLPr(serializer, usr.getPermissionsState()
+                .getInstallPermissionStates());
+        serializer.endTag(null, "shared-user");
+    }
+
+    /**
+     * Serializes a single journal entry into {@code out}. Certificates are written
+     * with indices local to the entry so that it can be replayed on its own.
+     */
+    private void writeJournalEntryLPr(ByteArrayOutputStream out, int type, Object setting)
+            throws IOException {
+        out.reset();
+        mPastSignatures.clear();
+        final XmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        switch (type) {
+            case SettingsJournal.TYPE_PACKAGE:
+                writePackageLPr(serializer, (PackageSetting) setting);
+                break;
+            case SettingsJournal.TYPE_DISABLED_PACKAGE:
+                writeDisabledSysPackageLPr(serializer, (PackageSetting) setting);
+                break;
+            case SettingsJournal.TYPE_SHARED_USER:
+                writeSharedUserLPr(serializer, (SharedUserSetting) setting);
+                break;
+            case SettingsJournal.TYPE_PERMISSION_TREES:
+                serializer.startTag(null, "permission-trees");
+                mPermissions.writePermissionTrees(serializer);
+                serializer.endTag(null, "permission-trees");
+                break;
+            case SettingsJournal.TYPE_PERMISSIONS:
+                serializer.startTag(null, "permissions");
+                mPermissions.writePermissions(serializer);
+                serializer.endTag(null, "permissions");
+                break;
+            case SettingsJournal.TYPE_KEY_SETS:
+                mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+                break;
+        }
+        serializer.endDocument();
+    }
+
+    /**
+     * Returns the setting journaled under the given type and name, or {@code null} if it
+     * was removed.
+     */
+    private Object getJournaledSettingLPr(int type, String name) {
+        switch (type) {
+            case SettingsJournal.TYPE_PACKAGE:
+                return mPackages.get(name);
+            case SettingsJournal.TYPE_DISABLED_PACKAGE:
+                return mDisabledSysPackages.get(name);
+            case SettingsJournal.TYPE_SHARED_USER:
+                return mSharedUsers.get(name);
+            case SettingsJournal.TYPE_KEY_SETS:
+                return mKeySetManagerService;
+            default:
+                return mPermissions;
+        }
+    }
+
+    /**
+     * Appends the entries marked as changed since the last write to the journal instead
+     * of rewriting the whole settings file.
+     *
+     * @return {@code false} if a full write is required, either because state outside
+     *         of the journaled entries changed or because the journal is due for
+     *         compaction into a new snapshot
+     */
+    private boolean writeJournalLPr(long startTime) {
+        if (mUnjournaledChanges || !mJournal.hasBaseline() || mJournal.needsCompaction()
+                || mBackupSettingsFilename.exists()) {
+            return false;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ArrayList<SettingsJournal.Entry> entries =
+                new ArrayList<>(mDirtyJournalKeys.size());
+        try {
+            for (int i = 0; i < mDirtyJournalKeys.size(); i++) {
+                final String key = mDirtyJournalKeys.valueAt(i);
+                final int type = SettingsJournal.getType(key);
+                final String name = SettingsJournal.getName(key);
+                final Object setting = getJournaledSettingLPr(type, name);
+                if (setting == null) {
+                    entries.add(new SettingsJournal.Entry(type, name, null));
+                } else {
+                    writeJournalEntryLPr(out, type, setting);
+                    entries.add(new SettingsJournal.Entry(type, name, out.toByteArray()));
+                }
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to serialize settings journal entries", e);
+            return false;
+        } finally {
+            mPastSignatures.clear();
+        }
+        if (!entries.isEmpty() && !mJournal.append(entries, startTime)) {
+            return false;
+        }
+        mDirtyJournalKeys.clear();
+        return true;
+    }
+
     private void writeKernelRemoveUserLPr(int userId) {
         if (mKernelMappingFilename == null) return;
 
@@ -2972,6 +3214,7 @@ public final class Settings {
     void addPackageToCleanLPw(PackageCleanItem pkg) {
         if (!mPackagesToBeCleaned.contains(pkg)) {
             mPackagesToBeCleaned.add(pkg);
+            mUnjournaledChanges = true;
         }
     }
 
@@ -3000,6 +3243,11 @@ public final class Settings {
         mPastSignatures.clear();
         mKeySetRefs.clear();
         mInstallerPackages.clear();
+        mJournal.invalidate();
+
+        // Entries journaled since the snapshot was written; they replace their
+        // counterparts in the snapshot.
+        ArrayMap<String, SettingsJournal.Entry> journal = null;
 
         try {
             if (str == null) {
@@ -3041,14 +3289,33 @@ public final class Settings {
                 }
 
                 String tagName = parser.getName();
-                if (tagName.equals("package")) {
-                    readPackageLPw(parser);
+                if (TAG_JOURNAL.equals(tagName)) {
+                    journal = mJournal.read(
+                            XmlUtils.readLongAttribute(parser, ATTR_GENERATION, 0));
+                } else if (tagName.equals("package")) {
+                    if (isJournaled(journal, SettingsJournal.TYPE_PACKAGE, parser)) {
+                        skipJournaledEntryLPw(parser);
+                    } else {
+                        readPackageLPw(parser);
+                    }
                 } else if (tagName.equals("permissions")) {
-                    mPermissions.readPermissions(parser);
+                    if (isSectionJournaled(journal, SettingsJournal.TYPE_PERMISSIONS)) {
+                        XmlUtils.skipCurrentTag(parser);
+                    } else {
+                        mPermissions.readPermissions(parser);
+                    }
                 } else if (tagName.equals("permission-trees")) {
-                    mPermissions.readPermissionTrees(parser);
+                    if (isSectionJournaled(journal, SettingsJournal.TYPE_PERMISSION_TREES)) {
+                        XmlUtils.skipCurrentTag(parser);
+                    } else {
+                        mPermissions.readPermissionTrees(parser);
+                    }
                 } else if (tagName.equals("shared-user")) {
-                    readSharedUserLPw(parser);
+                    if (isJournaled(journal, SettingsJournal.TYPE_SHARED_USER, parser)) {
+                        skipJournaledEntryLPw(parser);
+                    } else {
+                        readSharedUserLPw(parser);
+                    }
                 } else if (tagName.equals("preferred-packages")) {
                     // no longer used.
                 } else if (tagName.equals("preferred-activities")) {
@@ -3066,7 +3333,11 @@ public final class Settings {
                 } else if (tagName.equals(TAG_DEFAULT_BROWSER)) {
                     readDefaultAppsLPw(parser, 0);
                 } else if (tagName.equals("updated-package")) {
-                    readDisabledSysPackageLPw(parser);
+                    if (isJournaled(journal, SettingsJournal.TYPE_DISABLED_PACKAGE, parser)) {
+                        skipJournaledEntryLPw(parser);
+                    } else {
+                        readDisabledSysPackageLPw(parser);
+                    }
                 } else if (tagName.equals("cleaning-package")) {
                     String name = parser.getAttributeValue(null, ATTR_NAME);
                     String userStr = parser.getAttributeValue(null, ATTR_USER);
@@ -3128,7 +3399,17 @@ public final class Settings {
                     mReadExternalStorageEnforced =
                             "1".equals(enforcement) ? Boolean.TRUE : Boolean.FALSE;
                 } else if (tagName.equals("keyset-settings")) {
-                    mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
+                    // Key set reference counts are collected from the packages read
+                    // so far, so journaled packages need to be in place first.
+                    if (journal != null) {
+                        readJournalEntriesLPw(journal);
+                    }
+                    if (isSectionJournaled(journal, SettingsJournal.TYPE_KEY_SETS)) {
+                        XmlUtils.skipCurrentTag(parser);
+                    } else {
+                        mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
+                    }
+                    journal = null;
                 } else if (TAG_VERSION.equals(tagName)) {
                     final String volumeUuid = XmlUtils.readStringAttribute(parser,
                             ATTR_VOLUME_UUID);
@@ -3143,6 +3424,10 @@ public final class Settings {
                 }
             }
 
+            if (journal != null) {
+                readJournalEntriesLPw(journal);
+            }
+
             str.close();
 
         } catch (XmlPullParserException e) {
@@ -3550,6 +3835,115 @@ public final class Settings {
         }
     }
 
+    private static boolean isJournaled(ArrayMap<String, SettingsJournal.Entry> journal, int type,
+            XmlPullParser parser) {
+        return journal != null && journal.containsKey(
+                SettingsJournal.key(type, parser.getAttributeValue(null, ATTR_NAME)));
+    }
+
+    /**
+     * Returns whether a section of the snapshot is superseded by the journal, in which case
+     * the journaled section has been read instead.
+     */
+    private boolean isSectionJournaled(ArrayMap<String, SettingsJournal.Entry> journal,
+            int type) {
+        if (journal == null) {
+            return false;
+        }
+        final SettingsJournal.Entry entry = journal.get(SettingsJournal.key(type, ""));
+        if (entry == null || entry.isRemoved()) {
+            return false;
+        }
+        readJournalEntryLPw(entry);
+        return true;
+    }
+
+    /**
+     * Skips a snapshot entry that is superseded by the journal. Certificates defined by
+     * the entry are still recorded, since later entries may refer to them by index.
+     */
+    private void skipJournaledEntryLPw(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        int outerDepth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type != XmlPullParser.START_TAG || !"cert".equals(parser.getName())) {
+                continue;
+            }
+            final String index = parser.getAttributeValue(null, "index");
+            final String key = parser.getAttributeValue(null, "key");
+            if (index == null || key == null) {
+                continue;
+            }
+            try {
+                final int idx = Integer.parseInt(index);
+                while (mPastSignatures.size() <= idx) {
+                    mPastSignatures.add(null);
+                }
+                mPastSignatures.set(idx, new Signature(key));
+            } catch (IllegalArgumentException e) {
+                // Malformed entries are reported when a referencing entry is read
+            }
+        }
+    }
+
+    private void readJournalEntriesLPw(ArrayMap<String, SettingsJournal.Entry> journal) {
+        // Journal entries number their certificates on their own
+        final ArrayList<Signature> pastSignatures = new ArrayList<>(mPastSignatures);
+        for (int i = 0; i < journal.size(); i++) {
+            final SettingsJournal.Entry entry = journal.valueAt(i);
+            if (entry.isRemoved() || entry.type > SettingsJournal.TYPE_SHARED_USER) {
+                // Sections are read in place of their counterparts in the snapshot
+                continue;
+            }
+            mPastSignatures.clear();
+            readJournalEntryLPw(entry);
+        }
+        mPastSignatures.clear();
+        mPastSignatures.addAll(pastSignatures);
+    }
+
+    private void readJournalEntryLPw(SettingsJournal.Entry entry) {
+        try {
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(entry.data),
+                    StandardCharsets.UTF_8.name());
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG
+                    && type != XmlPullParser.END_DOCUMENT) {
+                ;
+            }
+            if (type != XmlPullParser.START_TAG) {
+                return;
+            }
+            switch (entry.type) {
+                case SettingsJournal.TYPE_PACKAGE:
+                    readPackageLPw(parser);
+                    break;
+                case SettingsJournal.TYPE_DISABLED_PACKAGE:
+                    readDisabledSysPackageLPw(parser);
+                    break;
+                case SettingsJournal.TYPE_SHARED_USER:
+                    readSharedUserLPw(parser);
+                    break;
+                case SettingsJournal.TYPE_PERMISSION_TREES:
+                    mPermissions.readPermissionTrees(parser);
+                    break;
+                case SettingsJournal.TYPE_PERMISSIONS:
+                    mPermissions.readPermissions(parser);
+                    break;
+                case SettingsJournal.TYPE_KEY_SETS:
+                    mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
+                    break;
+            }
+        } catch (XmlPullParserException | IOException e) {
+            mReadMessages.append("Error reading journal: " + e.toString());
+            PackageManagerService.reportSettingsProblem(Log.ERROR,
+                    "Error reading settings journal entry " + entry.name + ": " + e);
+        }
+    }
+
     private void readDisabledSysPackageLPw(XmlPullParser parser) throws XmlPullParserException,
             IOException {
         String name = parser.getAttributeValue(null, ATTR_NAME);
@@ -4977,6 +5371,7 @@ public final class Settings {
     void dumpReadMessagesLPr(PrintWriter pw, DumpState dumpState) {
         pw.println("Settings parse messages:");
         pw.print(mReadMessages.toString());
+        mJournal.dump(pw, "");
     }
 
     void dumpRestoredPermissionGrantsLPr(PrintWriter pw, DumpState dumpState) {
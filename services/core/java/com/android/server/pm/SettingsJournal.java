@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the {@code <package>}, {@code <updated-package>} and
+ * {@code <shared-user>} entries of packages.xml, as well as of its permission and
+ * key set sections, that changed since the last full snapshot was written. Which
+ * entries changed is tracked by {@link Settings}, see
+ * {@link Settings#markPackageDirtyLPw(String)}.
+ * <p>
+ * Every entry is persisted as a self-contained XML fragment, so that replaying it
+ * does not depend on the certificate indices of the snapshot. The journal is tied to
+ * a snapshot through a generation number that is written both to the journal header
+ * and to packages.xml; a journal whose generation does not match the snapshot it is
+ * read with is discarded.
+ * <p>
+ * All methods must be called with the package manager lock held.
+ */
+final class SettingsJournal {
+    private static final String TAG = "SettingsJournal";
+
+    static final int TYPE_PACKAGE = 1;
+    static final int TYPE_DISABLED_PACKAGE = 2;
+    static final int TYPE_SHARED_USER = 3;
+    // Sections of packages.xml, journaled as a whole under an empty name
+    static final int TYPE_PERMISSION_TREES = 4;
+    static final int TYPE_PERMISSIONS = 5;
+    static final int TYPE_KEY_SETS = 6;
+
+    private static final int JOURNAL_MAGIC = 0x504b4a4e; // PKJN
+    private static final int JOURNAL_VERSION = 1;
+
+    /** Flag set on records whose entry was removed from the settings. */
+    private static final int FLAG_REMOVED = 0x80;
+
+    /** Number of records after which the journal is folded into a new snapshot. */
+    private static final int MAX_RECORDS = 512;
+
+    // Bounds the length of a record read from a corrupt file.
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /** A single journaled entry; {@link #data} is {@code null} if the entry was removed. */
+    static final class Entry {
+        final int type;
+        final String name;
+        final byte[] data;
+
+        Entry(int type, String name, @Nullable byte[] data) {
+            this.type = type;
+            this.name = name;
+            this.data = data;
+        }
+
+        boolean isRemoved() {
+            return data == null;
+        }
+    }
+
+    private final File mFile;
+
+    private boolean mHasBaseline;
+    private long mGeneration;
+    private int mRecordCount;
+
+    // Statistics reported in dumpsys
+    private int mSnapshotWrites;
+    private int mJournalWrites;
+    private int mJournalRecordsWritten;
+    private long mLastSnapshotMs;
+    private long mLastJournalMs;
+
+    SettingsJournal(File file) {
+        mFile = file;
+    }
+
+    static String key(int type, String name) {
+        return type + ":" + name;
+    }
+
+    static int getType(String key) {
+        return Integer.parseInt(key.substring(0, key.indexOf(':')));
+    }
+
+    static String getName(String key) {
+        return key.substring(key.indexOf(':') + 1);
+    }
+
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns whether the journal is known to match the last written snapshot, which is
+     * required before anything can be appended to it.
+     */
+    boolean hasBaseline() {
+        return mHasBaseline;
+    }
+
+    boolean needsCompaction() {
+        return mRecordCount >= MAX_RECORDS;
+    }
+
+    /** Forgets the last persisted state, forcing the next write to be a full snapshot. */
+    void invalidate() {
+        mHasBaseline = false;
+    }
+
+    /**
+     * Reads all entries journaled against the snapshot with the given generation. Later
+     * records for the same entry replace earlier ones. A torn or corrupt record, as left
+     * by a crash during an append, ends the journal.
+     */
+    ArrayMap<String, Entry> read(long generation) {
+        mGeneration = generation;
+        mRecordCount = 0;
+        invalidate();
+        final ArrayMap<String, Entry> entries = new ArrayMap<>();
+        if (!mFile.exists()) {
+            return entries;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION) {
+                Slog.w(TAG, "Ignoring journal with unknown format");
+                return entries;
+            }
+            final long journalGeneration = in.readLong();
+            if (journalGeneration != generation) {
+                Slog.i(TAG, "Ignoring stale journal generation " + journalGeneration
+                        + ", snapshot is " + generation);
+                return entries;
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int typeAndFlags;
+                try {
+                    typeAndFlags = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                final String name = in.readUTF();
+                final int length = in.readInt();
+                if (length < -1 || length > MAX_RECORD_SIZE) {
+                    Slog.w(TAG, "Journal record for " + name + " has invalid length " + length
+                            + ", ignoring rest");
+                    break;
+                }
+                final byte[] data = length >= 0 ? new byte[length] : null;
+                if (data != null) {
+                    in.readFully(data);
+                }
+                final long checksum = in.readLong();
+                crc.reset();
+                crc.update(typeAndFlags);
+                if (data != null) {
+                    crc.update(data);
+                }
+                if (crc.getValue() != checksum) {
+                    Slog.w(TAG, "Journal record for " + name + " is corrupt, ignoring rest");
+                    break;
+                }
+                final int type = typeAndFlags & ~FLAG_REMOVED;
+                final boolean removed = (typeAndFlags & FLAG_REMOVED) != 0;
+                entries.put(key(type, name), new Entry(type, name, removed ? null : data));
+                mRecordCount++;
+            }
+        } catch (EOFException e) {
+            Slog.w(TAG, "Journal ends with a partial record, ignoring it");
+        } catch (IOException e) {
+            Slog.wtf(TAG, "Failed to read package manager settings journal", e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return entries;
+    }
+
+    /**
+     * Starts an empty journal on top of a newly written snapshot.
+     */
+    void reset(long generation, long durationMs) {
+        mGeneration = generation;
+        mRecordCount = 0;
+        mSnapshotWrites++;
+        mLastSnapshotMs = durationMs;
+        invalidate();
+        FileOutputStream fstr = null;
+        try {
+            fstr = new FileOutputStream(mFile);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fstr));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            out.writeLong(generation);
+            out.flush();
+            FileUtils.sync(fstr);
+            FileUtils.setPermissions(mFile.toString(),
+                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                    -1, -1);
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to start settings journal", e);
+            IoUtils.closeQuietly(fstr);
+            mFile.delete();
+            return;
+        }
+        IoUtils.closeQuietly(fstr);
+        mHasBaseline = true;
+    }
+
+    /**
+     * Appends the given entries to the journal and syncs it to disk. On failure the
+     * baseline is dropped and the caller is expected to write a full snapshot.
+     *
+     * @param startTime uptime at which the write started, for statistics
+     * @return whether the entries were persisted
+     */
+    boolean append(ArrayList<Entry> entries, long startTime) {
+        FileOutputStream fstr = null;
+        try {
+            fstr = new FileOutputStream(mFile, true);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fstr));
+            final CRC32 crc = new CRC32();
+            final int count = entries.size();
+            for (int i = 0; i < count; i++) {
+                final Entry entry = entries.get(i);
+                final int typeAndFlags = entry.type | (entry.isRemoved() ? FLAG_REMOVED : 0);
+                out.writeByte(typeAndFlags);
+                out.writeUTF(entry.name);
+                crc.reset();
+                crc.update(typeAndFlags);
+                if (entry.isRemoved()) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(entry.data.length);
+                    out.write(entry.data);
+                    crc.update(entry.data);
+                }
+                out.writeLong(crc.getValue());
+            }
+            out.flush();
+            FileUtils.sync(fstr);
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to append to settings journal", e);
+            invalidate();
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fstr);
+        }
+        final int count = entries.size();
+        mRecordCount += count;
+        mJournalWrites++;
+        mJournalRecordsWritten += count;
+        mLastJournalMs = SystemClock.uptimeMillis() - startTime;
+        return true;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Settings journal: generation="); pw.print(mGeneration);
+        pw.print(" records="); pw.print(mRecordCount);
+        pw.print(" baseline="); pw.println(mHasBaseline);
+        pw.print(prefix); pw.print("  snapshotWrites="); pw.print(mSnapshotWrites);
+        pw.print(" lastSnapshotMs="); pw.print(mLastSnapshotMs);
+        pw.print(" journalWrites="); pw.print(mJournalWrites);
+        pw.print(" journalRecords="); pw.print(mJournalRecordsWritten);
+        pw.print(" lastJournalMs="); pw.println(mLastJournalMs);
+    }
+}
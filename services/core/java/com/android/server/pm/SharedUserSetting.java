@@ -71,6 +71,7 @@ public final class SharedUserSetting extends SettingBase {
 
     void removePackage(PackageSetting packageSetting) {
         if (packages.remove(packageSetting)) {
+            PackageQuerySnapshot.invalidate();
             // recalculate the pkgFlags for this shared user if needed
             if ((this.pkgFlags & packageSetting.pkgFlags) != 0) {
                 int aggregatedFlags = uidFlags;
@@ -96,6 +97,7 @@ public final class SharedUserSetting extends SettingBase {
             seInfoTargetSdkVersion = packageSetting.pkg.applicationInfo.targetSdkVersion;
         }
         if (packages.add(packageSetting)) {
+            PackageQuerySnapshot.invalidate();
             setFlags(this.pkgFlags | packageSetting.pkgFlags);
             setPrivateFlags(this.pkgPrivateFlags | packageSetting.pkgPrivateFlags);
         }
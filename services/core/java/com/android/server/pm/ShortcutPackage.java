@@ -1334,12 +1334,17 @@ class ShortcutPackage extends ShortcutPackageItem {
         return result;
     }
 
+    /** @return whether {@link #saveToXml} has anything to write. */
+    public boolean hasDataToSave() {
+        return mShortcuts.size() > 0 || mApiCallCount != 0;
+    }
+
     @Override
     public void saveToXml(@NonNull XmlSerializer out, boolean forBackup)
             throws IOException, XmlPullParserException {
         final int size = mShortcuts.size();
 
-        if (size == 0 && mApiCallCount == 0) {
+        if (!hasDataToSave()) {
             return; // nothing to write.
         }
 
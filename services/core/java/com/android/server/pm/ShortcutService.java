@@ -83,6 +83,7 @@ import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.KeyValueListParser;
 import android.util.Log;
+import android.util.PackageUtils;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -189,6 +190,10 @@ public class ShortcutService extends IShortcutService.Stub {
     @VisibleForTesting
     static final String FILENAME_USER_PACKAGES = "shortcuts.xml";
 
+    /** Holds one file per publisher package, so a package can be saved without the others. */
+    @VisibleForTesting
+    static final String DIRECTORY_PACKAGES = "packages";
+
     static final String DIRECTORY_BITMAPS = "bitmaps";
 
     private static final String TAG_ROOT = "root";
@@ -964,22 +969,131 @@ public class ShortcutService extends IShortcutService.Stub {
 
         mShortcutBitmapSaver.waitForAllSavesLocked();
 
-        path.getParentFile().mkdirs();
-        final AtomicFile file = new AtomicFile(path);
-        FileOutputStream os = null;
+        final ShortcutUser user = getUserShortcutsLocked(userId);
         try {
-            os = file.startWrite();
+            // Write the package files first, as the user file lists them.  Only the packages
+            // that have changed since they were last loaded or saved are written.
+            user.savePackageShards();
 
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
             saveUserInternalLocked(userId, os, /* forBackup= */ false);
-
-            file.finishWrite(os);
+            final byte[] contents = os.toByteArray();
+            final String digest = PackageUtils.computeSha256Digest(contents);
+            if (digest == null || !digest.equals(user.getUserFileDigest()) || !path.exists()) {
+                path.getParentFile().mkdirs();
+                writeFileLocked(path, contents);
+                user.setUserFileDigest(digest);
+            }
 
             // Remove all dangling bitmap files.
             cleanupDanglingBitmapDirectoriesLocked(userId);
         } catch (XmlPullParserException | IOException e) {
-            Slog.e(TAG, "Failed to write to file " + file.getBaseFile(), e);
+            Slog.e(TAG, "Failed to save user " + userId, e);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void writeFileLocked(File path, byte[] contents) throws IOException {
+        final AtomicFile file = new AtomicFile(path);
+        FileOutputStream os = null;
+        try {
+            os = file.startWrite();
+            os.write(contents);
+            file.finishWrite(os);
+        } catch (IOException e) {
             file.failWrite(os);
+            throw e;
+        }
+    }
+
+    @VisibleForTesting
+    final File getPackageShardFile(@UserIdInt int userId, @NonNull String packageName) {
+        return new File(new File(injectUserDataPath(userId), DIRECTORY_PACKAGES),
+                packageName + ".xml");
+    }
+
+    /**
+     * Serializes a publisher package into the contents of its own file, or returns null when
+     * there's nothing to save for the package.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    byte[] serializePackageShardLocked(@NonNull ShortcutPackage p)
+            throws IOException, XmlPullParserException {
+        if (!p.hasDataToSave()) {
+            return null;
+        }
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        p.saveToXml(out, /* forBackup= */ false);
+        out.endDocument();
+        out.flush();
+        return os.toByteArray();
+    }
+
+    @GuardedBy("mLock")
+    void writePackageShardLocked(@UserIdInt int userId, @NonNull String packageName,
+            @NonNull byte[] contents) throws IOException {
+        final File path = getPackageShardFile(userId, packageName);
+        if (DEBUG) {
+            Slog.d(TAG, "Saving to " + path);
+        }
+        path.getParentFile().mkdirs();
+        writeFileLocked(path, contents);
+    }
+
+    @GuardedBy("mLock")
+    void deletePackageShardLocked(@UserIdInt int userId, @NonNull String packageName) {
+        new AtomicFile(getPackageShardFile(userId, packageName)).delete();
+    }
+
+    /**
+     * Reads the file of a publisher package, or returns null if it can't be read.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    byte[] readPackageShardLocked(@UserIdInt int userId, @NonNull String packageName) {
+        final AtomicFile file = new AtomicFile(getPackageShardFile(userId, packageName));
+        if (DEBUG) {
+            Slog.d(TAG, "Loading from " + file.getBaseFile());
+        }
+        try {
+            return file.readFully();
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to read file " + file.getBaseFile(), e);
+            return null;
+        }
+    }
+
+    @GuardedBy("mLock")
+    @Nullable
+    ShortcutPackage parsePackageShardLocked(@NonNull ShortcutUser user,
+            @NonNull byte[] contents) {
+        ShortcutPackage ret = null;
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(contents), StandardCharsets.UTF_8.name());
+
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                final int depth = parser.getDepth();
+                final String tag = parser.getName();
+                if ((depth == 1) && ShortcutPackage.TAG_ROOT.equals(tag)) {
+                    ret = ShortcutPackage.loadFromXml(this, user, parser, /* fromBackup= */ false);
+                    continue;
+                }
+                throwForInvalidTag(depth, tag);
+            }
+        } catch (IOException | XmlPullParserException | RuntimeException e) {
+            Slog.e(TAG, "Failed to parse package file for user " + user.getUserId(), e);
+            return null;
         }
+        return ret;
     }
 
     @GuardedBy("mLock")
@@ -1314,7 +1428,8 @@ public class ShortcutService extends IShortcutService.Stub {
                     Slog.d(TAG, "Removing dangling bitmap directory: " + packageName);
                 }
                 cleanupBitmapsForPackage(userId, packageName);
-            } else {
+            } else if (user.isPackageLoaded(packageName)) {
+                // Bitmaps of a package can only change once the package is loaded.
                 cleanupDanglingBitmapFilesLocked(userId, user, packageName, child);
             }
         }
@@ -2968,18 +3083,19 @@ public class ShortcutService extends IShortcutService.Stub {
             synchronized (mLock) {
                 final ShortcutUser user = getUserShortcutsLocked(ownerUserId);
 
-                // Find packages that have been uninstalled.
-                user.forAllPackageItems(spi -> {
+                // Find packages that have been uninstalled.  Publisher packages are checked by
+                // name so that their files don't have to be loaded.
+                user.forAllLaunchers(spi -> {
                     if (spi.getPackageInfo().isShadow()) {
                         return; // Don't delete shadow information.
                     }
-                    if (!isPackageInstalled(spi.getPackageName(), spi.getPackageUserId())) {
-                        if (DEBUG) {
-                            Slog.d(TAG, "Uninstalled: " + spi.getPackageName()
-                                    + " user " + spi.getPackageUserId());
-                        }
-                        gonePackages.add(PackageWithUser.of(spi));
+                    addIfUninstalled(gonePackages, spi.getPackageName(), spi.getPackageUserId());
+                });
+                user.forAllPackageNames((packageName, isShadow) -> {
+                    if (isShadow) {
+                        return; // Don't delete shadow information.
                     }
+                    addIfUninstalled(gonePackages, packageName, ownerUserId);
                 });
                 if (gonePackages.size() > 0) {
                     for (int i = gonePackages.size() - 1; i >= 0; i--) {
@@ -2997,6 +3113,16 @@ public class ShortcutService extends IShortcutService.Stub {
         verifyStates();
     }
 
+    private void addIfUninstalled(ArrayList<PackageWithUser> gonePackages, String packageName,
+            @UserIdInt int packageUserId) {
+        if (!isPackageInstalled(packageName, packageUserId)) {
+            if (DEBUG) {
+                Slog.d(TAG, "Uninstalled: " + packageName + " user " + packageUserId);
+            }
+            gonePackages.add(PackageWithUser.of(packageUserId, packageName));
+        }
+    }
+
     @GuardedBy("mLock")
     private void rescanUpdatedPackagesLocked(@UserIdInt int userId, long lastScanTime) {
         final ShortcutUser user = getUserShortcutsLocked(userId);
@@ -4408,7 +4534,11 @@ public class ShortcutService extends IShortcutService.Stub {
 
     private void verifyStatesInner() {
         synchronized (mLock) {
-            forEachLoadedUserLocked(u -> u.forAllPackageItems(ShortcutPackageItem::verifyStates));
+            // Packages that haven't been loaded yet can't have changed since they were saved.
+            forEachLoadedUserLocked(u -> {
+                u.forAllLaunchers(ShortcutPackageItem::verifyStates);
+                u.forAllLoadedPackages(ShortcutPackageItem::verifyStates);
+            });
         }
     }
 
@@ -24,6 +24,7 @@ import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.PackageUtils;
 import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -42,6 +43,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Objects;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
@@ -54,8 +56,11 @@ class ShortcutUser {
 
     static final String TAG_ROOT = "user";
     private static final String TAG_LAUNCHER = "launcher";
+    private static final String TAG_PACKAGE_SHARD = "package-shard";
 
     private static final String ATTR_VALUE = "value";
+    private static final String ATTR_NAME = "name";
+    private static final String ATTR_SHADOW = "shadow";
     private static final String ATTR_KNOWN_LOCALES = "locales";
 
     // Suffix "2" was added to force rescan all packages after the next OTA.
@@ -111,6 +116,22 @@ class ShortcutUser {
 
     private final ArrayMap<String, ShortcutPackage> mPackages = new ArrayMap<>();
 
+    /**
+     * Packages saved in their own files that haven't been loaded yet, and whether each of them
+     * is a shadow package.  A package is loaded the first time it's accessed, and then moves to
+     * {@link #mPackages}.
+     */
+    private final ArrayMap<String, Boolean> mUnloadedPackages = new ArrayMap<>();
+
+    /**
+     * Packages that have a file, and the SHA-256 digest of the file contents when the package
+     * was last loaded or saved, or null if the package hasn't been loaded yet.
+     */
+    private final ArrayMap<String, String> mPackageShardDigests = new ArrayMap<>();
+
+    /** SHA-256 digest of the user file when it was last saved. */
+    private String mUserFileDigest;
+
     private final ArrayMap<PackageWithUser, ShortcutLauncher> mLaunchers = new ArrayMap<>();
 
     /**
@@ -159,19 +180,54 @@ class ShortcutUser {
     // remove from it.
     @VisibleForTesting
     ArrayMap<String, ShortcutPackage> getAllPackagesForTest() {
+        loadAllPackages();
         return mPackages;
     }
 
     public boolean hasPackage(@NonNull String packageName) {
-        return mPackages.containsKey(packageName);
+        return mPackages.containsKey(packageName) || mUnloadedPackages.containsKey(packageName);
+    }
+
+    /**
+     * @return whether the package has been loaded from its file, or has no file.
+     */
+    public boolean isPackageLoaded(@NonNull String packageName) {
+        return !mUnloadedPackages.containsKey(packageName);
+    }
+
+    @Nullable
+    private ShortcutPackage getLoadedPackage(@NonNull String packageName) {
+        final ShortcutPackage loaded = mPackages.get(packageName);
+        if (loaded != null || mUnloadedPackages.remove(packageName) == null) {
+            return loaded;
+        }
+        // If the file can't be loaded, the package is dropped and its file deleted on next save.
+        final byte[] contents = mService.readPackageShardLocked(mUserId, packageName);
+        final ShortcutPackage p = (contents == null) ? null
+                : mService.parsePackageShardLocked(this, contents);
+        if (p == null || !packageName.equals(p.getPackageName())) {
+            Slog.w(TAG, "Unable to load package " + packageName + " for user " + mUserId);
+            return null;
+        }
+        mPackageShardDigests.put(packageName, PackageUtils.computeSha256Digest(contents));
+        mPackages.put(packageName, p);
+        return p;
+    }
+
+    private void loadAllPackages() {
+        for (int i = mUnloadedPackages.size() - 1; i >= 0; i--) {
+            getLoadedPackage(mUnloadedPackages.keyAt(i));
+        }
     }
 
     private void addPackage(@NonNull ShortcutPackage p) {
         p.replaceUser(this);
+        mUnloadedPackages.remove(p.getPackageName());
         mPackages.put(p.getPackageName(), p);
     }
 
     public ShortcutPackage removePackage(@NonNull String packageName) {
+        getLoadedPackage(packageName);
         final ShortcutPackage removed = mPackages.remove(packageName);
 
         mService.cleanupBitmapsForPackage(mUserId, packageName);
@@ -200,7 +256,7 @@ class ShortcutUser {
 
     @Nullable
     public ShortcutPackage getPackageShortcutsIfExists(@NonNull String packageName) {
-        final ShortcutPackage ret = mPackages.get(packageName);
+        final ShortcutPackage ret = getLoadedPackage(packageName);
         if (ret != null) {
             ret.attemptToRestoreIfNeededAndSave();
         }
@@ -232,6 +288,7 @@ class ShortcutUser {
     }
 
     public void forAllPackages(Consumer<? super ShortcutPackage> callback) {
+        loadAllPackages();
         final int size = mPackages.size();
         for (int i = 0; i < size; i++) {
             callback.accept(mPackages.valueAt(i));
@@ -245,6 +302,29 @@ class ShortcutUser {
         }
     }
 
+    /**
+     * Same as {@link #forAllPackages} but skips the packages that haven't been loaded yet.
+     */
+    public void forAllLoadedPackages(Consumer<? super ShortcutPackage> callback) {
+        final int size = mPackages.size();
+        for (int i = 0; i < size; i++) {
+            callback.accept(mPackages.valueAt(i));
+        }
+    }
+
+    /**
+     * Calls the callback with the name of each package and whether it's a shadow package,
+     * without loading the packages.
+     */
+    public void forAllPackageNames(BiConsumer<String, Boolean> callback) {
+        for (int i = mPackages.size() - 1; i >= 0; i--) {
+            callback.accept(mPackages.keyAt(i), mPackages.valueAt(i).getPackageInfo().isShadow());
+        }
+        for (int i = mUnloadedPackages.size() - 1; i >= 0; i--) {
+            callback.accept(mUnloadedPackages.keyAt(i), mUnloadedPackages.valueAt(i));
+        }
+    }
+
     public void forAllPackageItems(Consumer<? super ShortcutPackageItem> callback) {
         forAllLaunchers(callback);
         forAllPackages(callback);
@@ -252,12 +332,18 @@ class ShortcutUser {
 
     public void forPackageItem(@NonNull String packageName, @UserIdInt int packageUserId,
             Consumer<ShortcutPackageItem> callback) {
-        forAllPackageItems(spi -> {
-            if ((spi.getPackageUserId() == packageUserId)
-                    && spi.getPackageName().equals(packageName)) {
-                callback.accept(spi);
+        // Look the items up directly, so that other packages don't have to be loaded.
+        final ShortcutLauncher launcher =
+                mLaunchers.get(PackageWithUser.of(packageUserId, packageName));
+        if (launcher != null) {
+            callback.accept(launcher);
+        }
+        if (packageUserId == mUserId) {
+            final ShortcutPackage p = getLoadedPackage(packageName);
+            if (p != null) {
+                callback.accept(p);
             }
-        });
+        }
     }
 
     /**
@@ -312,7 +398,7 @@ class ShortcutUser {
     }
 
     public void rescanPackageIfNeeded(@NonNull String packageName, boolean forceRescan) {
-        final boolean isNewApp = !mPackages.containsKey(packageName);
+        final boolean isNewApp = !hasPackage(packageName);
 
         final ShortcutPackage shortcutPackage = getPackageShortcuts(packageName);
 
@@ -357,16 +443,70 @@ class ShortcutUser {
                 saveShortcutPackageItem(out, mLaunchers.valueAt(i), forBackup);
             }
         }
-        {
+        if (forBackup) {
+            loadAllPackages();
             final int size = mPackages.size();
             for (int i = 0; i < size; i++) {
                 saveShortcutPackageItem(out, mPackages.valueAt(i), forBackup);
             }
+        } else {
+            // Packages are saved in their own files by savePackageShards(), just list them.
+            final int size = mPackageShardDigests.size();
+            for (int i = 0; i < size; i++) {
+                final String packageName = mPackageShardDigests.keyAt(i);
+                final ShortcutPackage p = mPackages.get(packageName);
+                out.startTag(null, TAG_PACKAGE_SHARD);
+                ShortcutService.writeAttr(out, ATTR_NAME, packageName);
+                ShortcutService.writeAttr(out, ATTR_SHADOW, (p != null)
+                        ? p.getPackageInfo().isShadow() : mUnloadedPackages.get(packageName));
+                out.endTag(null, TAG_PACKAGE_SHARD);
+            }
         }
 
         out.endTag(null, TAG_ROOT);
     }
 
+    /**
+     * Saves the loaded packages that have changed since they were last loaded or saved into
+     * their own files, and deletes the files of removed packages.  Unloaded packages haven't
+     * changed, so their files are left alone.
+     */
+    public void savePackageShards() throws IOException, XmlPullParserException {
+        for (int i = mPackages.size() - 1; i >= 0; i--) {
+            final String packageName = mPackages.keyAt(i);
+            final byte[] contents = mService.serializePackageShardLocked(mPackages.valueAt(i));
+            if (contents == null) {
+                // Nothing to save for this package.
+                final int index = mPackageShardDigests.indexOfKey(packageName);
+                if (index >= 0) {
+                    mService.deletePackageShardLocked(mUserId, packageName);
+                    mPackageShardDigests.removeAt(index);
+                }
+                continue;
+            }
+            final String digest = PackageUtils.computeSha256Digest(contents);
+            if (digest == null || !digest.equals(mPackageShardDigests.get(packageName))) {
+                mService.writePackageShardLocked(mUserId, packageName, contents);
+                mPackageShardDigests.put(packageName, digest);
+            }
+        }
+        for (int i = mPackageShardDigests.size() - 1; i >= 0; i--) {
+            final String packageName = mPackageShardDigests.keyAt(i);
+            if (!hasPackage(packageName)) {
+                mService.deletePackageShardLocked(mUserId, packageName);
+                mPackageShardDigests.removeAt(i);
+            }
+        }
+    }
+
+    public String getUserFileDigest() {
+        return mUserFileDigest;
+    }
+
+    public void setUserFileDigest(String userFileDigest) {
+        mUserFileDigest = userFileDigest;
+    }
+
     private void saveShortcutPackageItem(XmlSerializer out,
             ShortcutPackageItem spi, boolean forBackup) throws IOException, XmlPullParserException {
         if (forBackup) {
@@ -413,6 +553,7 @@ class ShortcutUser {
                             continue;
                         }
                         case ShortcutPackage.TAG_ROOT: {
+                            // Files written before packages had their own files, and backups.
                             final ShortcutPackage shortcuts = ShortcutPackage.loadFromXml(
                                     s, ret, parser, fromBackup);
 
@@ -420,6 +561,14 @@ class ShortcutUser {
                             ret.mPackages.put(shortcuts.getPackageName(), shortcuts);
                             continue;
                         }
+                        case TAG_PACKAGE_SHARD: {
+                            final String packageName = ShortcutService.parseStringAttribute(
+                                    parser, ATTR_NAME);
+                            ret.mUnloadedPackages.put(packageName,
+                                    ShortcutService.parseBooleanAttribute(parser, ATTR_SHADOW));
+                            ret.mPackageShardDigests.put(packageName, null);
+                            continue;
+                        }
 
                         case ShortcutLauncher.TAG_ROOT: {
                             ret.addLauncher(
@@ -476,6 +625,7 @@ class ShortcutUser {
     }
 
     public void resetThrottling() {
+        loadAllPackages();
         for (int i = mPackages.size() - 1; i >= 0; i--) {
             mPackages.valueAt(i).resetThrottling();
         }
@@ -581,6 +731,7 @@ class ShortcutUser {
             }
         }
 
+        loadAllPackages();
         for (int i = 0; i < mPackages.size(); i++) {
             ShortcutPackage pkg = mPackages.valueAt(i);
             if (filter.isPackageMatch(pkg.getPackageName())) {
@@ -637,6 +788,7 @@ class ShortcutUser {
         }
 
         {
+            loadAllPackages();
             final JSONArray packages = new JSONArray();
             for (int i = 0; i < mPackages.size(); i++) {
                 packages.put(mPackages.valueAt(i).dumpCheckin(clear));
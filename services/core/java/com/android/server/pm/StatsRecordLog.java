@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of binary records, one per key, backing the stats files of
+ * {@link AbstractStatsBase} subclasses. Writers append the records of the keys that changed
+ * since the last write instead of rewriting the whole file; readers keep the latest record of
+ * each key. Once the appended records outgrow the live data the log is compacted, i.e.
+ * rewritten with a single record per key.
+ *
+ * <p>File format:
+ * <pre>
+ * magic, version
+ * key, payload_length, crc32 of key and payload, payload
+ * key, -1 (the key was removed), crc32 of key
+ * ...
+ * </pre>
+ * A truncated or corrupt record, e.g. from a crash during an append, ends the log; everything
+ * after it is dropped at the next compaction.
+ */
+public class StatsRecordLog {
+    private static final String TAG = "StatsRecordLog";
+
+    private static final int MAGIC = 0x534c4f47;
+    private static final int HEADER_SIZE = 8;
+    private static final int REMOVED = -1;
+    // Larger records are taken to be corrupt.
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    // Keys are package names and paths; longer ones are taken to be corrupt.
+    private static final int MAX_KEY_LENGTH = 4096;
+
+    // The log is not compacted before it holds this many appended bytes.
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private final AtomicFile mFile;
+    private final int mVersion;
+
+    // Size of the latest record of each key. Superseded records are dropped by compaction.
+    @GuardedBy("this")
+    private final Map<String, Integer> mRecordSizes = new HashMap<>();
+    @GuardedBy("this")
+    private long mLiveBytes;
+    // Size of the log, including superseded records.
+    @GuardedBy("this")
+    private long mFileBytes;
+    // Whether the tail of the log could not be read and must be dropped.
+    @GuardedBy("this")
+    private boolean mCorrupt;
+
+    public StatsRecordLog(File file, int version) {
+        mFile = new AtomicFile(file);
+        mVersion = version;
+    }
+
+    /**
+     * Reads the latest record of every key that was not removed.
+     *
+     * @throws FileNotFoundException if the log has not been written yet.
+     * @throws IOException if the log was written with a different version.
+     */
+    public synchronized Map<String, byte[]> read() throws IOException {
+        final Map<String, byte[]> records = new HashMap<>();
+        mRecordSizes.clear();
+        mLiveBytes = 0;
+        mFileBytes = HEADER_SIZE;
+        mCorrupt = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid magic in " + mFile.getBaseFile());
+            }
+            final int version = in.readInt();
+            if (version != mVersion) {
+                throw new IOException("Unexpected version: " + version);
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                // The log may only end between records; running out of bytes anywhere
+                // within a record means it is torn.
+                in.mark(1);
+                if (in.read() < 0) {
+                    break;
+                }
+                in.reset();
+                final String key = readString(in, MAX_KEY_LENGTH);
+                final int length = in.readInt();
+                final int checksum = in.readInt();
+                final int size = getRecordSize(key, Math.max(length, 0));
+                if (length != REMOVED && (length < 0 || length > MAX_RECORD_LENGTH)) {
+                    throw new IOException("Invalid record length " + length + " for " + key);
+                }
+                final byte[] payload = length != REMOVED ? new byte[length] : null;
+                if (payload != null) {
+                    in.readFully(payload);
+                }
+                if (getChecksum(crc, key, payload) != checksum) {
+                    throw new IOException("Checksum mismatch for " + key);
+                }
+                if (payload == null) {
+                    records.remove(key);
+                } else {
+                    records.put(key, payload);
+                }
+                setRecordSize(key, length == REMOVED ? 0 : size);
+                mFileBytes += size;
+            }
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            // Drop the unreadable part at the next compaction.
+            mCorrupt = true;
+            if (records.isEmpty()) {
+                throw e;
+            }
+            Slog.w(TAG, "Truncated " + mFile.getBaseFile() + " after " + mFileBytes + " bytes", e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return records;
+    }
+
+    /**
+     * Returns whether the next write has to {@link #compact} the log rather than
+     * {@link #append} to it.
+     */
+    public synchronized boolean needsCompaction() {
+        final long supersededBytes = mFileBytes - HEADER_SIZE - mLiveBytes;
+        return mCorrupt || !mFile.getBaseFile().exists()
+                || supersededBytes > Math.max(MIN_COMPACTION_BYTES, mLiveBytes);
+    }
+
+    /**
+     * Appends the given records to the log. A {@code null} record removes its key.
+     */
+    public synchronized void append(Map<String, byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        final FileOutputStream fos = new FileOutputStream(mFile.getBaseFile(), /*append*/ true);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            for (Map.Entry<String, byte[]> e : records.entrySet()) {
+                final int size = writeRecord(out, e.getKey(), e.getValue());
+                setRecordSize(e.getKey(), e.getValue() != null ? size : 0);
+                mFileBytes += size;
+            }
+            out.flush();
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Atomically replaces the log with the given records, one per key.
+     */
+    public synchronized void compact(Map<String, byte[]> records) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(mVersion);
+            final Map<String, Integer> recordSizes = new HashMap<>();
+            long fileBytes = HEADER_SIZE;
+            for (Map.Entry<String, byte[]> e : records.entrySet()) {
+                if (e.getValue() != null) {
+                    final int size = writeRecord(out, e.getKey(), e.getValue());
+                    recordSizes.put(e.getKey(), size);
+                    fileBytes += size;
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mRecordSizes.clear();
+            mRecordSizes.putAll(recordSizes);
+            mLiveBytes = fileBytes - HEADER_SIZE;
+            mFileBytes = fileBytes;
+            mCorrupt = false;
+        } catch (IOException e) {
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            throw e;
+        }
+    }
+
+    @GuardedBy("this")
+    private void setRecordSize(String key, int size) {
+        final Integer oldSize = size != 0 ? mRecordSizes.put(key, size) : mRecordSizes.remove(key);
+        mLiveBytes += size - (oldSize != null ? oldSize : 0);
+    }
+
+    private static int writeRecord(DataOutputStream out, String key, byte[] payload)
+            throws IOException {
+        writeString(out, key);
+        final int checksum = getChecksum(new CRC32(), key, payload);
+        if (payload == null) {
+            out.writeInt(REMOVED);
+            out.writeInt(checksum);
+            return getRecordSize(key, 0);
+        }
+        out.writeInt(payload.length);
+        out.writeInt(checksum);
+        out.write(payload);
+        return getRecordSize(key, payload.length);
+    }
+
+    private static int getChecksum(CRC32 crc, String key, byte[] payload) {
+        crc.reset();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        if (payload != null) {
+            crc.update(payload);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int getRecordSize(String key, int payloadLength) {
+        return 4 + key.getBytes(StandardCharsets.UTF_8).length + 4 + 4 + payloadLength;
+    }
+
+    /**
+     * Writes a string of any length, unlike {@link DataOutput#writeUTF}.
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     */
+    public static String readString(DataInput in) throws IOException {
+        return readString(in, Integer.MAX_VALUE);
+    }
+
+    private static String readString(DataInput in, int maxLength) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
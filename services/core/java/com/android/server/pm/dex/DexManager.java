@@ -62,7 +62,7 @@ import static com.android.server.pm.dex.PackageDexUsage.DexUseInfo;
 /**
  * This class keeps track of how dex files are used.
  * Every time it gets a notification about a dex file being loaded it tracks
- * its owning package and records it in PackageDexUsage (package-dex-usage.list).
+ * its owning package and records it in PackageDexUsage (package-dex-usage.log).
  *
  * TODO(calin): Extract related dexopt functionality from PackageManagerService
  * into this class.
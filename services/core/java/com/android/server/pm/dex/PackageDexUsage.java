@@ -24,16 +24,20 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.FastPrintWriter;
 import com.android.server.pm.AbstractStatsBase;
 import com.android.server.pm.PackageManagerServiceUtils;
+import com.android.server.pm.StatsRecordLog;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -67,6 +71,9 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     private final static String PACKAGE_DEX_USAGE_VERSION_HEADER =
             "PACKAGE_MANAGER__PACKAGE_DEX_USAGE__";
 
+    // Version of the binary record log, which replaces the text file above on disk.
+    private final static int PACKAGE_DEX_USAGE_LOG_VERSION = 1;
+
     private final static String SPLIT_CHAR = ",";
     private final static String CODE_PATH_LINE_CHAR = "+";
     private final static String DEX_LINE_CHAR = "#";
@@ -93,9 +100,37 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     @GuardedBy("mPackageUseInfoMap")
     private final Map<String, PackageUseInfo> mPackageUseInfoMap;
 
+    // Records read from the log which have not been asked for yet. They are decoded into
+    // mPackageUseInfoMap on first access.
+    @GuardedBy("mPackageUseInfoMap")
+    private final Map<String, byte[]> mUndecodedRecords = new HashMap<>();
+
+    // Packages whose records changed since the last write.
+    @GuardedBy("mPackageUseInfoMap")
+    private final Set<String> mDirtyPackages = new HashSet<>();
+
+    // Whether the next write should rewrite the log with all the records.
+    @GuardedBy("mPackageUseInfoMap")
+    private boolean mCompactionRequested;
+
+    private final StatsRecordLog mRecordLog;
+
+    // The text file the usage was stored in before the record log, if it should be migrated.
+    private final AtomicFile mLegacyFile;
+
     public PackageDexUsage() {
         super("package-dex-usage.list", "PackageDexUsage_DiskWriter", /*lock*/ false);
         mPackageUseInfoMap = new HashMap<>();
+        mRecordLog = new StatsRecordLog(getSystemFile("package-dex-usage.log"),
+                PACKAGE_DEX_USAGE_LOG_VERSION);
+        mLegacyFile = getFile();
+    }
+
+    /* package */ PackageDexUsage(StatsRecordLog recordLog) {
+        super("package-dex-usage.list", "PackageDexUsage_DiskWriter", /*lock*/ false);
+        mPackageUseInfoMap = new HashMap<>();
+        mRecordLog = recordLog;
+        mLegacyFile = null;
     }
 
     /**
@@ -127,63 +162,75 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
         }
 
         synchronized (mPackageUseInfoMap) {
-            PackageUseInfo packageUseInfo = mPackageUseInfoMap.get(owningPackageName);
-            if (packageUseInfo == null) {
-                // This is the first time we see the package.
-                packageUseInfo = new PackageUseInfo();
-                if (primaryOrSplit) {
-                    // If we have a primary or a split apk, set isUsedByOtherApps.
-                    // We do not need to record the loaderIsa or the owner because we compile
-                    // primaries for all users and all ISAs.
-                    packageUseInfo.mergeCodePathUsedByOtherApps(dexPath, isUsedByOtherApps,
-                            owningPackageName, loadingPackageName);
-                } else {
-                    // For secondary dex files record the loaderISA and the owner. We'll need
-                    // to know under which user to compile and for what ISA.
-                    DexUseInfo newData = new DexUseInfo(isUsedByOtherApps, ownerUserId,
-                            classLoaderContext, loaderIsa);
-                    packageUseInfo.mDexUseInfoMap.put(dexPath, newData);
-                    maybeAddLoadingPackage(owningPackageName, loadingPackageName,
-                            newData.mLoadingPackages);
-                }
-                mPackageUseInfoMap.put(owningPackageName, packageUseInfo);
-                return true;
+            boolean updated = recordLocked(owningPackageName, dexPath, ownerUserId, loaderIsa,
+                    isUsedByOtherApps, primaryOrSplit, loadingPackageName, classLoaderContext);
+            if (updated) {
+                mDirtyPackages.add(owningPackageName);
+            }
+            return updated;
+        }
+    }
+
+    @GuardedBy("mPackageUseInfoMap")
+    private boolean recordLocked(String owningPackageName, String dexPath, int ownerUserId,
+            String loaderIsa, boolean isUsedByOtherApps, boolean primaryOrSplit,
+            String loadingPackageName, String classLoaderContext) {
+        PackageUseInfo packageUseInfo = getPackageUseInfoLocked(owningPackageName);
+        if (packageUseInfo == null) {
+            // This is the first time we see the package.
+            packageUseInfo = new PackageUseInfo();
+            if (primaryOrSplit) {
+                // If we have a primary or a split apk, set isUsedByOtherApps.
+                // We do not need to record the loaderIsa or the owner because we compile
+                // primaries for all users and all ISAs.
+                packageUseInfo.mergeCodePathUsedByOtherApps(dexPath, isUsedByOtherApps,
+                        owningPackageName, loadingPackageName);
+            } else {
+                // For secondary dex files record the loaderISA and the owner. We'll need
+                // to know under which user to compile and for what ISA.
+                DexUseInfo newData = new DexUseInfo(isUsedByOtherApps, ownerUserId,
+                        classLoaderContext, loaderIsa);
+                packageUseInfo.mDexUseInfoMap.put(dexPath, newData);
+                maybeAddLoadingPackage(owningPackageName, loadingPackageName,
+                        newData.mLoadingPackages);
+            }
+            mPackageUseInfoMap.put(owningPackageName, packageUseInfo);
+            return true;
+        } else {
+            // We already have data on this package. Amend it.
+            if (primaryOrSplit) {
+                // We have a possible update on the primary apk usage. Merge
+                // isUsedByOtherApps information and return if there was an update.
+                return packageUseInfo.mergeCodePathUsedByOtherApps(
+                        dexPath, isUsedByOtherApps, owningPackageName, loadingPackageName);
             } else {
-                // We already have data on this package. Amend it.
-                if (primaryOrSplit) {
-                    // We have a possible update on the primary apk usage. Merge
-                    // isUsedByOtherApps information and return if there was an update.
-                    return packageUseInfo.mergeCodePathUsedByOtherApps(
-                            dexPath, isUsedByOtherApps, owningPackageName, loadingPackageName);
+                DexUseInfo newData = new DexUseInfo(
+                        isUsedByOtherApps, ownerUserId, classLoaderContext, loaderIsa);
+                boolean updateLoadingPackages = maybeAddLoadingPackage(owningPackageName,
+                        loadingPackageName, newData.mLoadingPackages);
+
+                DexUseInfo existingData = packageUseInfo.mDexUseInfoMap.get(dexPath);
+                if (existingData == null) {
+                    // It's the first time we see this dex file.
+                    packageUseInfo.mDexUseInfoMap.put(dexPath, newData);
+                    return true;
                 } else {
-                    DexUseInfo newData = new DexUseInfo(
-                            isUsedByOtherApps, ownerUserId, classLoaderContext, loaderIsa);
-                    boolean updateLoadingPackages = maybeAddLoadingPackage(owningPackageName,
-                            loadingPackageName, newData.mLoadingPackages);
-
-                    DexUseInfo existingData = packageUseInfo.mDexUseInfoMap.get(dexPath);
-                    if (existingData == null) {
-                        // It's the first time we see this dex file.
-                        packageUseInfo.mDexUseInfoMap.put(dexPath, newData);
-                        return true;
-                    } else {
-                        if (ownerUserId != existingData.mOwnerUserId) {
-                            // Oups, this should never happen, the DexManager who calls this should
-                            // do the proper checks and not call record if the user does not own the
-                            // dex path.
-                            // Secondary dex files are stored in the app user directory. A change in
-                            // owningUser for the same path means that something went wrong at some
-                            // higher level, and the loaderUser was allowed to cross
-                            // user-boundaries and access data from what we know to be the owner
-                            // user.
-                            throw new IllegalArgumentException("Trying to change ownerUserId for "
-                                    + " dex path " + dexPath + " from " + existingData.mOwnerUserId
-                                    + " to " + ownerUserId);
-                        }
-                        // Merge the information into the existing data.
-                        // Returns true if there was an update.
-                        return existingData.merge(newData) || updateLoadingPackages;
+                    if (ownerUserId != existingData.mOwnerUserId) {
+                        // Oups, this should never happen, the DexManager who calls this should
+                        // do the proper checks and not call record if the user does not own the
+                        // dex path.
+                        // Secondary dex files are stored in the app user directory. A change in
+                        // owningUser for the same path means that something went wrong at some
+                        // higher level, and the loaderUser was allowed to cross
+                        // user-boundaries and access data from what we know to be the owner
+                        // user.
+                        throw new IllegalArgumentException("Trying to change ownerUserId for "
+                                + " dex path " + dexPath + " from " + existingData.mOwnerUserId
+                                + " to " + ownerUserId);
                     }
+                    // Merge the information into the existing data.
+                    // Returns true if there was an update.
+                    return existingData.merge(newData) || updateLoadingPackages;
                 }
             }
         }
@@ -209,25 +256,179 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
         writeInternal(null);
     }
 
+    /**
+     * Appends the records of the packages which changed since the last write to the record
+     * log, or rewrites the whole log if it grew too much or cannot be appended to.
+     */
     @Override
     protected void writeInternal(Void data) {
-        AtomicFile file = getFile();
-        FileOutputStream f = null;
+        final boolean compact;
+        final Map<String, byte[]> records = new HashMap<>();
+        synchronized (mPackageUseInfoMap) {
+            compact = mCompactionRequested || mRecordLog.needsCompaction();
+            if (compact) {
+                records.putAll(mUndecodedRecords);
+                for (Map.Entry<String, PackageUseInfo> e : mPackageUseInfoMap.entrySet()) {
+                    records.put(e.getKey(), encodePackageUseInfo(e.getValue()));
+                }
+            } else {
+                for (String packageName : mDirtyPackages) {
+                    PackageUseInfo packageUseInfo = mPackageUseInfoMap.get(packageName);
+                    records.put(packageName, packageUseInfo == null
+                            ? null : encodePackageUseInfo(packageUseInfo));
+                }
+            }
+            mDirtyPackages.clear();
+            mCompactionRequested = false;
+        }
 
         try {
-            f = file.startWrite();
-            OutputStreamWriter osw = new OutputStreamWriter(f);
-            write(osw);
-            osw.flush();
-            file.finishWrite(f);
+            if (compact) {
+                mRecordLog.compact(records);
+                if (mLegacyFile != null) {
+                    mLegacyFile.delete();
+                }
+            } else {
+                mRecordLog.append(records);
+            }
         } catch (IOException e) {
-            if (f != null) {
-                file.failWrite(f);
+            synchronized (mPackageUseInfoMap) {
+                // The log may be missing any of the records, write them all next time.
+                mCompactionRequested = true;
             }
             Slog.e(TAG, "Failed to write usage for dex files", e);
         }
     }
 
+    /**
+     * Record format:
+     *
+     * code_path_count
+     * code_path, loading_package_count, loading_package...
+     * ...
+     * dex_file_count
+     * dex_file_path, owner_user_id, used_by_other_apps, isa_count, isa...,
+     *     loading_package_count, loading_package..., class_loader_context
+     * ...
+     */
+    private static byte[] encodePackageUseInfo(PackageUseInfo packageUseInfo) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(packageUseInfo.mCodePathsUsedByOtherApps.size());
+            for (Map.Entry<String, Set<String>> e :
+                    packageUseInfo.mCodePathsUsedByOtherApps.entrySet()) {
+                StatsRecordLog.writeString(out, e.getKey());
+                writeStringSet(out, e.getValue());
+            }
+            out.writeInt(packageUseInfo.mDexUseInfoMap.size());
+            for (Map.Entry<String, DexUseInfo> e : packageUseInfo.mDexUseInfoMap.entrySet()) {
+                DexUseInfo dexUseInfo = e.getValue();
+                StatsRecordLog.writeString(out, e.getKey());
+                out.writeInt(dexUseInfo.mOwnerUserId);
+                out.writeBoolean(dexUseInfo.mIsUsedByOtherApps);
+                writeStringSet(out, dexUseInfo.mLoaderIsas);
+                writeStringSet(out, dexUseInfo.mLoadingPackages);
+                StatsRecordLog.writeString(out, dexUseInfo.mClassLoaderContext);
+            }
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static PackageUseInfo decodePackageUseInfo(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        PackageUseInfo packageUseInfo = new PackageUseInfo();
+        int codePathCount = in.readInt();
+        for (int i = 0; i < codePathCount; i++) {
+            String codePath = StatsRecordLog.readString(in);
+            packageUseInfo.mCodePathsUsedByOtherApps.put(codePath, readStringSet(in));
+        }
+        Set<String> supportedIsas = getSupportedIsas();
+        int dexFileCount = in.readInt();
+        for (int i = 0; i < dexFileCount; i++) {
+            String dexPath = StatsRecordLog.readString(in);
+            int ownerUserId = in.readInt();
+            boolean isUsedByOtherApps = in.readBoolean();
+            Set<String> loaderIsas = readStringSet(in);
+            Set<String> loadingPackages = readStringSet(in);
+            String classLoaderContext = StatsRecordLog.readString(in);
+            DexUseInfo dexUseInfo = new DexUseInfo(isUsedByOtherApps, ownerUserId,
+                    classLoaderContext, /*isa*/ null);
+            dexUseInfo.mLoadingPackages.addAll(loadingPackages);
+            for (String isa : loaderIsas) {
+                if (supportedIsas.contains(isa)) {
+                    dexUseInfo.mLoaderIsas.add(isa);
+                } else {
+                    // See the text parser in read(Reader).
+                    Slog.wtf(TAG, "Unsupported ISA when parsing PackageDexUsage: " + isa);
+                }
+            }
+            packageUseInfo.mDexUseInfoMap.put(dexPath, dexUseInfo);
+        }
+        return packageUseInfo;
+    }
+
+    private static void writeStringSet(DataOutputStream out, Set<String> set)
+            throws IOException {
+        out.writeInt(set.size());
+        for (String s : set) {
+            StatsRecordLog.writeString(out, s);
+        }
+    }
+
+    private static Set<String> readStringSet(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Set<String> set = new HashSet<>(size);
+        for (int i = 0; i < size; i++) {
+            set.add(StatsRecordLog.readString(in));
+        }
+        return set;
+    }
+
+    private static Set<String> getSupportedIsas() {
+        Set<String> supportedIsas = new HashSet<>();
+        for (String abi : Build.SUPPORTED_ABIS) {
+            supportedIsas.add(VMRuntime.getInstructionSet(abi));
+        }
+        return supportedIsas;
+    }
+
+    /**
+     * Returns the use info of {@code packageName}, decoding its record first if it has not been
+     * asked for since the log was read.
+     */
+    @GuardedBy("mPackageUseInfoMap")
+    private PackageUseInfo getPackageUseInfoLocked(String packageName) {
+        PackageUseInfo packageUseInfo = mPackageUseInfoMap.get(packageName);
+        if (packageUseInfo == null) {
+            byte[] record = mUndecodedRecords.remove(packageName);
+            if (record != null) {
+                try {
+                    packageUseInfo = decodePackageUseInfo(record);
+                    mPackageUseInfoMap.put(packageName, packageUseInfo);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to decode dex usage of " + packageName, e);
+                    mDirtyPackages.add(packageName);
+                }
+            }
+        }
+        return packageUseInfo;
+    }
+
+    @GuardedBy("mPackageUseInfoMap")
+    private void decodeAllLocked() {
+        if (mUndecodedRecords.isEmpty()) {
+            return;
+        }
+        for (String packageName : new ArrayList<>(mUndecodedRecords.keySet())) {
+            getPackageUseInfoLocked(packageName);
+        }
+    }
+
     /**
      * File format:
      *
@@ -293,7 +494,27 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
 
     @Override
     protected void readInternal(Void data) {
-        AtomicFile file = getFile();
+        try {
+            Map<String, byte[]> records = mRecordLog.read();
+            synchronized (mPackageUseInfoMap) {
+                mPackageUseInfoMap.clear();
+                mDirtyPackages.clear();
+                mUndecodedRecords.clear();
+                mUndecodedRecords.putAll(records);
+            }
+            return;
+        } catch (FileNotFoundException expected) {
+            // The log has not been written yet. Migrate the text file if there is one.
+        } catch (IOException e) {
+            // Nothing could be read from the log, so the text file is the best data left,
+            // should it still be there. The log is compacted over at the next write.
+            Slog.w(TAG, "Failed to read package dex usage log.", e);
+        }
+        if (mLegacyFile == null) {
+            return;
+        }
+
+        AtomicFile file = mLegacyFile;
         BufferedReader in = null;
         try {
             in = new BufferedReader(new InputStreamReader(file.openRead()));
@@ -423,6 +644,10 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
         synchronized (mPackageUseInfoMap) {
             mPackageUseInfoMap.clear();
             mPackageUseInfoMap.putAll(data);
+            mUndecodedRecords.clear();
+            mDirtyPackages.clear();
+            // Store the text data in the record log with the next write.
+            mCompactionRequested = true;
         }
     }
 
@@ -489,6 +714,17 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     /*package*/ void syncData(Map<String, Set<Integer>> packageToUsersMap,
             Map<String, Set<String>> packageToCodePaths) {
         synchronized (mPackageUseInfoMap) {
+            // Packages that are no longer installed can be dropped without decoding them.
+            Iterator<String> rIt = mUndecodedRecords.keySet().iterator();
+            while (rIt.hasNext()) {
+                String packageName = rIt.next();
+                if (!packageToUsersMap.containsKey(packageName)) {
+                    rIt.remove();
+                    mDirtyPackages.add(packageName);
+                }
+            }
+            decodeAllLocked();
+
             Iterator<Map.Entry<String, PackageUseInfo>> pIt =
                     mPackageUseInfoMap.entrySet().iterator();
             while (pIt.hasNext()) {
@@ -499,6 +735,7 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
                 if (users == null) {
                     // The package doesn't exist anymore, remove the record.
                     pIt.remove();
+                    mDirtyPackages.add(packageName);
                 } else {
                     // The package exists but we can prune the entries associated with non existing
                     // users.
@@ -509,6 +746,7 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
                         if (!users.contains(dexUseInfo.mOwnerUserId)) {
                             // User was probably removed. Delete its dex usage info.
                             dIt.remove();
+                            mDirtyPackages.add(packageName);
                         }
                     }
 
@@ -519,6 +757,7 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
                     while (codeIt.hasNext()) {
                         if (!codePaths.contains(codeIt.next().getKey())) {
                             codeIt.remove();
+                            mDirtyPackages.add(packageName);
                         }
                     }
 
@@ -527,13 +766,17 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
                     // See mUsedByOtherAppsBeforeUpgrade docs on why it is important to do it.
                     if (packageUseInfo.mUsedByOtherAppsBeforeUpgrade) {
                         for (String codePath : codePaths) {
-                            packageUseInfo.mergeCodePathUsedByOtherApps(codePath, true, null, null);
+                            if (packageUseInfo.mergeCodePathUsedByOtherApps(codePath, true, null,
+                                    null)) {
+                                mDirtyPackages.add(packageName);
+                            }
                         }
                     } else if (!packageUseInfo.isAnyCodePathUsedByOtherApps()
                         && packageUseInfo.mDexUseInfoMap.isEmpty()) {
                         // The package is not used by other apps and we removed all its dex files
                         // records. Remove the entire package record as well.
                         pIt.remove();
+                        mDirtyPackages.add(packageName);
                     }
                 }
             }
@@ -546,11 +789,15 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
      */
     /*package*/ boolean clearUsedByOtherApps(String packageName) {
         synchronized (mPackageUseInfoMap) {
-            PackageUseInfo packageUseInfo = mPackageUseInfoMap.get(packageName);
+            PackageUseInfo packageUseInfo = getPackageUseInfoLocked(packageName);
             if (packageUseInfo == null) {
                 return false;
             }
-            return packageUseInfo.clearCodePathUsedByOtherApps();
+            if (!packageUseInfo.clearCodePathUsedByOtherApps()) {
+                return false;
+            }
+            mDirtyPackages.add(packageName);
+            return true;
         }
     }
 
@@ -560,7 +807,12 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
      */
     public boolean removePackage(String packageName) {
         synchronized (mPackageUseInfoMap) {
-            return mPackageUseInfoMap.remove(packageName) != null;
+            boolean removed = mPackageUseInfoMap.remove(packageName) != null;
+            removed |= mUndecodedRecords.remove(packageName) != null;
+            if (removed) {
+                mDirtyPackages.add(packageName);
+            }
+            return removed;
         }
     }
 
@@ -573,7 +825,7 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
      */
     /*package*/ boolean removeUserPackage(String packageName, int userId) {
         synchronized (mPackageUseInfoMap) {
-            PackageUseInfo packageUseInfo = mPackageUseInfoMap.get(packageName);
+            PackageUseInfo packageUseInfo = getPackageUseInfoLocked(packageName);
             if (packageUseInfo == null) {
                 return false;
             }
@@ -594,6 +846,9 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
                 mPackageUseInfoMap.remove(packageName);
                 updated = true;
             }
+            if (updated) {
+                mDirtyPackages.add(packageName);
+            }
             return updated;
         }
     }
@@ -606,11 +861,15 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
      */
     /*package*/ boolean removeDexFile(String packageName, String dexFile, int userId) {
         synchronized (mPackageUseInfoMap) {
-            PackageUseInfo packageUseInfo = mPackageUseInfoMap.get(packageName);
+            PackageUseInfo packageUseInfo = getPackageUseInfoLocked(packageName);
             if (packageUseInfo == null) {
                 return false;
             }
-            return removeDexFile(packageUseInfo, dexFile, userId);
+            if (!removeDexFile(packageUseInfo, dexFile, userId)) {
+                return false;
+            }
+            mDirtyPackages.add(packageName);
+            return true;
         }
     }
 
@@ -628,7 +887,7 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
 
     /*package*/ PackageUseInfo getPackageUseInfo(String packageName) {
         synchronized (mPackageUseInfoMap) {
-            PackageUseInfo useInfo = mPackageUseInfoMap.get(packageName);
+            PackageUseInfo useInfo = getPackageUseInfoLocked(packageName);
             // The useInfo contains a map for secondary dex files which could be modified
             // concurrently after this method returns and thus outside the locking we do here.
             // (i.e. the map is updated when new class loaders are created, which can happen anytime
@@ -644,6 +903,7 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     /*package*/ Set<String> getAllPackagesWithSecondaryDexFiles() {
         Set<String> packages = new HashSet<>();
         synchronized (mPackageUseInfoMap) {
+            decodeAllLocked();
             for (Map.Entry<String, PackageUseInfo> entry : mPackageUseInfoMap.entrySet()) {
                 if (!entry.getValue().mDexUseInfoMap.isEmpty()) {
                     packages.add(entry.getKey());
@@ -656,12 +916,16 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     public void clear() {
         synchronized (mPackageUseInfoMap) {
             mPackageUseInfoMap.clear();
+            mUndecodedRecords.clear();
+            mDirtyPackages.clear();
+            mCompactionRequested = true;
         }
     }
     // Creates a deep copy of the class' mPackageUseInfoMap.
     private Map<String, PackageUseInfo> clonePackageUseInfoMap() {
         Map<String, PackageUseInfo> clone = new HashMap<>();
         synchronized (mPackageUseInfoMap) {
+            decodeAllLocked();
             for (Map.Entry<String, PackageUseInfo> e : mPackageUseInfoMap.entrySet()) {
                 clone.put(e.getKey(), new PackageUseInfo(e.getValue()));
             }
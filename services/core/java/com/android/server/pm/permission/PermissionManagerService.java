@@ -996,6 +996,11 @@ public class PermissionManagerService {
         // write synchronously to avoid losing runtime permissions state.
         if (callback != null) {
             callback.onPermissionUpdated(updatedUserIds, runtimePermissionsRevoked);
+            // The settings of the package of interest are written by the caller, but
+            // those of other packages aren't tracked as changed.
+            if (changedInstallPermission && !pkg.packageName.equals(packageOfInterest)) {
+                callback.onInstallPermissionUpdated();
+            }
         }
     }
 
@@ -24,12 +24,14 @@ import android.util.ArraySet;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import com.android.internal.util.ArrayUtils;
+import com.android.server.pm.PackageQuerySnapshot;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class encapsulates the permissions for a package or a shared user.
@@ -48,6 +50,11 @@ import java.util.Set;
  * user for a package or a shared user. The gids are computed as a set of
  * the gids for all granted permissions' gids on a per user basis.
  * </p>
+ * <p>
+ * Which permissions are granted is also kept in a bitset per device user,
+ * indexed by a dense id assigned to each permission name, so that checking
+ * a permission does not need to look up its state.
+ * </p>
  */
 public final class PermissionsState {
 
@@ -62,8 +69,18 @@ public final class PermissionsState {
 
     private static final int[] NO_GIDS = {};
 
+    /** Ids of all permission names that were ever granted, shared by all instances. */
+    private static final ConcurrentHashMap<String, Integer> sPermissionIds =
+            new ConcurrentHashMap<>();
+
     private ArrayMap<String, PermissionData> mPermissions;
 
+    /**
+     * Bitsets of the ids of granted permissions, keyed by device user id,
+     * or {@link UserHandle#USER_ALL} for install permissions.
+     */
+    private SparseArray<long[]> mGrantedPermissionIds;
+
     private int[] mGlobalGids = NO_GIDS;
 
     private SparseBooleanArray mPermissionReviewRequired;
@@ -96,6 +113,7 @@ public final class PermissionsState {
         if (other == this) {
             return;
         }
+        PackageQuerySnapshot.invalidate();
         if (mPermissions != null) {
             if (other.mPermissions == null) {
                 mPermissions = null;
@@ -115,6 +133,16 @@ public final class PermissionsState {
             }
         }
 
+        mGrantedPermissionIds = null;
+        if (other.mGrantedPermissionIds != null) {
+            final int userCount = other.mGrantedPermissionIds.size();
+            mGrantedPermissionIds = new SparseArray<>(userCount);
+            for (int i = 0; i < userCount; i++) {
+                mGrantedPermissionIds.put(other.mGrantedPermissionIds.keyAt(i),
+                        other.mGrantedPermissionIds.valueAt(i).clone());
+            }
+        }
+
         mGlobalGids = NO_GIDS;
         if (other.mGlobalGids != NO_GIDS) {
             mGlobalGids = Arrays.copyOf(other.mGlobalGids,
@@ -266,12 +294,17 @@ public final class PermissionsState {
     public boolean hasPermission(String name, int userId) {
         enforceValidUserId(userId);
 
-        if (mPermissions == null) {
+        if (mGrantedPermissionIds == null) {
             return false;
         }
 
-        PermissionData permissionData = mPermissions.get(name);
-        return permissionData != null && permissionData.isGranted(userId);
+        final Integer id = sPermissionIds.get(name);
+        if (id == null) {
+            return false;
+        }
+        // A permission is either an install or a runtime permission, never both
+        return isGrantedId(UserHandle.USER_ALL, id)
+                || (userId != UserHandle.USER_ALL && isGrantedId(userId, id));
     }
 
     /**
@@ -520,7 +553,9 @@ public final class PermissionsState {
     public void reset() {
         mGlobalGids = NO_GIDS;
         mPermissions = null;
+        mGrantedPermissionIds = null;
         mPermissionReviewRequired = null;
+        PackageQuerySnapshot.invalidate();
     }
 
     private PermissionState getPermissionState(String name, int userId) {
@@ -569,6 +604,8 @@ public final class PermissionsState {
         if (!permissionData.grant(userId)) {
             return PERMISSION_OPERATION_FAILURE;
         }
+        setGrantedId(userId, getPermissionId(permission.getName()), true);
+        PackageQuerySnapshot.invalidate();
 
         if (hasGids) {
             final int[] newGids = computeGids(userId);
@@ -594,6 +631,8 @@ public final class PermissionsState {
         if (!permissionData.revoke(userId)) {
             return PERMISSION_OPERATION_FAILURE;
         }
+        setGrantedId(userId, getPermissionId(permName), false);
+        PackageQuerySnapshot.invalidate();
 
         if (permissionData.isDefault()) {
             ensureNoPermissionData(permName);
@@ -619,6 +658,46 @@ public final class PermissionsState {
         return current;
     }
 
+    private static int getPermissionId(String name) {
+        Integer id = sPermissionIds.get(name);
+        if (id == null) {
+            synchronized (sPermissionIds) {
+                id = sPermissionIds.get(name);
+                if (id == null) {
+                    id = sPermissionIds.size();
+                    sPermissionIds.put(name, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    private boolean isGrantedId(int userId, int id) {
+        final long[] bits = mGrantedPermissionIds.get(userId);
+        final int index = id >>> 6;
+        return bits != null && index < bits.length && (bits[index] & (1L << id)) != 0;
+    }
+
+    private void setGrantedId(int userId, int id, boolean granted) {
+        final int index = id >>> 6;
+        long[] bits = mGrantedPermissionIds != null ? mGrantedPermissionIds.get(userId) : null;
+        if (bits == null || index >= bits.length) {
+            if (!granted) {
+                return;
+            }
+            bits = bits == null ? new long[index + 1] : Arrays.copyOf(bits, index + 1);
+            if (mGrantedPermissionIds == null) {
+                mGrantedPermissionIds = new SparseArray<>();
+            }
+            mGrantedPermissionIds.put(userId, bits);
+        }
+        if (granted) {
+            bits[index] |= 1L << id;
+        } else {
+            bits[index] &= ~(1L << id);
+        }
+    }
+
     private static void enforceValidUserId(int userId) {
         if (userId != UserHandle.USER_ALL && userId < 0) {
             throw new IllegalArgumentException("Invalid userId:" + userId);
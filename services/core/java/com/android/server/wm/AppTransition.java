@@ -464,6 +464,7 @@ public class AppTransition implements Dump {
 
     private void setAppTransitionState(int state) {
         mAppTransitionState = state;
+        mService.mStateSequence++;
         updateBooster();
     }
 
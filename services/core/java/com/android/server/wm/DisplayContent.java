@@ -412,6 +412,21 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     /** Caches the value whether told display manager that we have content. */
     private boolean mLastHasContent;
 
+    /**
+     * Whether the windows of this display changed since the last surface placement pass that
+     * placed them, see {@link RootWindowContainer#performSurfacePlacement}.
+     */
+    boolean mSurfacePlacementDirty = true;
+
+    /**
+     * Whether the current surface placement pass placed the windows of this display. If not, its
+     * exiting tokens are left alone, as the pass didn't update whether they are still visible.
+     */
+    boolean mSurfacesPlaced;
+
+    /** What the windows of this display contributed to the last pass that placed them. */
+    final SurfacePlacementResult mLastSurfacePlacementResult = new SurfacePlacementResult();
+
     private final Consumer<WindowState> mUpdateWindowsForAnimator = w -> {
         WindowStateAnimator winAnimator = w.mWinAnimator;
         final AppWindowToken atoken = w.mAppToken;
@@ -641,6 +656,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     private final Consumer<WindowState> mApplySurfaceChangesTransaction = w -> {
         final WindowSurfacePlacer surfacePlacer = mService.mWindowPlacerLocked;
+        mTmpApplySurfaceChangesTransactionState.windowCount++;
         final boolean obscuredChanged = w.mObscured !=
                 mTmpApplySurfaceChangesTransactionState.obscured;
         final RootWindowContainer root = mService.mRoot;
@@ -2658,6 +2674,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         mLayoutNeeded = true;
     }
 
+    @Override
+    void setSurfacePlacementDirty() {
+        mSurfacePlacementDirty = true;
+    }
+
     private void clearLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "clearLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = false;
@@ -2937,6 +2958,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         mTmpRecoveringMemory = recoveringMemory;
         forAllWindows(mApplySurfaceChangesTransaction, true /* traverseTopToBottom */);
         prepareSurfaces();
+        mLastSurfacePlacementResult.windowCount =
+                mTmpApplySurfaceChangesTransactionState.windowCount;
 
         mLastHasContent = mTmpApplySurfaceChangesTransactionState.displayHasContent;
         mService.mDisplayManagerInternal.setDisplayProperties(mDisplayId,
@@ -3216,6 +3239,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         boolean focusDisplayed;
         float preferredRefreshRate;
         int preferredModeId;
+        int windowCount;
 
         void reset() {
             displayHasContent = false;
@@ -3224,9 +3248,25 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             focusDisplayed = false;
             preferredRefreshRate = 0;
             preferredModeId = 0;
+            windowCount = 0;
         }
     }
 
+    /**
+     * The state of {@link RootWindowContainer} that the windows of a display set when it was last
+     * placed, so that a pass that skips the display can still account for them.
+     */
+    static final class SurfacePlacementResult {
+        Session holdScreen;
+        WindowState holdScreenWindow;
+        WindowState obscuringWindow;
+        float screenBrightness = -1;
+        long userActivityTimeout = -1;
+        boolean sustainedPerformanceMode;
+        boolean obscureApplicationContentOnSecondaryDisplays;
+        int windowCount;
+    }
+
     private static final class ScreenshotApplicationState {
         WindowState appWin;
         int maxLayer;
@@ -35,6 +35,7 @@ import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
 import android.app.ActivityManager;
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.os.Debug;
 import android.os.IBinder;
 import android.os.Looper;
@@ -57,6 +58,7 @@ import com.android.server.policy.WindowManagerPolicy;
 
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.Consumer;
 
@@ -85,6 +87,10 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private int mInputWindowHandleCount;
     private InputWindowHandle mFocusedInputWindowHandle;
 
+    // The window handles as last sent to the input dispatcher, or a count of -1 if none were sent.
+    private SentInputWindow[] mSentInputWindows = new SentInputWindow[0];
+    private int mSentInputWindowCount = -1;
+
     private boolean mAddInputConsumerHandle;
     private boolean mAddPipInputConsumerHandle;
     private boolean mAddWallpaperInputConsumerHandle;
@@ -351,6 +357,33 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         }
     }
 
+    /**
+     * Compares the window handles about to be sent to the input dispatcher with the ones that were
+     * sent last, and remembers them for the next update.
+     *
+     * @return whether any window handle or its input state changed, i.e. they have to be sent.
+     */
+    private boolean updateSentInputWindowsLw() {
+        boolean changed = mInputWindowHandleCount != mSentInputWindowCount;
+        if (mSentInputWindows.length < mInputWindowHandleCount) {
+            mSentInputWindows = Arrays.copyOf(mSentInputWindows, mInputWindowHandles.length);
+        }
+        for (int i = 0; i < mInputWindowHandleCount; i++) {
+            if (mSentInputWindows[i] == null) {
+                mSentInputWindows[i] = new SentInputWindow();
+            }
+            if (!mSentInputWindows[i].matches(mInputWindowHandles[i])) {
+                mSentInputWindows[i].set(mInputWindowHandles[i]);
+                changed = true;
+            }
+        }
+        for (int i = mInputWindowHandleCount; i < mSentInputWindowCount; i++) {
+            mSentInputWindows[i].set(null);
+        }
+        mSentInputWindowCount = mInputWindowHandleCount;
+        return changed;
+    }
+
     private void clearInputWindowHandlesLw() {
         while (mInputWindowHandleCount != 0) {
             mInputWindowHandles[--mInputWindowHandleCount] = null;
@@ -610,6 +643,90 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         }
     }
 
+    /**
+     * The state of a window handle that the input dispatcher reads when the handle is sent to it.
+     */
+    static final class SentInputWindow {
+        private InputWindowHandle mHandle;
+        private InputChannel mInputChannel;
+        private String mName;
+        private int mLayoutParamsFlags;
+        private int mLayoutParamsType;
+        private long mDispatchingTimeoutNanos;
+        private int mFrameLeft;
+        private int mFrameTop;
+        private int mFrameRight;
+        private int mFrameBottom;
+        private float mScaleFactor;
+        private final Region mTouchableRegion = new Region();
+        private boolean mVisible;
+        private boolean mCanReceiveKeys;
+        private boolean mHasFocus;
+        private boolean mHasWallpaper;
+        private boolean mPaused;
+        private int mLayer;
+        private int mOwnerPid;
+        private int mOwnerUid;
+        private int mInputFeatures;
+        private int mDisplayId;
+
+        boolean matches(InputWindowHandle handle) {
+            return handle == mHandle
+                    && handle.inputChannel == mInputChannel
+                    && handle.layoutParamsFlags == mLayoutParamsFlags
+                    && handle.layoutParamsType == mLayoutParamsType
+                    && handle.dispatchingTimeoutNanos == mDispatchingTimeoutNanos
+                    && handle.frameLeft == mFrameLeft
+                    && handle.frameTop == mFrameTop
+                    && handle.frameRight == mFrameRight
+                    && handle.frameBottom == mFrameBottom
+                    && handle.scaleFactor == mScaleFactor
+                    && handle.visible == mVisible
+                    && handle.canReceiveKeys == mCanReceiveKeys
+                    && handle.hasFocus == mHasFocus
+                    && handle.hasWallpaper == mHasWallpaper
+                    && handle.paused == mPaused
+                    && handle.layer == mLayer
+                    && handle.ownerPid == mOwnerPid
+                    && handle.ownerUid == mOwnerUid
+                    && handle.inputFeatures == mInputFeatures
+                    && handle.displayId == mDisplayId
+                    && Objects.equals(handle.name, mName)
+                    && handle.touchableRegion.equals(mTouchableRegion);
+        }
+
+        /** Remembers the state of the given handle, or forgets the handle if it is null. */
+        void set(InputWindowHandle handle) {
+            mHandle = handle;
+            if (handle == null) {
+                mInputChannel = null;
+                mName = null;
+                return;
+            }
+            mInputChannel = handle.inputChannel;
+            mName = handle.name;
+            mLayoutParamsFlags = handle.layoutParamsFlags;
+            mLayoutParamsType = handle.layoutParamsType;
+            mDispatchingTimeoutNanos = handle.dispatchingTimeoutNanos;
+            mFrameLeft = handle.frameLeft;
+            mFrameTop = handle.frameTop;
+            mFrameRight = handle.frameRight;
+            mFrameBottom = handle.frameBottom;
+            mScaleFactor = handle.scaleFactor;
+            mTouchableRegion.set(handle.touchableRegion);
+            mVisible = handle.visible;
+            mCanReceiveKeys = handle.canReceiveKeys;
+            mHasFocus = handle.hasFocus;
+            mHasWallpaper = handle.hasWallpaper;
+            mPaused = handle.paused;
+            mLayer = handle.layer;
+            mOwnerPid = handle.ownerPid;
+            mOwnerUid = handle.ownerUid;
+            mInputFeatures = handle.inputFeatures;
+            mDisplayId = handle.displayId;
+        }
+    }
+
     private final class UpdateInputForAllWindowsConsumer implements Consumer<WindowState> {
 
         InputConsumerImpl navInputConsumer;
@@ -644,8 +761,11 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                 addInputWindowHandle(wallpaperInputConsumer.mWindowHandle);
             }
 
-            // Send windows to native code.
-            mService.mInputManager.setInputWindows(mInputWindowHandles, mFocusedInputWindowHandle);
+            // Send windows to native code, unless nothing changed since they were last sent.
+            if (updateSentInputWindowsLw()) {
+                mService.mInputManager.setInputWindows(mInputWindowHandles,
+                        mFocusedInputWindowHandle);
+            }
 
             clearInputWindowHandlesLw();
 
@@ -563,17 +563,17 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
         int i;
         boolean updateInputWindowsNeeded = false;
 
+        final boolean placeAllDisplays = needsAllDisplaysPlaced(recoveringMemory);
+
         if (mService.mFocusMayChange) {
             mService.mFocusMayChange = false;
             updateInputWindowsNeeded = mService.updateFocusedWindowLocked(
                     UPDATE_FOCUS_WILL_PLACE_SURFACES, false /*updateInputWindows*/);
         }
 
-        // Initialize state of exiting tokens.
         final int numDisplays = mChildren.size();
         for (int displayNdx = 0; displayNdx < numDisplays; ++displayNdx) {
-            final DisplayContent displayContent = mChildren.get(displayNdx);
-            displayContent.setExitingTokensHasVisible(false);
+            mChildren.get(displayNdx).mSurfacesPlaced = false;
         }
 
         mHoldScreen = null;
@@ -593,7 +593,8 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
                 ">>> OPEN TRANSACTION performLayoutAndPlaceSurfaces");
         mService.openSurfaceTransaction();
         try {
-            applySurfaceChangesTransaction(recoveringMemory, defaultDw, defaultDh);
+            applySurfaceChangesTransaction(recoveringMemory, placeAllDisplays, defaultDw,
+                    defaultDh);
         } catch (RuntimeException e) {
             Slog.wtf(TAG, "Unhandled exception in Window Manager", e);
         } finally {
@@ -705,10 +706,13 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
             mService.mDestroySurface.clear();
         }
 
-        // Time to remove any exiting tokens?
+        // Time to remove any exiting tokens? Only the placed displays found out whether theirs
+        // are still visible.
         for (int displayNdx = 0; displayNdx < numDisplays; ++displayNdx) {
             final DisplayContent displayContent = mChildren.get(displayNdx);
-            displayContent.removeExistingTokensIfPossible();
+            if (displayContent.mSurfacesPlaced) {
+                displayContent.removeExistingTokensIfPossible();
+            }
         }
 
         if (wallpaperDestroyed) {
@@ -823,8 +827,24 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
                 "performSurfacePlacementInner exit: animating=" + mService.mAnimator.isAnimating());
     }
 
-    private void applySurfaceChangesTransaction(boolean recoveringMemory, int defaultDw,
-            int defaultDh) {
+    /**
+     * Returns whether this pass has to place the windows of all displays, rather than only of the
+     * displays that changed. That is the case unless every change since the last pass was
+     * attributed to a container, and nothing is going on that affects the windows of all
+     * displays.
+     */
+    private boolean needsAllDisplaysPlaced(boolean recoveringMemory) {
+        final boolean allDisplaysDirty = mService.mWindowPlacerLocked.consumeAllDisplaysDirty();
+        return allDisplaysDirty || recoveringMemory || mService.mFocusMayChange
+                || mService.mAppTransition.isReady() || mService.mAppTransition.isRunning()
+                || mWallpaperMayChange || mWallpaperForceHidingChanged || mUpdateRotation
+                || !mOrientationChangeComplete || mService.mDisplayFrozen
+                || !mService.mDestroySurface.isEmpty() || !mService.mPendingRemove.isEmpty()
+                || !mService.mLosingFocus.isEmpty() || mService.mWaitingForDrawnCallback != null;
+    }
+
+    private void applySurfaceChangesTransaction(boolean recoveringMemory,
+            boolean placeAllDisplays, int defaultDw, int defaultDh) {
         mHoldScreenWindow = null;
         mObscuringWindow = null;
 
@@ -845,12 +865,58 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
         }
 
         boolean focusDisplayed = false;
+        int windowsVisited = 0;
+        int windowsTotal = 0;
 
         final int count = mChildren.size();
         for (int j = 0; j < count; ++j) {
             final DisplayContent dc = mChildren.get(j);
+            final DisplayContent.SurfacePlacementResult result = dc.mLastSurfacePlacementResult;
+            if (!placeAllDisplays && !dc.mSurfacePlacementDirty && !dc.isLayoutNeeded()
+                    && dc.pendingLayoutChanges == 0) {
+                // Nothing changed on this display; account for its windows as last placed.
+                if (dc.isDefaultDisplay) {
+                    mObscureApplicationContentOnSecondaryDisplays =
+                            result.obscureApplicationContentOnSecondaryDisplays;
+                }
+                windowsTotal += result.windowCount;
+                continue;
+            }
+            dc.mSurfacePlacementDirty = false;
+            dc.mSurfacesPlaced = true;
+
+            // Initialize state of exiting tokens.
+            dc.setExitingTokensHasVisible(false);
+
+            // Let the windows of this display set the state on their own, then keep what they
+            // set for the passes that skip it.
+            mHoldScreen = null;
+            mHoldScreenWindow = null;
+            mObscuringWindow = null;
+            mScreenBrightness = -1;
+            mUserActivityTimeout = -1;
+            mSustainedPerformanceModeCurrent = false;
             focusDisplayed |= dc.applySurfaceChangesTransaction(recoveringMemory);
+            result.holdScreen = mHoldScreen;
+            result.holdScreenWindow = mHoldScreenWindow;
+            result.obscuringWindow = mObscuringWindow;
+            result.screenBrightness = mScreenBrightness;
+            result.userActivityTimeout = mUserActivityTimeout;
+            result.sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+            if (dc.isDefaultDisplay) {
+                if (result.obscureApplicationContentOnSecondaryDisplays
+                        != mObscureApplicationContentOnSecondaryDisplays) {
+                    // The content of the secondary displays depends on it.
+                    placeAllDisplays = true;
+                }
+                result.obscureApplicationContentOnSecondaryDisplays =
+                        mObscureApplicationContentOnSecondaryDisplays;
+            }
+            windowsVisited += result.windowCount;
+            windowsTotal += result.windowCount;
         }
+        mergeSurfacePlacementResults();
+        mService.mWindowPlacerLocked.onWindowsPlaced(windowsVisited, windowsTotal);
 
         if (focusDisplayed) {
             mService.mH.sendEmptyMessage(REPORT_LOSING_FOCUS);
@@ -862,6 +928,37 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
         SurfaceControl.mergeToGlobalTransaction(mDisplayTransaction);
     }
 
+    /**
+     * Combines the state that the windows of each display set when it was last placed, as if
+     * the windows of all displays had been placed in order.
+     */
+    private void mergeSurfacePlacementResults() {
+        mHoldScreen = null;
+        mHoldScreenWindow = null;
+        mObscuringWindow = null;
+        mScreenBrightness = -1;
+        mUserActivityTimeout = -1;
+        mSustainedPerformanceModeCurrent = false;
+        for (int i = 0; i < mChildren.size(); i++) {
+            final DisplayContent.SurfacePlacementResult result =
+                    mChildren.get(i).mLastSurfacePlacementResult;
+            if (result.holdScreen != null) {
+                mHoldScreen = result.holdScreen;
+                mHoldScreenWindow = result.holdScreenWindow;
+            }
+            if (result.obscuringWindow != null) {
+                mObscuringWindow = result.obscuringWindow;
+            }
+            if (mScreenBrightness < 0) {
+                mScreenBrightness = result.screenBrightness;
+            }
+            if (mUserActivityTimeout < 0) {
+                mUserActivityTimeout = result.userActivityTimeout;
+            }
+            mSustainedPerformanceModeCurrent |= result.sustainedPerformanceMode;
+        }
+    }
+
     /**
      * Handles resizing windows during surface placement.
      *
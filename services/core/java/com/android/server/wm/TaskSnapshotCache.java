@@ -17,39 +17,82 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.SystemClock;
 import android.util.ArrayMap;
-import android.util.LruCache;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 
 import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * The cache holds the snapshots of running tasks, which are taken while the task is running,
+ * and the snapshots that were restored from disk, which are only returned when the caller allows
+ * restoring from disk. The graphic buffers of all snapshots together are bounded by
+ * {@link #MAX_CACHE_BYTES}; when the cache exceeds it, it evicts the least recently used
+ * snapshots, restored reduced resolution snapshots first, as they are the cheapest to restore
+ * again, and the snapshots of running tasks last.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    private static final long MAX_CACHE_BYTES =
+            (ActivityManager.isLowRamDeviceStatic() ? 24 : 96) * 1024 * 1024;
+
+    /** The maximum number of tasks of which {@link #preloadSnapshots} restores snapshots. */
+    private static final int MAX_PRELOAD_TASKS = 6;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
+    private final long mMaxBytes;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
-    private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+
+    /** The entries by task id, least recently used first. */
+    private final LinkedHashMap<Integer, CacheEntry> mCache =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    private long mCacheBytes;
+
+    /** The number of loads from disk in flight by task id. */
+    private final SparseIntArray mLoadingTasks = new SparseIntArray();
+
+    /** The tasks that were removed while a snapshot of theirs was loading. */
+    private final SparseBooleanArray mRemovedLoadingTasks = new SparseBooleanArray();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mLoadCount;
+    private int mPreloadCount;
+    private long mTotalLoadMillis;
+    private long mMaxLoadMillis;
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader, MAX_CACHE_BYTES);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader, long maxBytes) {
         mService = service;
         mLoader = loader;
+        mMaxBytes = maxBytes;
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
-        final CacheEntry entry = mRunningCache.get(task.mTaskId);
-        if (entry != null) {
-            mAppTaskMap.remove(entry.topApp);
-        }
+        removeEntry(task.mTaskId);
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        addEntry(task.mTaskId, new CacheEntry(snapshot, top, task.mUserId));
     }
 
     /**
@@ -59,11 +102,14 @@ class TaskSnapshotCache {
             boolean reducedResolution) {
 
         synchronized (mService.mWindowMap) {
-            // Try the running cache.
-            final CacheEntry entry = mRunningCache.get(taskId);
-            if (entry != null) {
+            // Try the running snapshot, or one that was restored before if asked.
+            final CacheEntry entry = mCache.get(taskId);
+            if (entry != null && (entry.topApp != null
+                    || (restoreFromDisk && entry.matches(userId, reducedResolution)))) {
+                mHitCount++;
                 return entry.snapshot;
             }
+            mMissCount++;
         }
 
         // Try to restore from disk if asked.
@@ -73,13 +119,62 @@ class TaskSnapshotCache {
         return tryRestoreFromDisk(taskId, userId, reducedResolution);
     }
 
+    /**
+     * Restores the reduced resolution snapshots of the given tasks in the background, as they are
+     * likely to be asked for soon, e.g. by recents showing them.
+     */
+    void preloadSnapshots(int[] taskIds, int[] userIds) {
+        final int count = Math.min(taskIds.length, MAX_PRELOAD_TASKS);
+        BackgroundThread.getHandler().post(() -> {
+            for (int i = 0; i < count; i++) {
+                synchronized (mService.mWindowMap) {
+                    final CacheEntry entry = mCache.get(taskIds[i]);
+                    if (entry != null && (entry.topApp != null
+                            || entry.matches(userIds[i], true /* reducedResolution */))) {
+                        continue;
+                    }
+                    mPreloadCount++;
+                }
+                tryRestoreFromDisk(taskIds[i], userIds[i], true /* reducedResolution */);
+            }
+        });
+    }
+
     /**
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
     private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+        synchronized (mService.mWindowMap) {
+            mLoadingTasks.put(taskId, mLoadingTasks.get(taskId) + 1);
+        }
+        final long start = SystemClock.elapsedRealtime();
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
-        if (snapshot == null) {
-            return null;
+        final long loadMillis = SystemClock.elapsedRealtime() - start;
+        synchronized (mService.mWindowMap) {
+            mLoadCount++;
+            mTotalLoadMillis += loadMillis;
+            mMaxLoadMillis = Math.max(mMaxLoadMillis, loadMillis);
+            final boolean removed = mRemovedLoadingTasks.get(taskId);
+            final int loading = mLoadingTasks.get(taskId) - 1;
+            if (loading > 0) {
+                mLoadingTasks.put(taskId, loading);
+            } else {
+                mLoadingTasks.delete(taskId);
+                mRemovedLoadingTasks.delete(taskId);
+            }
+            // Don't cache the snapshot of a task that was removed while loading.
+            if (snapshot == null || removed) {
+                return snapshot;
+            }
+
+            // Don't replace a snapshot that was taken while loading, or a better one that was
+            // restored meanwhile.
+            final CacheEntry entry = mCache.get(taskId);
+            if (entry == null || (entry.topApp == null
+                    && !entry.matches(userId, snapshot.isReducedResolution()))) {
+                removeEntry(taskId);
+                addEntry(taskId, new CacheEntry(snapshot, null /* topApp */, userId));
+            }
         }
         return snapshot;
     }
@@ -88,43 +183,110 @@ class TaskSnapshotCache {
      * Called when an app token has been removed
      */
     void onAppRemoved(AppWindowToken wtoken) {
-        final Integer taskId = mAppTaskMap.get(wtoken);
-        if (taskId != null) {
-            removeRunningEntry(taskId);
-        }
+        onAppGone(wtoken);
     }
 
     /**
      * Callend when an app window token's process died.
      */
     void onAppDied(AppWindowToken wtoken) {
-        final Integer taskId = mAppTaskMap.get(wtoken);
+        onAppGone(wtoken);
+    }
+
+    /**
+     * Keeps the snapshot of the task of the app only for callers that restore from disk, as it is
+     * the snapshot that was persisted, but no longer the one of a running task.
+     */
+    private void onAppGone(AppWindowToken wtoken) {
+        final Integer taskId = mAppTaskMap.remove(wtoken);
         if (taskId != null) {
-            removeRunningEntry(taskId);
+            final CacheEntry entry = mCache.get(taskId);
+            if (entry != null && entry.topApp == wtoken) {
+                entry.topApp = null;
+                trimToSizeLocked();
+            }
         }
     }
 
     void onTaskRemoved(int taskId) {
-        removeRunningEntry(taskId);
+        removeEntry(taskId);
+        if (mLoadingTasks.get(taskId) > 0) {
+            mRemovedLoadingTasks.put(taskId, true);
+        }
     }
 
-    private void removeRunningEntry(int taskId) {
-        final CacheEntry entry = mRunningCache.get(taskId);
+    private void addEntry(int taskId, CacheEntry entry) {
+        mCache.put(taskId, entry);
+        mCacheBytes += entry.bytes;
+        trimToSizeLocked();
+    }
+
+    private void removeEntry(int taskId) {
+        final CacheEntry entry = mCache.remove(taskId);
         if (entry != null) {
-            mAppTaskMap.remove(entry.topApp);
-            mRunningCache.remove(taskId);
+            mCacheBytes -= entry.bytes;
+            if (entry.topApp != null) {
+                mAppTaskMap.remove(entry.topApp);
+            }
         }
     }
 
+    /**
+     * Evicts entries until the cache is within its bound, least recently used first in order of
+     * restored reduced resolution snapshots, restored snapshots, and running snapshots. Never
+     * evicts the most recently used entry.
+     */
+    private void trimToSizeLocked() {
+        for (int pass = 0; pass < 3 && mCacheBytes > mMaxBytes; pass++) {
+            final Iterator<CacheEntry> it = mCache.values().iterator();
+            int remaining = mCache.size();
+            while (mCacheBytes > mMaxBytes && remaining-- > 1) {
+                final CacheEntry entry = it.next();
+                final boolean evict;
+                switch (pass) {
+                    case 0:
+                        evict = entry.topApp == null && entry.snapshot.isReducedResolution();
+                        break;
+                    case 1:
+                        evict = entry.topApp == null;
+                        break;
+                    default:
+                        evict = true;
+                }
+                if (evict) {
+                    it.remove();
+                    mCacheBytes -= entry.bytes;
+                    mEvictionCount++;
+                    if (entry.topApp != null) {
+                        mAppTaskMap.remove(entry.topApp);
+                    }
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    long getCacheBytes() {
+        return mCacheBytes;
+    }
+
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
-        for (int i = mRunningCache.size() - 1; i >= 0; i--) {
-            final CacheEntry entry = mRunningCache.valueAt(i);
-            pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
+        pw.println(doublePrefix + "bytes=" + mCacheBytes + " maxBytes=" + mMaxBytes
+                + " hits=" + mHitCount + " misses=" + mMissCount
+                + " evictions=" + mEvictionCount);
+        pw.println(doublePrefix + "loads=" + mLoadCount + " preloads=" + mPreloadCount
+                + " avgLoadMs=" + (mLoadCount > 0 ? mTotalLoadMillis / mLoadCount : 0)
+                + " maxLoadMs=" + mMaxLoadMillis);
+        // Iterate without get(), which would reorder the entries.
+        for (Map.Entry<Integer, CacheEntry> cacheEntry : mCache.entrySet()) {
+            final CacheEntry entry = cacheEntry.getValue();
+            pw.println(doublePrefix + "Entry taskId=" + cacheEntry.getKey());
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
+            pw.println(triplePrefix + "bytes=" + entry.bytes);
         }
     }
 
@@ -133,12 +295,34 @@ class TaskSnapshotCache {
         /** The snapshot. */
         final TaskSnapshot snapshot;
 
-        /** The app token that was on top of the task when the snapshot was taken */
-        final AppWindowToken topApp;
+        /**
+         * The app token that was on top of the task when the snapshot was taken, or null if the
+         * snapshot was restored from disk or the app is gone.
+         */
+        AppWindowToken topApp;
+
+        /** The user of the task. */
+        final int userId;
 
-        CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp) {
+        /** The size of the graphic buffer of the snapshot. */
+        final long bytes;
+
+        CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp, int userId) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            this.userId = userId;
+            final GraphicBuffer buffer = snapshot.getSnapshot();
+            // Snapshots are RGBA_8888.
+            bytes = buffer != null ? (long) buffer.getWidth() * buffer.getHeight() * 4 : 0;
+        }
+
+        /**
+         * @return whether the snapshot can be returned to a caller that restores the snapshot of
+         *         the given user with the given resolution from disk.
+         */
+        boolean matches(int userId, boolean reducedResolution) {
+            return this.userId == userId
+                    && (reducedResolution || !snapshot.isReducedResolution());
         }
     }
 }
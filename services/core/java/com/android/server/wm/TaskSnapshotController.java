@@ -210,6 +210,14 @@ class TaskSnapshotController {
                 || DISABLE_FULL_SIZED_BITMAPS);
     }
 
+    /**
+     * Restores the snapshots of the given tasks in the background, see
+     * {@link TaskSnapshotCache#preloadSnapshots}.
+     */
+    void preloadSnapshots(int[] taskIds, int[] userIds) {
+        mCache.preloadSnapshots(taskIds, userIds);
+    }
+
     /**
      * Creates a starting surface for {@param token} with {@param snapshot}. DO NOT HOLD THE WINDOW
      * MANAGER LOCK WHEN CALLING THIS METHOD!
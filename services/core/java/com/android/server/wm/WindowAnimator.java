@@ -234,7 +234,7 @@ public class WindowAnimator {
             } catch (RuntimeException e) {
                 Slog.wtf(TAG, "Unhandled exception in Window Manager", e);
             } finally {
-                mService.closeSurfaceTransaction("WindowAnimator");
+                mService.closeSurfaceTransaction("WindowAnimator", true /* animationFrame */);
                 if (SHOW_TRANSACTIONS) Slog.i(TAG, "<<< CLOSE TRANSACTION animate");
             }
 
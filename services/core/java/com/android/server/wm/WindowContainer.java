@@ -151,6 +151,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
     @Override
     public void onConfigurationChanged(Configuration newParentConfig) {
         super.onConfigurationChanged(newParentConfig);
+        mService.mStateSequence++;
         updateSurfacePosition();
         scheduleAnimation();
     }
@@ -174,6 +175,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
      * Supposed to be overridden and contain actions that should be executed after parent was set.
      */
     void onParentSet() {
+        mService.mStateSequence++;
         if (mParent == null) {
             return;
         }
@@ -412,6 +414,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
         } else if (position == 0) {
             position = POSITION_BOTTOM;
         }
+        mService.mStateSequence++;
 
         switch (position) {
             case POSITION_TOP:
@@ -961,6 +964,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
             setLayer(t, layer);
             mLastLayer = layer;
             mLastRelativeToLayer = null;
+            mService.mStateSequence++;
         }
     }
 
@@ -970,6 +974,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
             setRelativeLayer(t, relativeTo, layer);
             mLastLayer = layer;
             mLastRelativeToLayer = relativeTo;
+            mService.mStateSequence++;
         }
     }
 
@@ -1121,6 +1126,16 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
         }
     }
 
+    /**
+     * Marks the display of this container as changed, such that the next surface placement pass
+     * places its windows even if it skips the displays that didn't change.
+     */
+    void setSurfacePlacementDirty() {
+        if (mParent != null) {
+            mParent.setSurfacePlacementDirty();
+        }
+    }
+
     @Override
     public SurfaceControl getSurfaceControl() {
         return mSurfaceControl;
@@ -1256,6 +1271,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
 
         getPendingTransaction().setPosition(mSurfaceControl, mTmpPos.x, mTmpPos.y);
         mLastSurfacePosition.set(mTmpPos.x, mTmpPos.y);
+        mService.mStateSequence++;
     }
 
     void getRelativePosition(Point outPos) {
@@ -430,4 +430,11 @@ public abstract class WindowManagerInternal {
      * Long screenshot
      */
     public abstract boolean isMinimizedDock();
+
+    /**
+     * Saves the recent window manager states that are traced in memory to a file, if the build
+     * allows tracing. Doesn't need the window manager lock, so can be called when the system is
+     * hung.
+     */
+    public abstract void saveWindowTraceRingBuffer();
 }
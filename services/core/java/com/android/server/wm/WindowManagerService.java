@@ -761,6 +761,13 @@ public class WindowManagerService extends IWindowManager.Stub
      * is a long initialized to Long.MIN_VALUE so that it doesn't match this value on startup. */
     int mTransactionSequence;
 
+    /**
+     * Incremented by changes of the state that {@link #writeToProtoLocked} writes: changes of the
+     * window hierarchy, configurations, window surfaces, the focus and the app transition. Lets
+     * {@link WindowTracing} skip serializing the state for its ring buffer when it didn't change.
+     */
+    int mStateSequence;
+
     final WindowAnimator mAnimator;
     final SurfaceAnimationRunner mSurfaceAnimationRunner;
 
@@ -835,11 +842,20 @@ public class WindowManagerService extends IWindowManager.Stub
      * @param where debug string indicating where the transaction originated
      */
     void closeSurfaceTransaction(String where) {
+        closeSurfaceTransaction(where, false /* animationFrame */);
+    }
+
+    /**
+     * Closes a surface transaction.
+     * @param where debug string indicating where the transaction originated
+     * @param animationFrame whether the transaction applies a frame of the running animations
+     */
+    void closeSurfaceTransaction(String where, boolean animationFrame) {
         try {
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "closeSurfaceTransaction");
             synchronized (mWindowMap) {
                 try {
-                    traceStateLocked(where);
+                    traceStateLocked(where, animationFrame);
                 } finally {
                     SurfaceControl.closeTransaction();
                 }
@@ -1926,6 +1942,9 @@ public class WindowManagerService extends IWindowManager.Stub
 
                 flagChanges = win.mAttrs.flags ^= attrs.flags;
                 attrChanges = win.mAttrs.copyFrom(attrs);
+                if (attrChanges != 0 || flagChanges != 0) {
+                    mStateSequence++;
+                }
                 if ((attrChanges & (WindowManager.LayoutParams.LAYOUT_CHANGED
                         | WindowManager.LayoutParams.SYSTEM_UI_VISIBILITY_CHANGED)) != 0) {
                     win.mLayoutNeeded = true;
@@ -2027,8 +2046,9 @@ public class WindowManagerService extends IWindowManager.Stub
             }
 
             // We may be deferring layout passes at the moment, but since the client is interested
-            // in the new out values right now we need to force a layout.
-            mWindowPlacerLocked.performSurfacePlacement(true /* force */);
+            // in the new out values right now we need to force a layout. Only the display of the
+            // window changed.
+            mWindowPlacerLocked.performSurfacePlacement(win, true /* force */);
 
             if (shouldRelayout) {
                 Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "relayoutWindow: viewVisibility_1");
@@ -2303,7 +2323,7 @@ public class WindowManagerService extends IWindowManager.Stub
                                 WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER;
                     }
                     win.setDisplayLayoutNeeded();
-                    mWindowPlacerLocked.requestTraversal();
+                    mWindowPlacerLocked.requestTraversal(win);
                 }
             }
         } finally {
@@ -3758,6 +3778,14 @@ public class WindowManagerService extends IWindowManager.Stub
                 reducedResolution);
     }
 
+    /**
+     * Restores the snapshots of the given tasks from disk in the background, as they are likely
+     * to be asked for soon.
+     */
+    public void preloadTaskSnapshots(int[] taskIds, int[] userIds) {
+        mTaskSnapshotController.preloadSnapshots(taskIds, userIds);
+    }
+
     /**
      * In case a task write/delete operation was lost because the system crashed, this makes sure to
      * clean up the directory to remove obsolete files.
@@ -5697,6 +5725,7 @@ public class WindowManagerService extends IWindowManager.Stub
     boolean updateFocusedWindowLocked(int mode, boolean updateInputWindows) {
         WindowState newFocus = mRoot.computeFocusedWindow();
         if (mCurrentFocus != newFocus) {
+            mStateSequence++;
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "wmUpdateFocus");
             // This check makes sure that we don't already have the focus
             // change message pending.
@@ -6393,10 +6422,10 @@ public class WindowManagerService extends IWindowManager.Stub
         mAppTransition.writeToProto(proto, APP_TRANSITION);
     }
 
-    void traceStateLocked(String where) {
+    void traceStateLocked(String where, boolean animationFrame) {
         Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "traceStateLocked");
         try {
-            mWindowTracing.traceStateLocked(where, this);
+            mWindowTracing.traceStateLocked(where, this, animationFrame);
         } catch (Exception e) {
             Log.wtf(TAG, "Exception while tracing state", e);
         } finally {
@@ -7574,6 +7603,11 @@ public class WindowManagerService extends IWindowManager.Stub
             }
             return isMinimizedDock;
         }
+
+        @Override
+        public void saveWindowTraceRingBuffer() {
+            mWindowTracing.saveRingBuffer(null /* printwriter */, WindowTracing.RING_BUFFER_FILE);
+        }
     }
 
     void registerAppFreezeListener(AppFreezeListener listener) {
@@ -248,8 +248,9 @@ public class WindowManagerShellCommand extends ShellCommand {
         pw.println("  dismiss-keyguard");
         pw.println("    Dismiss the keyguard, prompting user for auth if necessary.");
         if (!IS_USER) {
-            pw.println("  tracing (start | stop)");
-            pw.println("    Start or stop window tracing.");
+            pw.println("  tracing (start | stop | save-ring-buffer)");
+            pw.println("    Start or stop window tracing, or save the recent states that are always");
+            pw.println("    traced in memory to " + WindowTracing.RING_BUFFER_FILE + ".");
         }
     }
 }
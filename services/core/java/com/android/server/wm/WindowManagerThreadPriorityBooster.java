@@ -25,6 +25,7 @@ import static com.android.server.am.ActivityManagerService.TOP_APP_PRIORITY_BOOS
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.server.AnimationThread;
+import com.android.server.LockGuard;
 import com.android.server.ThreadPriorityBooster;
 
 /**
@@ -54,8 +55,10 @@ class WindowManagerThreadPriorityBooster extends ThreadPriorityBooster {
 
         // Do not boost the animation threads. As the animation threads are changing priorities,
         // boosting it might mess up the priority because we reset it the the previous priority.
+        // Their use of the lock is still profiled though.
         final int myTid = myTid();
         if (myTid == mAnimationThreadId || myTid == mSurfaceAnimationThreadId) {
+            LockGuard.onLockedSectionEntered(INDEX_WINDOW);
             return;
         }
         super.boost();
@@ -67,6 +70,7 @@ class WindowManagerThreadPriorityBooster extends ThreadPriorityBooster {
         // See comment in boost().
         final int myTid = myTid();
         if (myTid == mAnimationThreadId || myTid == mSurfaceAnimationThreadId) {
+            LockGuard.onLockedSectionExited(INDEX_WINDOW);
             return;
         }
         super.reset();
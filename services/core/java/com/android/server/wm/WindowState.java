@@ -1276,8 +1276,13 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         mFrameSizeChanged |= (mLastFrame.width() != mFrame.width()) ||
                 (mLastFrame.height() != mFrame.height());
         mDisplayCutoutChanged |= !mLastDisplayCutout.equals(mDisplayCutout);
-        return mOverscanInsetsChanged || mContentInsetsChanged || mVisibleInsetsChanged
-                || mOutsetsChanged || mFrameSizeChanged || mDisplayCutoutChanged;
+        final boolean changed = mOverscanInsetsChanged || mContentInsetsChanged
+                || mVisibleInsetsChanged || mOutsetsChanged || mFrameSizeChanged
+                || mDisplayCutoutChanged;
+        if (changed) {
+            mService.mStateSequence++;
+        }
+        return changed;
     }
 
     /**
@@ -193,6 +193,7 @@ class WindowSurfaceController {
     void setCropInTransaction(Rect clipRect, boolean recoveringMemory) {
         if (SHOW_TRANSACTIONS) logSurface(
                 "CROP " + clipRect.toShortString(), null);
+        mService.mStateSequence++;
         try {
             if (clipRect.width() > 0 && clipRect.height() > 0) {
                 mSurfaceControl.setWindowCrop(clipRect);
@@ -215,6 +216,7 @@ class WindowSurfaceController {
     void clearCropInTransaction(boolean recoveringMemory) {
         if (SHOW_TRANSACTIONS) logSurface(
                 "CLEAR CROP", null);
+        mService.mStateSequence++;
         try {
             Rect clipRect = new Rect(0, 0, -1, -1);
             mSurfaceControl.setWindowCrop(clipRect);
@@ -252,6 +254,7 @@ class WindowSurfaceController {
         if (surfaceMoved) {
             mSurfaceX = left;
             mSurfaceY = top;
+            mService.mStateSequence++;
 
             try {
                 if (SHOW_TRANSACTIONS) logSurface(
@@ -293,6 +296,7 @@ class WindowSurfaceController {
         mLastDtdx = dtdx;
         mLastDtdy = dtdy;
         mLastDsdy = dsdy;
+        mService.mStateSequence++;
 
         try {
             if (SHOW_TRANSACTIONS) logSurface(
@@ -319,6 +323,7 @@ class WindowSurfaceController {
         if (surfaceResized) {
             mSurfaceW = width;
             mSurfaceH = height;
+            mService.mStateSequence++;
 
             try {
                 if (SHOW_TRANSACTIONS) logSurface(
@@ -344,6 +349,7 @@ class WindowSurfaceController {
             float dsdx, float dtdx, float dsdy,
             float dtdy, boolean recoveringMemory) {
         if (mSurfaceControl != null) {
+            mService.mStateSequence++;
             try {
                 mSurfaceAlpha = alpha;
                 mSurfaceControl.setAlpha(alpha);
@@ -508,6 +514,9 @@ class WindowSurfaceController {
     }
 
     void setShown(boolean surfaceShown) {
+        if (mSurfaceShown != surfaceShown) {
+            mService.mStateSequence++;
+        }
         mSurfaceShown = surfaceShown;
 
         mService.updateNonSystemOverlayWindowsVisibilityIfNeeded(mAnimator.mWin, surfaceShown);
@@ -100,6 +100,17 @@ class WindowSurfacePlacer {
     private boolean mTraversalScheduled;
     private int mDeferDepth = 0;
 
+    /**
+     * Whether the next pass has to place all displays, because it was requested without saying
+     * which container changed. Otherwise it only places the displays that were marked with
+     * {@link WindowContainer#setSurfacePlacementDirty}.
+     */
+    private boolean mAllDisplaysDirty = true;
+
+    // Windows placed by the last pass, and the windows of all displays.
+    private int mLastWindowsVisited;
+    private int mLastWindowsTotal;
+
     private static final class LayerAndToken {
         public int layer;
         public AppWindowToken token;
@@ -115,7 +126,7 @@ class WindowSurfacePlacer {
         mWallpaperControllerLocked = mService.mRoot.mWallpaperController;
         mPerformSurfacePlacement = () -> {
             synchronized (mService.mWindowMap) {
-                performSurfacePlacement();
+                performSurfacePlacementIfNeeded(false /* force */);
             }
         };
     }
@@ -146,6 +157,20 @@ class WindowSurfacePlacer {
     }
 
     final void performSurfacePlacement(boolean force) {
+        mAllDisplaysDirty = true;
+        performSurfacePlacementIfNeeded(force);
+    }
+
+    /**
+     * Like {@link #performSurfacePlacement(boolean)}, but only places the display of the given
+     * container and the displays that changed since they were last placed.
+     */
+    final void performSurfacePlacement(WindowContainer dirty, boolean force) {
+        dirty.setSurfacePlacementDirty();
+        performSurfacePlacementIfNeeded(force);
+    }
+
+    private void performSurfacePlacementIfNeeded(boolean force) {
         if (mDeferDepth > 0 && !force) {
             return;
         }
@@ -210,7 +235,8 @@ class WindowSurfacePlacer {
 
             if (mService.mRoot.isLayoutNeeded()) {
                 if (++mLayoutRepeatCount < 6) {
-                    requestTraversal();
+                    // The displays that need layout are placed by the next pass anyway.
+                    scheduleTraversal();
                 } else {
                     Slog.e(TAG, "Performed 6 layouts in a row. Skipping");
                     mLayoutRepeatCount = 0;
@@ -796,7 +822,43 @@ class WindowSurfacePlacer {
         }
     }
 
+    /**
+     * Returns whether the current pass has to place all displays, and resets it for the next one.
+     */
+    boolean consumeAllDisplaysDirty() {
+        final boolean allDisplaysDirty = mAllDisplaysDirty;
+        mAllDisplaysDirty = false;
+        return allDisplaysDirty;
+    }
+
+    /**
+     * Reports the number of windows the current pass placed, out of the windows of all displays.
+     */
+    void onWindowsPlaced(int visited, int total) {
+        mLastWindowsVisited = visited;
+        mLastWindowsTotal = total;
+        if (Trace.isTagEnabled(Trace.TRACE_TAG_WINDOW_MANAGER)) {
+            Trace.traceCounter(Trace.TRACE_TAG_WINDOW_MANAGER, "wmPlacementWindowsVisited",
+                    visited);
+            Trace.traceCounter(Trace.TRACE_TAG_WINDOW_MANAGER, "wmPlacementWindowsTotal", total);
+        }
+    }
+
     void requestTraversal() {
+        mAllDisplaysDirty = true;
+        scheduleTraversal();
+    }
+
+    /**
+     * Like {@link #requestTraversal()}, but the pass only places the display of the given
+     * container and the displays that changed since they were last placed.
+     */
+    void requestTraversal(WindowContainer dirty) {
+        dirty.setSurfacePlacementDirty();
+        scheduleTraversal();
+    }
+
+    private void scheduleTraversal() {
         if (!mTraversalScheduled) {
             mTraversalScheduled = true;
             mService.mAnimationHandler.post(mPerformSurfacePlacement);
@@ -805,6 +867,8 @@ class WindowSurfacePlacer {
 
     public void dump(PrintWriter pw, String prefix) {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
+        pw.println(prefix + "mLastWindowsVisited=" + mLastWindowsVisited
+                + " mLastWindowsTotal=" + mLastWindowsTotal);
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
     }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static com.android.server.wm.WindowManagerTraceFileProto.ENTRY;
+import static com.android.server.wm.WindowManagerTraceFileProto.MAGIC_NUMBER;
+import static com.android.server.wm.WindowManagerTraceProto.ELAPSED_REALTIME_NANOS;
+import static com.android.server.wm.WindowManagerTraceProto.WHERE;
+import static com.android.server.wm.WindowManagerTraceProto.WINDOW_MANAGER_SERVICE;
+
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A buffer of bounded size of the most recent window manager states, which {@link WindowTracing}
+ * keeps in memory at all times, such that the states leading up to a problem can be saved after
+ * the fact.
+ * <p>
+ * The oldest state is stored in full, and every other state as the difference to the state before
+ * it: the bytes that changed between the common prefix and the common suffix of the two encoded
+ * states. A state that didn't change isn't stored at all. When the buffer is full, the oldest
+ * state is dropped and the state after it is stored in full instead.
+ * <p>
+ * Has its own lock, such that it can be saved while the window manager lock is held elsewhere,
+ * e.g. when the watchdog finds the system hung.
+ */
+class WindowTraceRingBuffer {
+
+    /** Estimate of the memory an entry takes besides its bytes. */
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private final Object mLock = new Object();
+    private final int mCapacity;
+
+    @GuardedBy("mLock")
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+    @GuardedBy("mLock")
+    private int mSize;
+    @GuardedBy("mLock")
+    private byte[] mLastState;
+
+    private static final class Entry {
+        final long elapsedRealtimeNanos;
+        final String where;
+        // The length of the common prefix and suffix with the state before, 0 if in full.
+        final int prefixLength;
+        final int suffixLength;
+        final byte[] bytes;
+
+        Entry(long elapsedRealtimeNanos, String where, int prefixLength, int suffixLength,
+                byte[] bytes) {
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+            this.where = where;
+            this.prefixLength = prefixLength;
+            this.suffixLength = suffixLength;
+            this.bytes = bytes;
+        }
+
+        int getSize() {
+            return ENTRY_OVERHEAD + bytes.length;
+        }
+
+        /** Returns the state of this entry, given the state before it. */
+        byte[] apply(byte[] previous) {
+            if (previous == null) {
+                return bytes;
+            }
+            final byte[] state = new byte[prefixLength + bytes.length + suffixLength];
+            System.arraycopy(previous, 0, state, 0, prefixLength);
+            System.arraycopy(bytes, 0, state, prefixLength, bytes.length);
+            System.arraycopy(previous, previous.length - suffixLength, state,
+                    prefixLength + bytes.length, suffixLength);
+            return state;
+        }
+    }
+
+    WindowTraceRingBuffer(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds a state, unless it is the same as the last one.
+     *
+     * @param state The encoded {@code WindowManagerServiceDumpProto}.
+     */
+    void add(long elapsedRealtimeNanos, String where, byte[] state) {
+        synchronized (mLock) {
+            final byte[] last = mLastState;
+            final Entry entry;
+            if (last == null) {
+                entry = new Entry(elapsedRealtimeNanos, where, 0, 0, state);
+            } else {
+                final int maxCommon = Math.min(last.length, state.length);
+                int prefix = 0;
+                while (prefix < maxCommon && last[prefix] == state[prefix]) {
+                    prefix++;
+                }
+                if (prefix == last.length && prefix == state.length) {
+                    return;
+                }
+                int suffix = 0;
+                while (suffix < maxCommon - prefix
+                        && last[last.length - 1 - suffix] == state[state.length - 1 - suffix]) {
+                    suffix++;
+                }
+                final byte[] bytes = new byte[state.length - prefix - suffix];
+                System.arraycopy(state, prefix, bytes, 0, bytes.length);
+                entry = new Entry(elapsedRealtimeNanos, where, prefix, suffix, bytes);
+            }
+            mEntries.addLast(entry);
+            mSize += entry.getSize();
+            mLastState = state;
+            trimLocked();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void trimLocked() {
+        while (mSize > mCapacity && mEntries.size() > 1) {
+            final Entry oldest = mEntries.removeFirst();
+            mSize -= oldest.getSize();
+            final Entry next = mEntries.removeFirst();
+            mSize -= next.getSize();
+            final Entry full = new Entry(next.elapsedRealtimeNanos, next.where, 0, 0,
+                    next.apply(oldest.bytes));
+            mEntries.addFirst(full);
+            mSize += full.getSize();
+        }
+        if (mSize > mCapacity) {
+            // A single state that doesn't fit.
+            mEntries.clear();
+            mSize = 0;
+            mLastState = null;
+        }
+    }
+
+    void clear() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mSize = 0;
+            mLastState = null;
+        }
+    }
+
+    @VisibleForTesting
+    int getEntryCount() {
+        synchronized (mLock) {
+            return mEntries.size();
+        }
+    }
+
+    int getSize() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    /**
+     * Writes the states in the format of a window trace file, see
+     * {@code WindowManagerTraceFileProto}.
+     */
+    void writeTo(OutputStream os, long magicNumber) throws IOException {
+        final ArrayList<Entry> entries;
+        synchronized (mLock) {
+            entries = new ArrayList<>(mEntries);
+        }
+        ProtoOutputStream proto = new ProtoOutputStream(os);
+        proto.write(MAGIC_NUMBER, magicNumber);
+        proto.flush();
+        byte[] state = null;
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            state = entry.apply(state);
+            proto = new ProtoOutputStream(os);
+            final long token = proto.start(ENTRY);
+            proto.write(ELAPSED_REALTIME_NANOS, entry.elapsedRealtimeNanos);
+            proto.write(WHERE, entry.where);
+            proto.write(WINDOW_MANAGER_SERVICE, state);
+            proto.end(token);
+            proto.flush();
+        }
+    }
+}
@@ -46,18 +46,32 @@ import java.util.concurrent.BlockingQueue;
 /**
  * A class that allows window manager to dump its state continuously to a trace file, such that a
  * time series of window manager state can be analyzed after the fact.
+ * <p>
+ * The recent states are also kept in a {@link WindowTraceRingBuffer} at all times, also on user
+ * builds, which can be saved to a file in the same format when something went wrong, see
+ * {@link #saveRingBuffer}. A state is only serialized for the buffer when
+ * {@link WindowManagerService#mStateSequence} says that it may have changed.
  */
 class WindowTracing {
 
     private static final String TAG = "WindowTracing";
     private static final long MAGIC_NUMBER_VALUE = ((long) MAGIC_NUMBER_H << 32) | MAGIC_NUMBER_L;
+    private static final int RING_BUFFER_CAPACITY = 512 * 1024;
+    static final File RING_BUFFER_FILE = new File("/data/misc/wmtrace/wm_trace_ring_buffer.pb");
 
     private final Object mLock = new Object();
     private final File mTraceFile;
     private final BlockingQueue<ProtoOutputStream> mWriteQueue = new ArrayBlockingQueue<>(200);
 
+    private final WindowTraceRingBuffer mRingBuffer =
+            new WindowTraceRingBuffer(RING_BUFFER_CAPACITY);
+
     private boolean mEnabled;
     private volatile boolean mEnabledLockFree;
+    private volatile boolean mRingBufferEnabled;
+    /** The state sequence of the last state added to the ring buffer. */
+    private int mRingBufferStateSequence;
+    private boolean mRingBufferHasState;
 
     WindowTracing(File file) {
         mTraceFile = file;
@@ -159,9 +173,47 @@ class WindowTracing {
         return mEnabledLockFree;
     }
 
+    @VisibleForTesting
+    void setRingBufferEnabled(boolean enabled) {
+        mRingBufferEnabled = enabled;
+        if (!enabled) {
+            mRingBuffer.clear();
+            mRingBufferHasState = false;
+        }
+    }
+
+    /**
+     * Saves the states in the ring buffer to the given file. Doesn't need the window manager lock,
+     * so it can also be called when window manager is hung.
+     */
+    void saveRingBuffer(@Nullable PrintWriter pw, File file) {
+        if (!mRingBufferEnabled) {
+            logAndPrintln(pw, "Error: The window trace ring buffer is disabled.");
+            return;
+        }
+        Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "saveRingBuffer");
+        try {
+            file.delete();
+            try (OutputStream os = new FileOutputStream(file)) {
+                file.setReadable(true, false);
+                mRingBuffer.writeTo(os, MAGIC_NUMBER_VALUE);
+            }
+            logAndPrintln(pw, "Window trace ring buffer of " + mRingBuffer.getSize()
+                    + " bytes written to " + file + ".");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write file " + file, e);
+            if (pw != null) {
+                pw.println("Error: " + e);
+            }
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
+        }
+    }
+
     static WindowTracing createDefaultAndStartLooper(Context context) {
         File file = new File("/data/misc/wmtrace/wm_trace.pb");
         WindowTracing windowTracing = new WindowTracing(file);
+        windowTracing.setRingBufferEnabled(true);
         if (!IS_USER){
             new Thread(windowTracing::loop, "window_tracing").start();
         }
@@ -178,6 +230,9 @@ class WindowTracing {
                 case "stop":
                     stopTrace(pw);
                     return 0;
+                case "save-ring-buffer":
+                    saveRingBuffer(pw, RING_BUFFER_FILE);
+                    return 0;
                 default:
                     pw.println("Unknown command: " + cmd);
                     return -1;
@@ -189,24 +244,47 @@ class WindowTracing {
     }
 
     void traceStateLocked(String where, WindowManagerService service) {
-        if (!isEnabled()) {
+        traceStateLocked(where, service, false /* animationFrame */);
+    }
+
+    /**
+     * Traces the current state of window manager.
+     *
+     * @param animationFrame Whether the state is traced after a frame of the running animations.
+     *                       Those states only go to the trace file and not to the ring buffer, so
+     *                       that keeping the ring buffer doesn't serialize the state on every frame.
+     */
+    void traceStateLocked(String where, WindowManagerService service, boolean animationFrame) {
+        final boolean toFile = isEnabled();
+        final int stateSequence = service.mStateSequence;
+        final boolean toRingBuffer = mRingBufferEnabled && !animationFrame
+                && (!mRingBufferHasState || stateSequence != mRingBufferStateSequence);
+        if (!toFile && !toRingBuffer) {
             return;
         }
-        ProtoOutputStream os = new ProtoOutputStream();
-        long tokenOuter = os.start(ENTRY);
-        os.write(ELAPSED_REALTIME_NANOS, SystemClock.elapsedRealtimeNanos());
-        os.write(WHERE, where);
-
+        final long elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+        final byte[] state;
         Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "writeToProtoLocked");
         try {
-            long tokenInner = os.start(WINDOW_MANAGER_SERVICE);
-            service.writeToProtoLocked(os, true /* trim */);
-            os.end(tokenInner);
+            final ProtoOutputStream stateProto = new ProtoOutputStream();
+            service.writeToProtoLocked(stateProto, true /* trim */);
+            state = stateProto.getBytes();
         } finally {
             Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
         }
-        os.end(tokenOuter);
-        appendTraceEntry(os);
-        Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
+        if (toRingBuffer) {
+            mRingBuffer.add(elapsedRealtimeNanos, where, state);
+            mRingBufferStateSequence = stateSequence;
+            mRingBufferHasState = true;
+        }
+        if (toFile) {
+            ProtoOutputStream os = new ProtoOutputStream();
+            long token = os.start(ENTRY);
+            os.write(ELAPSED_REALTIME_NANOS, elapsedRealtimeNanos);
+            os.write(WHERE, where);
+            os.write(WINDOW_MANAGER_SERVICE, state);
+            os.end(token);
+            appendTraceEntry(os);
+        }
     }
 }
@@ -17,6 +17,8 @@
 package com.android.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -29,7 +31,6 @@ import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.Xml;
 
 import org.junit.Before;
@@ -82,7 +83,7 @@ public class AppOpsUpgradeTest {
         }
     }
 
-    private void assertSameModes(SparseArray<AppOpsService.UidState> uidStates, int op1, int op2) {
+    private void assertSameModes(AppOpsService.UidStateMap uidStates, int op1, int op2) {
         int numberOfNonDefaultOps = 0;
         final int defaultModeOp1 = AppOpsManager.opToDefaultMode(op1);
         final int defaultModeOp2 = AppOpsManager.opToDefaultMode(op2);
@@ -121,6 +122,7 @@ public class AppOpsUpgradeTest {
     public void setUp() {
         mContext = InstrumentationRegistry.getTargetContext();
         mAppOpsFile = new File(mContext.getFilesDir(), APP_OPS_FILENAME);
+        AppOpsService.getJournalFile(mAppOpsFile).delete();
         extractAppOpsFile();
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
@@ -138,8 +140,15 @@ public class AppOpsUpgradeTest {
         testService.mContext = mContext;
         mHandler.removeCallbacks(testService.mWriteRunner);
         testService.writeState();
-        assertTrue(parser.parse());
-        assertEquals(CURRENT_VERSION, parser.mVersion);
+        // The state moved to the journal.
+        assertFalse(mAppOpsFile.exists());
+        final AppOpsJournal journal = new AppOpsJournal(AppOpsService.getJournalFile(mAppOpsFile));
+        assertNotNull(journal.read());
+        assertEquals(CURRENT_VERSION, journal.getDataVersion());
+
+        testService = new AppOpsService(mAppOpsFile, mHandler);
+        assertSameModes(testService.mUidStates, AppOpsManager.OP_RUN_IN_BACKGROUND,
+                AppOpsManager.OP_RUN_ANY_IN_BACKGROUND);
     }
 
     /**
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit tests for {@link IntentResolver}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class IntentResolverTest {
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    private final TestResolver mResolver = new TestResolver();
+
+    private IntentFilter addViewFilter(String scheme, String... hosts) {
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_VIEW);
+        filter.addDataScheme(scheme);
+        for (String host : hosts) {
+            filter.addDataAuthority(host, null);
+        }
+        mResolver.addFilter(filter);
+        return filter;
+    }
+
+    private List<IntentFilter> queryView(String uri) {
+        return mResolver.queryIntent(new Intent(Intent.ACTION_VIEW, Uri.parse(uri)),
+                null /*resolvedType*/, false /*defaultOnly*/, UserHandle.USER_SYSTEM);
+    }
+
+    @Test
+    public void testQueryByHost() {
+        final IntentFilter anyHost = addViewFilter("http");
+        final IntentFilter exactHost = addViewFilter("http", "www.example.com", "example.com");
+        final IntentFilter wildHost = addViewFilter("http", "*.example.com");
+        final IntentFilter otherHost = addViewFilter("http", "www.android.com");
+        final IntentFilter otherScheme = addViewFilter("https", "www.example.com");
+
+        assertEquals(Arrays.asList(anyHost, exactHost, wildHost),
+                queryView("http://www.example.com/index.html"));
+        // Hosts are matched ignoring case
+        assertEquals(Arrays.asList(anyHost, exactHost),
+                queryView("http://Example.COM/"));
+        assertEquals(Arrays.asList(anyHost, wildHost),
+                queryView("http://mail.example.com/"));
+        assertEquals(Arrays.asList(anyHost, otherHost),
+                queryView("http://www.android.com/"));
+        assertEquals(Arrays.asList(otherScheme),
+                queryView("https://www.example.com/"));
+        assertEquals(Arrays.asList(anyHost),
+                queryView("http:opaque"));
+    }
+
+    @Test
+    public void testQueryKeepsOrderAdded() {
+        final IntentFilter first = addViewFilter("http");
+        final IntentFilter second = addViewFilter("http", "www.example.com");
+        final IntentFilter third = addViewFilter("http");
+        final IntentFilter fourth = addViewFilter("http", "*");
+        final IntentFilter fifth = addViewFilter("http", "www.example.com");
+
+        assertEquals(Arrays.asList(first, second, third, fourth, fifth),
+                queryView("http://www.example.com/"));
+    }
+
+    @Test
+    public void testQueryAfterFilterChanges() {
+        final IntentFilter first = addViewFilter("http", "www.example.com");
+        assertEquals(Arrays.asList(first), queryView("http://www.example.com/"));
+
+        final IntentFilter second = addViewFilter("http", "www.example.com");
+        assertEquals(Arrays.asList(first, second), queryView("http://www.example.com/"));
+
+        mResolver.removeFilter(first);
+        assertEquals(Arrays.asList(second), queryView("http://www.example.com/"));
+
+        mResolver.removeFilter(second);
+        assertEquals(0, queryView("http://www.example.com/").size());
+    }
+}
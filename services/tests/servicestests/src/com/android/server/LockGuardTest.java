@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static com.android.server.LockGuard.HISTOGRAM_BUCKETS;
+import static com.android.server.LockGuard.INDEX_DPMS;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for the contention profiling of {@link LockGuard}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:com.android.server.LockGuardTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LockGuardTest {
+    private static final long MS = 1000000;
+
+    private final Object mLock = new Object();
+
+    @After
+    public void tearDown() {
+        LockGuard.resetContentionStats();
+    }
+
+    @Test
+    public void testHistogramBucket() {
+        assertEquals(0, LockGuard.getHistogramBucket(0));
+        assertEquals(0, LockGuard.getHistogramBucket(MS - 1));
+        assertEquals(1, LockGuard.getHistogramBucket(MS));
+        assertEquals(2, LockGuard.getHistogramBucket(2 * MS));
+        assertEquals(2, LockGuard.getHistogramBucket(3 * MS));
+        assertEquals(5, LockGuard.getHistogramBucket(16 * MS));
+        assertEquals(HISTOGRAM_BUCKETS - 1, LockGuard.getHistogramBucket(60000 * MS));
+    }
+
+    @Test
+    public void testNestedSectionsCountOnce() {
+        synchronized (mLock) {
+            LockGuard.onLockedSectionEntered(INDEX_DPMS);
+            synchronized (mLock) {
+                LockGuard.onLockedSectionEntered(INDEX_DPMS);
+                LockGuard.onLockedSectionExited(INDEX_DPMS);
+            }
+            LockGuard.onLockedSectionExited(INDEX_DPMS);
+        }
+        assertEquals(1, LockGuard.getAcquisitionCount(INDEX_DPMS));
+
+        // Unbalanced exits are ignored.
+        LockGuard.onLockedSectionExited(INDEX_DPMS);
+        synchronized (mLock) {
+            LockGuard.onLockedSectionEntered(INDEX_DPMS);
+            LockGuard.onLockedSectionExited(INDEX_DPMS);
+        }
+        assertEquals(2, LockGuard.getAcquisitionCount(INDEX_DPMS));
+    }
+
+    @Test
+    public void testHoldHistogram() {
+        synchronized (mLock) {
+            LockGuard.onLockedSectionEntered(INDEX_DPMS);
+            SystemClock.sleep(20);
+            LockGuard.onLockedSectionExited(INDEX_DPMS);
+        }
+        final long[] histogram = LockGuard.getHoldHistogram(INDEX_DPMS);
+        long slow = 0;
+        for (int i = LockGuard.getHistogramBucket(20 * MS); i < HISTOGRAM_BUCKETS; i++) {
+            slow += histogram[i];
+        }
+        assertEquals(1, slow);
+    }
+
+    @Test
+    public void testExitAfterNextOwnerEntered() throws Exception {
+        // The exit of a section may only be reported after the next owner took the lock.
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch handedOver = new CountDownLatch(1);
+        final Thread owner = new Thread(() -> {
+            LockGuard.onLockedSectionEntered(INDEX_DPMS);
+            entered.countDown();
+            try {
+                handedOver.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            LockGuard.onLockedSectionExited(INDEX_DPMS);
+        });
+        owner.start();
+        entered.await();
+        LockGuard.onLockedSectionEntered(INDEX_DPMS);
+        handedOver.countDown();
+        owner.join();
+        LockGuard.onLockedSectionExited(INDEX_DPMS);
+
+        assertEquals(2, LockGuard.getAcquisitionCount(INDEX_DPMS));
+        assertEquals(1, LockGuard.getContendedCount(INDEX_DPMS));
+        long holds = 0;
+        for (long count : LockGuard.getHoldHistogram(INDEX_DPMS)) {
+            holds += count;
+        }
+        assertEquals(2, holds);
+    }
+}
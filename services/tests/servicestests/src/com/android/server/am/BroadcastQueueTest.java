@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.app.AppOpsManager;
+import android.app.IApplicationThread;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.content.res.CompatibilityInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.testing.DexmakerShareClassLoaderRule;
+
+import com.android.server.AppOpsService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link BroadcastQueue}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:com.android.server.am.BroadcastQueueTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BroadcastQueueTest {
+    private static final String ACTION = "com.android.server.am.TEST_ACTION";
+    private static final String PACKAGE = "com.android.test";
+    private static final int UID = Process.FIRST_APPLICATION_UID;
+
+    @Rule
+    public final DexmakerShareClassLoaderRule mDexmakerShareClassLoaderRule =
+            new DexmakerShareClassLoaderRule();
+
+    private ActivityManagerService mService;
+    private BroadcastQueue mQueue;
+    private ProcessRecord mApp;
+    private IApplicationThread mThread;
+
+    @Before
+    public void setUp() {
+        mService = spy(new ActivityManagerService(new ActivityManagerService.Injector() {
+            @Override
+            public AppOpsService getAppOpsService(File file, Handler handler) {
+                return null;
+            }
+
+            @Override
+            public Handler getUiHandler(ActivityManagerService service) {
+                return null;
+            }
+
+            @Override
+            public boolean isNetworkRestrictedForUid(int uid) {
+                return false;
+            }
+        }));
+        doReturn(CompatibilityInfo.DEFAULT_COMPATIBILITY_INFO).when(mService)
+                .compatibilityInfoForPackageLocked(any());
+        doNothing().when(mService).notifyPackageUse(anyString(), anyInt());
+        mQueue = new BroadcastQueue(mService, new Handler(Looper.getMainLooper()), "test", 0,
+                false);
+
+        mApp = new ProcessRecord(null, null, newApplicationInfo(PACKAGE), PACKAGE, UID);
+        mThread = mock(IApplicationThread.class);
+        mApp.thread = mThread;
+    }
+
+    private static ApplicationInfo newApplicationInfo(String packageName) {
+        final ApplicationInfo ai = new ApplicationInfo();
+        ai.packageName = packageName;
+        ai.processName = PACKAGE;
+        ai.uid = UID;
+        return ai;
+    }
+
+    private static ResolveInfo newReceiver(String packageName, String className) {
+        final ResolveInfo ri = new ResolveInfo();
+        ri.activityInfo = new ActivityInfo();
+        ri.activityInfo.applicationInfo = newApplicationInfo(packageName);
+        ri.activityInfo.packageName = packageName;
+        ri.activityInfo.processName = PACKAGE;
+        ri.activityInfo.name = className;
+        return ri;
+    }
+
+    private BroadcastRecord newRecord(List<ResolveInfo> receivers) {
+        return new BroadcastRecord(mQueue, new Intent(ACTION), null, "com.android.sender", 0,
+                Process.SYSTEM_UID, false, null, null, AppOpsManager.OP_NONE, null, receivers,
+                null, 0, null, null, true, false, false, UserHandle.USER_SYSTEM);
+    }
+
+    /** Mirrors the bookkeeping of processNextBroadcastLocked before it delivers a receiver. */
+    private static void startNextReceiver(BroadcastRecord r) {
+        final ResolveInfo info = (ResolveInfo) r.receivers.get(r.nextReceiver++);
+        r.state = BroadcastRecord.APP_RECEIVE;
+        r.curComponent = new ComponentName(info.activityInfo.packageName,
+                info.activityInfo.name);
+        r.curReceiver = info.activityInfo;
+    }
+
+    private void finishReceiver(BroadcastRecord r) {
+        mQueue.finishReceiverLocked(r, r.resultCode, r.resultData, r.resultExtras, false, false);
+    }
+
+    @Test
+    public void testBatchedReceiverSkipsSetup() throws Exception {
+        final ResolveInfo first = newReceiver(PACKAGE, PACKAGE + ".First");
+        final ResolveInfo second = newReceiver(PACKAGE, PACKAGE + ".Second");
+        final List<ResolveInfo> receivers = new ArrayList<>();
+        receivers.add(first);
+        receivers.add(second);
+        final BroadcastRecord r = newRecord(receivers);
+
+        startNextReceiver(r);
+        assertFalse(mQueue.isBatchedReceiverLocked(r, mApp));
+        mQueue.processCurBroadcastToRunningAppLocked(r, mApp, true, false);
+        final int lruSeq = mService.mLruSeq;
+        finishReceiver(r);
+        // The next receiver may still be batched with this one.
+        assertSame(mApp, r.batchApp);
+        assertEquals(PACKAGE, r.batchPackage);
+
+        startNextReceiver(r);
+        assertTrue(mQueue.isBatchedReceiverLocked(r, mApp));
+        mQueue.processCurBroadcastToRunningAppLocked(r, mApp, true, true);
+        assertEquals(1, mQueue.mBatchedReceiverCount);
+
+        // Both receivers are delivered, but the process and package are only set up once.
+        verify(mThread).scheduleReceiver(any(), eq(first.activityInfo), any(), anyInt(), any(),
+                any(), anyBoolean(), anyInt(), anyInt());
+        verify(mThread).scheduleReceiver(any(), eq(second.activityInfo), any(), anyInt(), any(),
+                any(), anyBoolean(), anyInt(), anyInt());
+        verify(mService, times(1)).notifyPackageUse(eq(PACKAGE), anyInt());
+        assertEquals(lruSeq, mService.mLruSeq);
+        assertTrue(mApp.curReceivers.contains(r));
+
+        // The finished broadcast goes into the history, which must not keep the process.
+        finishReceiver(r);
+        assertNull(r.batchApp);
+        assertNull(r.batchPackage);
+    }
+
+    @Test
+    public void testReceiverInOtherPackageIsNotBatched() throws Exception {
+        final List<ResolveInfo> receivers = new ArrayList<>();
+        receivers.add(newReceiver(PACKAGE, PACKAGE + ".First"));
+        receivers.add(newReceiver(PACKAGE + ".other", PACKAGE + ".Second"));
+        final BroadcastRecord r = newRecord(receivers);
+
+        startNextReceiver(r);
+        mQueue.processCurBroadcastToRunningAppLocked(r, mApp, true, false);
+        finishReceiver(r);
+
+        startNextReceiver(r);
+        assertFalse(mQueue.isBatchedReceiverLocked(r, mApp));
+        assertNull(r.batchApp);
+        assertNull(r.batchPackage);
+    }
+}
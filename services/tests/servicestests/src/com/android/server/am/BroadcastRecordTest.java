@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.AppOpsManager;
+import android.app.BroadcastOptions;
+import android.content.Intent;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link BroadcastRecord}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:com.android.server.am.BroadcastRecordTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BroadcastRecordTest {
+    private static final String ACTION = "com.android.server.am.TEST_ACTION";
+    private static final String EXTRA_KEY = "key";
+    private static final int CALLING_UID = 10001;
+
+    private static BroadcastRecord newRecord(String action, int callingUid, String extraValue,
+            String coalescingExtraKey) {
+        final Intent intent = new Intent(action);
+        if (extraValue != null) {
+            intent.putExtra(EXTRA_KEY, extraValue);
+        }
+        BroadcastOptions options = null;
+        if (coalescingExtraKey != null) {
+            options = BroadcastOptions.makeBasic();
+            options.setCoalescingExtraKey(coalescingExtraKey);
+        }
+        return new BroadcastRecord(null, intent, null, "com.android.test", 0, callingUid,
+                false, null, null, AppOpsManager.OP_NONE, options, new ArrayList<>(), null, 0,
+                null, null, false, false, false, UserHandle.USER_SYSTEM);
+    }
+
+    @Test
+    public void testCanCoalesce() {
+        final BroadcastRecord old = newRecord(ACTION, CALLING_UID, "a", EXTRA_KEY);
+        assertTrue(newRecord(ACTION, CALLING_UID, "a", EXTRA_KEY).canCoalesce(old));
+
+        // The extra identifies what the broadcast is about.
+        assertFalse(newRecord(ACTION, CALLING_UID, "b", EXTRA_KEY).canCoalesce(old));
+        assertFalse(newRecord(ACTION, CALLING_UID, null, EXTRA_KEY).canCoalesce(old));
+        // Only broadcasts of the same action from the same app are replaced.
+        assertFalse(newRecord(ACTION + "2", CALLING_UID, "a", EXTRA_KEY).canCoalesce(old));
+        assertFalse(newRecord(ACTION, CALLING_UID + 1, "a", EXTRA_KEY).canCoalesce(old));
+    }
+
+    @Test
+    public void testCoalescingIsOptIn() {
+        final BroadcastRecord old = newRecord(ACTION, CALLING_UID, "a", null);
+        assertFalse(newRecord(ACTION, CALLING_UID, "a", null).canCoalesce(old));
+        assertFalse(newRecord(ACTION, CALLING_UID, "a", EXTRA_KEY).canCoalesce(old));
+        assertFalse(old.canCoalesce(newRecord(ACTION, CALLING_UID, "a", EXTRA_KEY)));
+    }
+}
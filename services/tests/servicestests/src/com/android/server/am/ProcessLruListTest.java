@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static com.android.server.am.ProcessLruList.REGION_ACTIVITY;
+import static com.android.server.am.ProcessLruList.REGION_NONE;
+import static com.android.server.am.ProcessLruList.REGION_OTHER;
+import static com.android.server.am.ProcessLruList.REGION_SERVICE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.ApplicationInfo;
+import android.os.Process;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests for {@link ProcessLruList}, and a benchmark of moving processes around a list of
+ * {@link #PROCESS_COUNT} processes.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:com.android.server.am.ProcessLruListTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ProcessLruListTest {
+    private static final String TAG = "ProcessLruListTest";
+
+    private static final int PROCESS_COUNT = 200;
+    private static final int ITERATIONS = 100000;
+
+    private static ProcessRecord newProcess(int index) {
+        final ApplicationInfo info = new ApplicationInfo();
+        info.packageName = "com.android.test.lru" + index;
+        info.uid = Process.FIRST_APPLICATION_UID + index;
+        return new ProcessRecord(null, null, info, info.packageName, info.uid);
+    }
+
+    private static ProcessRecord[] newProcesses(int count) {
+        final ProcessRecord[] procs = new ProcessRecord[count];
+        for (int i = 0; i < count; i++) {
+            procs[i] = newProcess(i);
+        }
+        return procs;
+    }
+
+    private static void assertOrder(ProcessLruList list, ProcessRecord... expected) {
+        assertEquals(expected.length, list.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertSame("at " + i, expected[i], list.get(i));
+            assertEquals(i, list.indexOf(expected[i]));
+        }
+    }
+
+    @Test
+    public void testRegions() {
+        final ProcessLruList list = new ProcessLruList();
+        final ProcessRecord[] p = newProcesses(5);
+        list.addTop(p[0], REGION_ACTIVITY);
+        list.addTop(p[1], REGION_OTHER);
+        list.addTop(p[2], REGION_SERVICE);
+        list.addTop(p[3], REGION_OTHER);
+        list.add(p[4]);
+
+        assertOrder(list, p[1], p[3], p[2], p[0], p[4]);
+        assertEquals(0, list.getRegionStart(REGION_OTHER));
+        assertEquals(2, list.getRegionStart(REGION_SERVICE));
+        assertEquals(3, list.getRegionStart(REGION_ACTIVITY));
+        assertEquals(REGION_SERVICE, list.getRegion(p[2]));
+        assertSame(p[4], list.getTop());
+        assertSame(p[3], list.getTop(REGION_OTHER));
+        assertSame(p[1], list.getBelow(p[3]));
+        assertNull(list.getBelow(p[2]));
+        assertTrue(list.isBelow(p[3], p[2]));
+        assertFalse(list.isBelow(p[4], p[0]));
+    }
+
+    @Test
+    public void testMoveAndRemove() {
+        final ProcessLruList list = new ProcessLruList();
+        final ProcessRecord[] p = newProcesses(4);
+        for (ProcessRecord app : p) {
+            list.addTop(app, REGION_OTHER);
+        }
+
+        assertTrue(list.remove(p[3]));
+        list.addBelow(p[3], p[1]);
+        assertOrder(list, p[0], p[3], p[1], p[2]);
+
+        assertTrue(list.remove(p[0]));
+        assertFalse(list.remove(p[0]));
+        assertFalse(list.contains(p[0]));
+        assertEquals(-1, list.indexOf(p[0]));
+        assertEquals(REGION_NONE, list.getRegion(p[0]));
+        assertOrder(list, p[3], p[1], p[2]);
+
+        list.clear();
+        assertEquals(0, list.size());
+        assertNull(list.getTop());
+        list.add(p[1]);
+        assertOrder(list, p[1]);
+    }
+
+    @Test
+    public void testRepeatedInsertionsBelow() {
+        // Always inserting at the same spot runs out of room between the order keys,
+        // which makes the list renumber the region.
+        final ProcessLruList list = new ProcessLruList();
+        final ProcessRecord[] p = newProcesses(PROCESS_COUNT);
+        list.addTop(p[0], REGION_OTHER);
+        list.addTop(p[1], REGION_OTHER);
+        for (int i = 2; i < PROCESS_COUNT; i++) {
+            list.addBelow(p[i], p[1]);
+        }
+        for (int i = 1; i < PROCESS_COUNT - 1; i++) {
+            assertTrue(list.isBelow(list.get(i), list.get(i + 1)));
+        }
+        assertSame(p[0], list.get(0));
+        assertSame(p[2], list.get(1));
+        assertSame(p[1], list.get(PROCESS_COUNT - 1));
+    }
+
+    @Test
+    public void testMatchesArrayList() {
+        final ProcessLruList list = new ProcessLruList();
+        final ArrayList<ProcessRecord> expected = new ArrayList<>();
+        final ProcessRecord[] p = newProcesses(PROCESS_COUNT);
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            final ProcessRecord app = p[random.nextInt(PROCESS_COUNT)];
+            expected.remove(app);
+            list.remove(app);
+            if (random.nextInt(4) != 0) {
+                final int activityStart = list.getRegionStart(REGION_ACTIVITY);
+                if (random.nextBoolean() || activityStart == 0) {
+                    expected.add(activityStart, app);
+                    list.addTop(app, REGION_OTHER);
+                } else {
+                    final ProcessRecord anchor = expected.get(random.nextInt(activityStart));
+                    expected.add(expected.indexOf(anchor), app);
+                    list.addBelow(app, anchor);
+                }
+            }
+            if (i % 100 == 0) {
+                assertOrder(list, expected.toArray(new ProcessRecord[expected.size()]));
+            }
+        }
+    }
+
+    @Test
+    public void testBenchmarkMoves() {
+        final ProcessRecord[] p = newProcesses(PROCESS_COUNT);
+        final ProcessLruList list = new ProcessLruList();
+        final ArrayList<ProcessRecord> arrayList = new ArrayList<>();
+        for (int i = 0; i < PROCESS_COUNT; i++) {
+            list.addTop(p[i], i < PROCESS_COUNT / 2 ? REGION_OTHER : REGION_ACTIVITY);
+            arrayList.add(p[i]);
+        }
+        int activityStart = PROCESS_COUNT / 2;
+
+        // Move processes to the top of the non-activity area and their dependents right
+        // below them, the common moves of updateLruProcessLocked().
+        final Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ProcessRecord app = p[random.nextInt(PROCESS_COUNT)];
+            final ProcessRecord dep = p[random.nextInt(PROCESS_COUNT)];
+            if (app.lruRegion == REGION_ACTIVITY || dep == app) {
+                continue;
+            }
+            list.remove(app);
+            list.addTop(app, REGION_OTHER);
+            if (dep.lruRegion == REGION_OTHER && list.isBelow(dep, app)) {
+                list.remove(dep);
+                list.addBelow(dep, app);
+            }
+        }
+        final long lruListNs = System.nanoTime() - start;
+
+        random.setSeed(42);
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ProcessRecord app = p[random.nextInt(PROCESS_COUNT)];
+            final ProcessRecord dep = p[random.nextInt(PROCESS_COUNT)];
+            final int lrui = arrayList.lastIndexOf(app);
+            if (lrui >= activityStart || dep == app) {
+                continue;
+            }
+            arrayList.remove(lrui);
+            arrayList.add(activityStart - 1, app);
+            final int depi = arrayList.lastIndexOf(dep);
+            if (depi < activityStart - 1) {
+                arrayList.remove(depi);
+                arrayList.add(activityStart - 2, dep);
+            }
+        }
+        final long arrayListNs = System.nanoTime() - start;
+
+        assertOrder(list, arrayList.toArray(new ProcessRecord[PROCESS_COUNT]));
+        Log.i(TAG, String.format("%d processes: ProcessLruList=%dns/move ArrayList=%dns/move",
+                PROCESS_COUNT, lruListNs / ITERATIONS, arrayListNs / ITERATIONS));
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.server.am;
 
 import android.content.pm.UserInfo;
+import android.graphics.Bitmap;
 import android.os.Environment;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -72,6 +73,24 @@ public class TaskPersisterTest extends AndroidTestCase {
                 taskIdsOnFile.equals(newTaskIdsOnFile));
     }
 
+    public void testGetTaskIdFromFileName() {
+        assertEquals(12, TaskPersister.getTaskIdFromFileName("12_task.xml"));
+        assertEquals(1, TaskPersister.getTaskIdFromFileName("1_activity_icon_42.png"));
+        assertEquals(-1, TaskPersister.getTaskIdFromFileName("persisted_taskIds.txt"));
+        assertEquals(-1, TaskPersister.getTaskIdFromFileName("_task.xml"));
+    }
+
+    public void testSaveImageLatestWins() {
+        final String path = new File(getContext().getFilesDir(),
+                "1_activity_icon_42.png").getAbsolutePath();
+        final Bitmap first = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        final Bitmap second = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        mTaskPersister.saveImage(first, path);
+        mTaskPersister.saveImage(second, path);
+        assertSame(second, mTaskPersister.getImageFromWriteQueue(path));
+        assertNull(mTaskPersister.getImageFromWriteQueue(path + ".other"));
+    }
+
     private int createUser(String name, int flags) {
         UserInfo user = mUserManager.createUser(name, flags);
         if (user == null) {
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.am.ActivityManagerService.GrantUri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link UriPermissionMap}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:com.android.server.am.UriPermissionMapTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UriPermissionMapTest {
+    private static final int TARGET_UID = 10001;
+    private static final int READ = Intent.FLAG_GRANT_READ_URI_PERMISSION;
+    private static final int WRITE = Intent.FLAG_GRANT_WRITE_URI_PERMISSION;
+    private static final int MIN_STRENGTH = UriPermission.STRENGTH_OWNED;
+
+    private static UriPermission grant(UriPermissionMap map, String uri, boolean prefix,
+            int modeFlags) {
+        final UriPermission perm = new UriPermission("source", "target", TARGET_UID,
+                new GrantUri(UserHandle.USER_SYSTEM, Uri.parse(uri), prefix));
+        perm.grantModes(modeFlags, null);
+        map.put(perm);
+        return perm;
+    }
+
+    private static boolean hasPrefixMatch(UriPermissionMap map, String uri, int modeFlags) {
+        return map.hasPrefixMatch(Uri.parse(uri), modeFlags, MIN_STRENGTH);
+    }
+
+    @Test
+    public void testHasPrefixMatch() {
+        final UriPermissionMap map = new UriPermissionMap();
+        grant(map, "content://docs/tree/a", true, READ);
+        grant(map, "content://docs/tree/b/c", false, READ | WRITE);
+
+        assertTrue(hasPrefixMatch(map, "content://docs/tree/a", READ));
+        assertTrue(hasPrefixMatch(map, "content://docs/tree/a/x/y", READ));
+        assertFalse(hasPrefixMatch(map, "content://docs/tree/a/x/y", WRITE));
+        assertFalse(hasPrefixMatch(map, "content://docs/tree", READ));
+        assertFalse(hasPrefixMatch(map, "content://docs/tree/ab", READ));
+        assertFalse(hasPrefixMatch(map, "content://other/tree/a", READ));
+        assertFalse(hasPrefixMatch(map, "file://docs/tree/a", READ));
+        // Exact grants don't cover other uris.
+        assertFalse(hasPrefixMatch(map, "content://docs/tree/b/c/d", READ));
+
+        // A grant of the root covers the whole authority.
+        grant(map, "content://docs", true, WRITE);
+        assertTrue(hasPrefixMatch(map, "content://docs/tree/a/x/y", WRITE));
+        assertTrue(hasPrefixMatch(map, "content://docs/other", WRITE));
+    }
+
+    @Test
+    public void testRemove() {
+        final UriPermissionMap map = new UriPermissionMap();
+        final UriPermission outer = grant(map, "content://docs/tree/a", true, READ);
+        final UriPermission inner = grant(map, "content://docs/tree/a/b", true, WRITE);
+        assertEquals(2, map.size());
+
+        map.remove(outer.uri);
+        assertFalse(hasPrefixMatch(map, "content://docs/tree/a/b/c", READ));
+        assertTrue(hasPrefixMatch(map, "content://docs/tree/a/b/c", WRITE));
+
+        for (int i = map.size() - 1; i >= 0; i--) {
+            if (map.valueAt(i) == inner) {
+                map.removeAt(i);
+            }
+        }
+        assertTrue(map.isEmpty());
+        assertFalse(hasPrefixMatch(map, "content://docs/tree/a/b/c", WRITE));
+    }
+
+    @Test
+    public void testPersistedCount() {
+        final UriPermissionMap map = new UriPermissionMap();
+        final UriPermission perm = grant(map, "content://docs/a", false,
+                READ | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
+        assertEquals(0, map.getPersistedCount());
+
+        perm.takePersistableModes(READ);
+        assertEquals(1, map.getPersistedCount());
+        final UriPermission restored = new UriPermission("source", "target", TARGET_UID,
+                new GrantUri(UserHandle.USER_SYSTEM, Uri.parse("content://docs/b"), false));
+        restored.initPersistedModes(READ, 0);
+        map.put(restored);
+        assertEquals(2, map.getPersistedCount());
+
+        perm.releasePersistableModes(READ);
+        assertEquals(1, map.getPersistedCount());
+        map.remove(restored.uri);
+        assertEquals(0, map.getPersistedCount());
+        // Grants that were removed no longer count.
+        restored.releasePersistableModes(READ);
+        assertEquals(0, map.getPersistedCount());
+    }
+
+    /**
+     * Compares finding a prefix grant among 10k grants with the trie to the linear scan it
+     * replaced, and reports the time of both.
+     */
+    @Test
+    @LargeTest
+    public void testPrefixMatchWith10kGrants() {
+        final int grants = 10000;
+        final int lookups = 10000;
+        final UriPermissionMap map = new UriPermissionMap();
+        for (int i = 0; i < grants; i++) {
+            // Exact grants of documents in trees of 10, and prefix grants of every other tree.
+            grant(map, "content://docs/tree/" + (i / 10) + "/document/" + i, false, READ);
+            if (i % 20 == 0) {
+                grant(map, "content://docs/tree/" + (i / 10), true, READ);
+            }
+        }
+        final Uri[] uris = new Uri[lookups];
+        for (int i = 0; i < lookups; i++) {
+            // Half of the lookups are in a tree with a prefix grant.
+            final int tree = (i * 7) % (grants / 10);
+            uris[i] = Uri.parse("content://docs/tree/" + tree + "/document/" + i + "/child");
+            uris[i].getPathSegments();
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        int trieMatches = 0;
+        for (Uri uri : uris) {
+            if (map.hasPrefixMatch(uri, READ, MIN_STRENGTH)) {
+                trieMatches++;
+            }
+        }
+        final long trieNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // The scan is too slow to do every lookup.
+        final int scanLookups = lookups / 20;
+        start = SystemClock.elapsedRealtimeNanos();
+        int scanMatches = 0;
+        for (int l = 0; l < scanLookups; l++) {
+            final Uri uri = uris[l];
+            for (int i = 0; i < map.size(); i++) {
+                final UriPermission perm = map.valueAt(i);
+                if (perm.uri.prefix && uri.isPathPrefixMatch(perm.uri.uri)
+                        && perm.getStrength(READ) >= MIN_STRENGTH) {
+                    scanMatches++;
+                    break;
+                }
+            }
+        }
+        final long scanNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        assertEquals(lookups / 2, trieMatches);
+        assertEquals(scanLookups / 2, scanMatches);
+
+        final Bundle status = new Bundle();
+        status.putLong("prefix_match_trie_ns", trieNanos / lookups);
+        status.putLong("prefix_match_scan_ns", scanNanos / scanLookups);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+}
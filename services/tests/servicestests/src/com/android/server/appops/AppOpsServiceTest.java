@@ -50,7 +50,7 @@ import java.util.List;
 public class AppOpsServiceTest {
 
     private static final String TAG = AppOpsServiceTest.class.getSimpleName();
-    // State will be persisted into this XML file.
+    // State will be persisted into the journal that replaces this XML file.
     private static final String APP_OPS_FILENAME = "appops-service-test.xml";
 
     private File mAppOpsFile;
@@ -69,6 +69,7 @@ public class AppOpsServiceTest {
             // Start with a clean state (persisted into XML).
             mAppOpsFile.delete();
         }
+        AppOpsService.getJournalFile(mAppOpsFile).delete();
 
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
@@ -103,7 +104,7 @@ public class AppOpsServiceTest {
         assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
     }
 
-    // Tests the dumping and restoring of the in-memory state to/from XML.
+    // Tests the dumping and restoring of the in-memory state to/from the journal.
     @Test
     public void testStatePersistence() {
         mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
@@ -112,7 +113,7 @@ public class AppOpsServiceTest {
         mAppOpsService.noteOperation(OP_WRITE_SMS, mMyUid, mMyPackageName);
         mAppOpsService.writeState();
 
-        // Create a new app ops service, and initialize its state from XML.
+        // Create a new app ops service, and initialize its state from the journal.
         mAppOpsService = new AppOpsService(mAppOpsFile, mHandler);
         mAppOpsService.mContext = mContext;
         mAppOpsService.readState();
@@ -123,6 +124,26 @@ public class AppOpsServiceTest {
         assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
     }
 
+    // Tests that writes after the first one, which only append the uids that changed, are
+    // restored on top of it.
+    @Test
+    public void testStatePersistence_incremental() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        mAppOpsService.writeState();
+        mAppOpsService.setMode(OP_WRITE_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.noteOperation(OP_WRITE_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.writeState();
+
+        mAppOpsService = new AppOpsService(mAppOpsFile, mHandler);
+        mAppOpsService.mContext = mContext;
+        mAppOpsService.readState();
+
+        List<PackageOps> loggedOps = getLoggedOps();
+        assertContainsOp(loggedOps, OP_READ_SMS, mTestStartMillis, -1, MODE_ALLOWED);
+        assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
+    }
+
     // Tests that ops are persisted during shutdown.
     @Test
     public void testShutdown() {
@@ -130,7 +151,7 @@ public class AppOpsServiceTest {
         mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
         mAppOpsService.shutdown();
 
-        // Create a new app ops service, and initialize its state from XML.
+        // Create a new app ops service, and initialize its state from the journal.
         mAppOpsService = new AppOpsService(mAppOpsFile, mHandler);
         mAppOpsService.mContext = mContext;
         mAppOpsService.readState();
@@ -43,6 +43,7 @@ import android.os.PersistableBundle;
 import android.os.UserHandle;
 import android.os.UserManagerInternal;
 import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.ArrayMap;
@@ -63,6 +64,7 @@ import org.junit.runner.RunWith;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -74,6 +76,7 @@ public class PackageManagerSettingsTests {
     private static final String PACKAGE_NAME_2 = "com.android.app2";
     private static final String PACKAGE_NAME_3 = "com.android.app3";
     private static final String PACKAGE_NAME_1 = "com.android.app1";
+    private static final String PACKAGE_NAME_4 = "com.android.app4";
     public static final String TAG = "PackageManagerSettingsTests";
     protected final String PREFIX = "android.content.pm";
 
@@ -288,6 +291,119 @@ public class PackageManagerSettingsTests {
         assertThat(hasEnabled, is(false));
     }
 
+    /** changes to a few packages are journaled without rewriting packages.xml */
+    @Test
+    public void testJournaledWrite() throws IOException {
+        writeOldFiles();
+        final Context context = InstrumentationRegistry.getContext();
+        final Object lock = new Object();
+        PermissionManagerInternal pmInt = PermissionManagerService.create(context, null, lock);
+        Settings settings =
+                new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+
+        // The first write after boot is always a full snapshot
+        settings.writeLPr();
+        final File packagesXml = new File(context.getFilesDir(), "system/packages.xml");
+        final File journal = new File(context.getFilesDir(), "system/packages-journal.bin");
+        final byte[] snapshot = Files.readAllBytes(packagesXml.toPath());
+        final long emptyJournalLength = journal.length();
+
+        // Change the package that defines the certificate shared with app2
+        settings.getPackageLPr(PACKAGE_NAME_1).lastUpdateTime = 0x1234L;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_1);
+        settings.addPackageLPw(PACKAGE_NAME_4, null /*realName*/,
+                new File("/data/app/app4.apk"), new File("/data/app/app4.apk"),
+                null /*legacyNativeLibraryPathString*/, null /*primaryCpuAbiString*/,
+                null /*secondaryCpuAbiString*/, null /*cpuAbiOverrideString*/, 11040, 1L,
+                0 /*pkgFlags*/, 0 /*pkgPrivateFlags*/, null /*parentPackageName*/,
+                null /*childPackageNames*/, null /*usesStaticLibraries*/,
+                null /*usesStaticLibraryVersions*/);
+        settings.writeChangedLPr();
+        assertTrue(Arrays.equals(snapshot, Files.readAllBytes(packagesXml.toPath())));
+        assertTrue(journal.length() > emptyJournalLength);
+
+        // Read the snapshot together with the journal
+        settings = new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).lastUpdateTime, is(0x1234L));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_4), is(notNullValue()));
+        assertTrue(Arrays.equals(
+                settings.getPackageLPr(PACKAGE_NAME_2).signatures.mSigningDetails.signatures,
+                settings.getPackageLPr(PACKAGE_NAME_1).signatures.mSigningDetails.signatures));
+        verifyKeySetMetaData(settings);
+
+        // Removals are journaled as well
+        settings.writeLPr();
+        final byte[] compacted = Files.readAllBytes(packagesXml.toPath());
+        settings.removePackageLPw(PACKAGE_NAME_4);
+        settings.writeChangedLPr();
+        assertTrue(Arrays.equals(compacted, Files.readAllBytes(packagesXml.toPath())));
+        settings = new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_4), is(nullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).lastUpdateTime, is(0x1234L));
+
+        // Changes to settings that aren't journaled rewrite packages.xml
+        settings.writeLPr();
+        final long journalLength = journal.length();
+        settings.addRenamedPackageLPw(PACKAGE_NAME_4, PACKAGE_NAME_1);
+        settings.writeChangedLPr();
+        assertThat(journal.length(), is(journalLength));
+        assertThat(settings.getRenamedPackageLPr(PACKAGE_NAME_4), is(PACKAGE_NAME_1));
+        settings = new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getRenamedPackageLPr(PACKAGE_NAME_4), is(PACKAGE_NAME_1));
+    }
+
+    /**
+     * Compares the latency of a journaled write with a full rewrite of packages.xml
+     * for a device with a large number of installed packages.
+     */
+    @Test
+    @LargeTest
+    public void testJournaledWriteLatency() {
+        writeOldFiles();
+        final Context context = InstrumentationRegistry.getContext();
+        final Object lock = new Object();
+        PermissionManagerInternal pmInt = PermissionManagerService.create(context, null, lock);
+        Settings settings =
+                new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        for (int i = 0; i < 400; i++) {
+            final String packageName = "com.android.benchmark" + i;
+            final File codePath = new File("/data/app/" + packageName + "-1");
+            settings.addPackageLPw(packageName, null /*realName*/, codePath, codePath,
+                    null /*legacyNativeLibraryPathString*/, "arm64-v8a" /*primaryCpuAbiString*/,
+                    null /*secondaryCpuAbiString*/, null /*cpuAbiOverrideString*/, 12000 + i,
+                    1L, 0 /*pkgFlags*/, 0 /*pkgPrivateFlags*/, null /*parentPackageName*/,
+                    null /*childPackageNames*/, null /*usesStaticLibraries*/,
+                    null /*usesStaticLibraryVersions*/);
+        }
+        settings.writeLPr();
+
+        final int iterations = 20;
+        long fullNanos = 0;
+        long journaledNanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            settings.getPackageLPr("com.android.benchmark" + i).lastUpdateTime = i;
+            settings.markPackageDirtyLPw("com.android.benchmark" + i);
+            long start = System.nanoTime();
+            settings.writeChangedLPr();
+            journaledNanos += System.nanoTime() - start;
+
+            // The first write after reading the settings is a full rewrite
+            settings = new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+            assertThat(settings.readLPw(createFakeUsers()), is(true));
+            start = System.nanoTime();
+            settings.writeLPr();
+            fullNanos += System.nanoTime() - start;
+        }
+        Log.i(TAG, "packages.xml write latency with 400 packages: full="
+                + (fullNanos / iterations / 1000) + "us journaled="
+                + (journaledNanos / iterations / 1000) + "us");
+    }
+
     private static final String PACKAGE_NAME = "com.android.bar";
     private static final String REAL_PACKAGE_NAME = "com.android.foo";
     private static final String PARENT_PACKAGE_NAME = "com.android.bar.parent";
@@ -33,6 +33,7 @@ import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
@@ -110,6 +111,21 @@ public class PackageParserTest {
         assertEquals("android", pkg.packageName);
     }
 
+    @Test
+    public void testParse_withMappedCache() throws Exception {
+        PackageParser pp = new PackageParser();
+        pp.setCacheDir(mTmpDir);
+
+        PackageParser.Package pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+        final int readCount = PackageParser.sCachedPackageReadCount.get();
+        PackageParser.Package cached = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+
+        assertEquals(readCount + 1, PackageParser.sCachedPackageReadCount.get());
+        assertPackagesEqual(pkg, cached);
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         PackageParser pp = new PackageParser();
@@ -183,7 +199,8 @@ public class PackageParserTest {
         }
 
         @Override
-        public Package fromCacheEntry(byte[] cacheEntry) {
+        public Package fromCacheFile(File cacheFile) throws IOException {
+            final byte[] cacheEntry = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
             return new Package(new String(cacheEntry, StandardCharsets.UTF_8));
         }
     }
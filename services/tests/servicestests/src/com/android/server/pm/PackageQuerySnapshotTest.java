@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import android.Manifest;
+import android.content.pm.PackageParser;
+import android.os.Process;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.server.pm.permission.BasePermission;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PackageQuerySnapshotTest {
+    private static final String PACKAGE_NAME = "com.android.app1";
+    private static final int APP_ID = Process.FIRST_APPLICATION_UID + 1;
+    private static final int[] USER_IDS = { UserHandle.USER_SYSTEM };
+
+    private final SparseArray<Object> mAppIds = new SparseArray<>();
+    private final ArrayMap<String, PackageParser.Package> mPackages = new ArrayMap<>();
+    private final SparseArray<ArraySet<String>> mSystemPermissions = new SparseArray<>();
+    private PackageSetting mPackageSetting;
+
+    @Before
+    public void setUp() {
+        final File codePath = new File("/data/app/" + PACKAGE_NAME + "-1");
+        mPackageSetting = new PackageSetting(PACKAGE_NAME, null /*realName*/, codePath,
+                codePath, null /*legacyNativeLibraryPathString*/, null /*primaryCpuAbiString*/,
+                null /*secondaryCpuAbiString*/, null /*cpuAbiOverrideString*/, 1 /*versionCode*/,
+                0 /*pkgFlags*/, 0 /*pkgPrivateFlags*/, null /*parentPackageName*/,
+                null /*childPackageNames*/, 0 /*sharedUserId*/, null /*usesStaticLibraries*/,
+                null /*usesStaticLibrariesVersions*/);
+        mPackageSetting.appId = APP_ID;
+        final PackageParser.Package pkg = new PackageParser.Package(PACKAGE_NAME);
+        pkg.mExtras = mPackageSetting;
+        mPackageSetting.pkg = pkg;
+        mAppIds.put(APP_ID, mPackageSetting);
+        mPackages.put(PACKAGE_NAME, pkg);
+
+        final ArraySet<String> shellPermissions = new ArraySet<>();
+        shellPermissions.add(Manifest.permission.ACCESS_FINE_LOCATION);
+        mSystemPermissions.put(Process.SHELL_UID, shellPermissions);
+    }
+
+    private PackageQuerySnapshot buildSnapshot() {
+        return PackageQuerySnapshot.build(USER_IDS, mAppIds, mPackages, mSystemPermissions);
+    }
+
+    @Test
+    public void testCheckUidPermission() {
+        mPackageSetting.getPermissionsState().grantInstallPermission(new BasePermission(
+                Manifest.permission.INTERNET, "android", BasePermission.TYPE_NORMAL));
+        final PackageQuerySnapshot snapshot = buildSnapshot();
+
+        assertThat(snapshot.checkUidPermission(Manifest.permission.INTERNET, APP_ID,
+                Process.SYSTEM_UID), is(PERMISSION_GRANTED));
+        assertThat(snapshot.checkUidPermission(Manifest.permission.CAMERA, APP_ID,
+                Process.SYSTEM_UID), is(PERMISSION_DENIED));
+        // Uids without packages fall back to system permissions
+        assertThat(snapshot.checkUidPermission(Manifest.permission.ACCESS_COARSE_LOCATION,
+                Process.SHELL_UID, Process.SYSTEM_UID), is(PERMISSION_GRANTED));
+        // Unknown users are answered with the package lock held
+        assertThat(snapshot.checkUidPermission(Manifest.permission.INTERNET,
+                UserHandle.getUid(10, APP_ID), Process.SYSTEM_UID),
+                is(PackageQuerySnapshot.UNKNOWN));
+    }
+
+    @Test
+    public void testInstantAppsAreNotAnswered() {
+        mPackageSetting.setInstantApp(true, UserHandle.USER_SYSTEM);
+        final PackageQuerySnapshot snapshot = buildSnapshot();
+
+        assertThat(snapshot.checkUidPermission(Manifest.permission.INTERNET, APP_ID,
+                Process.SYSTEM_UID), is(PackageQuerySnapshot.UNKNOWN));
+        final boolean[] unknown = new boolean[1];
+        assertThat(snapshot.getPackagesForUid(APP_ID, APP_ID, unknown),
+                is(nullValue()));
+        assertThat(unknown[0], is(true));
+    }
+
+    @Test
+    public void testGetPackagesForUid() {
+        final PackageQuerySnapshot snapshot = buildSnapshot();
+        final boolean[] unknown = new boolean[1];
+        assertThat(snapshot.getPackagesForUid(APP_ID, Process.SYSTEM_UID, unknown),
+                is(new String[] { PACKAGE_NAME }));
+        assertThat(snapshot.getPackagesForUid(APP_ID + 1, Process.SYSTEM_UID, unknown),
+                is(nullValue()));
+        assertThat(unknown[0], is(false));
+    }
+
+    @Test
+    public void testInvalidation() {
+        final PackageQuerySnapshot snapshot = buildSnapshot();
+        assertThat(snapshot.isCurrent(), is(true));
+
+        mPackageSetting.getPermissionsState().grantInstallPermission(new BasePermission(
+                Manifest.permission.INTERNET, "android", BasePermission.TYPE_NORMAL));
+        assertThat(snapshot.isCurrent(), is(false));
+
+        final PackageQuerySnapshot rebuilt = buildSnapshot();
+        assertThat(rebuilt.isCurrent(), is(true));
+        mPackageSetting.setInstalled(false, UserHandle.USER_SYSTEM);
+        assertThat(rebuilt.isCurrent(), is(false));
+    }
+}
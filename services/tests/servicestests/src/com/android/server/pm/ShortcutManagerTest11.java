@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.pm;
+
+import static com.android.server.pm.shortcutmanagertest.ShortcutManagerTestUtils.assertWith;
+
+import android.content.ComponentName;
+import android.content.pm.ShortcutInfo;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for saving each publisher package in its own file, and a benchmark of saving and
+ * loading {@link #PACKAGE_COUNT} packages with {@link #SHORTCUT_COUNT} shortcuts each.
+ *
+ m FrameworksServicesTests &&
+ adb install \
+ -r -g ${ANDROID_PRODUCT_OUT}/data/app/FrameworksServicesTests/FrameworksServicesTests.apk &&
+ adb shell am instrument -e class com.android.server.pm.ShortcutManagerTest11 \
+ -w com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+public class ShortcutManagerTest11 extends BaseShortcutManagerTest {
+    private static final String PERF_PACKAGE_PREFIX = "com.android.test.shortcut.perf";
+    private static final int PERF_UID_BASE = 10100;
+
+    private static final int PACKAGE_COUNT = 50;
+    private static final int SHORTCUT_COUNT = 15;
+    private static final int ITERATIONS = 10;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            addPackage(getPerfPackage(i), PERF_UID_BASE + i, 1);
+        }
+    }
+
+    private static String getPerfPackage(int index) {
+        return PERF_PACKAGE_PREFIX + index;
+    }
+
+    /**
+     * Publishes {@link #SHORTCUT_COUNT} dynamic shortcuts, split across two activities to stay
+     * within the per-activity limit.
+     */
+    private void publishShortcuts(String packageName, String title) {
+        final ComponentName a1 = new ComponentName(packageName, ShortcutActivity.class.getName());
+        final ComponentName a2 = new ComponentName(packageName, ShortcutActivity2.class.getName());
+        final List<ShortcutInfo> shortcuts = new ArrayList<>(SHORTCUT_COUNT);
+        for (int i = 0; i < SHORTCUT_COUNT; i++) {
+            shortcuts.add(makeShortcutWithActivityAndTitle("s" + i,
+                    (i % 2 == 0) ? a1 : a2, title + i));
+        }
+        runWithCaller(packageName, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(shortcuts));
+        });
+    }
+
+    private void publishAllPackages() {
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            publishShortcuts(getPerfPackage(i), "title");
+        }
+    }
+
+    private void assertPublished(String packageName, String title) {
+        runWithCaller(packageName, USER_0, () -> {
+            final List<ShortcutInfo> shortcuts = mManager.getDynamicShortcuts();
+            assertEquals(SHORTCUT_COUNT, shortcuts.size());
+            for (ShortcutInfo si : shortcuts) {
+                assertEquals(title + si.getId().substring(1), si.getShortLabel().toString());
+            }
+        });
+    }
+
+    private void reloadUser() {
+        mService.saveDirtyInfo();
+        initService();
+        mService.handleUnlockUser(USER_0);
+    }
+
+    private ShortcutUser getUser0() {
+        return mService.getShortcutsForTest().get(USER_0);
+    }
+
+    public void testSavePackageShards() {
+        publishShortcuts(CALLING_PACKAGE_1, "title");
+        publishShortcuts(CALLING_PACKAGE_2, "title");
+        mService.saveDirtyInfo();
+
+        final File shard1 = mService.getPackageShardFile(USER_0, CALLING_PACKAGE_1);
+        final File shard2 = mService.getPackageShardFile(USER_0, CALLING_PACKAGE_2);
+        assertTrue(shard1.exists());
+        assertTrue(shard2.exists());
+
+        // Only the package that changed is written again.
+        assertTrue(shard2.delete());
+        mInjectedCurrentTimeMillis += INTERVAL; // reset throttling
+        publishShortcuts(CALLING_PACKAGE_1, "updated");
+        mService.saveDirtyInfo();
+        assertTrue(shard1.exists());
+        assertFalse(shard2.exists());
+
+        // Files of removed packages are deleted.
+        mService.mPackageMonitor.onReceive(getTestContext(),
+                genPackageDeleteIntent(CALLING_PACKAGE_1, USER_0));
+        mService.saveDirtyInfo();
+        assertFalse(shard1.exists());
+    }
+
+    public void testLoadPackageShardsLazily() {
+        publishShortcuts(CALLING_PACKAGE_1, "title1");
+        publishShortcuts(CALLING_PACKAGE_2, "title2");
+
+        reloadUser();
+
+        final ShortcutUser user = getUser0();
+        assertTrue(user.hasPackage(CALLING_PACKAGE_1));
+        assertTrue(user.hasPackage(CALLING_PACKAGE_2));
+        assertFalse(user.isPackageLoaded(CALLING_PACKAGE_1));
+        assertFalse(user.isPackageLoaded(CALLING_PACKAGE_2));
+
+        assertPublished(CALLING_PACKAGE_1, "title1");
+        assertTrue(user.isPackageLoaded(CALLING_PACKAGE_1));
+        assertFalse(user.isPackageLoaded(CALLING_PACKAGE_2));
+
+        // Saving doesn't drop the package that hasn't been loaded.
+        reloadUser();
+        assertPublished(CALLING_PACKAGE_1, "title1");
+        assertPublished(CALLING_PACKAGE_2, "title2");
+    }
+
+    /**
+     * Make sure a user file that has the packages inline is moved to per-package files.
+     */
+    public void testMigrateLegacySavedFile() throws Exception {
+        final File path = mService.getUserFile(USER_0);
+        path.getParentFile().mkdirs();
+        try (Writer w = new FileWriter(path)) {
+            w.write(readTestAsset("shortcut/shortcut_legacy_file.xml"));
+        }
+        initService();
+        mService.handleUnlockUser(USER_0);
+        mService.scheduleSaveUser(USER_0);
+        mService.saveDirtyInfo();
+
+        assertTrue(mService.getPackageShardFile(USER_0, CALLING_PACKAGE_1).exists());
+
+        reloadUser();
+        assertFalse(getUser0().isPackageLoaded(CALLING_PACKAGE_1));
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertWith(getCallerShortcuts())
+                    .haveIds("manifest-shortcut-storage");
+        });
+    }
+
+    public void testBenchmarkSaveAndLoad() {
+        publishAllPackages();
+
+        long start = System.nanoTime();
+        mService.saveDirtyInfo();
+        final long fullSaveNs = System.nanoTime() - start;
+
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            assertTrue(mService.getPackageShardFile(USER_0, getPerfPackage(i)).exists());
+        }
+
+        // A single package keeps updating its shortcuts, e.g. a messaging app.
+        long incrementalSaveNs = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            mInjectedCurrentTimeMillis += INTERVAL; // reset throttling
+            publishShortcuts(getPerfPackage(0), "title-" + i + "-");
+
+            start = System.nanoTime();
+            mService.saveDirtyInfo();
+            incrementalSaveNs += System.nanoTime() - start;
+        }
+
+        mService.saveDirtyInfo();
+        shutdownServices();
+        start = System.nanoTime();
+        initService();
+        mService.handleUnlockUser(USER_0);
+        assertPublished(getPerfPackage(1), "title");
+        final long lazyLoadNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        assertEquals(PACKAGE_COUNT, getUser0().getAllPackagesForTest().size());
+        final long fullLoadNs = System.nanoTime() - start;
+
+        assertPublished(getPerfPackage(0), "title-" + (ITERATIONS - 1) + "-");
+
+        Log.i(TAG, String.format("%d packages x %d shortcuts: full save=%dus"
+                + " single package save=%dus load with one package=%dus"
+                + " load remaining packages=%dus",
+                PACKAGE_COUNT, SHORTCUT_COUNT, fullSaveNs / 1000,
+                incrementalSaveNs / ITERATIONS / 1000, lazyLoadNs / 1000, fullLoadNs / 1000));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class StatsRecordLogTest {
+    private static final int VERSION = 1;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(), "stats.log");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static Map<String, byte[]> records(Object... keysAndValues) {
+        Map<String, byte[]> records = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            records.put((String) keysAndValues[i], (byte[]) keysAndValues[i + 1]);
+        }
+        return records;
+    }
+
+    @Test
+    public void testReadMissingLog() throws IOException {
+        StatsRecordLog log = new StatsRecordLog(mFile, VERSION);
+        try {
+            log.read();
+            fail("Expected FileNotFoundException");
+        } catch (FileNotFoundException expected) {
+        }
+        assertTrue(log.needsCompaction());
+    }
+
+    @Test
+    public void testAppendKeepsLatestRecord() throws IOException {
+        StatsRecordLog log = new StatsRecordLog(mFile, VERSION);
+        log.compact(records("a", new byte[] { 1 }, "b", new byte[] { 2 }));
+        assertFalse(log.needsCompaction());
+        log.append(records("a", new byte[] { 3, 4 }));
+        log.append(records("b", null, "c", new byte[0]));
+
+        Map<String, byte[]> read = new StatsRecordLog(mFile, VERSION).read();
+        assertEquals(2, read.size());
+        assertArrayEquals(new byte[] { 3, 4 }, read.get("a"));
+        assertArrayEquals(new byte[0], read.get("c"));
+    }
+
+    @Test
+    public void testTruncatedRecordIsDropped() throws IOException {
+        StatsRecordLog log = new StatsRecordLog(mFile, VERSION);
+        log.compact(records("a", new byte[] { 1 }));
+        log.append(records("b", new byte[] { 2, 3, 4 }));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        StatsRecordLog readLog = new StatsRecordLog(mFile, VERSION);
+        Map<String, byte[]> read = readLog.read();
+        assertEquals(1, read.size());
+        assertArrayEquals(new byte[] { 1 }, read.get("a"));
+        assertTrue(readLog.needsCompaction());
+
+        readLog.compact(read);
+        assertFalse(readLog.needsCompaction());
+        assertEquals(1, new StatsRecordLog(mFile, VERSION).read().size());
+    }
+
+    @Test
+    public void testRecordTornWithinKeyIsDropped() throws IOException {
+        StatsRecordLog log = new StatsRecordLog(mFile, VERSION);
+        log.compact(records("a", new byte[] { 1 }));
+        final long length = mFile.length();
+        log.append(records("b", new byte[] { 2 }));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(length + 2);
+        }
+
+        StatsRecordLog readLog = new StatsRecordLog(mFile, VERSION);
+        Map<String, byte[]> read = readLog.read();
+        assertEquals(1, read.size());
+        assertTrue(readLog.needsCompaction());
+    }
+
+    @Test
+    public void testCorruptKeyIsDropped() throws IOException {
+        StatsRecordLog log = new StatsRecordLog(mFile, VERSION);
+        log.compact(records("a", new byte[] { 1 }));
+        final long length = mFile.length();
+        log.append(records("b", null));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            // Flip the key of the removal, right after its length.
+            raf.seek(length + 4);
+            raf.write('a');
+        }
+
+        StatsRecordLog readLog = new StatsRecordLog(mFile, VERSION);
+        Map<String, byte[]> read = readLog.read();
+        assertArrayEquals(new byte[] { 1 }, read.get("a"));
+        assertTrue(readLog.needsCompaction());
+    }
+
+    @Test
+    public void testOversizedKeyIsDropped() throws IOException {
+        StatsRecordLog log = new StatsRecordLog(mFile, VERSION);
+        log.compact(records("a", new byte[] { 1 }));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        StatsRecordLog readLog = new StatsRecordLog(mFile, VERSION);
+        assertEquals(1, readLog.read().size());
+        assertTrue(readLog.needsCompaction());
+    }
+
+    @Test
+    public void testCompactionAfterManyAppends() throws IOException {
+        StatsRecordLog log = new StatsRecordLog(mFile, VERSION);
+        log.compact(records("a", new byte[1024]));
+        int appends = 0;
+        while (!log.needsCompaction()) {
+            log.append(records("a", new byte[1024]));
+            appends++;
+        }
+        // Superseded records must be allowed to pile up before compacting.
+        assertTrue(appends > 1);
+        long sizeBefore = mFile.length();
+        log.compact(log.read());
+        assertTrue(mFile.length() < sizeBefore);
+        assertFalse(log.needsCompaction());
+    }
+
+    @Test(expected = IOException.class)
+    public void testVersionMismatch() throws IOException {
+        new StatsRecordLog(mFile, VERSION).compact(records("a", new byte[] { 1 }));
+        new StatsRecordLog(mFile, VERSION + 1).read();
+    }
+}
@@ -17,15 +17,19 @@
 package com.android.server.pm.dex;
 
 import android.os.Build;
+import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import dalvik.system.VMRuntime;
 
+import com.android.server.pm.StatsRecordLog;
+
 import java.util.Collections;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -461,6 +465,36 @@ public class PackageDexUsageTests {
         assertFalse(unknownContext.isVariableClassLoaderContext());
     }
 
+    @Test
+    public void testRecordLogAppendAndReadBack() {
+        File logFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "package-dex-usage.log");
+        logFile.delete();
+        try {
+            PackageDexUsage packageDexUsage =
+                    new PackageDexUsage(new StatsRecordLog(logFile, 1));
+            mPackageDexUsage = packageDexUsage;
+            assertTrue(record(mFooSecondary1User0));
+            assertTrue(record(mBarBaseUser0));
+            // The first write creates the log.
+            packageDexUsage.writeNow();
+
+            // Later writes only append the changed packages.
+            assertTrue(record(mFooSecondary2UsedByOtherApps0));
+            assertTrue(packageDexUsage.removePackage(mBarBaseUser0.mPackageName));
+            long sizeBefore = logFile.length();
+            packageDexUsage.writeNow();
+            assertTrue(logFile.length() > sizeBefore);
+
+            mPackageDexUsage = new PackageDexUsage(new StatsRecordLog(logFile, 1));
+            mPackageDexUsage.read();
+            assertPackageDexUsage(null, mFooSecondary1User0, mFooSecondary2UsedByOtherApps0);
+            assertNull(mPackageDexUsage.getPackageUseInfo(mBarBaseUser0.mPackageName));
+        } finally {
+            logFile.delete();
+        }
+    }
+
     @Test
     public void testReadVersion1() {
         String isa = VMRuntime.getInstructionSet(Build.SUPPORTED_ABIS[0]);
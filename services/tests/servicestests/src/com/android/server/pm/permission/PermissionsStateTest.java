@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm.permission;
+
+import static com.android.server.pm.permission.PermissionsState.PERMISSION_OPERATION_FAILURE;
+import static com.android.server.pm.permission.PermissionsState.PERMISSION_OPERATION_SUCCESS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PermissionsStateTest {
+    private static final int USER_ID = UserHandle.USER_SYSTEM;
+    private static final int OTHER_USER_ID = 10;
+
+    private static BasePermission newPermission(String name) {
+        return new BasePermission(name, "android", BasePermission.TYPE_NORMAL);
+    }
+
+    @Test
+    public void testInstallPermission() {
+        final PermissionsState state = new PermissionsState();
+        final BasePermission permission = newPermission("test.permission.INSTALL");
+
+        assertEquals(PERMISSION_OPERATION_SUCCESS, state.grantInstallPermission(permission));
+        assertTrue(state.hasInstallPermission(permission.getName()));
+        assertTrue(state.hasPermission(permission.getName(), USER_ID));
+        assertTrue(state.hasPermission(permission.getName(), OTHER_USER_ID));
+        assertFalse(state.hasRuntimePermission(permission.getName(), USER_ID));
+        // Install permissions cannot be granted per user
+        assertEquals(PERMISSION_OPERATION_FAILURE,
+                state.grantRuntimePermission(permission, USER_ID));
+
+        assertEquals(PERMISSION_OPERATION_SUCCESS, state.revokeInstallPermission(permission));
+        assertFalse(state.hasPermission(permission.getName(), USER_ID));
+        assertFalse(state.hasInstallPermission(permission.getName()));
+    }
+
+    @Test
+    public void testRuntimePermission() {
+        final PermissionsState state = new PermissionsState();
+        final BasePermission permission = newPermission("test.permission.RUNTIME");
+
+        assertEquals(PERMISSION_OPERATION_SUCCESS,
+                state.grantRuntimePermission(permission, USER_ID));
+        assertTrue(state.hasRuntimePermission(permission.getName(), USER_ID));
+        assertFalse(state.hasPermission(permission.getName(), OTHER_USER_ID));
+        assertFalse(state.hasInstallPermission(permission.getName()));
+
+        assertEquals(PERMISSION_OPERATION_SUCCESS,
+                state.revokeRuntimePermission(permission, USER_ID));
+        assertFalse(state.hasPermission(permission.getName(), USER_ID));
+        assertEquals(0, state.getPermissions(USER_ID).size());
+    }
+
+    @Test
+    public void testManyPermissions() {
+        final PermissionsState state = new PermissionsState();
+        final int count = 200;
+        for (int i = 0; i < count; i += 2) {
+            state.grantInstallPermission(newPermission("test.permission.MANY_" + i));
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 2 == 0,
+                    state.hasPermission("test.permission.MANY_" + i, USER_ID));
+        }
+        assertFalse(state.hasPermission("test.permission.UNKNOWN", USER_ID));
+    }
+
+    @Test
+    public void testCopyAndReset() {
+        final PermissionsState state = new PermissionsState();
+        final BasePermission install = newPermission("test.permission.COPY_INSTALL");
+        final BasePermission runtime = newPermission("test.permission.COPY_RUNTIME");
+        state.grantInstallPermission(install);
+        state.grantRuntimePermission(runtime, OTHER_USER_ID);
+
+        final PermissionsState copy = new PermissionsState(state);
+        assertEquals(state, copy);
+        assertTrue(copy.hasPermission(install.getName(), USER_ID));
+        assertTrue(copy.hasPermission(runtime.getName(), OTHER_USER_ID));
+
+        // The copy must not share grants with the original
+        state.revokeRuntimePermission(runtime, OTHER_USER_ID);
+        assertTrue(copy.hasPermission(runtime.getName(), OTHER_USER_ID));
+
+        copy.reset();
+        assertFalse(copy.hasPermission(install.getName(), USER_ID));
+        assertFalse(copy.hasPermission(runtime.getName(), OTHER_USER_ID));
+    }
+}
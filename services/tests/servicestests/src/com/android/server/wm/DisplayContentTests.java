@@ -218,6 +218,53 @@ public class DisplayContentTests extends WindowTestsBase {
         assertEquals(mDisplayContent, token.getDisplayContent());
     }
 
+    /**
+     * This tests that a change of a window only marks its own display to be placed.
+     */
+    @Test
+    public void testSetSurfacePlacementDirty() throws Exception {
+        final DisplayContent dc = createNewDisplay();
+        final WindowState window = createWindow(null, TYPE_BASE_APPLICATION, dc, "window");
+
+        // A pass places every display that is dirty.
+        sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */);
+        assertFalse(mDisplayContent.mSurfacePlacementDirty);
+        assertFalse(dc.mSurfacePlacementDirty);
+
+        window.setSurfacePlacementDirty();
+        assertFalse(mDisplayContent.mSurfacePlacementDirty);
+        assertTrue(dc.mSurfacePlacementDirty);
+
+        sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */);
+        assertFalse(dc.mSurfacePlacementDirty);
+        assertTrue(dc.mLastSurfacePlacementResult.windowCount > 0);
+    }
+
+    /**
+     * This tests that a pass that skips a display keeps the exiting tokens of the display.
+     */
+    @Test
+    public void testExitingTokensOfSkippedDisplay() throws Exception {
+        final DisplayContent dc = createNewDisplay();
+        final WindowState window = createWindow(null, TYPE_BASE_APPLICATION, dc, "window");
+        final WindowToken token = WindowTestUtils.createTestWindowToken(0, mDisplayContent);
+        sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */);
+        mDisplayContent.mExitingTokens.add(token);
+
+        // Only the other display is placed, so it isn't known whether the token is still visible.
+        window.setSurfacePlacementDirty();
+        sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */);
+        assertTrue(dc.mSurfacesPlaced);
+        assertFalse(mDisplayContent.mSurfacesPlaced);
+        assertTrue(mDisplayContent.mExitingTokens.contains(token));
+
+        // Once its display is placed, the token turns out to be no longer visible.
+        mDisplayContent.setSurfacePlacementDirty();
+        sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */);
+        assertTrue(mDisplayContent.mSurfacesPlaced);
+        assertFalse(mDisplayContent.mExitingTokens.contains(token));
+    }
+
     /**
      * This tests override configuration updates for display content.
      */
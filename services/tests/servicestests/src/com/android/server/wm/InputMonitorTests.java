@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static android.view.Display.DEFAULT_DISPLAY;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.input.InputWindowHandle;
+import com.android.server.wm.InputMonitor.SentInputWindow;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for the change detection of the input windows sent by {@link InputMonitor}.
+ *
+ *  atest FrameworksServicesTests:com.android.server.wm.InputMonitorTests
+ */
+@SmallTest
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class InputMonitorTests {
+
+    private static InputWindowHandle createHandle() {
+        final InputWindowHandle handle = new InputWindowHandle(null /* inputApplicationHandle */,
+                null /* windowState */, null /* clientWindow */, DEFAULT_DISPLAY);
+        handle.name = "window";
+        handle.frameRight = 100;
+        handle.frameBottom = 200;
+        handle.touchableRegion.set(0, 0, 100, 200);
+        handle.visible = true;
+        handle.layer = 1;
+        return handle;
+    }
+
+    @Test
+    public void testMatches() {
+        final InputWindowHandle handle = createHandle();
+        final SentInputWindow sent = new SentInputWindow();
+        assertFalse(sent.matches(handle));
+
+        sent.set(handle);
+        assertTrue(sent.matches(handle));
+        // Another handle with the same state is still another window.
+        assertFalse(sent.matches(createHandle()));
+
+        sent.set(null);
+        assertFalse(sent.matches(handle));
+    }
+
+    @Test
+    public void testMatches_inputStateChanged() {
+        final InputWindowHandle handle = createHandle();
+        final SentInputWindow sent = new SentInputWindow();
+        sent.set(handle);
+
+        handle.frameBottom = 300;
+        assertFalse(sent.matches(handle));
+        sent.set(handle);
+
+        handle.touchableRegion.set(0, 0, 50, 50);
+        assertFalse(sent.matches(handle));
+        sent.set(handle);
+
+        handle.hasFocus = true;
+        assertFalse(sent.matches(handle));
+        sent.set(handle);
+
+        handle.name = "renamed";
+        assertFalse(sent.matches(handle));
+        sent.set(handle);
+        assertTrue(sent.matches(handle));
+    }
+}
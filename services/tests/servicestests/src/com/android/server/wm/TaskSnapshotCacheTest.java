@@ -17,9 +17,12 @@
 package com.android.server.wm;
 
 import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 
+import android.app.ActivityManager.TaskSnapshot;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -108,4 +111,78 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testRestoredSnapshotCached() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final TaskSnapshot reduced = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(reduced);
+
+        // A restored snapshot is only returned again to callers that restore from disk.
+        assertSame(reduced, mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        // A reduced resolution snapshot doesn't do for callers that want the full resolution.
+        final TaskSnapshot full = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, false /* reducedResolution */);
+        assertNotNull(full);
+        assertSame(full, mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+    }
+
+    @Test
+    public void testTaskRemovedWhileRestoring() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final int taskId = window.getTask().mTaskId;
+        mPersister.persistSnapshot(taskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        mCache = new TaskSnapshotCache(sWm, new TaskSnapshotLoader(mPersister) {
+            @Override
+            TaskSnapshot loadTask(int taskId, int userId, boolean reducedResolution) {
+                final TaskSnapshot snapshot = super.loadTask(taskId, userId, reducedResolution);
+                mCache.onTaskRemoved(taskId);
+                return snapshot;
+            }
+        });
+        assertNotNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+
+        // The snapshot of the removed task isn't cached.
+        assertEquals(0, mCache.getCacheBytes());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final TaskSnapshot snapshot = createSnapshot();
+        final long snapshotBytes = snapshot.getSnapshot().getWidth()
+                * snapshot.getSnapshot().getHeight() * 4;
+        mCache = new TaskSnapshotCache(sWm, mLoader, 2 * snapshotBytes);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final WindowState window3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3");
+        final WindowState window4 = createWindow(null, FIRST_APPLICATION_WINDOW, "window4");
+        mCache.putSnapshot(window1.getTask(), snapshot);
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        // The snapshot of a task whose app is gone is evicted before running ones.
+        mCache.onAppRemoved(window2.mAppToken);
+        mCache.putSnapshot(window3.getTask(), createSnapshot());
+        assertEquals(2 * snapshotBytes, mCache.getCacheBytes());
+        assertNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+
+        // Otherwise the least recently used snapshot is evicted.
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        mCache.putSnapshot(window4.getTask(), createSnapshot());
+        assertEquals(2 * snapshotBytes, mCache.getCacheBytes());
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNull(mCache.getSnapshot(window3.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
 }
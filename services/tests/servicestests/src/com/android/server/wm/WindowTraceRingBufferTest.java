@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link WindowTraceRingBuffer}.
+ *
+ *  atest FrameworksServicesTests:com.android.server.wm.WindowTraceRingBufferTest
+ */
+@SmallTest
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class WindowTraceRingBufferTest {
+
+    private static byte[] state(int i) {
+        return ("state with a long common prefix " + i + " and a long common suffix")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] write(WindowTraceRingBuffer buffer) throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        buffer.writeTo(os, 0x1234L);
+        return os.toByteArray();
+    }
+
+    private static boolean contains(byte[] haystack, byte[] needle) {
+        outer: for (int i = 0; i <= haystack.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testAdd_skipsUnchangedState() throws Exception {
+        final WindowTraceRingBuffer buffer = new WindowTraceRingBuffer(64 * 1024);
+        buffer.add(1, "where", state(1));
+        buffer.add(2, "where", state(1));
+        assertEquals(1, buffer.getEntryCount());
+
+        buffer.add(3, "where", state(2));
+        assertEquals(2, buffer.getEntryCount());
+        // Only the first state is stored in full.
+        assertTrue(buffer.getSize() < 2 * (64 + state(1).length));
+
+        final byte[] out = write(buffer);
+        assertTrue(contains(out, state(1)));
+        assertTrue(contains(out, state(2)));
+    }
+
+    @Test
+    public void testAdd_dropsOldestStates() throws Exception {
+        final int capacity = 1024;
+        final WindowTraceRingBuffer buffer = new WindowTraceRingBuffer(capacity);
+        for (int i = 0; i < 100; i++) {
+            buffer.add(i, "where", state(i));
+        }
+        assertTrue(buffer.getSize() <= capacity);
+        assertTrue(buffer.getEntryCount() < 100);
+
+        // The oldest states are gone, and the ones that are left can still be restored.
+        final byte[] out = write(buffer);
+        assertFalse(contains(out, state(0)));
+        for (int i = 100 - buffer.getEntryCount(); i < 100; i++) {
+            assertTrue(contains(out, state(i)));
+        }
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        final WindowTraceRingBuffer buffer = new WindowTraceRingBuffer(64 * 1024);
+        buffer.add(1, "where", state(1));
+        buffer.clear();
+        assertEquals(0, buffer.getEntryCount());
+        assertEquals(0, buffer.getSize());
+
+        buffer.add(2, "where", state(1));
+        assertEquals(1, buffer.getEntryCount());
+    }
+}
@@ -24,6 +24,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
@@ -118,6 +119,18 @@ public class WindowTracingTest extends WindowTestsBase {
         verify(mWmMock).writeToProtoLocked(any(), eq(true));
     }
 
+    @Test
+    public void ringBuffer_dumpsWindowManagerState_onlyWhenChanged() throws Exception {
+        mWindowTracing.setRingBufferEnabled(true);
+        mWindowTracing.traceStateLocked("where", mWmMock);
+        mWindowTracing.traceStateLocked("where", mWmMock);
+        verify(mWmMock, times(1)).writeToProtoLocked(any(), eq(true));
+
+        mWmMock.mStateSequence++;
+        mWindowTracing.traceStateLocked("where", mWmMock);
+        verify(mWmMock, times(2)).writeToProtoLocked(any(), eq(true));
+    }
+
     @Test
     public void traceFile_startsWithMagicHeader() throws Exception {
         mWindowTracing.startTrace(mock(PrintWriter.class));